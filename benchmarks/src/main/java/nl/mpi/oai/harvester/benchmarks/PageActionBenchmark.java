@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.SplitAction;
+import nl.mpi.oai.harvester.action.StripAction;
+import nl.mpi.oai.harvester.action.XMLSplitAction;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the actions on a ListRecords page: strip, split and XML
+ * split. Every action has a branch for a page parsed into a tree and a
+ * branch for a page kept as a stream; the branch parameter selects which
+ * one is measured. Parsing the page for the tree branch is not part of the
+ * measurement. <br><br>
+ *
+ * Run with {@code -prof gc} to see the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PageActionBenchmark {
+
+    /** The number of records in a page. */
+    @Param({"10", "100"})
+    int records;
+
+    /** The approximate size of a record in bytes. */
+    @Param({"1024", "16384"})
+    int size;
+
+    /** The number of namespaces used by a record. */
+    @Param({"1", "8"})
+    int namespaces;
+
+    /** The branch of the actions: dom or stream. */
+    @Param({"dom", "stream"})
+    String branch;
+
+    private byte[] page;
+    private Provider provider;
+    private DocumentBuilder db;
+
+    private StripAction strip;
+    private SplitAction split;
+    private XMLSplitAction xmlSplit;
+
+    private List<Record> input;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        page = Pages.listRecords(records, size, namespaces);
+        provider = new Provider("http://localhost/oai", 0, new int[]{0});
+        provider.setName("bench");
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        db = dbf.newDocumentBuilder();
+
+        strip = new StripAction();
+        split = new SplitAction();
+        xmlSplit = new XMLSplitAction();
+    }
+
+    // the actions replace the records, so every invocation gets a new page
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        Metadata metadata;
+        if ("dom".equals(branch)) {
+            metadata = new Metadata("page", Pages.PREFIX, db.parse(new ByteArrayInputStream(page)),
+                    provider, true, true);
+        } else {
+            metadata = new Metadata("page", Pages.PREFIX, new ByteArrayInputStream(page),
+                    provider, true, true);
+        }
+        input = new ArrayList<>();
+        input.add(metadata);
+    }
+
+    @Benchmark
+    public List<Record> strip() {
+        strip.perform(input);
+        return input;
+    }
+
+    @Benchmark
+    public List<Record> split() {
+        split.perform(input);
+        return input;
+    }
+
+    @Benchmark
+    public List<Record> xmlSplit() {
+        xmlSplit.perform(input);
+        return input;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Synthetic OAI-PMH responses. <br><br>
+ *
+ * A ListRecords page holds a number of CMDI-like records of about the
+ * requested size. Every record declares a number of namespaces and spreads
+ * its elements over them, so the density of namespaces can be varied
+ * independently of the size.
+ */
+final class Pages {
+
+    static final String OAI = "http://www.openarchives.org/OAI/2.0/";
+    static final String CMD = "http://www.clarin.eu/cmd/1";
+    static final String PREFIX = "cmdi";
+    static final String TOKEN = "bench-token-1";
+
+    private Pages() {
+    }
+
+    /**
+     * @param records    the number of records in the page
+     * @param size       the approximate size of a record in bytes
+     * @param namespaces the number of namespaces used by a record
+     * @return a ListRecords response, UTF-8 encoded
+     */
+    static byte[] listRecords(int records, int size, int namespaces) {
+        StringBuilder sb = new StringBuilder(records * (size + 256) + 1024);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+          .append("<OAI-PMH xmlns=\"").append(OAI).append("\"")
+          .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+          .append(" xsi:schemaLocation=\"").append(OAI).append(" ").append(OAI).append("OAI-PMH.xsd\">\n")
+          .append("<responseDate>2020-01-01T00:00:00Z</responseDate>\n")
+          .append("<request verb=\"ListRecords\" metadataPrefix=\"").append(PREFIX).append("\">http://localhost/oai</request>\n")
+          .append("<ListRecords>\n");
+        for (int i = 0; i < records; i++) {
+            sb.append("<record><header><identifier>oai:bench:").append(i).append("</identifier>")
+              .append("<datestamp>2020-01-01</datestamp></header>\n<metadata>");
+            record(sb, i, size, namespaces);
+            sb.append("</metadata></record>\n");
+        }
+        sb.append("<resumptionToken cursor=\"0\" completeListSize=\"").append(records * 10).append("\">")
+          .append(TOKEN).append("</resumptionToken>\n")
+          .append("</ListRecords>\n</OAI-PMH>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i          the number of the record
+     * @param size       the approximate size of the record in bytes
+     * @param namespaces the number of namespaces used by the record
+     * @return a record without the OAI envelope, UTF-8 encoded
+     */
+    static byte[] record(int i, int size, int namespaces) {
+        StringBuilder sb = new StringBuilder(size + 256);
+        record(sb, i, size, namespaces);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void record(StringBuilder sb, int i, int size, int namespaces) {
+        int start = sb.length();
+        sb.append("<cmd:CMD xmlns:cmd=\"").append(CMD).append("\"");
+        for (int n = 0; n < namespaces; n++) {
+            sb.append(" xmlns:n").append(n).append("=\"urn:bench:ns").append(n).append("\"");
+        }
+        sb.append("><cmd:Header><cmd:MdSelfLink>oai:bench:").append(i).append("</cmd:MdSelfLink></cmd:Header>")
+          .append("<cmd:Components>");
+        int field = 0;
+        while (sb.length() - start < size) {
+            String ns = (namespaces == 0) ? "cmd" : "n" + (field % namespaces);
+            sb.append("<").append(ns).append(":field").append(" ").append(ns).append(":n=\"").append(field).append("\">")
+              .append("value ").append(field).append(" of record ").append(i)
+              .append("</").append(ns).append(":field>");
+            field++;
+        }
+        sb.append("</cmd:Components></cmd:CMD>");
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.SaveAction;
+import nl.mpi.oai.harvester.action.TransformAction;
+import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Benchmarks of the actions on the records split off a page: transform and
+ * save. As for the page actions, the branch parameter selects records
+ * parsed into a tree or records kept as a stream. <br><br>
+ *
+ * The transform uses an identity stylesheet, so it measures the overhead
+ * of the action rather than that of a particular stylesheet. The save
+ * writes to a temporary directory, overwriting the same files in every
+ * invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordActionBenchmark {
+
+    private static final String IDENTITY =
+            "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n"
+            + "  <xsl:param name=\"config\"/>\n"
+            + "  <xsl:template match=\"@*|node()\">\n"
+            + "    <xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy>\n"
+            + "  </xsl:template>\n"
+            + "</xsl:stylesheet>\n";
+
+    /** The number of records in a batch. */
+    @Param({"10", "100"})
+    int records;
+
+    /** The approximate size of a record in bytes. */
+    @Param({"1024", "16384"})
+    int size;
+
+    /** The number of namespaces used by a record. */
+    @Param({"1", "8"})
+    int namespaces;
+
+    /** The branch of the actions: dom or stream. */
+    @Param({"dom", "stream"})
+    String branch;
+
+    private byte[][] content;
+    private Document[] trees;
+    private Provider provider;
+    private Path dir;
+
+    private TransformAction transform;
+    private SaveAction save;
+
+    private List<Record> input;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        DocumentBuilder db = dbf.newDocumentBuilder();
+
+        content = new byte[records][];
+        trees = new Document[records];
+        for (int i = 0; i < records; i++) {
+            content[i] = Pages.record(i, size, namespaces);
+            trees[i] = db.parse(new ByteArrayInputStream(content[i]));
+        }
+        provider = new Provider("http://localhost/oai", 0, new int[]{0});
+        provider.setName("bench");
+
+        dir = Files.createTempDirectory("bench-");
+        Path xsl = dir.resolve("identity.xsl");
+        Files.write(xsl, IDENTITY.getBytes(StandardCharsets.UTF_8));
+        Document config = db.newDocument();
+        config.appendChild(config.createElement("config"));
+        transform = new TransformAction(config.getDocumentElement(), xsl.toString(), null);
+        save = new SaveAction(new OutputDirectory(dir.resolve("out")), ".xml", false, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // the actions may replace the content of the records, so every
+    // invocation gets new ones
+    @Setup(Level.Invocation)
+    public void prepare() {
+        input = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            String id = "oai:bench:" + i;
+            if ("dom".equals(branch)) {
+                input.add(new Metadata(id, Pages.PREFIX, (Document) trees[i].cloneNode(true), provider, false, false));
+            } else {
+                input.add(new Metadata(id, Pages.PREFIX, new ByteArrayInputStream(content[i]), provider, false, false));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Record> transform() {
+        transform.perform(input);
+        return input;
+    }
+
+    @Benchmark
+    public List<Record> save() {
+        save.perform(input);
+        return input;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.benchmarks;
+
+import ORG.oclc.oai.harvester2.verb.ListRecords;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.harvesting.OAIFactory;
+import nl.mpi.oai.harvester.harvesting.RecordListHarvesting;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the handling of a ListRecords response: finding the
+ * resumption token and the schema location, in the tree and in the
+ * stream, and turning the response into records as RecordListHarvesting
+ * does. Parsing the response for the tree branch is not part of the
+ * measurement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    /** The number of records in a page. */
+    @Param({"10", "100"})
+    int records;
+
+    /** The approximate size of a record in bytes. */
+    @Param({"1024", "16384"})
+    int size;
+
+    /** The number of namespaces used by a record. */
+    @Param({"1", "8"})
+    int namespaces;
+
+    /** The branch of the verb: dom or stream. */
+    @Param({"dom", "stream"})
+    String branch;
+
+    private byte[] page;
+    private Provider provider;
+
+    private ListRecords verb;
+
+    /**
+     * A ListRecords verb that serves the synthetic page instead of sending
+     * a request.
+     */
+    static class PageVerb extends ListRecords {
+
+        private final byte[] page;
+
+        PageVerb(byte[] page) {
+            this.page = page;
+        }
+
+        @Override
+        protected DocumentSource fetch(String requestURL, int timeout, Path temp) {
+            return new DocumentSource(requestURL, new ByteArrayInputStream(page));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        page = Pages.listRecords(records, size, namespaces);
+        provider = new Provider("http://localhost/oai", 0, new int[]{0});
+        provider.setName("bench");
+    }
+
+    // the verbs keep what they found, so every invocation gets a new one
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        verb = new PageVerb(page);
+        verb.harvest("http://localhost/oai?verb=ListRecords&metadataPrefix=" + Pages.PREFIX, 0, null);
+        if ("dom".equals(branch)) {
+            verb.getDocument();
+        }
+    }
+
+    @Benchmark
+    public String resumptionToken() throws Exception {
+        return verb.getResumptionToken();
+    }
+
+    @Benchmark
+    public String schemaLocation() throws Exception {
+        return verb.getSchemaLocation();
+    }
+
+    /* RecordListHarvesting works on the tree only, so the stream branch
+       includes parsing the response.
+     */
+    @Benchmark
+    public void parseResponse(Blackhole bh) {
+        RecordListHarvesting harvesting = new RecordListHarvesting(new OAIFactory(), provider,
+                Collections.singletonList(Pages.PREFIX), new MetadataFactory(), null);
+        harvesting.processResponse(verb.getDocumentSource());
+        while (!harvesting.fullyParsed()) {
+            bh.consume(harvesting.parseResponse());
+        }
+    }
+}
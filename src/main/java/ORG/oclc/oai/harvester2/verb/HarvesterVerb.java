@@ -52,6 +52,8 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipInputStream;
 import javax.xml.stream.XMLStreamException;
+import nl.mpi.oai.harvester.jfr.ParseEvent;
+import nl.mpi.oai.harvester.metrics.Metrics;
 import nl.mpi.oai.harvester.utils.DocumentSource;
 import nl.mpi.oai.harvester.utils.MarkableFileInputStream;
 import nl.mpi.tla.util.Saxon;
@@ -79,6 +81,8 @@ public abstract class HarvesterVerb {
     public static final String SCHEMA_LOCATION_V1_1_LIST_RECORDS = "http://www.openarchives.org/OAI/1.1/OAI_ListRecords http://www.openarchives.org/OAI/1.1/OAI_ListRecords.xsd";
     public static final String SCHEMA_LOCATION_V1_1_LIST_SETS = "http://www.openarchives.org/OAI/1.1/OAI_ListSets http://www.openarchives.org/OAI/1.1/OAI_ListSets.xsd";
     private InputStream str = null;
+    // whether the stream was handed to a DocumentSource, which then owns it
+    private boolean handedOut = false;
     private Document doc = null;
     private String schemaLocation = null;
     private String requestURL = null;
@@ -125,6 +129,7 @@ public abstract class HarvesterVerb {
     public DocumentSource getDocumentSource() {
         if (hasDocument())
             return new DocumentSource(requestURL,doc);
+        handedOut = true;
         return new DocumentSource(requestURL,getStream());
     }
     
@@ -155,6 +160,8 @@ public abstract class HarvesterVerb {
      */
     public Document getDocument() throws ParserConfigurationException, SAXException, IOException {
         if (doc == null) {
+            ParseEvent event = ParseEvent.start();
+            long started = System.nanoTime();
             Thread t = Thread.currentThread();
             DocumentBuilder builder = (DocumentBuilder) builderMap.get(t);
             if (builder == null) {
@@ -178,8 +185,19 @@ public abstract class HarvesterVerb {
 
             doc = builder.parse(new InputSource(new StringReader(xmlText)));
 //            doc = builder.parse(getSource());
+            if (!handedOut) {
+                // release what the stream reads from, like a spooled response
+                try {
+                    str.close();
+                } catch (IOException ex) {
+                    logger.debug("stream for '"+requestURL+"' could not be closed", ex);
+                }
+            }
             str = null;
-            logger.debug("switched from stream to tree for request["+requestURL+"]",new Throwable());
+            Metrics.time(Metrics.PARSE, System.nanoTime() - started);
+            event.finish(requestURL);
+            if (logger.isDebugEnabled())
+                logger.debug("switched from stream to tree for request["+requestURL+"]",new Throwable());
         }
         return doc;
     }
@@ -293,7 +311,23 @@ public abstract class HarvesterVerb {
      * @throws TransformerException
      */
     public void harvest(String requestURL, int timeout, Path temp) throws MalformedURLException, IOException {
-        str = DocumentSource.fetch(requestURL,null,null,null,timeout,temp).getStream();
+        str = fetch(requestURL,timeout,temp).getStream();
+        handedOut = false;
+    }
+
+    /**
+     * Fetch the response to an OAI request. Verbs whose responses can be
+     * cached override this method.
+     *
+     * @param requestURL
+     * @param timeout
+     * @param temp
+     * @return the response
+     * @throws MalformedURLException
+     * @throws IOException
+     */
+    protected DocumentSource fetch(String requestURL, int timeout, Path temp) throws MalformedURLException, IOException {
+        return DocumentSource.fetch(requestURL,null,null,null,timeout,temp);
     }
     
     /**
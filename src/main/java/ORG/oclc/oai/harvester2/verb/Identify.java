@@ -26,6 +26,9 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.Path;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ResponseCache;
 
 /**
  * This class represents an Identify response on either the server or
@@ -79,6 +82,15 @@ public class Identify extends HarvesterVerb {
         }
     }
     
+    /**
+     * Identify responses rarely change, so take them from the response cache
+     * when possible.
+     */
+    @Override
+    protected DocumentSource fetch(String requestURL, int timeout, Path temp) throws MalformedURLException, IOException {
+        return ResponseCache.fetch(requestURL, timeout);
+    }
+
     /**
      * generate the Identify request URL for the specified baseURL
      * @param baseURL
@@ -24,6 +24,9 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.Path;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.ResponseCache;
 
 /**
  * This class represents an ListMetadataFormats response on either the server or
@@ -80,6 +83,15 @@ public class ListMetadataFormats extends HarvesterVerb {
         super(getRequestURL(baseURL, identifier), timeout);
     }
     
+    /**
+     * ListMetadataFormats responses rarely change, so take them from the
+     * response cache when possible.
+     */
+    @Override
+    protected DocumentSource fetch(String requestURL, int timeout, Path temp) throws MalformedURLException, IOException {
+        return ResponseCache.fetch(requestURL, timeout);
+    }
+
     /**
      * Construct the query portion of the http request
      *
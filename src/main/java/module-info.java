@@ -1,6 +1,10 @@
 module oai.harvest.manager {
     exports nl.mpi.oai.harvester.action;
+    // the daemon can be operated over JMX
+    exports nl.mpi.oai.harvester.control to java.management;
+    exports nl.mpi.oai.harvester.jfr;
     exports nl.mpi.oai.harvester.metadata;
+    exports nl.mpi.oai.harvester.metrics;
     exports nl.mpi.oai.harvester.protocol;
     exports nl.mpi.oai.harvester.utils;
     requires Saxon.HE;
@@ -10,6 +14,8 @@ module oai.harvest.manager {
     requires java.xml;
     requires java.xml.bind;
     requires java.management;
+    requires jdk.jfr;
+    requires jdk.httpserver;
     requires org.joda.time;
     requires org.apache.commons.io;
     // requires xalan;
@@ -29,6 +29,7 @@ import nl.mpi.oai.harvester.harvesting.Harvesting;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
 import nl.mpi.oai.harvester.metadata.NSContext;
+import nl.mpi.oai.harvester.utils.Retry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
@@ -111,6 +112,12 @@ public class Provider {
 	 */
 	public DeletionMode deletionMode;
 
+    /** Datestamp granularity declared by the provider. */
+    public String granularity;
+
+    /** Earliest datestamp declared by the provider. */
+    public String earliestDatestamp;
+
     /**
      * Provider constructor
      * <br><br>
@@ -203,6 +210,14 @@ public class Provider {
         deletionMode = getProviderDeletionMode();
     }
 
+    public String getGranularity() {
+        return granularity;
+    }
+
+    public String getEarliestDatestamp() {
+        return earliestDatestamp;
+    }
+
     public DeletionMode getDeletionMode() {
         return deletionMode;
     }
@@ -273,6 +288,49 @@ public class Provider {
         return null;
     }
 
+    /**
+     * Make a single Identify request to check that the provider can be
+     * reached, and take the name (unless one was configured), deletion
+     * mode, granularity and earliest datestamp from the response. After
+     * this, preparing the object for use needs no further requests.
+     *
+     * @param timeout timeout for the request in seconds
+     * @return false if the provider did not respond properly, true otherwise
+     */
+    public boolean identify(int timeout) {
+        Document response;
+        try {
+            response = new Identify(oaiUrl, timeout).getDocument();
+        } catch (IOException | ParserConfigurationException | SAXException
+                | TransformerException e) {
+            logger.warn("Cannot identify " + oaiUrl + ": " + e.getMessage());
+            return false;
+        }
+        if (response == null || parseIdentifyValue(response, "repositoryName") == null) {
+            logger.warn("No proper Identify response from " + oaiUrl);
+            return false;
+        }
+
+        if (name == null) name = parseProviderName(response);
+        if (deletionMode == null) deletionMode = parseDeletionMode(response);
+        granularity = parseIdentifyValue(response, "granularity");
+        earliestDatestamp = parseIdentifyValue(response, "earliestDatestamp");
+        return true;
+    }
+
+    // get the text of the first element with the specified name
+    private String parseIdentifyValue(Document response, String element) {
+        try {
+            NodeList value = (NodeList) xpath.evaluate("//*[local-name() = '" + element + "']/text()",
+                    response, XPathConstants.NODESET);
+            if (value != null && value.getLength() > 0)
+                return value.item(0).getNodeValue();
+        } catch (XPathExpressionException e) {
+            logger.error(e.getMessage(), e);
+        }
+        return null;
+    }
+
     /**
      * Parse provider's name from an Identify response.
      *
@@ -436,15 +494,10 @@ public class Provider {
                 logger.error("Provider["+this+"] getRecord["+oaiUrl+"]["+id+"]["+mdPrefix+"] try["+(i+1)+"/"+maxRetryCount+"] failed!");
 		logger.error(e);
 	    }
-            // retry the request once more
-            int retryDelay = getRetryDelay(i);
-            if (retryDelay > 0) {
-                try {
-                    Thread.sleep(retryDelay*1000);
-                } catch(InterruptedException e) {
-                    logger.error(e.getMessage(), e);
-                }
-            }                
+            // retry the request once more, unless the endpoint is down
+            if (i+1 < maxRetryCount && !Retry.backoff(oaiUrl, retryDelays, i)) {
+                break;
+            }
 	}
 	return null;
     }
@@ -18,24 +18,27 @@
 
 package nl.mpi.oai.harvester;
 
-import ORG.oclc.oai.harvester2.verb.HarvesterVerb;
-import ORG.oclc.oai.harvester2.verb.Identify;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.StaticRepository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPathConstants;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -46,7 +49,10 @@ import java.util.List;
  * static provider specification</a>. Note that the operations here do not
  * strictly conform to the OAI-PMH specification (which stipulates that static
  * providers should be accessed via an intermediary), so this should be viewed
- * as a superset of standard OAI-PMH functionality.
+ * as a superset of standard OAI-PMH functionality. <br><br>
+ *
+ * The content of the provider is fetched once, and scanned into a
+ * StaticRepository index. Only the parts that are asked for are parsed.
  *
  * @author Lari Lampen (MPI-PL)
  */
@@ -54,13 +60,12 @@ public class StaticProvider extends Provider {
     private static final Logger logger = LogManager.getLogger(StaticProvider.class);
 
     /**
-     * The entire content of a static provider can be fitted into a single DOM
-     * tree, which is exactly what we're doing here.
+     * Content passed to the constructor, waiting to be indexed.
      */
     private Document providerContent = null;
 
-    /** static content response from the provider */
-    private HarvesterVerb response;
+    /** index of the static content of the provider */
+    private StaticRepository repository = null;
 
     /**
      * Create new static provider with the specified URL.
@@ -84,71 +89,103 @@ public class StaticProvider extends Provider {
     }
 
     /**
-     * Set the response
-     *
-     * @param response the provider response
-     */
-    public void setResponse(HarvesterVerb response){
-            this.response = response;
-    }
-
-    /**
-     * Get the response
+     * Get the index of the static content, fetching and scanning the
+     * content the first time.
      *
-     * @return the provider response
+     * @return the index
+     * @throws IOException the content could not be fetched or spooled
+     * @throws XMLStreamException the content is not well-formed
+     * @throws TransformerException the content passed to the constructor
+     *         could not be serialized
      */
-    public HarvesterVerb getResponse () {
-            return this.response;
+    public synchronized StaticRepository getRepository() throws IOException,
+	    XMLStreamException, TransformerException {
+	if (repository == null) {
+	    InputStream in;
+	    if (providerContent != null) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(
+			new DOMSource(providerContent), new StreamResult(out));
+		in = new ByteArrayInputStream(out.toByteArray());
+	    } else {
+		// fetch into the temporary file, the content can be large
+		in = DocumentSource.fetch(oaiUrl, null, null, null, timeout,
+			temp).getStream();
+	    }
+	    try {
+		repository = new StaticRepository(in,
+			Files.createTempFile("oai-static-", null));
+	    } finally {
+		in.close();
+	    }
+	    providerContent = null;
+	}
+	return repository;
     }
 
     @Override
-    public void init() {
-	fetchContent();
-	super.init();
+    public void close() {
+	synchronized (this) {
+	    if (repository != null) {
+		repository.close();
+		repository = null;
+	    }
+	}
+	super.close();
     }
 
     /**
-     * Extract a subtree from the provider's content.
-     * 
-     * @param xp XPath expression for extraction
-     * @return a new document containing a subtree
+     * Parse a part of the static content.
+     *
+     * @param in the part, or null if there is none
+     * @return the part as a DOM tree, or null
      */
-    private Document getSubtree(String xp) {
+    private Document parse(InputStream in) {
+	if (in == null)
+	    return null;
 	try {
-	    NodeList list = (NodeList)xpath.evaluate(xp, providerContent,
-		    XPathConstants.NODESET);
+	    return db.parse(in);
+	} catch (SAXException | IOException e) {
+	    logger.error(e.getMessage(), e);
+	}
+	return null;
+    }
 
-	    if (list == null || list.getLength() == 0) {
-		logger.error("No subtree matching '" + xp
-			+ "'. Probably an error in provider content.");
+    @Override
+    public  String getProviderName() {
+	try {
+	    Document doc = parse(getRepository().getIdentify());
+	    if (doc == null) {
+		logger.error("No Identify part in the content of " + oaiUrl);
 		return null;
 	    }
-
-	    Node el = list.item(0);
-	    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	    DocumentBuilder db = dbf.newDocumentBuilder();
-	    Document doc = db.newDocument();
-	    doc.appendChild(doc.importNode(el, true));
-
-	    return doc;
-	} catch (XPathExpressionException | ParserConfigurationException e) {
+	    return parseProviderName(doc);
+	} catch (IOException | XMLStreamException | TransformerException e) {
 	    logger.error(e.getMessage(), e);
 	}
 	return null;
     }
 
     @Override
-    public  String getProviderName() {
-	Document doc = getSubtree("/Repository/Identify");
-	return parseProviderName(doc);
+    public DeletionMode getProviderDeletionMode() {
+	try {
+	    Document doc = parse(getRepository().getIdentify());
+	    return doc == null ? null : parseDeletionMode(doc);
+	} catch (IOException | XMLStreamException | TransformerException e) {
+	    logger.error(e.getMessage(), e);
+	}
+	return null;
     }
 
     @Override
     public List<String> getPrefixes(MetadataFormat format) {
 	try {
-	    Document doc = getSubtree("/os:Repository/os:ListMetadataFormats");
-	    return parsePrefixes(providerContent, format);
-	} catch (XPathExpressionException e) {
+	    Document doc = parse(getRepository().getListMetadataFormats());
+	    if (doc != null)
+		return parsePrefixes(doc, format);
+	    logger.error("No ListMetadataFormats part in the content of " + oaiUrl);
+	} catch (IOException | XMLStreamException | TransformerException
+		| XPathExpressionException e) {
 	    logger.error(e.getMessage(), e);
 	}
 	return Collections.emptyList();
@@ -158,35 +195,32 @@ public class StaticProvider extends Provider {
     public List<String> getIdentifiers(String mdPrefix) throws IOException,
 	    ParserConfigurationException, SAXException, TransformerException,
 	    XPathExpressionException, NoSuchFieldException {
-	Document doc = getSubtree("/Repository/ListRecords[@metadataPrefix = '"+mdPrefix+"']");
 	List<String> ids = new ArrayList<>();
-	addIdentifiers(doc, ids);
+	try {
+	    for (StaticRepository.Entry entry : getRepository().getRecords(mdPrefix)) {
+		if (!entry.isDeleted())
+		    ids.add(entry.getIdentifier());
+	    }
+	} catch (XMLStreamException e) {
+	    throw new IOException(e);
+	}
 	return ids;
     }
 
     @Override
     public Metadata getRecord(String id, String mdPrefix) {
-	String xp = "/Repository/ListRecords[@metadataPrefix = '"
-		+ mdPrefix + "']/record[./header/identifier/text() = '"
-		+ id + "']";
-	Document doc = getSubtree(xp);
-	if (doc == null) return null;
-	return new Metadata(id, mdPrefix, doc, this, true, false);
-    }
-
-    /**
-     * Fetch the content of the static provider and put it in providerContent.
-     */
-    private void fetchContent() {
-	if (providerContent == null && oaiUrl != null) {
-	    try {
-		Identify ident = new Identify(oaiUrl,timeout);
-		providerContent = ident.getDocument();
-	    } catch (IOException | ParserConfigurationException | SAXException
-		    | TransformerException e) {
-		logger.error(e.getMessage(), e);
+	try {
+	    InputStream record = getRepository().getRecord(id, mdPrefix);
+	    if (record == null) {
+		logger.error("No " + mdPrefix + " record " + id
+			+ " in the content of " + oaiUrl);
+		return null;
 	    }
+	    return new Metadata(id, mdPrefix, record, this, true, false);
+	} catch (IOException | XMLStreamException | TransformerException e) {
+	    logger.error(e.getMessage(), e);
 	}
+	return null;
     }
 
     @Override
@@ -19,6 +19,9 @@
 package nl.mpi.oai.harvester.action;
 
 import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.control.Scheduler;
+import nl.mpi.oai.harvester.jfr.ActionEvent;
+import nl.mpi.oai.harvester.metrics.Metrics;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
 import org.apache.logging.log4j.LogManager;
@@ -74,23 +77,77 @@ public class ActionSequence {
 	}
     }
 
+    /**
+     * Create a sequence sharing the resource pools of another one.
+     */
+    private ActionSequence(MetadataFormat inputFormat,
+	    List<ResourcePool<Action>> actions) {
+	this.inputFormat = inputFormat;
+	this.actions = actions;
+    }
+
     /**
      * Get resource pool for this action (either previously initialized or
-     * created on this call).
+     * created on this call). A thread safe streaming action is not cloned,
+     * but shared.
      */
     private synchronized static ResourcePool<Action> getPool(Action action,
 	    int size) {
     	if (!pooledActions.containsKey(action)) {
-	    Action[] acts = new Action[size];
-	    for (int i = 0; i < size; i++) {
-		acts[i] = action.clone();
+	    ResourcePool<Action> pool;
+	    if (action instanceof StreamingAction
+		    && ((StreamingAction) action).getCapabilities()
+			    .contains(StreamingAction.Capability.THREAD_SAFE)) {
+		pool = ResourcePool.shared(action);
+	    } else {
+		Action[] acts = new Action[size];
+		for (int i = 0; i < size; i++) {
+		    acts[i] = action.clone();
+		}
+		pool = new ResourcePool<>(acts);
 	    }
-	    ResourcePool<Action> pool = new ResourcePool<>(acts);
 	    pooledActions.put(action, pool);
 	}
 	return pooledActions.get(action);
     }
 
+    /**
+     * Check if any of the pooled actions was set up from a file that
+     * changed since, like a stylesheet that was edited.
+     *
+     * @return true if an action is out of date
+     */
+    public synchronized static boolean isStale() {
+	for (Action action : pooledActions.keySet()) {
+	    if (action instanceof TransformAction
+		    && ((TransformAction) action).isStale()) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Drop the pools of the actions that are out of date, so the sequences
+     * created next set up the actions again. The sequences holding on to
+     * the pools keep using them.
+     *
+     * @return the number of pools dropped
+     */
+    public synchronized static int dropStale() {
+	int dropped = 0;
+	Iterator<Action> keys = pooledActions.keySet().iterator();
+	while (keys.hasNext()) {
+	    Action action = keys.next();
+	    if (action instanceof TransformAction
+		    && ((TransformAction) action).isStale()) {
+		keys.remove();
+		dropped++;
+	    }
+	}
+	return dropped;
+    }
+
     /**
      * Get the input format used in this sequence <br><br>
      *
@@ -103,29 +160,49 @@ public class ActionSequence {
     public List<ResourcePool<Action>> getActions() {
         return actions;
     }
+
+    /**
+     * Get the actions of this sequence from the given position on, as a
+     * sequence of its own. The actions are shared with this sequence.
+     *
+     * @param from position of the first action to include
+     * @return the subsequence
+     */
+    public ActionSequence subsequence(int from) {
+        return new ActionSequence(inputFormat,
+                new ArrayList<>(actions.subList(from, actions.size())));
+    }
     
     
     /**
      * Perform the actions specified in the configuration<br><br>
      *
-     * Note. This method does not return a value. The results of the actions
-     * should be accessed using other actions within the sequence.
+     * Note. The results of the actions should be accessed using other actions
+     * within the sequence.
      *
      * @param metadata a metadata record
+     * @return false if one of the actions failed, true otherwise
      */
-    public void runActions(Record metadata) {
-        this.runActions(new ArrayList<>(Arrays.asList(metadata)));
+    public boolean runActions(Record metadata) {
+        return this.runActions(new ArrayList<>(Arrays.asList(metadata)));
     }
 
     /**
      * Perform the actions specified in the configuration<br><br>
      *
-     * Note. This method does not return a value. The results of the actions
-     * should be accessed using other actions within the sequence.
+     * Note. The results of the actions should be accessed using other actions
+     * within the sequence. The actions are performed by the scheduler for
+     * CPU bound work; the calling thread waits for them to finish.
      *
      * @param metadata a list of metadata records
+     * @return false if one of the actions failed, true otherwise
      */
-    public void runActions(List<Record> metadata) {
+    public boolean runActions(List<Record> metadata) {
+        // the actions keep a processor busy, so leave them to the cpu pool
+        return Scheduler.run(() -> perform(metadata));
+    }
+
+    private boolean perform(List<Record> metadata) {
 
         // keep track of whether or not the action is the first in the sequence
         boolean firstAction = true;
@@ -134,20 +211,23 @@ public class ActionSequence {
                 // claim an action in the pool
                 Action action = actPool.get();
 
+                ActionEvent event = ActionEvent.start();
+                long started = System.nanoTime();
                 boolean done = action.perform(metadata);
+                Metrics.timeAction(action.toString(), System.nanoTime() - started);
+                event.finish(action, metadata.size(), done);
                 actPool.release(action);
                 if (!done) {
                         logger.error("Action " + action + " failed, terminating" +
                                         " sequence");
-                        return;
+                        return false;
                 } else
                         logger.debug("Action " + action + " was performed");
-                            
-                actPool.release(action);
                 
                 if (firstAction)
                     firstAction = false;
         }
+        return true;
     }
 
     @Override
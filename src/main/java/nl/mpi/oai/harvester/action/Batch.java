@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+import nl.mpi.oai.harvester.action.StreamingAction.Capability;
+import nl.mpi.oai.harvester.control.Scheduler;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The records of a page a streaming action is performed on. <br><br>
+ *
+ * While the records are handled, the action can replace a record by other
+ * ones, for example the parts it is split into, or by none at all to drop
+ * it. When the batch ends, the records are the ones that continue down the
+ * sequence, in the order of the records they replace.
+ *
+ * @see StreamingAction
+ */
+public final class Batch {
+
+    private static final Logger logger = LogManager.getLogger(Batch.class);
+
+    private volatile List<Record> records;
+
+    // the records handed to the action, the only ones it can replace
+    private final Set<Record> handed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // the records replaced while the records are handled
+    private final Map<Record, List<Record>> replaced =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private Batch(List<Record> records) {
+        this.records = new ArrayList<>(records);
+        this.handed.addAll(records);
+    }
+
+    /**
+     * @return the number of records in the batch
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return the records of the batch; when the batch ends, the records
+     *         that continue down the sequence
+     */
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Replace a record of the batch. Only the records handed to the action
+     * can be replaced, and only while they are handled.
+     *
+     * @param record the record
+     * @param with   the records to continue with instead, none to drop the
+     *               record
+     * @throws IllegalArgumentException if the record is not part of the
+     *         batch
+     */
+    public void replace(Record record, Collection<? extends Record> with) {
+        if (!handed.contains(record)) {
+            throw new IllegalArgumentException("Record " + record + " is not part of the batch");
+        }
+        replaced.put(record, new ArrayList<>(with));
+    }
+
+    // perform an action on a record, parsing it first if the action needs a tree
+    private boolean handle(StreamingAction action, Record record, boolean parse) {
+        if (parse && record instanceof Metadata) {
+            ((Metadata) record).getDoc();
+        }
+        return action.onRecord(record, this);
+    }
+
+    private boolean handleAll(StreamingAction action, boolean parse) {
+        for (Record record : records) {
+            if (!handle(action, record, parse)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // switch to the records continuing down the sequence
+    private void end() {
+        List<Record> result = new ArrayList<>(records.size());
+        for (Record record : records) {
+            List<Record> with = replaced.get(record);
+            if (with == null) {
+                result.add(record);
+            } else {
+                result.addAll(with);
+            }
+        }
+        records = result;
+    }
+
+    /**
+     * Perform a streaming action on a batch of records. A thread safe action
+     * handles the records in parallel; an I/O bound one lets the pool for
+     * CPU bound work start another thread while it waits for a record.
+     *
+     * @param action  the action
+     * @param records the records, replaced by the ones that continue down
+     *                the sequence if the action succeeds
+     * @return true on success; false if the action failed, leaving the
+     *         records unchanged
+     */
+    static boolean perform(StreamingAction action, List<Record> records) {
+        Set<Capability> capabilities = action.getCapabilities();
+        boolean parse = !capabilities.contains(Capability.ACCEPTS_STREAM);
+        boolean blocking = capabilities.contains(Capability.IO_BOUND);
+        Batch batch = new Batch(records);
+
+        boolean done;
+        if (capabilities.contains(Capability.THREAD_SAFE) && batch.size() > 1) {
+            List<Supplier<Boolean>> tasks = new ArrayList<>(batch.size());
+            for (Record record : batch.records) {
+                if (blocking) {
+                    tasks.add(() -> Scheduler.block(() -> batch.handle(action, record, parse)));
+                } else {
+                    tasks.add(() -> batch.handle(action, record, parse));
+                }
+            }
+            done = !Scheduler.runAll(tasks).contains(false);
+        } else if (blocking) {
+            done = Scheduler.block(() -> batch.handleAll(action, parse));
+        } else {
+            done = batch.handleAll(action, parse);
+        }
+        if (!done) {
+            return false;
+        }
+
+        batch.end();
+        CompletionStage<Boolean> end = action.onEnd(batch);
+        try {
+            // waiting for the completion does not hold up the pool either
+            done = Boolean.TRUE.equals(Scheduler.block(() -> end.toCompletableFuture().join()));
+        } catch (CompletionException e) {
+            logger.error("Action " + action + " failed to finish a batch", e.getCause());
+            return false;
+        } catch (CancellationException e) {
+            logger.error("Action " + action + " cancelled a batch");
+            return false;
+        }
+        if (done) {
+            records.clear();
+            records.addAll(batch.records);
+        }
+        return done;
+    }
+}
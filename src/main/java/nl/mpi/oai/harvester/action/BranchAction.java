@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.control.ResourcePool;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This action forks the action sequence it is part of. The actions of the
+ * branch are performed on copies of the records, after which the sequence
+ * continues with the records as they were before the branch. In this way a
+ * record that is harvested, parsed and stripped once can, for example, be
+ * saved as is in one branch and transformed and saved in another one. <br><br>
+ *
+ * The copies share the content of the original records; actions replace
+ * the content of a record rather than modifying it, so the branches do not
+ * affect each other.
+ */
+public class BranchAction implements Action {
+
+    /* The actions of the branch. Since the resource pools are shared, all
+       clones of a branch share this sequence.
+     */
+    private final ActionSequence branch;
+
+    /**
+     * Create a new branch.
+     *
+     * @param actions sequence of actions to take, in order
+     * @param resourcePoolSize the number of resources in the pool
+     */
+    public BranchAction(Action[] actions, int resourcePoolSize) {
+        this(new ActionSequence(null, actions, resourcePoolSize));
+    }
+
+    private BranchAction(ActionSequence branch) {
+        this.branch = branch;
+    }
+
+    @Override
+    public boolean perform(List<Record> records) {
+        List<Record> copies = new ArrayList<>();
+        for (Record record : records) {
+            copies.add(record instanceof Metadata
+                    ? ((Metadata) record).share() : record);
+        }
+
+        boolean done = branch.runActions(copies);
+
+        // release the records created in the branch
+        for (Record record : copies) {
+            if (record instanceof Metadata) {
+                ((Metadata) record).close();
+            }
+        }
+
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("branch (");
+        String sep = "";
+        for (ResourcePool<Action> actPool : branch.getActions()) {
+            Action act = actPool.get();
+            sb.append(sep).append(act);
+            actPool.release(act);
+            sep = " --> ";
+        }
+        return sb.append(")").toString();
+    }
+
+    @Override
+    public Action clone() {
+        return new BranchAction(branch);
+    }
+}
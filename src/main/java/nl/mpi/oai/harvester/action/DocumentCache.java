@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.transform.TransformerException;
+import net.sf.saxon.s9api.XdmNode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache for the documents the transform actions resolve, like the ListSets
+ * responses and schemas the stylesheets load with doc(). The parsed
+ * documents are shared by all transforms, keyed by URI, for a configurable
+ * time to live. The number of documents kept is bounded; when the cache is
+ * full the least recently used document is dropped. <br><br>
+ *
+ * Concurrent requests for the same URI wait for a single load. Parsed
+ * documents are immutable, so they can be used by transforms in parallel.
+ */
+public final class DocumentCache {
+
+    private static final Logger logger = LogManager.getLogger(DocumentCache.class);
+
+    private static volatile DocumentCache instance = new DocumentCache(100, 3600 * 1000);
+
+    private final int size;
+    private final long ttl;
+
+    private final Map<String, Entry> entries;
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final XdmNode document;
+        final long loaded;
+
+        Entry(XdmNode document, long loaded) {
+            this.document = document;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * Loads a document that is not in the cache.
+     */
+    interface Loader {
+        XdmNode load() throws TransformerException;
+    }
+
+    private DocumentCache(int size, long ttl) {
+        this.size = size;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > DocumentCache.this.size;
+            }
+        };
+    }
+
+    /**
+     * Configure the cache, dropping any documents cached so far.
+     *
+     * @param size the maximum number of documents to keep
+     * @param ttl  time to live of a document in seconds, 0 to disable caching
+     */
+    public static void configure(int size, long ttl) {
+        instance = new DocumentCache(size, ttl * 1000);
+        logger.info("document cache: size[" + size + "] ttl[" + ttl + "s]");
+    }
+
+    /**
+     * @return true if documents are cached
+     */
+    static boolean isEnabled() {
+        DocumentCache cache = instance;
+        return cache.size > 0 && cache.ttl > 0;
+    }
+
+    /**
+     * Get a document, from the cache if a fresh copy is available.
+     *
+     * @param uri    the URI of the document
+     * @param loader loads the document if needed
+     * @return the document
+     * @throws TransformerException the document could not be loaded
+     */
+    static XdmNode get(String uri, Loader loader) throws TransformerException {
+        return instance.lookup(uri, loader);
+    }
+
+    private XdmNode lookup(String uri, Loader loader) throws TransformerException {
+        if (size <= 0 || ttl <= 0)
+            return loader.load();
+
+        synchronized (locks.computeIfAbsent(uri, k -> new Object())) {
+            long now = System.currentTimeMillis();
+
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(uri);
+            }
+            if (entry != null && now - entry.loaded < ttl) {
+                logger.debug("cached document for URI[" + uri + "]");
+                return entry.document;
+            }
+
+            XdmNode document = loader.load();
+            synchronized (entries) {
+                entries.put(uri, new Entry(document, now));
+            }
+            return document;
+        }
+    }
+}
@@ -19,19 +19,29 @@
 package nl.mpi.oai.harvester.action;
 
 import nl.mpi.oai.harvester.control.FileSynchronization;
+import nl.mpi.oai.harvester.control.LeaseRegistry;
 import nl.mpi.oai.harvester.control.OutputDirectory;
+import nl.mpi.oai.harvester.control.RecordIndex;
+import nl.mpi.oai.harvester.control.Scheduler;
 import nl.mpi.oai.harvester.control.Util;
+import nl.mpi.oai.harvester.jfr.SaveEvent;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.utils.MarkableFileInputStream;
+import nl.mpi.oai.harvester.utils.MemoryGovernor;
+import nl.mpi.oai.harvester.utils.Statistic;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.codehaus.stax2.XMLInputFactory2;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.w3c.dom.Document;
 
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -42,9 +52,15 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.List;
 import nl.mpi.oai.harvester.metadata.Record;
 
@@ -60,6 +76,7 @@ public class SaveAction implements Action {
     protected String suffix;
     protected boolean offload;
     protected boolean history;
+    protected Path indexDir;
 
     /**
      * Create a new save action.
@@ -68,10 +85,38 @@ public class SaveAction implements Action {
      * @param suffix suffix to be added to identifier to generate filename
      */
     public SaveAction(OutputDirectory dir, String suffix, boolean offload, boolean history) {
+        this(dir, suffix, offload, history, null);
+    }
+
+    /**
+     * Create a new save action that skips records that did not change since
+     * they were last saved.
+     *
+     * @param dir      output directory to save to
+     * @param suffix   suffix to be added to identifier to generate filename
+     * @param indexDir directory containing the record indexes, or null to
+     *                 always save records
+     */
+    public SaveAction(OutputDirectory dir, String suffix, boolean offload, boolean history, Path indexDir) {
         this.dir = dir;
         this.suffix = (suffix == null) ? "" : suffix;
         this.offload = offload;
         this.history = history;
+        this.indexDir = indexDir;
+    }
+
+    /**
+     * @return the directory this action saves to
+     */
+    public OutputDirectory getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @return the suffix added to the identifier to generate the filename
+     */
+    public String getSuffix() {
+        return suffix;
     }
 
     public Document getDocument(Metadata metadata) {
@@ -80,6 +125,11 @@ public class SaveAction implements Action {
 
     @Override
     public boolean perform(List<Record> records) {
+        // saving waits for the disk, so the pool may start another thread meanwhile
+        return Scheduler.block(() -> save(records));
+    }
+
+    private boolean save(List<Record> records) {
 
         for (Record rec : records) {
             
@@ -89,46 +139,35 @@ public class SaveAction implements Action {
             }
             
             Metadata record = (Metadata)rec;
+
+            // another harvester may have taken over the provider
+            if (!LeaseRegistry.isHeld()) {
+                logger.error("Lost the lease on the provider, not saving " + record.getId());
+                return false;
+            }
             
             OutputStream os = null;
-            XMLEventReader reader = null;
-            XMLEventWriter writer = null;
             try {
+                if (indexDir != null) {
+                    if (saveChanged(record))
+                        continue;
+                    return false;
+                }
+                SaveEvent event = SaveEvent.start();
                 Path path = chooseLocation(record);
                 if(history){
                     FileSynchronization.saveToHistoryFile(record.getOrigin(), path, FileSynchronization.Operation.INSERT);
                     FileSynchronization.getProviderStatistic(record.getOrigin()).incRecordCount();
                 }
                 os = Files.newOutputStream(path);
-                if (record.hasDoc()) {
-                    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-                    Transformer transformer = transformerFactory.newTransformer();
-                    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-
-                    DOMSource source = new DOMSource(record.getDoc());
-                    StreamResult result = new StreamResult(os);
-
-                    transformer.transform(source, result);
-
-                    logger.debug("saved XML doc[" + path + "] with [" + XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc()) + "] nodes");
-                } else {
-                    XMLInputFactory2 xmlInputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
-                    xmlInputFactory.configureForConvenience();
-                    XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-                    xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
-
-                    reader = xmlInputFactory.createXMLEventReader(record.getStream());
-                    writer = xmlOutputFactory.createXMLEventWriter(os);
-
-                    writer.add(reader);
-                    writer.close();
-                    if (offload) {
-                        record.setStream(new MarkableFileInputStream(new FileInputStream(path.toFile())));
-                        logger.debug("offloaded XML stream[" + path + "]");
-                    }
-
-                    logger.debug("saved XML stream[" + path + "]");
+                write(record, os);
+                event.finish(path, -1, false);
+                // a full heap is relieved of the records saved
+                if ((offload || MemoryGovernor.isUnderPressure()) && !record.hasDoc()) {
+                    record.setStream(new MarkableFileInputStream(new FileInputStream(path.toFile())));
+                    logger.debug("offloaded XML stream[" + path + "]");
                 }
+                logger.debug("saved XML " + (record.hasDoc() ? "doc" : "stream") + "[" + path + "]");
             } catch (TransformerException | IOException | XPathExpressionException | XMLStreamException ex) {
                 logger.error(ex);
                 return false;
@@ -136,11 +175,7 @@ public class SaveAction implements Action {
                 try {
                     if (os != null)
                         os.close();
-                    if (reader != null)
-                        reader.close();
-                    if (writer != null)
-                        writer.close();
-                } catch (IOException | XMLStreamException e) {
+                } catch (IOException e) {
                 }
             }
         }
@@ -148,6 +183,137 @@ public class SaveAction implements Action {
         return true;
     }
 
+    /**
+     * Save a record unless the record index shows that an identical copy
+     * has already been saved. The record is hashed while it is written to a
+     * temporary file, which is moved into place if the record changed.
+     *
+     * @param record the record
+     * @return false if the record could not be saved, true otherwise
+     */
+    private boolean saveChanged(Metadata record) {
+        SaveEvent event = SaveEvent.start();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(dir.getBase(), "save-", ".tmp");
+            MessageDigest md = RecordIndex.newDigest();
+            try (OutputStream os = new DigestOutputStream(Files.newOutputStream(temp), md)) {
+                write(record, os);
+            }
+            byte[] digest = md.digest();
+            long size = Files.size(temp);
+
+            RecordIndex index = RecordIndex.get(indexDir, record.getOrigin());
+            String key = dir.getBase() + "|" + Util.toFileFormat(record.getId(), suffix);
+            RecordIndex.Entry entry = index.lookup(key);
+            if (entry != null && Arrays.equals(entry.getDigest(), digest)
+                    && Files.exists(Paths.get(entry.getPath()))) {
+                Statistic stats = FileSynchronization.getProviderStatistic(record.getOrigin());
+                if (stats != null)
+                    stats.incSkippedCount();
+                logger.debug("skipped unchanged XML[" + entry.getPath() + "]");
+                event.finish(entry.getPath(), size, true);
+                return true;
+            }
+
+            Path path = chooseLocation(record);
+            if(history){
+                FileSynchronization.saveToHistoryFile(record.getOrigin(), path, FileSynchronization.Operation.INSERT);
+                FileSynchronization.getProviderStatistic(record.getOrigin()).incRecordCount();
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
+            event.finish(path, size, false);
+            index.update(key, digest, getDatestamp(path), path);
+            if ((offload || MemoryGovernor.isUnderPressure()) && !record.hasDoc()) {
+                record.setStream(new MarkableFileInputStream(new FileInputStream(path.toFile())));
+                logger.debug("offloaded XML stream[" + path + "]");
+            }
+            logger.debug("saved XML " + (record.hasDoc() ? "doc" : "stream") + "[" + path + "]");
+        } catch (TransformerException | IOException | XPathExpressionException | XMLStreamException ex) {
+            logger.error(ex);
+            return false;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    logger.debug("failed to remove[" + temp + "]: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serialize a record.
+     *
+     * @param record the record
+     * @param os     stream to write the record to
+     */
+    private void write(Metadata record, OutputStream os)
+            throws TransformerException, XPathExpressionException, XMLStreamException {
+        if (record.hasDoc()) {
+            TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            Transformer transformer = transformerFactory.newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+
+            DOMSource source = new DOMSource(record.getDoc());
+            StreamResult result = new StreamResult(os);
+
+            transformer.transform(source, result);
+
+            logger.debug("serialized XML doc with [" + XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc()) + "] nodes");
+        } else {
+            XMLInputFactory2 xmlInputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
+            xmlInputFactory.configureForConvenience();
+            XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+            xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+
+            XMLEventReader reader = xmlInputFactory.createXMLEventReader(record.getStream());
+            XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(os);
+            try {
+                writer.add(reader);
+            } finally {
+                writer.close();
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Get the datestamp from the OAI header of a serialized record, if it
+     * still has one.
+     *
+     * @param path the file the record was saved in
+     * @return the datestamp in milliseconds since the epoch, or 0 if the
+     *         record does not have a valid datestamp
+     */
+    private static long getDatestamp(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            XMLInputFactory2 xmlInputFactory = (XMLInputFactory2) XMLInputFactory2.newInstance();
+            xmlInputFactory.configureForConvenience();
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (name.equals("datestamp"))
+                            return new DateTime(reader.getElementText().trim(), DateTimeZone.UTC).getMillis();
+                        if (name.equals("metadata"))
+                            // the header has been passed
+                            return 0;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException | IllegalArgumentException ex) {
+            logger.debug("no datestamp found: " + ex.getMessage());
+        }
+        return 0;
+    }
+
     /**
      * Simply choose location to save in.
      *
@@ -188,6 +354,6 @@ public class SaveAction implements Action {
     public Action clone() {
         // This is a shallow copy, resulting in multiple references to a single
         // OutputDirectory, which is as intended.
-        return new SaveAction(dir, suffix, offload, history);
+        return new SaveAction(dir, suffix, offload, history, indexDir);
     }
 }
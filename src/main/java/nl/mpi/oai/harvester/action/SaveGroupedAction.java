@@ -49,7 +49,21 @@ public class SaveGroupedAction extends SaveAction implements Action {
      * @param suffix suffix to be added to identifier to generate filename
      */
     public SaveGroupedAction(OutputDirectory dir, String suffix, boolean offload, boolean history) {
-	super(dir, suffix, offload, history);
+	this(dir, suffix, offload, history, null);
+    }
+
+    /**
+     * Create a new save action where output files are grouped in directories
+     * per provider, and records that did not change since they were last
+     * saved are skipped.
+     * 
+     * @param dir output directory to save to
+     * @param suffix suffix to be added to identifier to generate filename
+     * @param indexDir directory containing the record indexes, or null to
+     *                 always save records
+     */
+    public SaveGroupedAction(OutputDirectory dir, String suffix, boolean offload, boolean history, Path indexDir) {
+	super(dir, suffix, offload, history, indexDir);
 	locations = Collections.synchronizedMap(new HashMap<>());
     }
 
@@ -58,7 +72,7 @@ public class SaveGroupedAction extends SaveAction implements Action {
      * set of subdirectories with the given action.
      */
     private SaveGroupedAction(SaveGroupedAction sga) {
-	super(sga.dir, sga.suffix, sga.offload, sga.history);
+	super(sga.dir, sga.suffix, sga.offload, sga.history, sga.indexDir);
 	locations = sga.locations;
 
     }
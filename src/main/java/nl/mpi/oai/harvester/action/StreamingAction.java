@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import nl.mpi.oai.harvester.metadata.Record;
+
+/**
+ * An action that receives the records of a batch one by one. <br><br>
+ *
+ * This is the interface for actions loaded from an external jar. Instead of
+ * working on the list of records of a batch, the action is called for every
+ * record, and once more when the batch ends. Records continue down the
+ * sequence as they are, unless the action replaces them in the batch. The
+ * end of the batch may complete later, for example when the records are
+ * sent on asynchronously; the sequence waits for it before it continues.
+ * <br><br>
+ *
+ * The action declares what it can do, so the sequence can pick the
+ * cheapest way to perform it:
+ * <br><br>
+ *
+ * - a thread safe action is not cloned and pooled, but shared by all
+ * sequences, and its records are handled in parallel; <br>
+ * - an action accepting a stream gets the records as they are, others get
+ * them parsed into a tree; <br>
+ * - an I/O bound action does not hold up a thread of the pool for CPU bound
+ * work while it waits. <br><br>
+ *
+ * Without any capabilities the action is treated like any other: cloned,
+ * given trees, and performed one record after the other.
+ *
+ * @see Batch
+ */
+public interface StreamingAction extends Action {
+
+    /**
+     * What an action can do.
+     */
+    enum Capability {
+        /** the action can be called by several threads at the same time */
+        THREAD_SAFE,
+        /** the action reads the records as streams, it needs no tree */
+        ACCEPTS_STREAM,
+        /** the action spends its time waiting, not computing */
+        IO_BOUND
+    }
+
+    /**
+     * @return the capabilities of the action, none by default
+     */
+    default Set<Capability> getCapabilities() {
+        return EnumSet.noneOf(Capability.class);
+    }
+
+    /**
+     * Handle a record of a batch.
+     *
+     * @param record the record
+     * @param batch  the batch the record is part of
+     * @return true on success; false if the action failed
+     */
+    boolean onRecord(Record record, Batch batch);
+
+    /**
+     * Finish a batch, after all its records have been handled.
+     *
+     * @param batch the batch
+     * @return the completion of the batch, true on success; false if the
+     *         action failed. By default the batch completes right away.
+     */
+    default CompletionStage<Boolean> onEnd(Batch batch) {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    /**
+     * Perform the action on a batch, as the capabilities allow.
+     *
+     * @param records list of metadata records
+     * @return true on success; false if the action failed, leaving
+     *         the records unchanged
+     */
+    @Override
+    default boolean perform(List<Record> records) {
+        return Batch.perform(this, records);
+    }
+}
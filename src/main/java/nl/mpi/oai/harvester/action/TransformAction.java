@@ -24,6 +24,7 @@ import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltTransformer;
+import nl.mpi.oai.harvester.control.Scheduler;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.Record;
 import nl.mpi.tla.util.Saxon;
@@ -46,12 +47,21 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
 import net.sf.saxon.s9api.MessageListener2;
@@ -72,18 +82,24 @@ public class TransformAction implements Action {
     /** The file containing the XSL transformation. */
     private String xsltFile;
 
+    /** The time the file was modified when it was compiled, null for a URL. */
+    private FileTime modified;
+
     /** The directory containing cached resources. */
     private Path cacheDir;
     
     /** A standard semaphore is used to track the number of running transforms. */
     private Semaphore semaphore;
-    
+
+    /** The maximum number of concurrent transforms, 0 for no maximum. */
+    private int maxJobs;
+
     /** The configuration */
     private Node config;
 
-    /** 
-     * Create a new transform action using the specified XSLT. 
-     * 
+    /**
+     * Create a new transform action using the specified XSLT.
+     *
      * @param xsltFile the XSL stylesheet
      * @param cacheDir the directory to cache results of resource requests
      * @param maxJobs the maximum number of concurrent transforms
@@ -95,11 +111,12 @@ public class TransformAction implements Action {
     public TransformAction(Node conf, String xsltFile,Path cacheDir,int maxJobs)
       throws FileNotFoundException, TransformerConfigurationException, MalformedURLException, SaxonApiException {
         this(conf, xsltFile,cacheDir,(maxJobs>0?new Semaphore(maxJobs):null));
+        this.maxJobs = Math.max(maxJobs, 0);
     }
-    
-    /** 
-     * Create a new transform action using the specified XSLT. 
-     * 
+
+    /**
+     * Create a new transform action using the specified XSLT.
+     *
      * @param xsltFile the XSL stylesheet
      * @param cacheDir the directory to cache results of resource requests
      * @param semaphore a semaphore to control the concurrent number of transforms
@@ -112,8 +129,10 @@ public class TransformAction implements Action {
       throws FileNotFoundException, TransformerConfigurationException, MalformedURLException, SaxonApiException {
         this.config = conf;
 	      this.xsltFile = xsltFile;
+        this.modified = lastModified(xsltFile);
         this.cacheDir = cacheDir;
         this.semaphore = semaphore;
+        this.maxJobs = (semaphore == null) ? 0 : semaphore.availablePermits();
         Source xslSource = null;
         if (xsltFile.startsWith("http:") || xsltFile.startsWith("https:"))
             xslSource = new StreamSource(xsltFile);
@@ -126,69 +145,121 @@ public class TransformAction implements Action {
 
     @Override
     public boolean perform(List<Record> records) {
-        for (Record rec : records) {
-            Metadata record = (Metadata)rec;
-            try {
-                if (semaphore!=null) {
-                    for (;;) {
-                        try {
-                            logger.debug("request transform action");
-                            semaphore.acquire();
-                            logger.debug("acquired transform action");
-                            break;
-                        } catch (InterruptedException e) { }
-                    }
-                }
-                Source source = null;
-                Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-                DOMDestination output = new DOMDestination(doc);
-                if (record.hasStream()) {
-                    source = new SAXSource(record.getSource());
-                } else {
-                    source = new DOMSource(record.getDoc());
-                }
-                XdmNode old = Saxon.buildDocument(source);
-                XsltTransformer transformer = executable.load();
-                
-                TransformActionListener listener = new TransformActionListener();
-                transformer.setErrorListener(listener);
-                transformer.setMessageListener(listener);
+        XdmNode configNode = Saxon.wrapNode(this.config.getOwnerDocument());
 
-                if (cacheDir != null) {
-                    logger.debug("Setting the URLResolve to cache in "+cacheDir);
-                    transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
-                }
-                
-                transformer.setSource(old.asSource());
-                transformer.setDestination(output);
-
-                transformer.setParameter(new QName("config"), Saxon.wrapNode(this.config.getOwnerDocument()));
-                transformer.setParameter(new QName("provider_name"), new XdmAtomicValue(record.getOrigin().getName()));
-                transformer.setParameter(new QName("provider_uri"), new XdmAtomicValue(record.getOrigin().getOaiUrl()));
-                transformer.setParameter(new QName("record_identifier"), new XdmAtomicValue(record.getId()));
-
-                transformer.transform();
-                record.setDoc(doc);
-                logger.debug("transformed to XML doc with ["+XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc())+"] nodes");
-            } catch (XPathExpressionException | SaxonApiException | ParserConfigurationException ex) {
-                logger.error("Transformation error: ",ex);
-                return false;
-            } finally {
-                if (semaphore!=null) {
-                    semaphore.release();
-                    logger.debug("released transform action");
+        /* Every task replaces the content of its own records, so the records
+           stay in order. With a maximum number of transforms, the page is
+           split into that many parts, which are transformed one record
+           after the other, so the tasks forked never wait for each other.
+           The sequence waits for the whole batch, which keeps the worker
+           from harvesting more than the processors can handle.
+         */
+        int size = records.size();
+        int parts = (maxJobs > 0) ? Math.min(size, maxJobs) : size;
+        List<Supplier<Boolean>> tasks = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            List<Record> part = records.subList(i * size / parts, (i + 1) * size / parts);
+            tasks.add(() -> {
+                boolean done = true;
+                for (Record rec : part) {
+                    done = transform((Metadata) rec, configNode) && done;
                 }
+                return done;
+            });
+        }
+
+        if (semaphore!=null) {
+            // the transforms of other workers count too; waiting for them leaves the processor to others
+            logger.debug("request transform action");
+            Scheduler.block(() -> {
+                semaphore.acquireUninterruptibly(parts);
+                return true;
+            });
+            logger.debug("acquired transform action");
+        }
+        boolean done = true;
+        try {
+            for (boolean result : Scheduler.runAll(tasks)) {
+                done = result && done;
+            }
+        } finally {
+            if (semaphore!=null) {
+                semaphore.release(parts);
+                logger.debug("released transform action");
+            }
+        }
+        return done;
+    }
+
+    // transform a single record
+    private boolean transform(Metadata record, XdmNode configNode) {
+        try {
+            Source source = null;
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            DOMDestination output = new DOMDestination(doc);
+            if (record.hasStream()) {
+                source = new SAXSource(record.getSource());
+            } else {
+                source = new DOMSource(record.getDoc());
+            }
+            XdmNode old = Saxon.buildDocument(source);
+            XsltTransformer transformer = executable.load();
+            
+            TransformActionListener listener = new TransformActionListener();
+            transformer.setErrorListener(listener);
+            transformer.setMessageListener(listener);
+
+            if (cacheDir != null || DocumentCache.isEnabled()) {
+                logger.debug("Setting the URLResolve to cache in "+cacheDir);
+                transformer.setURIResolver(new TransformActionURLResolver(transformer.getURIResolver()));
             }
+            
+            transformer.setSource(old.asSource());
+            transformer.setDestination(output);
+
+            transformer.setParameter(new QName("config"), configNode);
+            transformer.setParameter(new QName("provider_name"), new XdmAtomicValue(record.getOrigin().getName()));
+            transformer.setParameter(new QName("provider_uri"), new XdmAtomicValue(record.getOrigin().getOaiUrl()));
+            transformer.setParameter(new QName("record_identifier"), new XdmAtomicValue(record.getId()));
+
+            transformer.transform();
+            record.setDoc(doc);
+            logger.debug("transformed to XML doc with ["+XPathFactory.newInstance().newXPath().evaluate("count(//*)", record.getDoc())+"] nodes");
+        } catch (XPathExpressionException | SaxonApiException | ParserConfigurationException ex) {
+            logger.error("Transformation error: ",ex);
+            return false;
         }
         return true;
     }
 
+    /**
+     * Check if the stylesheet changed since it was compiled.
+     *
+     * @return true if the file was modified, false otherwise or if the
+     *         stylesheet is read from a URL
+     */
+    public boolean isStale() {
+        return modified != null && !modified.equals(lastModified(xsltFile));
+    }
+
+    // the time a stylesheet file was modified, null for a URL or a missing file
+    private static FileTime lastModified(String xsltFile) {
+        if (xsltFile.startsWith("http:") || xsltFile.startsWith("https:"))
+            return null;
+        try {
+            return Files.getLastModifiedTime(Paths.get(xsltFile));
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return "transform using " + xsltFile;
     }
 
-    // Transform actions differ if and only if the XSLT files differ.
+    // Transform actions differ if and only if the XSLT files differ, or
+    // the same file was compiled before and after it changed.
     @Override
     public int hashCode() {
 	      return xsltFile.hashCode();
@@ -197,7 +268,7 @@ public class TransformAction implements Action {
     public boolean equals(Object o) {
 	      if (o instanceof TransformAction) {
 	          TransformAction t = (TransformAction)o;
-        	  return xsltFile.equals(t.xsltFile);
+        	  return xsltFile.equals(t.xsltFile) && Objects.equals(modified, t.modified);
 	      }
 	      return false;
     }
@@ -206,13 +277,19 @@ public class TransformAction implements Action {
     public Action clone() {
 	      try {
 	          // This is a deep copy. The new object has its own Transform object.
-	          return new TransformAction(config, xsltFile,cacheDir,semaphore);
+	          TransformAction copy = new TransformAction(config, xsltFile,cacheDir,semaphore);
+	          copy.maxJobs = maxJobs;
+	          return copy;
 	      } catch (FileNotFoundException | TransformerConfigurationException | MalformedURLException | SaxonApiException ex) {
 	          logger.error(ex);
 	      }
 	      return null;
     }
     
+    /* Resolves the documents a stylesheet loads. Parsed documents are shared
+       through the DocumentCache; when a cache directory is configured, the
+       documents are also stored on disk, so later runs can reuse them.
+     */
     class TransformActionURLResolver implements URIResolver {
         
         private URIResolver resolver;
@@ -232,22 +309,55 @@ public class TransformAction implements Action {
                 }
             }
             logger.debug("Transformer resolver: uri["+uri+"]");
-            String cacheFile = uri.replaceAll("[^a-zA-Z0-9]", "_");
-            logger.debug("Transformer resolver: check cache for "+cacheFile);
-            Source res = null;
-            if (Files.exists(cacheDir.resolve(cacheFile))) {
-                res = new StreamSource(cacheDir.resolve(cacheFile).toFile());
-                logger.debug("Transformer resolver: loaded "+cacheFile+" from cache");
-            } else {
-                res = resolver.resolve(href, base);
-                try {
-                    Saxon.save(res, cacheDir.resolve(cacheFile).toFile());
-                    logger.debug("Transformer resolver: stored "+cacheFile+" in cache");
-                } catch (SaxonApiException ex) {
-                    throw new TransformerException(ex);
+            final String resolved = uri;
+            return DocumentCache.get(uri, () -> fetch(href, base, resolved)).asSource();
+        }
+
+        // loading waits for the disk or the network, so the pool may start another thread meanwhile
+        private XdmNode fetch(String href, String base, String uri) throws TransformerException {
+            try {
+                return Scheduler.block(() -> {
+                    try {
+                        return load(href, base, uri);
+                    } catch (TransformerException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+            } catch (CompletionException ex) {
+                throw (TransformerException) ex.getCause();
+            }
+        }
+
+        private XdmNode load(String href, String base, String uri) throws TransformerException {
+            try {
+                Path cacheFile = null;
+                if (cacheDir != null) {
+                    cacheFile = cacheDir.resolve(uri.replaceAll("[^a-zA-Z0-9]", "_"));
+                    logger.debug("Transformer resolver: check cache for "+cacheFile.getFileName());
+                    if (Files.exists(cacheFile)) {
+                        logger.debug("Transformer resolver: loaded "+cacheFile.getFileName()+" from cache");
+                        return Saxon.buildDocument(new StreamSource(cacheFile.toFile()));
+                    }
+                }
+                Source res = resolver.resolve(href, base);
+                if (res == null)
+                    res = new StreamSource(uri);
+                XdmNode doc = Saxon.buildDocument(res);
+                if (cacheFile != null) {
+                    // write aside and move, so other runs never see a partial file
+                    Path temp = Files.createTempFile(cacheDir, cacheFile.getFileName().toString(), ".tmp");
+                    Saxon.save(doc.asSource(), temp.toFile());
+                    try {
+                        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException ex) {
+                        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    logger.debug("Transformer resolver: stored "+cacheFile.getFileName()+" in cache");
                 }
+                return doc;
+            } catch (SaxonApiException | IOException ex) {
+                throw new TransformerException(ex);
             }
-            return res;
         }
     }
 
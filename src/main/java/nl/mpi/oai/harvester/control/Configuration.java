@@ -25,6 +25,7 @@ import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.action.*;
 import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.utils.DocumentSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
@@ -115,7 +116,20 @@ public class Configuration {
         POOLSIZE("resource-pool-size"), TIMEOUT("timeout"),
         OVERVIEWFILE("overview-file"), MAPFILE("map-file"),
         SAVERESPONSE("save-response"), PROTOCOL("protocol"),
-        SCENARIO("scenario"), INCREMENTAL("incremental"), DRYRUN("dry-run"), NICEDELAY("nice-delay");
+        SCENARIO("scenario"), INCREMENTAL("incremental"), DRYRUN("dry-run"), NICEDELAY("nice-delay"),
+        CHECKPOINTDIR("checkpoint-dir"), RECORDINDEXDIR("record-index-dir"),
+        RESPONSECACHETTL("response-cache-ttl"), RESPONSECACHEDIR("response-cache-dir"),
+        HARVESTONCE("harvest-once"), REGISTRYSNAPSHOTDIR("registry-snapshot-dir"),
+        REGISTRYSNAPSHOTTTL("registry-snapshot-ttl"), BOOTSTRAPTIMEOUT("bootstrap-timeout"),
+        DOCUMENTCACHESIZE("document-cache-size"), DOCUMENTCACHETTL("document-cache-ttl"),
+        CPUTHREADS("cpu-threads"),
+        BREAKERTHRESHOLD("breaker-threshold"), BREAKERDELAY("breaker-delay"),
+        MAXRETRYDELAY("max-retry-delay"), METRICSPORT("metrics-port"), METRICSADDRESS("metrics-address"),
+        ARCHIVEDIR("archive-dir"), REPLAY("replay"), RETRANSFORM("retransform"),
+        DAEMON("daemon"), DAEMONINTERVAL("daemon-interval"), DAEMONPORT("daemon-port"),
+        TRIGGERFILE("trigger-file"), CLUSTERDIR("cluster-dir"), NODEID("node-id"),
+        LEASETTL("lease-ttl"), MAXENDPOINTCONCURRENCY("max-endpoint-concurrency"),
+        HEAPTHRESHOLD("heap-threshold");
         private final String val;
 
         KnownOptions(final String s) {
@@ -274,6 +288,8 @@ public class Configuration {
     /**
      * Load and return the designated action from a given jar file either on disk.
      * If the type casting gives an error, null will be returned which will be handled by the caller.
+     * The class implements either Action, or StreamingAction to receive the records one by one and
+     * declare its capabilities.
      *
      * @param file      The string value of the jar file path
      * @param className The external Action class name we are going to load
@@ -323,7 +339,12 @@ public class Configuration {
         }
 
         try {
-            return (Action) cls.getDeclaredConstructor().newInstance();
+            Action action = (Action) cls.getDeclaredConstructor().newInstance();
+            if (action instanceof StreamingAction) {
+                logger.info("Streaming action [" + className + "] capabilities"
+                        + ((StreamingAction) action).getCapabilities());
+            }
+            return action;
         } catch (ClassCastException ex) {
             logger.error("The given class [" + className + "] is not a valid Action.class");
             return null;
@@ -358,6 +379,8 @@ public class Configuration {
 
             // if null defaults to false, only "true" leads to true
             boolean offload = Boolean.parseBoolean(Util.getNodeText(xpath, "./@offload", base));
+            boolean skip = Boolean.parseBoolean(Util.getNodeText(xpath, "./@skip-unchanged", base));
+            Path indexDir = skip ? getRecordIndexDirectory() : null;
 
             if (outputs.containsKey(outDirId)) {
                 OutputDirectory outDir = outputs.get(outDirId);
@@ -366,9 +389,9 @@ public class Configuration {
                 // If the group-by-provider attribute is
                 // not defined, it defaults to true.
                 if (group != null && !Boolean.valueOf(group)) {
-                    act = new SaveAction(outDir, suffix, offload, history);
+                    act = new SaveAction(outDir, suffix, offload, history, indexDir);
                 } else {
-                    act = new SaveGroupedAction(outDir, suffix, offload, history);
+                    act = new SaveGroupedAction(outDir, suffix, offload, history, indexDir);
                 }
             } else {
                 logger.error("Invalid output directory " + outDirId
@@ -423,6 +446,36 @@ public class Configuration {
         return act;
     }
 
+    /**
+     * Parse a list of actions. A branch element in the list becomes a branch
+     * action performing the actions it contains on copies of the records.
+     *
+     * @param actions action and branch elements, in document order
+     * @return the actions
+     */
+    private Action[] parseActionList(NodeList actions) throws XPathExpressionException, IOException, ClassNotFoundException {
+        ArrayList<Action> ac = new ArrayList<>();
+        for (int k = 0; k < actions.getLength(); k++) {
+            Node node = actions.item(k);
+            Action act;
+            if ("branch".equals(node.getNodeName())) {
+                NodeList branch = (NodeList) xpath.evaluate("./action | ./branch", node,
+                        XPathConstants.NODESET);
+                if (branch == null || branch.getLength() == 0) {
+                    logger.warn("A branch has no actions defined; skipping it");
+                    continue;
+                }
+                act = new BranchAction(parseActionList(branch), getResourcePoolSize());
+            } else {
+                act = parseAction(node);
+            }
+
+            if (act != null)
+                ac.add(act);
+        }
+        return ac.toArray(new Action[0]);
+    }
+
     /**
      * Parse the actions section only.
      *
@@ -433,17 +486,10 @@ public class Configuration {
                 XPathConstants.NODESET);
 
         if (nodeList.getLength() == 0) {
-            NodeList actions = (NodeList) xpath.evaluate("./action", base,
+            NodeList actions = (NodeList) xpath.evaluate("./action | ./branch", base,
                     XPathConstants.NODESET);
             if (actions != null && actions.getLength() > 0) {
-                ArrayList<Action> ac = new ArrayList<>();
-                for (int k = 0; k < actions.getLength(); k++) {
-                    Action act = parseAction(actions.item(k));
-
-                    if (act != null)
-                        ac.add(act);
-                }
-                ActionSequence ap = new ActionSequence(null, ac.toArray(new Action[0]),
+                ActionSequence ap = new ActionSequence(null, parseActionList(actions),
                         getResourcePoolSize());
                 actionSequences.add(ap);
             } else {
@@ -456,18 +502,10 @@ public class Configuration {
                 String matchValue = Util.getNodeText(xpath, "./@value", curr);
                 MetadataFormat format = new MetadataFormat(matchType, matchValue);
 
-                NodeList actions = (NodeList) xpath.evaluate("./action", curr,
+                NodeList actions = (NodeList) xpath.evaluate("./action | ./branch", curr,
                         XPathConstants.NODESET);
                 if (actions != null && actions.getLength() > 0) {
-                    ArrayList<Action> ac = new ArrayList<>();
-                    for (int k = 0; k < actions.getLength(); k++) {
-                        Action act = parseAction(actions.item(k));
-
-                        if (act != null)
-                            ac.add(act);
-                    }
-
-                    ActionSequence ap = new ActionSequence(format, ac.toArray(new Action[0]),
+                    ActionSequence ap = new ActionSequence(format, parseActionList(actions),
                             getResourcePoolSize());
                     actionSequences.add(ap);
                 } else {
@@ -564,7 +602,8 @@ public class Configuration {
                         }
                     }
                     // get the list of endpoints from the centre registry
-                    registryReader = new RegistryReader(new java.net.URL(rUrl));
+                    registryReader = new RegistryReader(new java.net.URL(rUrl),
+                            getRegistrySnapshotDirectory(), getRegistrySnapshotTTL());
                     final Map<String, Collection<CentreRegistrySetDefinition>> endPointOaiPmhSetMap
                             = registryReader.getEndPointOaiPmhSetMap();
 
@@ -585,6 +624,7 @@ public class Configuration {
                                 String pExclusive = Util.getNodeText(xpath, "./@exclusive", configNode);
                                 String pNiceDelay = Util.getNodeText(xpath, "./@nice-delay", configNode);
                                 String pName = Util.getNodeText(xpath, "./@name", configNode);
+                                sanitize(provUrl, Util.getNodeText(xpath, "./@sanitize", configNode));
 
                                 int timeout = (pTimeout != null) ? Integer.valueOf(pTimeout) : getTimeout();
                                 int maxRetryCount = (pMaxRetryCount != null) ? Integer.valueOf(pMaxRetryCount) : getMaxRetryCount();
@@ -681,6 +721,8 @@ public class Configuration {
             if (pName != null)
                 provider.setName(pName);
 
+            sanitize(pUrl, Util.getNodeText(xpath, "./@sanitize", cur));
+
             provider.setTimeout(timeout);
             provider.setExclusive(exclusive);
             provider.setIncremental(isIncremental());
@@ -759,10 +801,90 @@ public class Configuration {
         return da;
     }
 
+    /**
+     * Sanitize the responses of an endpoint, as set by the sanitize
+     * attribute of its provider: true or drop to drop invalid UTF-8
+     * sequences, replace to replace them by U+FFFD. Characters XML does not
+     * allow are dropped in both cases.
+     *
+     * @param url   the URL of the endpoint
+     * @param value the value of the attribute, null if absent
+     */
+    protected void sanitize(String url, String value) {
+        if (value == null || "false".equals(value)) {
+            return;
+        }
+        if ("replace".equals(value)) {
+            DocumentSource.sanitize(url, true);
+        } else if ("true".equals(value) || "drop".equals(value)) {
+            DocumentSource.sanitize(url, false);
+        } else {
+            logger.error("@sanitize[" + value + "] of provider[" + url + "] should be true, drop or replace");
+        }
+    }
+
     public int[] getRetryDelays() {
         return parseRetryDelays(settings.get(KnownOptions.RETRYDELAY.toString()));
     }
 
+    /**
+     * Get the number of consecutive failed requests after which the circuit
+     * breaker of an endpoint opens.
+     *
+     * @return the number of failures, 0 if breakers never open
+     */
+    public int getBreakerThreshold() {
+        String s = settings.get(KnownOptions.BREAKERTHRESHOLD.toString());
+        if (s == null) return 5;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the time in seconds the circuit breaker of an endpoint stays open.
+     *
+     * @return the time
+     */
+    public long getBreakerDelay() {
+        String s = settings.get(KnownOptions.BREAKERDELAY.toString());
+        if (s == null) return 600;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the maximum time in seconds to wait before retrying a request.
+     *
+     * @return the time
+     */
+    public long getMaxRetryDelay() {
+        String s = settings.get(KnownOptions.MAXRETRYDELAY.toString());
+        if (s == null) return 3600;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the maximum number of requests to an endpoint in flight at the
+     * same time. The pacing of the requests stays below it.
+     *
+     * @return the number of requests, 0 if the requests are not paced
+     */
+    public int getMaxEndpointConcurrency() {
+        String s = settings.get(KnownOptions.MAXENDPOINTCONCURRENCY.toString());
+        if (s == null) return 4;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the percentage of the heap that may stay occupied after a garbage
+     * collection before the harvest slows down.
+     *
+     * @return the percentage, 0 if the memory is not governed
+     */
+    public int getHeapThreshold() {
+        String s = settings.get(KnownOptions.HEAPTHRESHOLD.toString());
+        if (s == null) return 80;
+        return Integer.valueOf(s);
+    }
+
     public int getNiceDelay() {
         String s = settings.get(KnownOptions.NICEDELAY.toString());
         if (s == null) return 0;
@@ -881,6 +1003,287 @@ public class Configuration {
         return false;
     }
 
+    /**
+     * Get the directory for harvest checkpoints, relative to the working
+     * directory.
+     *
+     * @return the directory, or null if checkpoints are disabled
+     */
+    public Path getCheckpointDirectory() {
+        String s = settings.get(KnownOptions.CHECKPOINTDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get the directory for the record indexes used by save actions that
+     * skip unchanged records, relative to the working directory.
+     *
+     * @return the directory
+     */
+    public Path getRecordIndexDirectory() {
+        String s = settings.get(KnownOptions.RECORDINDEXDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            s = "record-index";
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get the time in seconds Identify and ListMetadataFormats responses are
+     * cached. By default, responses are not cached.
+     *
+     * @return the time to live, 0 if responses should not be cached
+     */
+    public long getResponseCacheTTL() {
+        String s = settings.get(KnownOptions.RESPONSECACHETTL.toString());
+        if (s == null) return 0;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the directory to store cached responses in, relative to the working
+     * directory.
+     *
+     * @return the directory, or null if responses are only kept in memory
+     */
+    public Path getResponseCacheDirectory() {
+        String s = settings.get(KnownOptions.RESPONSECACHEDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get the maximum number of documents resolved by transforms, like the
+     * ListSets responses loaded by stylesheets, to keep in memory.
+     *
+     * @return the number of documents
+     */
+    public int getDocumentCacheSize() {
+        String s = settings.get(KnownOptions.DOCUMENTCACHESIZE.toString());
+        if (s == null) return 100;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the time in seconds documents resolved by transforms are kept in
+     * memory.
+     *
+     * @return the time to live, 0 if documents should not be cached
+     */
+    public long getDocumentCacheTTL() {
+        String s = settings.get(KnownOptions.DOCUMENTCACHETTL.toString());
+        if (s == null) return 3600;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the number of threads performing the actions on the harvested
+     * records, shared by all workers. By default, and for a negative value,
+     * there are as many threads as processors.
+     *
+     * @return the number of threads, 0 if the workers perform the actions
+     *         themselves
+     */
+    public int getCpuThreads() {
+        String s = settings.get(KnownOptions.CPUTHREADS.toString());
+        int threads = (s == null) ? -1 : Integer.valueOf(s);
+        return (threads < 0) ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * Get the port to serve the live metrics on, in the Prometheus text
+     * format.
+     *
+     * @return the port, 0 if the metrics should not be served
+     */
+    public int getMetricsPort() {
+        String s = settings.get(KnownOptions.METRICSPORT.toString());
+        if (s == null) return 0;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the address to serve the live metrics on, for example 0.0.0.0
+     * for all interfaces.
+     *
+     * @return the address, or null to only serve them on the loopback
+     *         interface
+     */
+    public String getMetricsAddress() {
+        String s = settings.get(KnownOptions.METRICSADDRESS.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return s.trim();
+    }
+
+    /**
+     * Get the directory to archive the raw ListRecords responses in,
+     * relative to the working directory.
+     *
+     * @return the directory, or null if the responses are not archived
+     */
+    public Path getArchiveDirectory() {
+        String s = settings.get(KnownOptions.ARCHIVEDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get replay flag. If set, the archived responses are passed through the
+     * action sequences instead of harvesting the providers.
+     */
+    public boolean isReplay() {
+        String s = settings.get(KnownOptions.REPLAY.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+
+    /**
+     * Get the output directory to re-transform. If set, the records saved
+     * in it are passed through the actions that follow the save to it,
+     * instead of harvesting the providers.
+     *
+     * @return the id of the output directory, or null
+     */
+    public String getRetransform() {
+        String s = settings.get(KnownOptions.RETRANSFORM.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return s.trim();
+    }
+
+    /**
+     * Get daemon flag. If set, the harvester keeps running, and starts a
+     * harvest cycle on a schedule or when triggered.
+     */
+    public boolean isDaemon() {
+        String s = settings.get(KnownOptions.DAEMON.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+
+    /**
+     * Get the number of seconds between the starts of the harvest cycles
+     * in daemon mode.
+     *
+     * @return the interval, or 0 to only start a cycle when triggered
+     */
+    public long getDaemonInterval() {
+        String s = settings.get(KnownOptions.DAEMONINTERVAL.toString());
+        if (s == null) return 0;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the port on which the daemon accepts triggers over HTTP, on the
+     * loopback interface only.
+     *
+     * @return the port, or 0 to not accept triggers over HTTP
+     */
+    public int getDaemonPort() {
+        String s = settings.get(KnownOptions.DAEMONPORT.toString());
+        if (s == null) return 0;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get the file that triggers a harvest cycle in daemon mode when it
+     * appears, relative to the working directory.
+     *
+     * @return the file, or null if cycles are not triggered by a file
+     */
+    public Path getTriggerFile() {
+        String s = settings.get(KnownOptions.TRIGGERFILE.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get the directory shared by cooperating harvesters, relative to the
+     * working directory. If set, a harvester claims a provider there before
+     * harvesting it, and the overview is merged with the one on file when
+     * it is saved.
+     *
+     * @return the directory, or null if the harvester works alone
+     */
+    public Path getClusterDirectory() {
+        String s = settings.get(KnownOptions.CLUSTERDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * @return the name of this harvester among the cooperating ones,
+     *         by default the host name and the process id
+     */
+    public String getNodeId() {
+        String s = settings.get(KnownOptions.NODEID.toString());
+        if (s == null || s.trim().isEmpty())
+            return LeaseRegistry.defaultNode();
+        return s.trim();
+    }
+
+    /**
+     * Get the number of seconds a claim on a provider lasts if the harvester
+     * that holds it stops renewing it.
+     */
+    public long getLeaseTTL() {
+        String s = settings.get(KnownOptions.LEASETTL.toString());
+        if (s == null) return 300;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the directory to keep copies of the centre registry models in,
+     * relative to the working directory.
+     *
+     * @return the directory, or null if the registry is always read
+     */
+    public Path getRegistrySnapshotDirectory() {
+        String s = settings.get(KnownOptions.REGISTRYSNAPSHOTDIR.toString());
+        if (s == null || s.trim().isEmpty())
+            return null;
+        return Paths.get(getWorkingDirectory()).resolve(s.trim());
+    }
+
+    /**
+     * Get the time in seconds a copy of the centre registry models is used
+     * instead of reading the registry.
+     *
+     * @return the time to live, 0 if copies are only used when the registry
+     *         cannot be read
+     */
+    public long getRegistrySnapshotTTL() {
+        String s = settings.get(KnownOptions.REGISTRYSNAPSHOTTTL.toString());
+        if (s == null) return 0;
+        return Long.valueOf(s);
+    }
+
+    /**
+     * Get the timeout in seconds for probing the endpoints before the
+     * harvest starts.
+     *
+     * @return the timeout, 0 if the endpoints are not probed
+     */
+    public int getBootstrapTimeout() {
+        String s = settings.get(KnownOptions.BOOTSTRAPTIMEOUT.toString());
+        if (s == null) return 0;
+        return Integer.valueOf(s);
+    }
+
+    /**
+     * Get harvest once flag. If set, the prefixes needed by all action
+     * sequences are harvested once, and every response is passed to all the
+     * sequences it matches.
+     */
+    public boolean isHarvestOnce() {
+        String s = settings.get(KnownOptions.HARVESTONCE.toString());
+        return (s == null) ? false : Boolean.valueOf(s);
+    }
+
     /**
      * Get dry run flag.
      */
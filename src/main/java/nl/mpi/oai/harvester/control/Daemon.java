@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> The harvester running as a daemon <br><br>
+ *
+ * Instead of harvesting once and exiting, the daemon keeps the JVM running,
+ * and with it the compiled stylesheets, the registry, the caches and the
+ * pools, and runs a harvest cycle whenever one is due. A cycle is due every
+ * daemon-interval seconds, when the trigger-file appears in the working
+ * directory, when it is requested over HTTP on the daemon-port of the
+ * loopback interface (POST /harvest), or over JMX. <br><br>
+ *
+ * Before a cycle starts, the configuration file is read again if it, or a
+ * stylesheet it refers to, has changed. Only the components whose settings
+ * changed are set up again; actions that did not change keep their pools.
+ * <br><br>
+ *
+ * Draining the daemon, over HTTP (POST /drain), over JMX or by stopping
+ * the JVM, drops the providers that are waiting for a worker, lets the
+ * ones being harvested finish, and then stops the daemon.
+ */
+public class Daemon implements DaemonMXBean {
+
+    private static final Logger logger = LogManager.getLogger(Daemon.class);
+
+    private static final String NAME = "nl.mpi.oai.harvester:type=Daemon";
+
+    // how often the trigger file is looked for, in milliseconds
+    private static final long POLL = 1000;
+
+    private final String configFile;
+    private final String[] args;
+
+    private Configuration config;
+    private FileTime modified;
+
+    private final Object lock = new Object();
+    private boolean triggered = false;
+    private volatile boolean draining = false;
+    private volatile String state = "idle";
+
+    private final AtomicLong cycles = new AtomicLong();
+    private volatile long lastStart = 0;
+    private volatile long lastDuration = 0;
+
+    private HttpServer server = null;
+    private int port = 0;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * <br> Create a daemon for the configuration that has been read
+     *
+     * @param configFile the configuration file, read again when it changes
+     * @param args       the command line arguments, applied again when the
+     *                   configuration file is read again
+     */
+    public Daemon(String configFile, String[] args) {
+        this.configFile = configFile;
+        this.args = args;
+        this.config = Main.config;
+        this.modified = lastModified();
+    }
+
+    /**
+     * <br> Run harvest cycles until the daemon is drained
+     */
+    public void run() {
+        config.log();
+        Main.configure(null, config);
+        register();
+        serve(config.getDaemonPort());
+
+        // stopping the JVM drains the daemon, and waits for the workers
+        Thread hook = new Thread(() -> {
+            drain();
+            try {
+                stopped.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "daemon-drain");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        logger.info("Daemon started: interval[" + config.getDaemonInterval() + "s] trigger-file["
+                + config.getTriggerFile() + "] port[" + port + "]");
+        try {
+            while (await()) {
+                reload();
+                if (draining) {
+                    break;
+                }
+
+                state = "harvesting";
+                lastStart = System.currentTimeMillis();
+                logger.info("Daemon: harvest cycle " + (cycles.get() + 1) + " started");
+                try {
+                    if (config.getRetransform() != null) {
+                        new Retransform(config, config.getRetransform()).run();
+                    } else {
+                        Main.harvest(config);
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Daemon: harvest cycle failed", e);
+                }
+                lastDuration = System.currentTimeMillis() - lastStart;
+                cycles.incrementAndGet();
+                logger.info("Daemon: harvest cycle " + cycles.get() + " finished in " + lastDuration + "ms");
+                if (!draining) {
+                    state = "idle";
+                }
+            }
+        } finally {
+            state = "stopped";
+            serve(0);
+            unregister();
+            if (Metrics.isServing()) {
+                Metrics.stop();
+            }
+            logger.info("Daemon stopped after " + cycles.get() + " harvest cycles");
+            stopped.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // the JVM is shutting down already
+            }
+        }
+    }
+
+    /**
+     * Wait for the next harvest cycle to be due.
+     *
+     * @return true if a cycle is due, false if the daemon is drained
+     */
+    private boolean await() {
+        synchronized (lock) {
+            while (!draining) {
+                if (triggered) {
+                    triggered = false;
+                    return true;
+                }
+                long interval = config.getDaemonInterval() * 1000;
+                long wait = POLL;
+                if (interval > 0) {
+                    long due = lastStart + interval - System.currentTimeMillis();
+                    if (due <= 0) {
+                        return true;
+                    }
+                    wait = Math.min(wait, due);
+                }
+                if (triggerFile()) {
+                    return true;
+                }
+                try {
+                    lock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    draining = true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // look for the trigger file, and remove it when found
+    private boolean triggerFile() {
+        Path file = config.getTriggerFile();
+        if (file == null) {
+            return false;
+        }
+        try {
+            if (Files.deleteIfExists(file)) {
+                logger.info("Daemon: triggered by " + file);
+                return true;
+            }
+        } catch (IOException e) {
+            logger.error("Daemon: cannot remove trigger file " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * Read the configuration file again if it, or a stylesheet, changed
+     * since it was read.
+     */
+    private void reload() {
+        FileTime time = lastModified();
+        if (time == null) {
+            return;
+        }
+        if (!time.equals(modified)) {
+            logger.info("Daemon: configuration file " + configFile + " changed, reading it again");
+        } else if (ActionSequence.isStale()) {
+            logger.info("Daemon: a stylesheet changed, reading " + configFile + " again");
+        } else {
+            return;
+        }
+        // the actions set up from the changed files are not pooled again
+        ActionSequence.dropStale();
+        Configuration next = Main.readConfiguration(configFile, args);
+        if (next == null) {
+            logger.error("Daemon: keeping the previous configuration");
+            return;
+        }
+        modified = time;
+        next.log();
+        Main.configure(config, next);
+        if (next.getDaemonPort() != port) {
+            serve(next.getDaemonPort());
+        }
+        Main.config = next;
+        config = next;
+    }
+
+    private FileTime lastModified() {
+        try {
+            return Files.getLastModifiedTime(Paths.get(configFile));
+        } catch (IOException e) {
+            logger.error("Daemon: cannot read " + configFile, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void harvest() {
+        synchronized (lock) {
+            triggered = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void drain() {
+        if (state.equals("stopped")) {
+            return;
+        }
+        synchronized (lock) {
+            if (!draining) {
+                logger.info("Daemon: draining");
+            }
+            draining = true;
+            state = "draining";
+            lock.notifyAll();
+        }
+        Main.drain();
+    }
+
+    @Override
+    public String getState() {
+        return state;
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles.get();
+    }
+
+    @Override
+    public long getLastCycleStart() {
+        return lastStart;
+    }
+
+    @Override
+    public long getLastCycleDuration() {
+        return lastDuration;
+    }
+
+    // accept triggers over HTTP on the loopback interface, port 0 to stop
+    private synchronized void serve(int port) {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        this.port = port;
+        if (port <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/harvest", exchange -> {
+                if (post(exchange)) {
+                    harvest();
+                    respond(exchange, 202, "harvest cycle requested\n");
+                }
+            });
+            server.createContext("/drain", exchange -> {
+                if (post(exchange)) {
+                    drain();
+                    respond(exchange, 202, "draining\n");
+                }
+            });
+            server.createContext("/status", exchange -> respond(exchange, 200,
+                    "state " + state + "\ncycles " + cycles.get() + "\nlast-cycle-start " + lastStart
+                            + "\nlast-cycle-duration " + lastDuration + "\n"));
+            server.start();
+            logger.info("Daemon: accepting triggers on port[" + port + "]");
+        } catch (IOException e) {
+            logger.error("Daemon: cannot accept triggers on port[" + port + "]: " + e.getMessage());
+            server = null;
+        }
+    }
+
+    private static boolean post(HttpExchange exchange) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "POST");
+        respond(exchange, 405, "use POST\n");
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(NAME));
+        } catch (JMException e) {
+            logger.debug("Daemon: cannot register MBean[" + NAME + "]: " + e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(NAME));
+        } catch (JMException e) {
+            logger.debug("Daemon: cannot unregister MBean[" + NAME + "]: " + e.getMessage());
+        }
+    }
+}
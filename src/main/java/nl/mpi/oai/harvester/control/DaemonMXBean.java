@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+/**
+ * Management interface of the harvester running as a daemon.
+ */
+public interface DaemonMXBean {
+
+    /**
+     * @return idle, harvesting, draining or stopped
+     */
+    String getState();
+
+    /**
+     * @return the number of harvest cycles completed
+     */
+    long getCycles();
+
+    /**
+     * @return the start of the last harvest cycle, in milliseconds since
+     *         the epoch, or 0 if no cycle has started yet
+     */
+    long getLastCycleStart();
+
+    /**
+     * @return the duration of the last completed harvest cycle in
+     *         milliseconds
+     */
+    long getLastCycleDuration();
+
+    /**
+     * Start a harvest cycle as soon as the one running, if any, is done.
+     */
+    void harvest();
+
+    /**
+     * Let the providers being harvested finish, drop the others, and stop.
+     */
+    void drain();
+}
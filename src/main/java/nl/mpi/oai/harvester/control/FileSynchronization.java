@@ -20,6 +20,7 @@ package nl.mpi.oai.harvester.control;
 
 import ORG.oclc.oai.harvester2.verb.ListIdentifiers;
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.Retry;
 import nl.mpi.oai.harvester.utils.Statistic;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
@@ -45,8 +46,6 @@ public final class FileSynchronization {
 
     private static final Logger logger = LogManager.getLogger(FileSynchronization.class);
 
-    private static final SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
-    private static final String currentDate = formatter.format(new Date());
     private static final String CMDI = "/cmdi/";
     private static final String CMDI1_1 = "/cmdi-1_1/";
     private static final String CMDI1_2 = "/cmdi-1_2/";
@@ -98,15 +97,8 @@ public final class FileSynchronization {
             while (!done) {
                 if (counter == provider.maxRetryCount) {
                     break;
-                } else {
-                    int retryDelay = provider.getRetryDelay(counter);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
-                    }
+                } else if (!Retry.backoff(provider.oaiUrl, provider.getRetryDelays(), counter)) {
+                    break;
                 }
                 try {
                     ListIdentifiers listIdentifiers = null;
@@ -238,10 +230,11 @@ public final class FileSynchronization {
         File file = new File(dir + Util.toFileFormat(provider.getName())+"_history.xml");
         Statistic stats = statistic.get(provider);
         StringBuffer sb = new StringBuffer();
-          sb.append("<harvest date=\"").append(currentDate).append("\" ")
+          sb.append("<harvest date=\"").append(today()).append("\" ")
              .append("operationTime=\"" + stats.getHarvestTime() + "s\" ")
              .append("requestsToServer=\"" + stats.getRequests() + "\" ")
              .append("collectedRecords=\"" + stats.getHarvestedRecords() + "\" ")
+             .append("skippedRecords=\"" + stats.getSkippedRecords() + "\" ")
              .append("/>\n");
         writeToHistoryFile(file, sb.toString());
     }
@@ -255,19 +248,24 @@ public final class FileSynchronization {
 
     }
 
+    // the date of the harvest, a daemon runs for more than a day
+    private static String today(){
+        return new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+    }
+
     public static Statistic getProviderStatistic(Provider provider){
         return  statistic.get(provider);
     }
 
     public static void addProviderStatistic(Provider provider){
-        statistic.put(provider, new Statistic());
+        statistic.put(provider, new Statistic(provider.getName()));
     }
     public static void saveToHistoryFile(final Provider provider, final Path filePath, final Operation operation){
         String dir = Main.config.getWorkingDirectory()+ CMDI;
         File file = new File(dir + Util.toFileFormat(provider.getName())+"_history.xml");
             StringBuffer sb = new StringBuffer();
                      sb.append("<file ")
-                        .append("harvestDate=\"").append(currentDate).append("\" ")
+                        .append("harvestDate=\"").append(today()).append("\" ")
                         .append("name=\"").append(filePath.getFileName()).append("\" ")
                         .append("operation=\"" + operation.name()).append("\" ")
                         .append("/>\n");
@@ -275,6 +273,9 @@ public final class FileSynchronization {
     }
 
     public static  void saveFilesToRemove(String file, Provider provider){
+        Statistic stats = statistic.get(provider);
+        if (stats != null)
+            stats.incDeletedCount();
         String dir = Main.config.getWorkingDirectory()+ CMDI + Util.toFileFormat(provider.getName());
         java.io.File toRemove = new java.io.File(dir+"_remove.txt");
         try(FileWriter writer = new FileWriter(toRemove, true)) {
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <br> Registry of the providers claimed by cooperating harvesters <br><br>
+ *
+ * Several harvesters, on different nodes, can share the harvest of the
+ * providers in their configuration through a directory they all have
+ * access to. A harvester claims a provider before harvesting it, by
+ * writing a lease to the directory. The lease expires after a while,
+ * unless the harvester renews it, which it does as long as it harvests the
+ * provider. When the harvester is done, it marks the lease as finished.
+ * <br><br>
+ *
+ * The harvesters share a round: it starts when the first harvester joins,
+ * and ends when all providers are finished. A provider finished in the
+ * round, or claimed by a harvester whose lease has not expired, cannot be
+ * claimed. The providers of a harvester that stopped are claimed by the
+ * others once its leases expire. <br><br>
+ *
+ * The leases are only read and written while holding a lock on a file in
+ * the directory, which the operating system releases when the harvester
+ * stops. <br><br>
+ *
+ * A harvester that fails to renew a lease in time, for example because it
+ * was paused, may find the provider taken over by another one. The worker
+ * harvesting it is then fenced: it carries the lease in its thread context,
+ * also onto the threads working for it, and the records and the overview
+ * are only written while the lease is held.
+ */
+public class LeaseRegistry {
+
+    private static final Logger logger = LogManager.getLogger(LeaseRegistry.class);
+
+    private static final String LEASES = "leases";
+    private static final String LEASE = ".lease";
+    private static final String ROUND = "round";
+    private static final String LOCK = "registry.lock";
+
+    // the thread context key of the lease a worker harvests under
+    private static final String CONTEXT = "lease";
+
+    // a lock on a file is held by the JVM, not by a thread
+    private static final Object lock = new Object();
+
+    // the directory shared by the harvesters
+    private final Path dir;
+
+    // the name of this harvester
+    private final String node;
+
+    // the time a lease lasts if it is not renewed, in milliseconds
+    private final long ttl;
+
+    // the start of the round, in milliseconds since the epoch
+    private long round = 0;
+
+    // the leases held by this harvester, by key
+    private final Map<String, Provider> held = new ConcurrentHashMap<>();
+
+    // the leases lost while they were harvested, by key
+    private static final Set<String> lost = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService renewer;
+
+    /**
+     * <br> Join the registry in a directory
+     *
+     * @param dir  the directory shared by the harvesters
+     * @param node the name of this harvester, unique among them
+     * @param ttl  the number of seconds a lease lasts if it is not renewed
+     */
+    public LeaseRegistry(Path dir, String node, long ttl) {
+        this.dir = dir;
+        this.node = node;
+        this.ttl = ttl * 1000;
+
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(this.ttl / 3, 1);
+        renewer.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a name for this harvester, from the host name and the process
+     */
+    public static String defaultNode() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * <br> Join the current round, or start one if there is none
+     *
+     * @return false if the registry cannot be used, true otherwise
+     */
+    public boolean begin() {
+        try {
+            Util.ensureDirExists(dir.resolve(LEASES));
+            return locked(() -> {
+                Path file = dir.resolve(ROUND);
+                Properties props = read(file);
+                if (props == null) {
+                    props = new Properties();
+                    props.setProperty("started", Long.toString(System.currentTimeMillis()));
+                    props.setProperty("node", node);
+                    write(file, props);
+                    logger.info("leases: " + node + " started a round");
+                } else {
+                    logger.info("leases: " + node + " joined the round started by " + props.getProperty("node"));
+                }
+                round = Long.parseLong(props.getProperty("started"));
+                return true;
+            });
+        } catch (IOException | UncheckedIOException | NumberFormatException e) {
+            logger.error("leases: cannot use " + dir, e);
+            return false;
+        }
+    }
+
+    /**
+     * <br> Claim a provider for this harvester
+     *
+     * @param provider the provider
+     * @return true if this harvester may harvest the provider, false if it
+     *         was finished in this round or another harvester holds it
+     */
+    public boolean claim(Provider provider) {
+        String key = key(provider);
+        boolean claimed;
+        try {
+            claimed = locked(() -> {
+                Path file = lease(key);
+                Properties props = read(file);
+                if (props != null) {
+                    if (Long.parseLong(props.getProperty("finished", "0")) >= round) {
+                        return false;
+                    }
+                    if (!node.equals(props.getProperty("node"))
+                            && Long.parseLong(props.getProperty("expires", "0")) > System.currentTimeMillis()) {
+                        return false;
+                    }
+                    if (props.getProperty("expires") != null && !node.equals(props.getProperty("node"))) {
+                        logger.warn("leases: lease of " + props.getProperty("node") + " on "
+                                + provider.getOaiUrl() + " expired, taking it over");
+                    }
+                }
+                props = new Properties();
+                props.setProperty("url", String.valueOf(provider.getOaiUrl()));
+                props.setProperty("node", node);
+                props.setProperty("expires", Long.toString(System.currentTimeMillis() + ttl));
+                write(file, props);
+                return true;
+            });
+        } catch (UncheckedIOException | NumberFormatException e) {
+            // leave the provider to a next attempt
+            logger.error("leases: cannot claim " + provider.getOaiUrl(), e);
+            return false;
+        }
+        if (claimed) {
+            lost.remove(key);
+            held.put(key, provider);
+        }
+        return claimed;
+    }
+
+    /**
+     * <br> Mark a provider claimed by this harvester as finished in this
+     * round
+     *
+     * @param provider the provider
+     */
+    public void release(Provider provider) {
+        String key = key(provider);
+        held.remove(key);
+        lost.remove(key);
+        try {
+            locked(() -> {
+                Path file = lease(key);
+                Properties props = read(file);
+                if (props == null || !node.equals(props.getProperty("node"))) {
+                    logger.error("leases: " + node + " lost the lease on " + provider.getOaiUrl());
+                    return false;
+                }
+                props.remove("expires");
+                props.setProperty("finished", Long.toString(System.currentTimeMillis()));
+                write(file, props);
+                return true;
+            });
+        } catch (UncheckedIOException e) {
+            // the lease expires, and the provider is harvested again
+            logger.error("leases: cannot release " + provider.getOaiUrl(), e);
+        }
+    }
+
+    /**
+     * @param provider the provider
+     * @return true if the provider was finished by any harvester in this
+     *         round
+     */
+    public boolean isFinished(Provider provider) {
+        try {
+            return locked(() -> {
+                Properties props = read(lease(key(provider)));
+                return props != null && Long.parseLong(props.getProperty("finished", "0")) >= round;
+            });
+        } catch (UncheckedIOException | NumberFormatException e) {
+            logger.error("leases: cannot read the lease on " + provider.getOaiUrl(), e);
+            return false;
+        }
+    }
+
+    /**
+     * <br> End the round if all providers are finished
+     *
+     * @param providers the providers
+     * @return true if all providers are finished
+     * @throws UncheckedIOException if the registry cannot be read
+     */
+    public boolean end(List<Provider> providers) {
+        return locked(() -> {
+            for (Provider provider : providers) {
+                Properties props = read(lease(key(provider)));
+                if (props == null || Long.parseLong(props.getProperty("finished", "0")) < round) {
+                    return false;
+                }
+            }
+            // another harvester might have ended it and started a new one
+            Path file = dir.resolve(ROUND);
+            Properties props = read(file);
+            if (props != null && Long.parseLong(props.getProperty("started")) == round) {
+                Files.delete(file);
+                logger.info("leases: " + node + " ended the round");
+            }
+            return true;
+        });
+    }
+
+    /**
+     * <br> Wrap a worker, so it only harvests the provider if this
+     * harvester can claim it, and is fenced once it loses the lease
+     *
+     * @param provider the provider
+     * @param worker   the worker harvesting the provider
+     * @return the wrapped worker
+     */
+    public Runnable guard(Provider provider, Runnable worker) {
+        return () -> {
+            if (!claim(provider)) {
+                logger.info("leases: " + provider.getOaiUrl() + " is finished or claimed by another harvester");
+                return;
+            }
+            ThreadContext.put(CONTEXT, key(provider));
+            try {
+                worker.run();
+            } finally {
+                ThreadContext.remove(CONTEXT);
+                release(provider);
+            }
+        };
+    }
+
+    /**
+     * <br> Check if the worker of the current thread, if it harvests under a
+     * lease, still holds it. Whatever the worker writes, it should only
+     * write while this is the case.
+     *
+     * @return false if the lease was lost, true otherwise
+     */
+    public static boolean isHeld() {
+        String key = ThreadContext.get(CONTEXT);
+        return key == null || !lost.contains(key);
+    }
+
+    /**
+     * <br> Stop renewing leases
+     */
+    public void close() {
+        renewer.shutdownNow();
+    }
+
+    // extend the leases held by this harvester
+    private void renew() {
+        for (Map.Entry<String, Provider> entry : held.entrySet()) {
+            try {
+                locked(() -> {
+                    Path file = lease(entry.getKey());
+                    Properties props = read(file);
+                    if (props == null || !node.equals(props.getProperty("node")) || props.getProperty("expires") == null) {
+                        if (held.remove(entry.getKey()) != null) {
+                            // fence the worker, another harvester may be harvesting the provider
+                            lost.add(entry.getKey());
+                            logger.error("leases: " + node + " lost the lease on " + entry.getValue().getOaiUrl()
+                                    + ", no longer writing its records");
+                        }
+                        return false;
+                    }
+                    props.setProperty("expires", Long.toString(System.currentTimeMillis() + ttl));
+                    write(file, props);
+                    return true;
+                });
+            } catch (RuntimeException e) {
+                logger.error("leases: cannot renew the lease on " + entry.getValue().getOaiUrl(), e);
+            }
+        }
+    }
+
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+
+    // run with the lock on the registry held
+    private <T> T locked(Locked<T> action) {
+        synchronized (lock) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(LOCK),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock fileLock = channel.lock()) {
+                return action.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private Path lease(String key) {
+        return dir.resolve(LEASES).resolve(key + LEASE);
+    }
+
+    // a file name for the provider, and the sets harvested
+    private static String key(Provider provider) {
+        String key = provider.getOaiUrl() + " " + (provider.sets == null ? "" :
+                Arrays.toString(provider.sets));
+        return Util.toFileFormat(key.substring(0, Math.min(key.length(), 100)))
+                + "-" + Integer.toHexString(key.hashCode());
+    }
+
+    private static Properties read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    private static void write(Path file, Properties props) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, null);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
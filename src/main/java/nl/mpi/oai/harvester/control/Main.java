@@ -19,9 +19,16 @@
 package nl.mpi.oai.harvester.control;
 
 import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.DocumentCache;
+import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.cycle.Cycle;
 import nl.mpi.oai.harvester.cycle.CycleFactory;
+import nl.mpi.oai.harvester.metrics.Metrics;
 import nl.mpi.oai.harvester.protocol.*;
+import nl.mpi.oai.harvester.utils.MemoryGovernor;
+import nl.mpi.oai.harvester.utils.Pacing;
+import nl.mpi.oai.harvester.utils.ResponseCache;
+import nl.mpi.oai.harvester.utils.Retry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
@@ -30,11 +37,24 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 
 /**
@@ -46,25 +66,131 @@ public class Main {
     private static final String sep = System.getProperty("file.separator");
     private static final Logger logger = LogManager.getLogger(Main.class);
 
+    // number of endpoints probed at the same time
+    private static final int BOOTSTRAP_JOBS = 32;
+
     /**
      * Object containing entries from configuration file.
      */
     public static Configuration config;
 
+    // the workers of the harvest cycle that is running
+    private static volatile ThreadPoolExecutor workers = null;
+
+    // set when the harvest cycle that is running is drained
+    private static volatile boolean drained = false;
+
     public static void runHarvesting(Configuration config) {
         config.log();
+
+        if (config.isReplay() && config.getArchiveDirectory() == null) {
+            logger.error("Replay needs an archive-dir. Quitting! ");
+            return;
+        }
+
+        configure(null, config);
+
+        if (config.getRetransform() != null) {
+            // regenerate the directories derived from the saved records, without harvesting
+            new Retransform(config, config.getRetransform()).run();
+        } else {
+            harvest(config);
+        }
+
+        if (Metrics.isServing()) {
+            Metrics.stop();
+        }
+    }
+
+    /**
+     * Set up the metrics, the pools and the caches shared by the workers. A
+     * component is only set up again if its settings differ from the
+     * previous configuration, so it keeps its state, like the contents of a
+     * cache or the threads of a pool.
+     *
+     * @param previous the configuration the components were set up for, or
+     *                 null to set up all of them
+     * @param config   the configuration
+     */
+    static void configure(Configuration previous, Configuration config) {
+        Metrics.gauge("cpu_tasks_queued", Scheduler::getQueueDepth);
+        Metrics.gauge("cpu_tasks_running", Scheduler::getRunning);
+        if (changed(previous, config, c -> Arrays.asList(c.getMetricsAddress(), c.getMetricsPort()))) {
+            Metrics.configure(config.getMetricsAddress(), config.getMetricsPort());
+        }
+
+        // back off from endpoints that fail, and stop harvesting the ones that are down
+        if (changed(previous, config, c -> Arrays.asList(c.getBreakerThreshold(), c.getBreakerDelay(), c.getMaxRetryDelay()))) {
+            Retry.configure(config.getBreakerThreshold(), config.getBreakerDelay(), config.getMaxRetryDelay());
+        }
+
+        // slow the harvest down before the heap runs out
+        if (changed(previous, config, Configuration::getHeapThreshold)) {
+            MemoryGovernor.configure(config.getHeapThreshold());
+        }
+        Metrics.gauge("heap_pressure", () -> MemoryGovernor.isUnderPressure() ? 1 : 0);
+        Metrics.gauge("heap_waits", MemoryGovernor::getWaits);
+
+        // send requests as fast as every endpoint keeps up
+        if (changed(previous, config, Configuration::getMaxEndpointConcurrency)) {
+            Pacing.configure(config.getMaxEndpointConcurrency());
+        }
+
+        // share Identify and ListMetadataFormats responses between workers and runs
+        if (changed(previous, config, c -> Arrays.asList(c.getResponseCacheDirectory(), c.getResponseCacheTTL()))) {
+            ResponseCache.configure(config.getResponseCacheDirectory(), config.getResponseCacheTTL());
+        }
+
+        // share the documents loaded by stylesheets between transforms
+        if (changed(previous, config, c -> Arrays.asList(c.getDocumentCacheSize(), c.getDocumentCacheTTL()))) {
+            DocumentCache.configure(config.getDocumentCacheSize(), config.getDocumentCacheTTL());
+        }
+
+        // the workers wait for the endpoints, a separate pool keeps the processors busy
+        if (changed(previous, config, Configuration::getCpuThreads)) {
+            Scheduler.configure(config.getCpuThreads());
+        }
+    }
+
+    private static boolean changed(Configuration previous, Configuration config,
+                                   Function<Configuration, ?> setting) {
+        return previous == null || !Objects.equals(setting.apply(previous), setting.apply(config));
+    }
+
+    /**
+     * Run a harvest cycle: start a worker for every provider, and wait for
+     * the workers to finish.
+     *
+     * @param config the configuration
+     */
+    static void harvest(Configuration config) {
         String defaultProtocol = "nl.mpi.oai.harvester.protocol.OaiProtocol";
 
-        ExecutorService executor = new ScheduledThreadPoolExecutor(config.getMaxJobs());
+        drained = false;
+
+        // share the providers with the other harvesters, if any
+        LeaseRegistry leases = null;
+        if (config.getClusterDirectory() != null) {
+            leases = new LeaseRegistry(config.getClusterDirectory(), config.getNodeId(), config.getLeaseTTL());
+            if (!leases.begin()) {
+                leases.close();
+                logger.error("Cannot share the providers through " + config.getClusterDirectory() + ". Quitting! ");
+                return;
+            }
+        }
 
         // create a CycleFactory
         CycleFactory factory = new CycleFactory();
         // get a cycle based on the overview file
         File OverviewFile = new File(config.getOverviewFile());
-        Cycle cycle = factory.createCycle(OverviewFile);
+        Cycle cycle = factory.createCycle(OverviewFile, leases != null);
 
         // Load the corresponding protocol class according to config.settings.protocol
         String protocolString = config.getProtocol();
+        if (config.isReplay()) {
+            // pass the archived responses through the actions, without any requests
+            protocolString = ReplayProtocol.class.getName();
+        }
         logger.info("Protocol is " + protocolString);
         Class<?> c;
 
@@ -90,9 +216,70 @@ public class Main {
             throw new RuntimeException(ex);
         }
 
+        // probe the endpoints, so the ones that cannot be reached do not occupy a worker
+        Set<Provider> unreachable = Collections.emptySet();
+        if (config.getBootstrapTimeout() > 0 && OaiProtocol.class.isAssignableFrom(c)) {
+            unreachable = bootstrap(config.getProviders(), config.getBootstrapTimeout());
+        }
+
         // loop through providers and create new protocol instances as workers then execute
-        Object[] parameters;
+        List<Provider> providers = new ArrayList<>();
         for (Provider provider : config.getProviders()) {
+            if (unreachable.contains(provider)) {
+                if (leases == null || leases.claim(provider)) {
+                    // leave the endpoint for the next retry cycle
+                    logger.warn("Endpoint " + provider.getOaiUrl() + " cannot be reached, skipping it");
+                    cycle.next(provider.getOaiUrl(), "group").doneHarvesting(false);
+                    if (leases != null) {
+                        leases.release(provider);
+                    }
+                }
+                continue;
+            }
+            providers.add(provider);
+        }
+        run(providers, constructor, config, cycle, leases);
+
+        if (leases != null) {
+            try {
+                // take over the providers of harvesters that stopped, until all are finished
+                long wait = Math.min(Math.max(config.getLeaseTTL() * 1000 / 3, 1000), 10000);
+                while (!drained && !leases.end(config.getProviders())) {
+                    Thread.sleep(wait);
+                    List<Provider> open = new ArrayList<>();
+                    for (Provider provider : config.getProviders()) {
+                        if (!leases.isFinished(provider)) {
+                            open.add(provider);
+                        }
+                    }
+                    run(open, constructor, config, cycle, leases);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (UncheckedIOException e) {
+                logger.error("Cannot read the leases in " + config.getClusterDirectory()
+                        + ", not taking over any more providers", e);
+            } finally {
+                leases.close();
+            }
+        }
+    }
+
+    // start a worker for every provider, and wait for the workers to finish
+    private static void run(List<Provider> providers, Constructor<?> constructor, Configuration config,
+                            Cycle cycle, LeaseRegistry leases) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(config.getMaxJobs());
+        workers = executor;
+        if (drained) {
+            executor.shutdown();
+        }
+
+        // report the workers in the live metrics
+        Metrics.gauge("workers_active", executor::getActiveCount);
+        Metrics.gauge("workers_queued", () -> executor.getQueue().size());
+
+        Object[] parameters;
+        for (Provider provider : providers) {
             // create a new worker
             // Worker worker = new Worker(provider, config, cycle);
             // executor.execute(worker);
@@ -101,14 +288,149 @@ public class Main {
             parameters = new Object[] {provider, config, cycle};
             try {
                 Protocol worker = (Protocol) constructor.newInstance(parameters);
-                executor.execute(worker);
+                // with other harvesters, only harvest the provider if it can be claimed
+                Runnable guarded = (leases == null) ? worker : leases.guard(provider, worker);
+                // do not start on another provider while the heap is full
+                executor.execute(() -> {
+                    MemoryGovernor.await("worker for " + provider.getOaiUrl());
+                    guarded.run();
+                });
             } catch (InvocationTargetException | IllegalAccessException | InstantiationException e) {
                 throw new RuntimeException(e);
+            } catch (RejectedExecutionException e) {
+                // the harvest is being drained
+                logger.info("Harvest drained, not starting the remaining providers");
+                break;
             }
             // end new code
         }
 
         executor.shutdown();
+
+        // return when the workers are done, so a harvest can be timed
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers = null;
+        }
+    }
+
+    /**
+     * Drain the harvest cycle that is running: the workers that have not
+     * started yet are dropped, the ones that are harvesting a provider are
+     * left to finish. The providers dropped keep their harvest dates, so
+     * the next cycle harvests them.
+     *
+     * @return the number of workers dropped
+     */
+    public static int drain() {
+        drained = true;
+        ThreadPoolExecutor executor = workers;
+        if (executor == null) {
+            return 0;
+        }
+        // no new workers, then drop the ones waiting
+        executor.shutdown();
+        List<Runnable> dropped = new ArrayList<>();
+        executor.getQueue().drainTo(dropped);
+        logger.info("Draining the harvest: " + dropped.size() + " providers left for the next cycle, "
+                + executor.getActiveCount() + " still harvesting");
+        return dropped.size();
+    }
+
+    /**
+     * Identify all providers concurrently, using a short timeout. Providers
+     * that respond are ready for use, so their workers can start harvesting
+     * right away.
+     *
+     * @param providers the providers
+     * @param timeout   timeout for the Identify request in seconds
+     * @return the providers that could not be reached
+     */
+    static Set<Provider> bootstrap(List<Provider> providers, int timeout) {
+        Set<Provider> unreachable = new HashSet<>();
+
+        List<Provider> dynamic = new ArrayList<>();
+        for (Provider provider : providers) {
+            if (!(provider instanceof StaticProvider)) {
+                dynamic.add(provider);
+            }
+        }
+        if (dynamic.isEmpty()) {
+            return unreachable;
+        }
+
+        logger.info("Probing " + dynamic.size() + " endpoints with timeout[" + timeout + "]");
+        long start = System.currentTimeMillis();
+
+        Set<Provider> identified = ConcurrentHashMap.newKeySet();
+        ExecutorService probes = Executors.newFixedThreadPool(Math.min(dynamic.size(), BOOTSTRAP_JOBS));
+        for (Provider provider : dynamic) {
+            probes.execute(() -> {
+                if (provider.identify(timeout)) {
+                    identified.add(provider);
+                }
+            });
+        }
+        probes.shutdown();
+        try {
+            // the probes each make a single request
+            probes.awaitTermination(timeout * ((dynamic.size() / BOOTSTRAP_JOBS) + 2L), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        probes.shutdownNow();
+
+        // a probe that did not finish in time counts as a failure
+        for (Provider provider : dynamic) {
+            if (!identified.contains(provider)) {
+                unreachable.add(provider);
+            }
+        }
+
+        logger.info("Probed " + dynamic.size() + " endpoints in " + (System.currentTimeMillis() - start)
+                + "ms, " + unreachable.size() + " cannot be reached");
+        return unreachable;
+    }
+
+    /**
+     * Read the configuration file, after the options given on the command
+     * line.
+     *
+     * @param configFile the configuration file
+     * @param args       the command line arguments, options as name=value
+     * @return the configuration, or null if it could not be read
+     */
+    static Configuration readConfiguration(String configFile, String[] args) {
+        // Process options given on the command line (if any), then read the
+        // configuration file.
+        Configuration config = new Configuration();
+        for (String arg : args) {
+            if (arg.indexOf('=') > -1) {
+                String[] tmp = arg.split("=");
+                if (tmp.length == 1) {
+                    config.setOption(tmp[0], null);
+                } else if (tmp.length >= 2) {
+                    config.setOption(tmp[0], tmp[1]);
+                }
+            }
+        }
+        try {
+            config.readConfig(configFile);
+        } catch (ParserConfigurationException | SAXException
+                 | XPathExpressionException | IOException ex) {
+            logger.error("Unable to read configuration file", ex);
+            return null;
+        } catch (ClassNotFoundException ex) {
+            logger.error("One or more classes cannot be found", ex);
+            return null;
+        }
+
+        // Ensure the timeout setting is honored.
+        config.applyTimeoutSetting();
+        return config;
     }
 
     public static void main(String[] args) {
@@ -144,34 +466,17 @@ public class Main {
             configFile = "resources" + sep + "config.xml";
         }
 
-        // Process options given on the command line (if any), then read the
-        // configuration file.
-        config = new Configuration();
-        for (String arg : args) {
-            if (arg.indexOf('=') > -1) {
-                String[] tmp = arg.split("=");
-                if (tmp.length == 1) {
-                    config.setOption(tmp[0], null);
-                } else if (tmp.length >= 2) {
-                    config.setOption(tmp[0], tmp[1]);
-                }
-            }
-        }
-        try {
-            config.readConfig(configFile);
-        } catch (ParserConfigurationException | SAXException
-                 | XPathExpressionException | IOException ex) {
-            logger.error("Unable to read configuration file", ex);
-            return;
-        } catch (ClassNotFoundException ex) {
-            logger.error("One or more classes cannot be found", ex);
+        config = readConfiguration(configFile, args);
+        if (config == null) {
             return;
         }
 
-        // Ensure the timeout setting is honored.
-        config.applyTimeoutSetting();
-
-        runHarvesting(config);
+        if (config.isDaemon()) {
+            // keep harvesting, with the caches and pools warm, until drained
+            new Daemon(configFile, args).run();
+        } else {
+            runHarvesting(config);
+        }
 
         logger.info("Goodbye from the main OAI Harvest Manager!");
 
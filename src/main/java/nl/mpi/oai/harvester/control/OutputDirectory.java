@@ -121,6 +121,13 @@ public class OutputDirectory {
 	return currentDir.resolve(file);
     }
 
+    /**
+     * @return the base directory path
+     */
+    public Path getBase() {
+	return base;
+    }
+
     /**
      * Increment dirCounter and currentDir to point to the next
      * subdirectory, which may or may not exist.
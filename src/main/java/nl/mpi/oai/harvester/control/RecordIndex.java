@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the records saved for a provider, mapping a record key to the
+ * hash of its content, its datestamp and the file it was saved in. A save
+ * action can consult the index to avoid rewriting records that did not
+ * change since the previous harvest. <br><br>
+ *
+ * On disk the index is a table of fixed size entries sorted by the hash of
+ * the record key, followed by the file names. During a run the file is
+ * memory-mapped and searched in place; records saved during the run are
+ * kept in memory until the index is closed, at which point the two are
+ * merged into a new file that replaces the old one. <br><br>
+ *
+ * There is one index per provider; the indexes are opened on first use and
+ * should be closed when harvesting the provider has finished.
+ */
+public final class RecordIndex {
+
+    private static final Logger logger = LogManager.getLogger(RecordIndex.class);
+
+    // file signature and format version
+    private static final int MAGIC = 0x52495831;
+
+    // bytes in a table entry: key hash, content digest, datestamp, name offset
+    private static final int ENTRY = 8 + 16 + 8 + 4;
+
+    // bytes in the file header: signature and number of entries
+    private static final int HEADER = 4 + 4;
+
+    private static final ConcurrentHashMap<Provider, RecordIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Content hash, datestamp and location of a saved record
+     */
+    public static final class Entry {
+
+        private final byte[] digest;
+        private final long datestamp;
+        private final String path;
+
+        Entry(byte[] digest, long datestamp, String path) {
+            this.digest = digest;
+            this.datestamp = datestamp;
+            this.path = path;
+        }
+
+        /**
+         * @return the hash of the content of the record
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return the datestamp of the record in milliseconds since the
+         *         epoch, or 0 if it is not known
+         */
+        public long getDatestamp() {
+            return datestamp;
+        }
+
+        /**
+         * @return the file the record was saved in
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    private final Path file;
+
+    // the index as it was at the start of the run, null if there was none
+    private MappedByteBuffer mapped = null;
+    private int count = 0;
+
+    // records saved during the run
+    private final ConcurrentHashMap<Long, Entry> updates = new ConcurrentHashMap<>();
+
+    /**
+     * Open the index in the specified file.
+     *
+     * @param file the index file, which need not exist yet
+     */
+    RecordIndex(Path file) {
+        this.file = file;
+
+        if (Files.exists(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() >= HEADER && buffer.getInt(0) == MAGIC) {
+                    mapped = buffer;
+                    count = buffer.getInt(4);
+                    logger.debug("mapped record index " + file + " with " + count + " entries");
+                } else {
+                    logger.warn("ignoring invalid record index " + file);
+                }
+            } catch (IOException e) {
+                logger.error("could not open record index " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Get the index of a provider, opening it if needed.
+     *
+     * @param dir the directory containing the indexes
+     * @param provider the provider
+     * @return the index
+     */
+    public static RecordIndex get(Path dir, Provider provider) {
+        return indexes.computeIfAbsent(provider, p -> new RecordIndex(
+                dir.resolve(Util.toFileFormat(p.getName(), ".idx"))));
+    }
+
+    /**
+     * Write the index of a provider, if it has been opened, and release it.
+     *
+     * @param provider the provider
+     */
+    public static void close(Provider provider) {
+        RecordIndex index = indexes.remove(provider);
+        if (index != null) {
+            index.flush();
+        }
+    }
+
+    /**
+     * Compute the hash of the content of a record.
+     *
+     * @param content the content
+     * @return the hash
+     */
+    public static byte[] digest(byte[] content) {
+        return newDigest().digest(content);
+    }
+
+    /**
+     * Start computing the hash of the content of a record, for example while
+     * the record is being written.
+     *
+     * @return the digest, which produces the same hash as digest(byte[])
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long keyHash(String key) {
+        return ByteBuffer.wrap(digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    /**
+     * Look up a record.
+     *
+     * @param key the key identifying the record
+     * @return the entry for the record, or null if it is not in the index
+     */
+    public Entry lookup(String key) {
+        long hash = keyHash(key);
+
+        Entry entry = updates.get(hash);
+        if (entry != null) {
+            return entry;
+        }
+
+        // binary search of the table in the mapped file
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long h = mapped.getLong(HEADER + mid * ENTRY);
+            if (h < hash) {
+                low = mid + 1;
+            } else if (h > hash) {
+                high = mid - 1;
+            } else {
+                return read(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record that a record has been saved.
+     *
+     * @param key the key identifying the record
+     * @param digest the hash of the content of the record
+     * @param datestamp the datestamp of the record in milliseconds since the
+     *                  epoch, or 0 if it is not known
+     * @param path the file the record was saved in
+     */
+    public void update(String key, byte[] digest, long datestamp, Path path) {
+        updates.put(keyHash(key), new Entry(digest, datestamp, path.toString()));
+    }
+
+    // read the entry at the specified position in the mapped table
+    private Entry read(int i) {
+        int pos = HEADER + i * ENTRY + 8;
+        byte[] digest = new byte[16];
+        for (int j = 0; j < digest.length; j++) {
+            digest[j] = mapped.get(pos + j);
+        }
+        long datestamp = mapped.getLong(pos + 16);
+        int name = HEADER + count * ENTRY + mapped.getInt(pos + 24);
+        byte[] path = new byte[mapped.getShort(name) & 0xFFFF];
+        for (int j = 0; j < path.length; j++) {
+            path[j] = mapped.get(name + 2 + j);
+        }
+        return new Entry(digest, datestamp, new String(path, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Merge the records saved during the run into the index file.
+     */
+    synchronized void flush() {
+        if (updates.isEmpty()) {
+            return;
+        }
+
+        TreeMap<Long, Entry> entries = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put(mapped.getLong(HEADER + i * ENTRY), read(i));
+        }
+        entries.putAll(updates);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Util.ensureDirExists(file.getParent());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(entries.size());
+                int offset = 0;
+                for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.write(e.getValue().digest);
+                    out.writeLong(e.getValue().datestamp);
+                    out.writeInt(offset);
+                    offset += 2 + e.getValue().path.getBytes(StandardCharsets.UTF_8).length;
+                }
+                for (Entry e : entries.values()) {
+                    byte[] path = e.path.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(path.length);
+                    out.write(path);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.debug("wrote record index " + file + " with " + entries.size() + " entries");
+        } catch (IOException e) {
+            logger.error("could not write record index " + file, e);
+        }
+    }
+}
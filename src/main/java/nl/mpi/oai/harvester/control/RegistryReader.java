@@ -17,14 +17,8 @@
  */
 package nl.mpi.oai.harvester.control;
 
-import static com.jayway.jsonpath.Criteria.where;
-import com.jayway.jsonpath.DocumentContext;
-import com.jayway.jsonpath.Filter;
-import static com.jayway.jsonpath.Filter.filter;
 import com.jayway.jsonpath.JsonPath;
-import static com.jayway.jsonpath.JsonPath.parse;
 import com.jayway.jsonpath.Option;
-import nl.mpi.oai.harvester.Provider;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -32,14 +26,18 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,20 +51,137 @@ import java.util.Set;
 public class RegistryReader {
 
     private static final Logger logger = LogManager.getLogger(RegistryReader.class);
-    private static URL registryUrl = null;
 
-    private static final Map<String, DocumentContext> modelCache = new HashMap<>();
-    
+    // the registry models used
+    private static final String ENDPOINT = "OAIPMHEndpoint";
+    private static final String SET = "OAIPMHEndpointSet";
+    private static final String CENTRE = "Centre";
+    private static final String CONSORTIUM = "Consortium";
+
+    private final URL registryUrl;
+
+    // directory to keep copies of the models in, null if there is none
+    private final Path snapshotDir;
+
+    // time in seconds a copy can be used instead of the registry
+    private final long snapshotTTL;
+
+    // the registry models, indexed once they have been read
+    private volatile Index index = null;
+
     //JsonPath configuration
-    private static com.jayway.jsonpath.Configuration conf = com.jayway.jsonpath.Configuration.defaultConfiguration();
+    private static final com.jayway.jsonpath.Configuration conf = com.jayway.jsonpath.Configuration
+            .defaultConfiguration().addOptions(Option.SUPPRESS_EXCEPTIONS);
+
+    /**
+     * An OAI-PMH endpoint defined in the registry
+     */
+    private static final class Endpoint {
+        final Integer centre;
+        final List<Integer> sets = new ArrayList<>();
+
+        Endpoint(Integer centre) {
+            this.centre = centre;
+        }
+    }
+
+    /**
+     * A centre defined in the registry
+     */
+    private static final class Centre {
+        final String name;
+        final Integer consortium;
+
+        Centre(String name, Integer consortium) {
+            this.name = name;
+            this.consortium = consortium;
+        }
+    }
+
+    /**
+     * The registry models, indexed by endpoint URI and primary key. The
+     * index is not modified after it has been created, so workers can use it
+     * concurrently.
+     */
+    private static final class Index {
+        // endpoint URIs, in registry order
+        final List<String> uris = new ArrayList<>();
+        final Map<String, Endpoint> endpoints = new HashMap<>();
+        final Map<Integer, CentreRegistrySetDefinition> sets = new HashMap<>();
+        final Map<Integer, Centre> centres = new HashMap<>();
+        final Map<Integer, String> consortia = new HashMap<>();
+
+        Index(Map<String, String> models) {
+            for (Map<String, Object> item : items(models.get(ENDPOINT))) {
+                Map<String, Object> fields = fields(item);
+                String uri = (String) fields.get("uri");
+                if (uri == null)
+                    continue;
+                uris.add(uri);
+                Endpoint endpoint = endpoints.computeIfAbsent(uri,
+                        u -> new Endpoint(key(fields.get("centre"))));
+                Object sets = fields.get("oai_pmh_sets");
+                if (sets instanceof List) {
+                    for (Object set : (List<?>) sets)
+                        endpoint.sets.add(key(set));
+                }
+            }
+            for (Map<String, Object> item : items(models.get(SET))) {
+                Map<String, Object> fields = fields(item);
+                String setSpec = (String) fields.get("set_spec");
+                String setType = (String) fields.get("set_type");
+                if (setSpec != null && setType != null)
+                    sets.put(key(item.get("pk")), new CentreRegistrySetDefinition(setSpec, setType));
+            }
+            for (Map<String, Object> item : items(models.get(CENTRE))) {
+                Map<String, Object> fields = fields(item);
+                centres.put(key(item.get("pk")), new Centre(
+                        (String) fields.get("name"), key(fields.get("consortium"))));
+            }
+            for (Map<String, Object> item : items(models.get(CONSORTIUM))) {
+                consortia.put(key(item.get("pk")), (String) fields(item).get("name"));
+            }
+        }
+
+        private static List<Map<String, Object>> items(String json) {
+            Object model = JsonPath.using(conf).parse(json).read("$");
+            return (model instanceof List) ? (List<Map<String, Object>>) model : Collections.emptyList();
+        }
+
+        private static Map<String, Object> fields(Map<String, Object> item) {
+            Object fields = item.get("fields");
+            return (fields instanceof Map) ? (Map<String, Object>) fields : Collections.emptyMap();
+        }
+
+        private static Integer key(Object value) {
+            return (value instanceof Number) ? ((Number) value).intValue() : null;
+        }
+    }
 
     /**
      * Create a new registry reader object.
+     *
+     * @param url the URL of the registry
      */
     public RegistryReader(URL url) {
+        this(url, null, 0);
+    }
+
+    /**
+     * Create a new registry reader object, which keeps copies of the
+     * registry models on disk. A copy is used if it is recent enough, or if
+     * the registry cannot be reached.
+     *
+     * @param url the URL of the registry
+     * @param snapshotDir directory to keep the copies in, or null to
+     *                    always read the registry
+     * @param snapshotTTL time in seconds a copy is used instead of reading
+     *                    the registry, 0 to only use it as a fallback
+     */
+    public RegistryReader(URL url, Path snapshotDir, long snapshotTTL) {
         this.registryUrl = url;
-        
-        conf.addOptions(Option.ALWAYS_RETURN_LIST,Option.SUPPRESS_EXCEPTIONS);
+        this.snapshotDir = snapshotDir;
+        this.snapshotTTL = snapshotTTL;
     }
 
     private HttpURLConnection getConnection(URL url, String contentType) throws IOException {
@@ -98,10 +213,6 @@ public class RegistryReader {
         return connection;
     }
 
-    private HttpURLConnection getConnection(String contentType) throws IOException {
-        return getConnection(registryUrl, contentType);
-    }
-
     private String getJSONString(InputStream stream) throws IOException {
         BufferedReader rd = new BufferedReader(new InputStreamReader(stream));
         StringBuilder sb = new StringBuilder();
@@ -113,18 +224,65 @@ public class RegistryReader {
         return sb.toString();
     }
 
-    private DocumentContext getModel(String model) throws IOException {
-        DocumentContext res = null;
-        if (modelCache.containsKey(model)) {
-            res = modelCache.get(model);
-        } else {
+    private String readModel(String model) throws IOException {
+        Path snapshot = (snapshotDir == null) ? null : snapshotDir.resolve(model + ".json");
+
+        if (snapshot != null && snapshotTTL > 0 && Files.exists(snapshot)
+                && System.currentTimeMillis() - Files.getLastModifiedTime(snapshot).toMillis() < snapshotTTL * 1000) {
+            logger.debug("Reading " + model + " from snapshot " + snapshot);
+            return new String(Files.readAllBytes(snapshot), StandardCharsets.UTF_8);
+        }
+
+        String jsonString;
+        try {
             URL regUrl = new URL(registryUrl.toString() + (registryUrl.toString().endsWith("/") ? "" : "/") + model);
             HttpURLConnection connection = getConnection(regUrl, "application/json");
-            String jsonString = getJSONString(connection.getInputStream());
-            res = JsonPath.using(conf).parse(jsonString);
-            modelCache.put(model,res);
+            jsonString = getJSONString(connection.getInputStream());
+        } catch (IOException e) {
+            if (snapshot != null && Files.exists(snapshot)) {
+                logger.warn("Cannot read " + model + " from centre registry, using snapshot " + snapshot, e);
+                return new String(Files.readAllBytes(snapshot), StandardCharsets.UTF_8);
+            }
+            throw e;
+        }
+
+        if (snapshot != null) {
+            Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+            try {
+                Util.ensureDirExists(snapshotDir);
+                Files.write(temp, jsonString.getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                logger.error("Cannot write snapshot " + snapshot, e);
+            }
+        }
+        return jsonString;
+    }
+
+    /**
+     * Get the indexed registry models, reading them on first use.
+     */
+    private Index getIndex() throws IOException {
+        Index idx = index;
+        if (idx == null) {
+            synchronized (this) {
+                idx = index;
+                if (idx == null) {
+                    Map<String, String> models = new HashMap<>();
+                    for (String model : new String[]{ENDPOINT, SET, CENTRE, CONSORTIUM}) {
+                        models.put(model, readModel(model));
+                    }
+                    idx = new Index(models);
+                    index = idx;
+                }
+            }
         }
-        return res;
+        return idx;
     }
 
     /**
@@ -134,67 +292,46 @@ public class RegistryReader {
      * @return list of all OAI-PMH endpoint URLs
      */
     public List<String> getEndpoints() throws IOException {
-        DocumentContext model = getModel("OAIPMHEndpoint");
-        List<String> endpoints = model.read("$..uri");
+        List<String> endpoints = new ArrayList<>(getIndex().uris);
         logger.info("Found " + endpoints.size() + " endpoints");
         return endpoints;
     }
 
-    private List<Object> getEndpoint(String url) throws IOException {
-        DocumentContext model = getModel("OAIPMHEndpoint");
-        Filter uriFilter = filter(where("uri").is(url));
-        return model.read("$.fields[?]",uriFilter);
-    }
-
     public String endpointMapping(String endpointUrl, String endpointName) throws IOException {
         String directoryName = Util.toFileFormat(endpointName).replaceAll("/", "");
-        
-        Filter provFilter = filter(where("@.fields.uri").is(endpointUrl));
-        List<Integer> iList = (List<Integer>)getModel("OAIPMHEndpoint").read("$.[?].fields.centre", provFilter);
-        Integer centreKey = iList.size()>0? iList.get(0):null;
+
+        Index idx = getIndex();
+        Endpoint endpoint = idx.endpoints.get(endpointUrl);
+        Integer centreKey = (endpoint != null) ? endpoint.centre : null;
 
         String centreName = "";
         String nationalProject = "";
 
         if (centreKey != null) {
-            Filter centreFilter = filter(where("pk").is(centreKey));
-            List<String> sList = (List<String>)getModel("Centre").read("$[?].fields.name", centreFilter);
-            centreName = sList.size()>0? sList.get(0):"";
-
-            iList = (List<Integer>)getModel("Centre").read("$[?].fields.consortium", centreFilter);
-            Integer consortiumKey = iList.size()>0? iList.get(0):null;
-        
-            if (consortiumKey != null) {
-                Filter consortiumFilter = filter(where("pk").is(consortiumKey));
-                sList = (List<String>)getModel("Consortium").read("$[?].fields.name", consortiumFilter);
-                nationalProject = sList.size()>0? sList.get(0):"";
+            Centre centre = idx.centres.get(centreKey);
+            if (centre != null) {
+                centreName = (centre.name != null) ? centre.name : "";
+
+                if (centre.consortium != null) {
+                    String consortium = idx.consortia.get(centre.consortium);
+                    nationalProject = (consortium != null) ? consortium : "";
+                }
             }
         }
-        
+
         return String.format("\"%s\",\"%s\",\"%s\",\"%s\"", endpointUrl.replaceAll("\"", "\"\""), directoryName.replaceAll("\"", "\"\""), centreName.replaceAll("\"", "\"\""), nationalProject.replaceAll("\"", "\"\""));
     }
 
     public Map<String, Collection<CentreRegistrySetDefinition>> getEndPointOaiPmhSetMap() {
         final Map<String, Collection<CentreRegistrySetDefinition>> map = new HashMap<>();
         try {
-            final List<String> provUrls = getEndpoints();
-
-            List<String> sList = null;
-            for (String provUrl : provUrls) {
+            Index idx = getIndex();
+            for (String provUrl : getEndpoints()) {
                 Set<CentreRegistrySetDefinition> setdef = new HashSet<>();
-                //JsonPath-> $[?(@.fields.uri=='http://www.phonetik.uni-muenchen.de/cgi-bin/BASRepository/oaipmh/oai.pl')].fields.oai_pmh_sets
-                Filter provFilter = filter(where("@.fields.uri").is(provUrl));                
-                List<net.minidev.json.JSONArray> s = (List<net.minidev.json.JSONArray>)getModel("OAIPMHEndpoint").read("$.[?].fields.oai_pmh_sets", provFilter);
-                for(net.minidev.json.JSONArray set:s) {
-                    for (Iterator iter = set.iterator();iter.hasNext();) {
-                        Filter setFilter = filter(where("pk").is((Integer)iter.next()));
-                        sList = (List<String>)getModel("OAIPMHEndpointSet").read("$[?].fields.set_spec", setFilter);
-                        String setSpec = (sList.size()>0 ? sList.get(0) : null);
-                        sList = (List<String>)getModel("OAIPMHEndpointSet").read("$[?].fields.set_type", setFilter);
-                        String setType = (sList.size()>0 ? sList.get(0) : null);
-                        if (setSpec!=null && setType!=null)
-                            setdef.add(new CentreRegistrySetDefinition(setSpec, setType));
-                    }
+                for (Integer set : idx.endpoints.get(provUrl).sets) {
+                    CentreRegistrySetDefinition def = idx.sets.get(set);
+                    if (def != null)
+                        setdef.add(def);
                 }
                 map.put(provUrl, setdef);
             }
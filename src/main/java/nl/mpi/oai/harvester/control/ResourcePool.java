@@ -20,6 +20,7 @@ package nl.mpi.oai.harvester.control;
 
 import java.util.Collections;
 import java.util.LinkedList;
+import nl.mpi.oai.harvester.metrics.Metrics;
 
 /**
  * A very simple generic pool that manages access to resources that
@@ -36,9 +37,30 @@ import java.util.LinkedList;
 public class ResourcePool<T> {
     private final LinkedList<T> resources;
 
+    /* A thread-safe resource handed to every caller, or null. */
+    private final T shared;
+
     public ResourcePool(T[] resources) {
 	this.resources = new LinkedList<>();
 	Collections.addAll(this.resources, resources);
+	this.shared = null;
+    }
+
+    private ResourcePool(T shared) {
+	this.resources = new LinkedList<>();
+	this.shared = shared;
+    }
+
+    /**
+     * Create a pool for a thread-safe resource, which is handed to every
+     * caller at the same time instead of being claimed.
+     *
+     * @param <T> type of the resource
+     * @param resource the resource
+     * @return the pool
+     */
+    public static <T> ResourcePool<T> shared(T resource) {
+	return new ResourcePool<>(resource);
     }
 
     /**
@@ -48,17 +70,37 @@ public class ResourcePool<T> {
      *
      * @param r A resource obtained from this pool and not released yet
      */
-    public synchronized void release(T r) {
-	resources.add(r);
-	notify();
+    public void release(T r) {
+	if (shared != null)
+	    return;
+	synchronized (this) {
+	    resources.add(r);
+	    notify();
+	}
     }
 
     /**
-     * Obtain a resource from the pool.
+     * Obtain a resource from the pool. Waiting for a resource on a thread
+     * of the pool for CPU bound work lets that pool start another thread
+     * meanwhile.
      *
      * @return A resource not held by any other caller
      * */
-    public synchronized T get() {
+    public T get() {
+	if (shared != null)
+	    return shared;
+	synchronized (this) {
+	    if (!resources.isEmpty())
+		return resources.removeFirst();
+	}
+	long started = System.nanoTime();
+	T resource = Scheduler.block(this::await);
+	Metrics.time(Metrics.POOL_WAIT, System.nanoTime() - started);
+	return resource;
+    }
+
+    // wait for a resource to be released, and claim it
+    private synchronized T await() {
 	while (resources.isEmpty()) {
 	    try {
 		wait();
@@ -74,6 +116,6 @@ public class ResourcePool<T> {
      * @return number of resources available
      */
     public int getNumAvailable() {
-	return resources.size();
+	return (shared != null) ? 1 : resources.size();
     }
 }
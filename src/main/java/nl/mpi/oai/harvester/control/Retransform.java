@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.Action;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.action.SaveAction;
+import nl.mpi.oai.harvester.action.SaveGroupedAction;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFormat;
+import nl.mpi.oai.harvester.metadata.Record;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Re-transform the records saved in an output directory <br><br>
+ *
+ * Instead of harvesting the providers again, the records saved in one of
+ * the output directories are read back, and passed through the actions
+ * that follow the save to that directory in the action sequences. This
+ * regenerates the directories derived from it, for example by running the
+ * transforms and saves following the save of the CMDI records. <br><br>
+ *
+ * Each file becomes a record again. Its identifier is the file name
+ * without the suffix of the save action, which is the identifier of the
+ * harvested record in file name format, so saving it again produces the
+ * same file name. When the records were grouped by provider, the provider
+ * is the directory they were saved in; its endpoint is taken from the map
+ * file. <br><br>
+ *
+ * The directories are walked in parallel by the pool of the scheduler: a
+ * directory forks a task for each of its subdirectories, and idle threads
+ * steal them. Large files are mapped into memory instead of being copied.
+ * The directories completed are recorded in the working directory, so a
+ * re-transform that is interrupted continues where it left off when it is
+ * started again.
+ */
+public class Retransform {
+
+    private static final Logger logger = LogManager.getLogger(Retransform.class);
+
+    // the number of records passed through the actions at a time
+    static final int BATCH_SIZE = 64;
+
+    // files from this size on are mapped into memory, smaller ones are read
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    private final Configuration config;
+
+    private final String id;
+
+    // the actions following the save to the directory
+    private final List<ActionSequence> sequences = new ArrayList<>();
+
+    private SaveAction save = null;
+
+    // the providers, by the name of the directory their records are in
+    private final Map<String, Provider> providers = new ConcurrentHashMap<>();
+
+    // the endpoints in the map file, by directory name
+    private final Map<String, String> endpoints = new HashMap<>();
+
+    // the directories already completed, relative to the output directory
+    private final Set<String> done = ConcurrentHashMap.newKeySet();
+
+    private Path journal;
+    private Writer journalWriter;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * <br> Prepare the re-transform of an output directory
+     *
+     * @param config the configuration, containing the output directory and
+     *               the action sequences
+     * @param id     the id of the output directory
+     */
+    public Retransform(Configuration config, String id) {
+        this.config = config;
+        this.id = id;
+
+        for (ActionSequence sequence : config.getActionSequences()) {
+            List<ResourcePool<Action>> actions = sequence.getActions();
+            for (int i = 0; i < actions.size(); i++) {
+                Action action = actions.get(i).get();
+                actions.get(i).release(action);
+                if (action instanceof SaveAction && ((SaveAction) action).getDirectory()
+                        .equals(config.getOutputDirectories().get(id))) {
+                    if (i + 1 < actions.size()) {
+                        sequences.add(sequence.subsequence(i + 1));
+                    }
+                    if (save == null) {
+                        save = (SaveAction) action;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * <br> Re-transform the records
+     *
+     * @return true if all records were passed through the actions, false
+     *         otherwise
+     */
+    public boolean run() {
+        if (save == null) {
+            logger.error("No save action for output directory " + id);
+            return false;
+        }
+        if (sequences.isEmpty()) {
+            logger.error("No actions follow the save to output directory " + id);
+            return false;
+        }
+        for (ActionSequence sequence : sequences) {
+            logger.info("Re-transforming " + id + ": " + sequence);
+        }
+
+        Path base = save.getDirectory().getBase();
+        journal = Paths.get(config.getWorkingDirectory()).resolve(Util.toFileFormat(id) + ".retransform");
+        long start = System.currentTimeMillis();
+        try {
+            readMap();
+            if (Files.exists(journal)) {
+                done.addAll(Files.readAllLines(journal, StandardCharsets.UTF_8));
+                logger.info("Resuming the re-transform of " + id + ", skipping "
+                        + done.size() + " directories");
+            }
+            journalWriter = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("could not prepare the re-transform of " + id, e);
+            return false;
+        }
+
+        boolean complete;
+        try {
+            // group by provider is the default
+            Provider single = (save instanceof SaveGroupedAction) ? null : provider(id);
+            complete = Scheduler.invoke(new Walk(base, base, single));
+        } finally {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                logger.error("could not write " + journal, e);
+            }
+            // write the indexes of the records saved
+            for (Provider provider : providers.values()) {
+                RecordIndex.close(provider);
+            }
+        }
+
+        if (complete && failed.get() == 0) {
+            try {
+                Files.deleteIfExists(journal);
+            } catch (IOException e) {
+                logger.error("could not remove " + journal, e);
+            }
+        }
+        logger.info("Re-transformed " + records.get() + " records of " + providers.size()
+                + " providers in " + (System.currentTimeMillis() - start) + "ms, "
+                + failed.get() + " failed");
+        return complete && failed.get() == 0;
+    }
+
+    /**
+     * Walk a directory, passing the records in it through the actions.
+     */
+    private class Walk extends RecursiveTask<Boolean> {
+        private final Path base;
+        private final Path dir;
+        // null at the top of a directory grouped by provider
+        private final Provider provider;
+
+        Walk(Path base, Path dir, Provider provider) {
+            this.base = base;
+            this.dir = dir;
+            this.provider = provider;
+        }
+
+        @Override
+        protected Boolean compute() {
+            String key = base.relativize(dir).toString().replace('\\', '/');
+            if (done.contains(key)) {
+                return true;
+            }
+
+            List<Walk> walks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (entry.getFileName().toString().startsWith(".")) {
+                        continue;
+                    }
+                    if (Files.isDirectory(entry)) {
+                        Provider owner = (provider == null)
+                                ? provider(entry.getFileName().toString()) : provider;
+                        if (owner != null) {
+                            walks.add(new Walk(base, entry, owner));
+                        }
+                    } else if (provider != null && Files.isRegularFile(entry)) {
+                        files.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("could not read " + dir, e);
+                return false;
+            }
+
+            // leave the subdirectories to idle threads while working on the files
+            for (Walk walk : walks) {
+                walk.fork();
+            }
+            Collections.sort(files);
+            boolean complete = true;
+            for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+                complete &= transform(provider, files.subList(i, Math.min(files.size(), i + BATCH_SIZE)));
+            }
+            for (Walk walk : walks) {
+                complete &= walk.join();
+            }
+
+            if (complete) {
+                markDone(key);
+            }
+            return complete;
+        }
+    }
+
+    // pass a batch of files through the actions
+    private boolean transform(Provider provider, List<Path> files) {
+        List<String> ids = new ArrayList<>(files.size());
+        List<ByteBuffer> contents = new ArrayList<>(files.size());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String suffix = save.getSuffix();
+            if (!suffix.isEmpty() && name.endsWith(suffix) && name.length() > suffix.length()) {
+                name = name.substring(0, name.length() - suffix.length());
+            }
+            try {
+                contents.add(read(file));
+                ids.add(name);
+            } catch (IOException e) {
+                logger.error("could not read " + file, e);
+                failed.incrementAndGet();
+            }
+        }
+        boolean complete = (ids.size() == files.size());
+
+        for (ActionSequence sequence : sequences) {
+            MetadataFormat format = sequence.getInputFormat();
+            String prefix = "prefix".equals(format.getType()) ? format.getValue() : null;
+            List<Record> batch = new ArrayList<>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                // every sequence reads the content from the start
+                batch.add(new Metadata(ids.get(i), prefix, new DocumentSource(ids.get(i),
+                        new ByteBufferInputStream(contents.get(i).duplicate())), provider, false, false));
+            }
+            if (!batch.isEmpty() && !sequence.runActions(batch)) {
+                failed.addAndGet(batch.size());
+                complete = false;
+            }
+        }
+        records.addAndGet(ids.size());
+        return complete;
+    }
+
+    /**
+     * Read the content of a file. Large files are mapped into memory, the
+     * mapping stays valid until the buffer is no longer used. Small files
+     * are read at once, since the number of mappings a process can have
+     * is limited.
+     *
+     * @param file the file
+     * @return the content
+     * @throws IOException the file could not be read
+     */
+    static ByteBuffer read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                ;
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // record that a directory is completed, so it is skipped when resuming
+    private synchronized void markDone(String key) {
+        try {
+            journalWriter.write(key);
+            journalWriter.write('\n');
+            journalWriter.flush();
+        } catch (IOException e) {
+            logger.error("could not write " + journal, e);
+        }
+    }
+
+    // the provider of the records saved in a directory
+    private synchronized Provider provider(String name) {
+        Provider provider = providers.get(name);
+        if (provider == null) {
+            try {
+                provider = new Provider(endpoints.get(name), config.getMaxRetryCount(), config.getRetryDelays());
+            } catch (ParserConfigurationException e) {
+                logger.error(e);
+                return null;
+            }
+            // saving the records again places them in a directory of the same name
+            provider.setName(name);
+            FileSynchronization.addProviderStatistic(provider);
+            providers.put(name, provider);
+        }
+        return provider;
+    }
+
+    // read the endpoints from the map file: endpointUrl,directoryName,...
+    private void readMap() throws IOException {
+        Path map = Paths.get(config.getWorkingDirectory()).resolve(config.getMapFile());
+        if (!Files.exists(map)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(map, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1);
+                if (fields.length >= 2) {
+                    // later lines are from later harvests
+                    endpoints.put(unquote(fields[1]), unquote(fields[0]));
+                }
+            }
+        }
+    }
+
+    private static String unquote(String field) {
+        field = field.trim();
+        if (field.length() >= 2 && field.startsWith("\"") && field.endsWith("\"")) {
+            field = field.substring(1, field.length() - 1).replace("\"\"", "\"");
+        }
+        return field;
+    }
+
+    /**
+     * Input stream reading the content of a buffer. Like the streams of
+     * records DocumentSource reads more than once, it can be reset to its
+     * start, or to the position it was marked at.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private int mark;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.mark = buffer.position();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.position(mark);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import nl.mpi.oai.harvester.metrics.ProviderMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+/**
+ * Scheduler for the CPU bound stages of a harvest. <br><br>
+ *
+ * The workers started for the providers spend most of their time waiting
+ * for the endpoints, so there can be many of them; their number is set by
+ * the max-jobs setting. The actions on the records they harvest, like
+ * parsing, stripping, splitting and transforming, keep a processor busy.
+ * The workers hand these over to a single pool shared by all of them,
+ * sized to the number of processors, and wait for the result. <br><br>
+ *
+ * Work handed over by a thread of the pool itself, for example the records
+ * of a batch transformed in parallel, is forked within the pool, so nested
+ * stages do not wait for threads that are waiting for them. A stage that
+ * blocks on I/O, like an external action sending records elsewhere, tells
+ * the pool, which starts another thread for the time it waits. <br><br>
+ *
+ * The scheduler keeps track of the number of tasks waiting for a thread,
+ * the number of tasks running and the time tasks had to wait. A task keeps
+ * the log context and the provider of the worker that handed it over, so
+ * its log lines and metrics end up with those of the provider.
+ */
+public final class Scheduler {
+
+    private static final Logger logger = LogManager.getLogger(Scheduler.class);
+
+    private static volatile ForkJoinPool pool = null;
+
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong waited = new AtomicLong();
+
+    private Scheduler() {
+    }
+
+    /**
+     * Configure the pool for the CPU bound stages.
+     *
+     * @param threads the number of threads, typically the number of
+     *                processors; 0 to perform these stages on the worker
+     *                threads themselves
+     */
+    public static synchronized void configure(int threads) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = (threads > 0) ? new ForkJoinPool(threads) : null;
+        logger.info("cpu pool: threads[" + threads + "]");
+    }
+
+    /**
+     * Perform a CPU bound task, and wait for it to finish.
+     *
+     * @param <T>  the type of the result
+     * @param task the task
+     * @return the result of the task
+     */
+    public static <T> T run(Supplier<T> task) {
+        ForkJoinPool cpu = pool;
+        if (cpu == null || ForkJoinTask.getPool() == cpu) {
+            // no pool, or already on one of its threads
+            return task.get();
+        }
+        ForkJoinTask<T> f = track(task);
+        cpu.execute(f);
+        return f.join();
+    }
+
+    /**
+     * Perform CPU bound tasks in parallel, and wait for all of them to
+     * finish.
+     *
+     * @param <T>   the type of the results
+     * @param tasks the tasks
+     * @return the results of the tasks, in the order of the tasks
+     */
+    public static <T> List<T> runAll(List<? extends Supplier<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        ForkJoinPool cpu = pool;
+        if (cpu == null || tasks.size() < 2) {
+            for (Supplier<T> task : tasks) {
+                results.add(run(task));
+            }
+            return results;
+        }
+
+        List<ForkJoinTask<T>> forks = new ArrayList<>(tasks.size());
+        for (Supplier<T> task : tasks) {
+            forks.add(track(task));
+        }
+        if (ForkJoinTask.getPool() == cpu) {
+            ForkJoinTask.invokeAll(forks);
+        } else {
+            for (ForkJoinTask<T> f : forks) {
+                cpu.execute(f);
+            }
+        }
+        for (ForkJoinTask<T> f : forks) {
+            results.add(f.join());
+        }
+        return results;
+    }
+
+    /**
+     * Perform a task that splits itself up, for example a walk over a
+     * directory tree, in the pool, and wait for it to finish. The idle
+     * threads of the pool steal the parts forked by the busy ones. Without
+     * a pool the parts are performed one after the other, on a thread of
+     * their own rather than in the common pool.
+     *
+     * @param <T>  the type of the result
+     * @param task the task
+     * @return the result of the task
+     */
+    public static <T> T invoke(ForkJoinTask<T> task) {
+        ForkJoinPool cpu = pool;
+        if (cpu == null) {
+            ForkJoinPool single = new ForkJoinPool(1);
+            try {
+                return single.invoke(task);
+            } finally {
+                single.shutdown();
+            }
+        }
+        if (ForkJoinTask.getPool() == cpu) {
+            return task.invoke();
+        }
+        return cpu.invoke(task);
+    }
+
+    /**
+     * Perform a task that waits for I/O. On a thread of the pool, the pool
+     * may start another thread to keep the processors busy meanwhile.
+     *
+     * @param <T>  the type of the result
+     * @param task the task
+     * @return the result of the task
+     */
+    public static <T> T block(Supplier<T> task) {
+        if (!(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            return task.get();
+        }
+        List<T> result = new ArrayList<>(1);
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() {
+                    if (result.isEmpty()) {
+                        result.add(task.get());
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return !result.isEmpty();
+                }
+            });
+        } catch (InterruptedException e) {
+            // the blocker itself does not wait, so it is never interrupted
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return result.get(0);
+    }
+
+    // wrap a task, keeping the statistics up to date, and taking the log
+    // context and the provider of the submitting thread along
+    private static <T> ForkJoinTask<T> track(Supplier<T> task) {
+        long submitted = System.nanoTime();
+        Map<String, String> context = ThreadContext.getImmutableContext();
+        ProviderMetrics metrics = Metrics.current();
+        queued.incrementAndGet();
+        return ForkJoinTask.adapt(() -> {
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            waited.addAndGet(System.nanoTime() - submitted);
+            // a forked task may run on the thread that forked it
+            Map<String, String> previousContext = ThreadContext.getImmutableContext();
+            ProviderMetrics previousMetrics = Metrics.current();
+            ThreadContext.clearMap();
+            ThreadContext.putAll(context);
+            Metrics.enter(metrics);
+            try {
+                return task.get();
+            } finally {
+                Metrics.enter(previousMetrics);
+                ThreadContext.clearMap();
+                ThreadContext.putAll(previousContext);
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread of the pool
+     */
+    public static int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of tasks running in the pool
+     */
+    public static int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of tasks the pool has completed
+     */
+    public static long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the average time in milliseconds tasks waited for a thread
+     */
+    public static double getAverageWait() {
+        long n = completed.get() + running.get();
+        return (n == 0) ? 0.0 : waited.get() / (n * 1000000.0);
+    }
+
+    /**
+     * @return a summary of the statistics, for logging
+     */
+    public static String getStatistics() {
+        return "queued[" + getQueueDepth() + "] running[" + getRunning()
+                + "] completed[" + getCompleted() + "] wait["
+                + String.format("%.1f", getAverageWait()) + "ms]";
+    }
+}
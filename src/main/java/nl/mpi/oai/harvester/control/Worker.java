@@ -25,6 +25,7 @@ import nl.mpi.oai.harvester.cycle.Cycle;
 import nl.mpi.oai.harvester.cycle.Endpoint;
 import nl.mpi.oai.harvester.harvesting.*;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.metrics.Metrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
@@ -100,6 +101,9 @@ class Worker implements Runnable {
 
             // setting specific log filename
             ThreadContext.put("logFileName", Util.toFileFormat(provider.getName()).replaceAll("/", ""));
+
+            // count what this thread does for the provider
+            Metrics.enter(provider.getName());
             
             String map = config.getMapFile();
             synchronized(map) {
@@ -217,8 +221,12 @@ class Worker implements Runnable {
                 if (done) break;
             }
 
-            // report back success or failure to the cycle
-            endpoint.doneHarvesting(done);
+            // report back success or failure to the cycle, unless another harvester took over
+            if (LeaseRegistry.isHeld()) {
+                endpoint.doneHarvesting(done);
+            } else {
+                logger.error("Lost the lease on " + provider + ", not updating the overview");
+            }
             if (config.isIncremental()) {
                 FileSynchronization.saveStatistics(provider);
                 endpoint.setIncrement(FileSynchronization.getProviderStatistic(provider).getHarvestedRecords());
@@ -232,6 +240,7 @@ class Worker implements Runnable {
             provider.close();
                 
             ThreadContext.clearAll();
+            Metrics.leave();
             
             // tell the main log how it went
             if (t != null)
@@ -41,4 +41,17 @@ public class CycleFactory {
 
         return new XMLBasedCycle(overviewFile);
     }
+
+    /**
+     * Create a new cycle, based on an overview other harvesters might save
+     * to as well
+     *
+     * @param overviewFile local XML file defining the overview
+     * @param shared true if other harvesters save to the overview too
+     * @return a cycle based on the overview
+     */
+    public Cycle createCycle(File overviewFile, boolean shared){
+
+        return new XMLBasedCycle(overviewFile, shared);
+    }
 }
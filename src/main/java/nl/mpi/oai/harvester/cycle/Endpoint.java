@@ -244,4 +244,74 @@ public interface Endpoint {
      * @param increment the increment
      */
     void setIncrement (long increment);
+
+    /**
+     * <br> Get the state of the circuit breaker <br><br>
+     *
+     * The breaker of an endpoint opens after a number of consecutive failed
+     * requests. While it is open, the endpoint is not harvested. The state
+     * is recorded so the next cycle knows whether to wait for the endpoint.
+     *
+     * @return the state of the breaker: closed, open or half-open
+     */
+    String getBreakerState ();
+
+    /**
+     * <br> Get the number of consecutive failed requests
+     *
+     * @return the number of failures
+     */
+    long getBreakerFailures ();
+
+    /**
+     * <br> Get the date the circuit breaker opened
+     *
+     * @return the date, or zero epoch time if the breaker never opened
+     */
+    DateTime getBreakerOpened ();
+
+    /**
+     * <br> Record the state of the circuit breaker
+     *
+     * @param state the state of the breaker: closed, open or half-open
+     * @param failures the number of consecutive failed requests
+     * @param opened the date the breaker opened, null if it never did
+     */
+    void setBreaker (String state, long failures, DateTime opened);
+
+    /**
+     * <br> Get the number of requests to the endpoint in flight <br><br>
+     *
+     * The requests to an endpoint are paced: the number of requests in
+     * flight and their rate go up while the endpoint keeps up, and down
+     * when it fails or slows down. The pacing is recorded so the next cycle
+     * starts at the speed the endpoint could take.
+     *
+     * @return the number of requests, with the fraction gained towards the
+     *         next one, 0 if no pacing was recorded
+     */
+    double getPacingConcurrency ();
+
+    /**
+     * <br> Get the time between the start of two requests
+     *
+     * @return the time in milliseconds
+     */
+    long getPacingInterval ();
+
+    /**
+     * <br> Get the usual time to the first byte of a response
+     *
+     * @return the time in milliseconds, 0 if not known
+     */
+    long getPacingLatency ();
+
+    /**
+     * <br> Record the pacing of the requests
+     *
+     * @param concurrency the number of requests in flight
+     * @param interval the time in milliseconds between two requests
+     * @param latency the usual time in milliseconds to the first byte
+     */
+    void setPacing (double concurrency, long interval, long latency);
 }
@@ -18,8 +18,10 @@
 
 package nl.mpi.oai.harvester.cycle;
 
+import nl.mpi.oai.harvester.generated.BreakerType;
 import nl.mpi.oai.harvester.generated.EndpointType;
 import nl.mpi.oai.harvester.generated.OverviewType;
+import nl.mpi.oai.harvester.generated.PacingType;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
@@ -348,4 +350,109 @@ class EndpointAdapter implements Endpoint {
         // update the overview
         xmlOverview.save();
     }
+
+    @Override
+    public String getBreakerState() {
+
+        BreakerType breaker = endpointType.getBreaker();
+
+        if (breaker == null || breaker.getState() == null) {
+            // no failures recorded
+            return "closed";
+        } else {
+            return breaker.getState();
+        }
+    }
+
+    @Override
+    public long getBreakerFailures() {
+
+        BreakerType breaker = endpointType.getBreaker();
+
+        return (breaker == null) ? 0 : breaker.getFailures();
+    }
+
+    @Override
+    public DateTime getBreakerOpened() {
+
+        BreakerType breaker = endpointType.getBreaker();
+
+        if (breaker == null || breaker.getOpened() == null) {
+            return zeroUTC;
+        } else {
+            // convert XMLGregorianCalendar to DateTime
+            return new DateTime(breaker.getOpened().toString(), DateTimeZone.UTC);
+        }
+    }
+
+    @Override
+    public void setBreaker(String state, long failures, DateTime opened) {
+
+        BreakerType breaker = endpointType.getBreaker();
+
+        if ("closed".equals(state) && failures == 0 && breaker == null) {
+            // keep the overview free of breakers that never tripped
+            return;
+        }
+
+        try {
+            if (breaker == null) {
+                breaker = new BreakerType();
+                endpointType.setBreaker(breaker);
+            }
+            breaker.setState(state);
+            breaker.setFailures(failures);
+            breaker.setOpened(opened == null ? null : DatatypeFactory.newInstance()
+                    .newXMLGregorianCalendar(opened.toDateTime(DateTimeZone.UTC).toGregorianCalendar()));
+
+            // update the overview
+            xmlOverview.save();
+
+        } catch (DatatypeConfigurationException e) {
+            // report the error, we cannot continue
+            Logger.getLogger(EndpointAdapter.class.getName()).log(
+                    Level.SEVERE, null, endpointType);
+        }
+    }
+
+    @Override
+    public double getPacingConcurrency() {
+
+        PacingType pacing = endpointType.getPacing();
+
+        return (pacing == null) ? 0 : pacing.getConcurrency();
+    }
+
+    @Override
+    public long getPacingInterval() {
+
+        PacingType pacing = endpointType.getPacing();
+
+        return (pacing == null) ? 0 : pacing.getInterval();
+    }
+
+    @Override
+    public long getPacingLatency() {
+
+        PacingType pacing = endpointType.getPacing();
+
+        return (pacing == null) ? 0 : pacing.getLatency();
+    }
+
+    @Override
+    public void setPacing(double concurrency, long interval, long latency) {
+
+        PacingType pacing = endpointType.getPacing();
+
+        if (pacing == null) {
+            pacing = new PacingType();
+            endpointType.setPacing(pacing);
+        }
+        pacing.setConcurrency(concurrency);
+        pacing.setInterval(interval);
+        pacing.setLatency(latency);
+
+        // update the overview
+        xmlOverview.save();
+    }
 }
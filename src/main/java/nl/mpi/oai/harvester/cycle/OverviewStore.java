@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.cycle;
+
+import nl.mpi.oai.harvester.generated.EndpointType;
+import nl.mpi.oai.harvester.generated.OverviewType;
+
+import javax.xml.bind.DataBindingException;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <br> Read and write overview files <br><br>
+ *
+ * Creating a JAXB context is expensive, so all overviews share a single
+ * one. Marshallers and unmarshallers are not thread safe; every thread gets
+ * its own. <br><br>
+ *
+ * An overview is read by streaming the file into the unmarshaller, and
+ * written to a temporary file next to the overview which then replaces the
+ * overview in one move. In this way, a crash while saving leaves the
+ * previous overview intact.
+ *
+ * An overview shared by several harvesters is merged with the overview on
+ * file before it is written, while holding a lock on a file next to it. In
+ * this way, every harvester adds the endpoints it harvested to the ones the
+ * others harvested, instead of replacing them. <br><br>
+ *
+ * Like the convenience methods in the JAXB class, the methods in this class
+ * report problems by throwing a DataBindingException.
+ */
+final class OverviewStore {
+
+    // the name of the root element of an overview file
+    private static final QName ROOT = new QName("overviewType");
+
+    // the context is created the first time an overview is read or written
+    private static final class Context {
+        static final JAXBContext INSTANCE = create();
+
+        private static JAXBContext create() {
+            try {
+                return JAXBContext.newInstance(OverviewType.class);
+            } catch (JAXBException e) {
+                throw new DataBindingException(e);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Marshaller> marshaller =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    Marshaller m = Context.INSTANCE.createMarshaller();
+                    m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+                    return m;
+                } catch (JAXBException e) {
+                    throw new DataBindingException(e);
+                }
+            });
+
+    private static final ThreadLocal<Unmarshaller> unmarshaller =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    return Context.INSTANCE.createUnmarshaller();
+                } catch (JAXBException e) {
+                    throw new DataBindingException(e);
+                }
+            });
+
+    private static final XMLInputFactory xmlif = XMLInputFactory.newInstance();
+
+    // a lock on a file is held by the JVM, not by a thread
+    private static final Object lock = new Object();
+
+    static {
+        xmlif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    private OverviewStore() {
+    }
+
+    /**
+     * <br> Read an overview from a file
+     *
+     * @param file the overview file
+     * @return the overview
+     */
+    static OverviewType load(File file) {
+
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(file.toPath()))) {
+            XMLStreamReader reader = xmlif.createXMLStreamReader(in);
+            try {
+                return unmarshaller.get().unmarshal(reader,
+                        OverviewType.class).getValue();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException | JAXBException e) {
+            throw new DataBindingException(e);
+        }
+    }
+
+    /**
+     * <br> Write an overview to a file, replacing the file in one move
+     *
+     * @param overviewType the overview
+     * @param file the overview file
+     */
+    static void save(OverviewType overviewType, File file) {
+
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try {
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(temp))) {
+                marshaller.get().marshal(new JAXBElement<>(ROOT,
+                        OverviewType.class, overviewType), out);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | JAXBException e) {
+            throw new DataBindingException(e);
+        }
+    }
+
+    /**
+     * <br> Merge an overview with the overview on file, and write the result
+     * to the file <br><br>
+     *
+     * For every endpoint in both, the state of the most recent attempt to
+     * harvest it is kept, both in the file and in the overview given.
+     * Endpoints only in the file are added to the overview. The result does
+     * not depend on the order in which harvesters save their overviews.
+     *
+     * @param overviewType the overview
+     * @param file the overview file
+     */
+    static void merge(OverviewType overviewType, File file) {
+
+        Path target = file.getAbsoluteFile().toPath();
+        Path lockFile = target.resolveSibling(target.getFileName() + ".lock");
+
+        synchronized (lock) {
+            try (FileChannel channel = FileChannel.open(lockFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock fileLock = channel.lock()) {
+                if (Files.exists(target)) {
+                    merge(overviewType, load(file));
+                }
+                save(overviewType, file);
+            } catch (IOException e) {
+                throw new DataBindingException(e);
+            }
+        }
+    }
+
+    // merge the endpoints of another overview into an overview
+    static void merge(OverviewType overviewType, OverviewType other) {
+
+        Map<String, EndpointType> endpoints = new HashMap<>();
+        for (EndpointType endpoint : overviewType.getEndpoint()) {
+            endpoints.put(endpoint.getURI() + " " + endpoint.getGroup(), endpoint);
+        }
+        for (EndpointType endpoint : other.getEndpoint()) {
+            EndpointType own = endpoints.get(endpoint.getURI() + " " + endpoint.getGroup());
+            if (own == null) {
+                overviewType.getEndpoint().add(endpoint);
+            } else if (newer(endpoint, own)) {
+                own.setBlock(endpoint.isBlock());
+                own.setRetry(endpoint.isRetry());
+                own.setRefresh(endpoint.isRefresh());
+                own.setSynchronised(endpoint.isSynchronised());
+                own.setAttempted(endpoint.getAttempted());
+                own.setHarvested(endpoint.getHarvested());
+                own.setCount(endpoint.getCount());
+                own.setIncrement(endpoint.getIncrement());
+                own.setBreaker(endpoint.getBreaker());
+                own.setPacing(endpoint.getPacing());
+            }
+        }
+    }
+
+    // true if the state of an endpoint is more recent than another one
+    private static boolean newer(EndpointType endpoint, EndpointType other) {
+        int c = compare(endpoint.getAttempted(), other.getAttempted());
+        if (c == 0) {
+            c = compare(endpoint.getHarvested(), other.getHarvested());
+        }
+        if (c == 0) {
+            long count = endpoint.getCount() == null ? 0 : endpoint.getCount();
+            long otherCount = other.getCount() == null ? 0 : other.getCount();
+            c = Long.compare(count, otherCount);
+        }
+        return c > 0;
+    }
+
+    // compare dates, a missing date is older than any other
+    private static int compare(XMLGregorianCalendar date, XMLGregorianCalendar other) {
+        if (date == null || other == null) {
+            return (date == null) ? (other == null ? 0 : -1) : 1;
+        }
+        int c = date.compare(other);
+        return (c == DatatypeConstants.GREATER) ? 1 : (c == DatatypeConstants.LESSER) ? -1 : 0;
+    }
+}
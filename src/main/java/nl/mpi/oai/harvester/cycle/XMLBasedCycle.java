@@ -64,9 +64,20 @@ public class XMLBasedCycle implements Cycle {
      * @param overviewFile name of the XML file defining the properties
      */
     public XMLBasedCycle(File overviewFile){
+        this(overviewFile, false);
+    }
+
+    /**
+     * Associate the cycle with the XML file defining the cycle and endpoint
+     * properties, which other harvesters might save to as well
+     *
+     * @param overviewFile name of the XML file defining the properties
+     * @param shared       true if other harvesters save to the file too
+     */
+    public XMLBasedCycle(File overviewFile, boolean shared){
 
         // create an cycleProperties marshalling object
-        xmlOverview = new XMLOverview(overviewFile);
+        xmlOverview = new XMLOverview(overviewFile, shared);
 
         cycleProperties = xmlOverview.getCycleProperties();
 
@@ -23,8 +23,10 @@ import nl.mpi.oai.harvester.generated.ObjectFactory;
 import nl.mpi.oai.harvester.generated.OverviewType;
 import org.joda.time.DateTime;
 
-import javax.xml.bind.JAXB;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * <br> OverviewType object marshalling <br><br>
@@ -40,7 +42,8 @@ import java.io.File;
  * file. The client can do so by invoking the finalize method in this class.
  *
  * Note: this class relies on JAXB to generate the types that reflect the XSD
- * defined overviews.
+ * defined overviews. Reading and writing the XML file is left to the
+ * OverviewStore class.
  *
  * @author Kees Jan van de Looij (Max Planck Institute for Psycholinguistics)
  */
@@ -55,6 +58,9 @@ final class XMLOverview {
     // factory that creates objects of the generated classes
     final ObjectFactory factory;
 
+    // other harvesters save the overview in the same file
+    private final boolean shared;
+
     /**
      * <br> Associate the cycle with an XML file <br><br>
      *
@@ -64,6 +70,21 @@ final class XMLOverview {
      * @param overviewFile name of the file
      */
     public XMLOverview(File overviewFile) {
+        this(overviewFile, false);
+    }
+
+    /**
+     * <br> Associate the cycle with an XML file, possibly shared <br><br>
+     *
+     * If other harvesters save their overview in the same file, saving
+     * merges the endpoints they harvested with the ones in this overview.
+     *
+     * @param overviewFile name of the file
+     * @param shared       true if other harvesters save to the file too
+     */
+    public XMLOverview(File overviewFile, boolean shared) {
+
+        this.shared = shared;
 
         // create factory that creates objects of the generated classes
         factory = new ObjectFactory();
@@ -75,7 +96,7 @@ final class XMLOverview {
         file = overviewFile;
 
         // get the XML from this file
-        Object object = JAXB.unmarshal(file, OverviewType.class);
+        Object object = OverviewStore.load(file);
 
         /* Check if the object is in the OverviewType class. Note: if the
            unmarshalling method returns null, the object is not in the class,
@@ -154,8 +175,14 @@ final class XMLOverview {
      */
     public synchronized void save (){
 
+        if (shared) {
+            // take in the endpoints the other harvesters saved
+            OverviewStore.merge(overviewType, file);
+            return;
+        }
+
         // marshall the overview
-        JAXB.marshal(overviewType, file);
+        OverviewStore.save(overviewType, file);
     }
 
     /**
@@ -171,14 +198,14 @@ final class XMLOverview {
         this.file = file;
 
         // marshall the overview
-        JAXB.marshal(overviewType, file);
+        OverviewStore.save(overviewType, file);
     }
 
     /**
      * <br> Save the overview in a file different from the original one <br><br>
      *
-     * Allow the client to rotate the file. The method will rename the
-     * original file to reflect the current date and time. Next to this,
+     * Allow the client to rotate the file. The method will copy the
+     * original file to a file named after the current date and time. Next to this,
      * the method will store the overview of the current harvest attempts
      * in a file with the named after the original file.
      */
@@ -204,8 +231,17 @@ final class XMLOverview {
         // create a new file
         File newFile = new File (newName);
 
-        // rename the original file
-        boolean done = file.renameTo(newFile);
+        /* Keep a copy of the original file. Saving replaces the original
+           file in one move, so there is an overview at all times.
+         */
+        boolean done;
+        try {
+            Files.copy(file.toPath(), newFile.toPath(),
+                    StandardCopyOption.COPY_ATTRIBUTES);
+            done = true;
+        } catch (IOException e) {
+            done = false;
+        }
 
         if (! done){
             return false;
@@ -215,7 +251,7 @@ final class XMLOverview {
                     "." + extension);
 
             // marshall the overview under the name of the original file
-            JAXB.marshal(overviewType, anotherNewFile);
+            OverviewStore.save(overviewType, anotherNewFile);
 
             return true;
         }
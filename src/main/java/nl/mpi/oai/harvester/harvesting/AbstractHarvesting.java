@@ -114,4 +114,15 @@ public abstract class AbstractHarvesting implements Harvesting {
     public MetadataFactory getMetadataFactory() {
         return this.metadataFactory;
     }
+
+    /**
+     * <br> Stop harvesting, and let go of the requests still in flight
+     * <br><br>
+     *
+     * A scenario calls this method when it is done with the harvesting,
+     * also when it stops early. By default, there are no requests to let go
+     * of.
+     */
+    public void cancel() {
+    }
 }
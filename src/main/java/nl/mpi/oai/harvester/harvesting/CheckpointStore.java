@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.harvesting;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.Util;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * <br> Crash safe harvest checkpoints <br><br>
+ *
+ * A checkpoint records how far list based harvesting of a provider got: the
+ * prefix and set being harvested, the resumption token that will produce the
+ * next page, the number of pages processed so far, the date window of the
+ * original request, and the datestamp of the last record processed. A
+ * scenario writes the checkpoint after the actions
+ * on a page have completed successfully, and removes it once the provider
+ * has been harvested completely. <br><br>
+ *
+ * There is one checkpoint file per provider, set selection and input format.
+ * A file is first written next to its final location and then moved into
+ * place, so a crash never leaves a partially written checkpoint behind.
+ */
+public class CheckpointStore {
+
+    private static final Logger logger = LogManager.getLogger(CheckpointStore.class);
+
+    // directory containing the checkpoint files
+    private final Path dir;
+
+    /**
+     * <br> Position reached in a list based harvest <br><br>
+     *
+     * Fields that do not apply, like the set when the provider does not
+     * define any, or the dates when harvesting is not selective, are null.
+     */
+    public static class Checkpoint {
+
+        /** <br> metadata prefix being harvested */
+        final String prefix;
+        /** <br> set being harvested */
+        final String set;
+        /** <br> token that will produce the next page, null if none */
+        final String token;
+        /** <br> number of pages processed */
+        final int page;
+        /** <br> from date of the original request */
+        final String from;
+        /** <br> until date of the original request */
+        final String until;
+        /** <br> datestamp of the last record processed, null if unknown */
+        final String datestamp;
+
+        Checkpoint(String prefix, String set, String token, int page,
+                   String from, String until, String datestamp) {
+            this.prefix = prefix;
+            this.set    = set;
+            this.token  = token;
+            this.page   = page;
+            this.from   = from;
+            this.until  = until;
+            this.datestamp = datestamp;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        @Override
+        public String toString() {
+            return "prefix[" + prefix + "] set[" + set + "] token[" + token
+                    + "] page[" + page + "] from[" + from + "] until[" + until
+                    + "] datestamp[" + datestamp + "]";
+        }
+    }
+
+    /**
+     * <br> Associate the store with a directory
+     *
+     * @param dir directory to keep the checkpoint files in
+     */
+    public CheckpointStore(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * <br> Identify the harvest a checkpoint belongs to
+     *
+     * @param provider the provider
+     * @param format description of the input format of the action sequence
+     * @return key identifying the harvest
+     */
+    static String key(Provider provider, String format) {
+        return provider.oaiUrl + " " + (provider.sets == null ? "" :
+                Arrays.toString(provider.sets)) + " " + format;
+    }
+
+    private Path getFile(String key) {
+        return dir.resolve(Util.toFileFormat(key.substring(0,
+                Math.min(key.length(), 100))) + "-"
+                + Integer.toHexString(key.hashCode()) + ".checkpoint");
+    }
+
+    /**
+     * <br> Get the checkpoint left by a previous run
+     *
+     * @param provider the provider
+     * @param format description of the input format of the action sequence
+     * @return the checkpoint, or null if there is none
+     */
+    public Checkpoint load(Provider provider, String format) {
+
+        String key = key(provider, format);
+        Path file = getFile(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            logger.error("could not read checkpoint " + file, e);
+            return null;
+        }
+        if (!key.equals(props.getProperty("key"))) {
+            // a different harvest that happens to share the file name
+            return null;
+        }
+        try {
+            return new Checkpoint(props.getProperty("prefix"),
+                    props.getProperty("set"), props.getProperty("token"),
+                    Integer.parseInt(props.getProperty("page", "0")),
+                    props.getProperty("from"), props.getProperty("until"),
+                    props.getProperty("datestamp"));
+        } catch (NumberFormatException e) {
+            logger.error("invalid checkpoint " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * <br> Record a checkpoint, replacing the previous one
+     *
+     * @param provider the provider
+     * @param format description of the input format of the action sequence
+     * @param checkpoint the position reached
+     * @return false if the checkpoint could not be written, true otherwise
+     */
+    public boolean save(Provider provider, String format, Checkpoint checkpoint) {
+
+        String key = key(provider, format);
+        Properties props = new Properties();
+        props.setProperty("key", key);
+        props.setProperty("page", Integer.toString(checkpoint.page));
+        setProperty(props, "prefix", checkpoint.prefix);
+        setProperty(props, "set", checkpoint.set);
+        setProperty(props, "token", checkpoint.token);
+        setProperty(props, "from", checkpoint.from);
+        setProperty(props, "until", checkpoint.until);
+        setProperty(props, "datestamp", checkpoint.datestamp);
+
+        Path file = getFile(key);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Util.ensureDirExists(dir);
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                props.store(out, provider.oaiUrl);
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.error("could not write checkpoint " + file, e);
+            return false;
+        }
+        logger.debug("checkpoint for " + provider.oaiUrl + ": " + checkpoint);
+        return true;
+    }
+
+    /**
+     * <br> Remove the checkpoint of a harvest that has been completed
+     *
+     * @param provider the provider
+     * @param format description of the input format of the action sequence
+     */
+    public void clear(Provider provider, String format) {
+        Path file = getFile(key(provider, format));
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.error("could not remove checkpoint " + file, e);
+        }
+    }
+
+    private static void setProperty(Properties props, String name, String value) {
+        if (value != null) {
+            props.setProperty(name, value);
+        }
+    }
+}
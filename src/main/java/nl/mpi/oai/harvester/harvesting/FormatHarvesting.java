@@ -35,6 +35,7 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.Retry;
 
 /**
  * <br> Format harvesting <br><br>
@@ -123,15 +124,11 @@ public class FormatHarvesting extends AbstractHarvesting implements
                     logger.info ("Cannot obtain metadata formats from endpoint " +
                             provider.getOaiUrl());
                     return false;
-                } else {
-                    int retryDelay = provider.getRetryDelay(i-1);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
-                    }
+                } else if (!Retry.backoff(provider.getOaiUrl(), provider.getRetryDelays(), i-1)) {
+                    // the endpoint is down
+                    logger.info ("Cannot obtain metadata formats from endpoint " +
+                            provider.getOaiUrl());
+                    return false;
                 }
             } else {
                 // response contains a list of prefixes
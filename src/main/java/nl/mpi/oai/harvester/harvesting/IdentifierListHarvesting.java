@@ -22,10 +22,14 @@ package nl.mpi.oai.harvester.harvesting;
 import net.sf.saxon.s9api.SaxonApiException;
 import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.cycle.Endpoint;
+import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.metrics.Metrics;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.Pacing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
@@ -36,7 +40,14 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <br> List based identifier harvesting <br><br>
@@ -50,7 +61,13 @@ import java.util.List;
  * record harvesting might involve more than one set, a metadata record could
  * be presented to the client more than once. This class provides every record
  * only once. It uses the list provided by the superclass to remove duplicate
- * identifier and prefix pairs.
+ * identifier and prefix pairs. <br><br>
+ *
+ * The records are requested one at a time, unless the pacing of the
+ * endpoint allows more requests in flight. Then the records that come next
+ * in the list are requested ahead, in parallel, and returned in the order
+ * of the list. When the harvest stops early, the records requested ahead
+ * are cancelled.
  *
  *  Note: originally, this class was declared 'final'. With the addition of
  * tests based on Mockito, this qualifier was removed.
@@ -62,6 +79,18 @@ public class IdentifierListHarvesting extends ListHarvesting
     
     private static final Logger logger = LogManager.getLogger(
             IdentifierListHarvesting.class);
+
+    // threads requesting records ahead, waiting for the endpoints mostly
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** <br> records requested ahead, in the order of the targets */
+    private final Deque<Future<Object>> ahead = new ArrayDeque<>();
+    /** <br> pointer to the next target to be requested ahead */
+    private int aIndex = 0;
     
     /**
      * Associate endpoint and prefixes with the protocol
@@ -224,8 +253,98 @@ public class IdentifierListHarvesting extends ListHarvesting
         }
 
         // the targets are in place and tIndex points to an element in the list
-        IdPrefix pair = targets.get(tIndex);
+        int permits = prefetching() ? Pacing.permits(provider.oaiUrl) : 1;
+        if (ahead.isEmpty() && permits <= 1) {
+            IdPrefix pair = targets.get(tIndex);
+            tIndex++;
+            return fetch(pair);
+        }
+
+        // keep as many requests in flight as the endpoint takes
+        aIndex = Math.max(aIndex, tIndex);
+        Map<String, String> context = ThreadContext.getImmutableContext();
+        while (aIndex < targets.size() && ahead.size() < permits) {
+            IdPrefix pair = targets.get(aIndex);
+            aIndex++;
+            ahead.add(prefetcher.submit(() -> {
+                ThreadContext.putAll(context);
+                Metrics.enter(provider.getName());
+                try {
+                    Object record = fetch(pair);
+                    if (Thread.currentThread().isInterrupted() && record instanceof Metadata) {
+                        // cancelled, nobody takes the record
+                        ((Metadata) record).close();
+                    }
+                    return record;
+                } finally {
+                    Metrics.leave();
+                    ThreadContext.clearAll();
+                }
+            }));
+        }
         tIndex++;
+        try {
+            return ahead.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the harvest is stopped, skip the rest of the list
+            tIndex = targets.size();
+            cancel();
+            return null;
+        } catch (ExecutionException e) {
+            logger.error(e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * <br> Cancel the records requested ahead <br><br>
+     *
+     * The requests waiting for the pacing of the endpoint give up their
+     * slot, and the records that arrived already are closed.
+     */
+    @Override
+    public void cancel() {
+        Future<Object> future;
+        while ((future = ahead.poll()) != null) {
+            if (!future.cancel(true) && !future.isCancelled()) {
+                // done already
+                try {
+                    Object record = future.get();
+                    if (record instanceof Metadata) {
+                        ((Metadata) record).close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // failed, nothing to close
+                }
+            }
+        }
+        aIndex = tIndex;
+    }
+
+    /**
+     * <br> Check if records may be requested ahead <br><br>
+     *
+     * Not for an exclusive provider, which should get one request at a time,
+     * and not for an interface connected to the factory, which does not
+     * expect to be used by more than one thread.
+     *
+     * @return true if records may be requested ahead
+     */
+    private boolean prefetching() {
+        return Pacing.isEnabled() && !provider.isExclusive()
+                && oaiFactory.connectInterface() == null;
+    }
+
+    /**
+     * <br> Get the record for an identifier and prefix pair
+     *
+     * @param pair the identifier and prefix
+     * @return the metadata element, null if something went wrong
+     */
+    private Object fetch(IdPrefix pair) {
         // get the record for the identifier and prefix
         RecordHarvesting p = new RecordHarvesting(oaiFactory, provider,
                 pair.prefix, pair.identifier, metadataFactory);
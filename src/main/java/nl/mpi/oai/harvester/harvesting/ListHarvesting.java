@@ -25,6 +25,7 @@ import nl.mpi.oai.harvester.control.Main;
 import nl.mpi.oai.harvester.cycle.Endpoint;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.Retry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.xml.sax.SAXException;
@@ -35,6 +36,7 @@ import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -63,6 +65,17 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
      */
     final static String[] message = new String [3];
     final Endpoint endpoint;
+
+    /** <br> date window of the requests, kept for checkpoints */
+    String fromDate;
+    String untilDate;
+    /** <br> date window restored from a checkpoint */
+    private boolean windowRestored = false;
+    /** <br> the resumption token has been restored from a checkpoint */
+    private boolean resumed = false;
+    /** <br> datestamp of the last record processed, kept for checkpoints */
+    private String datestamp = null;
+
     /**
      * Associate endpoint data and desired prefix
      * 
@@ -150,6 +163,68 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
     abstract String getToken () throws TransformerException,
             NoSuchFieldException;
 
+    /**
+     * <br> Continue harvesting from a checkpoint <br><br>
+     *
+     * Position the harvesting on the prefix and set recorded in the
+     * checkpoint, and restore the resumption token and the date window of the
+     * original request. When the endpoint does not accept the token anymore,
+     * the request method will start the list again, from the datestamp of
+     * the last record processed, or else from the from date recorded.
+     * <br><br>
+     *
+     * @param checkpoint the checkpoint left by a previous run
+     * @return false if the checkpoint does not match the prefixes and sets
+     *         harvested, true otherwise
+     */
+    boolean resume(CheckpointStore.Checkpoint checkpoint) {
+
+        int p = prefixes.indexOf(checkpoint.prefix);
+        if (p < 0) {
+            return false;
+        }
+        int s = 0;
+        if (provider.sets != null) {
+            s = Arrays.asList(provider.sets).indexOf(checkpoint.set);
+            if (s < 0) {
+                return false;
+            }
+        } else if (checkpoint.set != null) {
+            return false;
+        }
+
+        pIndex          = p;
+        sIndex          = s;
+        resumptionToken = checkpoint.token;
+        fromDate        = checkpoint.from;
+        untilDate       = checkpoint.until;
+        datestamp       = checkpoint.datestamp;
+        windowRestored  = true;
+        resumed         = !(resumptionToken == null || resumptionToken.isEmpty());
+
+        return true;
+    }
+
+    /**
+     * <br> Get the position reached, for continuing in a later run <br><br>
+     *
+     * Note: invoke this method after requestMore, so that the position points
+     * to the next request to be made.
+     *
+     * @param page the number of pages processed
+     * @param last the datestamp of the last record on the page processed,
+     *             null if the page did not list any record
+     * @return the checkpoint
+     */
+    CheckpointStore.Checkpoint getCheckpoint(int page, String last) {
+        if (last != null) {
+            datestamp = last;
+        }
+        return new CheckpointStore.Checkpoint(prefixes.get(pIndex),
+                provider.sets == null ? null : provider.sets[sIndex],
+                resumptionToken, page, fromDate, untilDate, datestamp);
+    }
+
     /**
      * Request metadata from the endpoint. Retry as often as the configuration
      * allows. A scenario should invoke the requestMore method to determine if
@@ -178,17 +253,15 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
 
         SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
 
-        String fromDate = null;
-        String untilDate = null;
-
-
         boolean incremental = false;
 
         if(Main.config != null){
           incremental = Main.config.isIncremental();
         }
 
-        if(incremental && endpoint != null) {
+        if (windowRestored) {
+            // keep the window of the run the checkpoint was made in
+        } else if(incremental && endpoint != null) {
             untilDate = formatter.format(new Date());
             if (endpoint.getHarvestedDate() != null) {
                 fromDate = formatter.format(endpoint.getHarvestedDate().toDate());
@@ -212,27 +285,19 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
                     logger.debug(message[0] + prefixes.get(pIndex));
 
                     document = verb2(provider.oaiUrl, resumptionToken, provider.getTimeout());
+
+                    if (resumed && "badResumptionToken".equals(
+                            OAIHelper.getErrorCode(document))) {
+                        // the token from the checkpoint has expired
+                        restart();
+                        document = listRequest();
+                    }
                 } else {
                     logger.debug(message[1] + prefixes.get(pIndex));
 
-                    if (provider.sets == null) {
-                        // no sets specified, ask for records by prefix
-
-
-                        document = verb5(provider.oaiUrl, fromDate, untilDate,
-                                null,
-                                prefixes.get(pIndex),
-                                provider.getTimeout(),
-                                provider.temp);
-                    } else {
-                        // request targets for a new set and prefix combination
-                        document = verb5(provider.oaiUrl, fromDate, untilDate,
-                                provider.sets[sIndex],
-                                prefixes.get(pIndex),
-                                provider.getTimeout(),
-                                provider.temp);
-                    }
+                    document = listRequest();
                 }
+                resumed = false;
 
                 // check if more records would be available
                 resumptionToken = getToken();
@@ -276,19 +341,67 @@ public abstract class ListHarvesting extends AbstractListHarvesting implements
                     // do not retry any more, try another prefix instead
                     return false;
                 }
-                // retry the request once more
-                int retryDelay = provider.getRetryDelay(i-1);
-                if (retryDelay > 0) {
-                    try {
-                        Thread.sleep(retryDelay*1000);
-                    } catch (InterruptedException e) {
-                        logger.error(e.getMessage(), e);
-                    }
+                // retry the request once more, unless the endpoint is down
+                if (!Retry.backoff(provider.oaiUrl, provider.getRetryDelays(), i-1)) {
+                    return false;
                 }
             }
         }
     }
 
+    /**
+     * <br> Request the first page of the list for the current set and prefix
+     *
+     * @return the response
+     */
+    private DocumentSource listRequest() throws
+        IOException,
+        ParserConfigurationException,
+        SAXException,
+        TransformerException,
+        NoSuchFieldException,
+        XMLStreamException, SaxonApiException {
+
+        if (provider.sets == null) {
+            // no sets specified, ask for records by prefix
+            return verb5(provider.oaiUrl, fromDate, untilDate,
+                    null,
+                    prefixes.get(pIndex),
+                    provider.getTimeout(),
+                    provider.temp);
+        } else {
+            // request targets for a new set and prefix combination
+            return verb5(provider.oaiUrl, fromDate, untilDate,
+                    provider.sets[sIndex],
+                    prefixes.get(pIndex),
+                    provider.getTimeout(),
+                    provider.temp);
+        }
+    }
+
+    /**
+     * <br> Give up on the resumption token restored from a checkpoint <br><br>
+     *
+     * The list for the current set and prefix is requested again, starting
+     * from the day of the last record processed in the previous run, or,
+     * if that is not known, from the from date of the original request. This
+     * assumes the endpoint lists its records in the order of their
+     * datestamps, as most do. Records of that day already processed will be
+     * processed once more.
+     */
+    private void restart() {
+        if (datestamp != null) {
+            // the from date of the requests only has the day granularity
+            fromDate = datestamp.length() > 10 ? datestamp.substring(0, 10) : datestamp;
+        }
+        logger.warn("resumption token from checkpoint not accepted by endpoint "
+                + provider.oaiUrl + ", restarting "
+                + prefixes.get(pIndex) + " records"
+                + (fromDate == null ? "" : " from " + fromDate));
+        resumed = false;
+        resumptionToken = null;
+    }
+
     /**
      * <br> Get the response <br><br>
      *
@@ -117,4 +117,172 @@ public class OAIHelper {
 
         return prefix;
     }
+
+    /**
+     * <br> Get the code of the OAI error reported in a response <br><br>
+     *
+     * @param document the response
+     * @return the code of the first error, or null if the response does not
+     *         report an error
+     */
+    static public String getErrorCode (DocumentSource document){
+        // error code
+        String code = null;
+
+        if (document == null) {
+            return null;
+        }
+
+        if (document.hasDocument()) {
+            // node in the document
+            Node node = null;
+
+            if (xpath == null){
+                // set up XPath querying
+                XPathFactory xpf = XPathFactory.newInstance();
+                xpath = xpf.newXPath();
+            }
+
+            // look for the error node directly below the envelope
+            try {
+                node = (Node) xpath.evaluate(
+                        "/*[local-name()='OAI-PMH']/*[local-name()='error']",
+                        document.getDocument(), XPathConstants.NODE);
+            } catch (XPathExpressionException e) {
+                logger.error(e.getMessage(), e);
+            }
+
+            if (node != null && node.getAttributes().getNamedItem("code") != null){
+                code = node.getAttributes().getNamedItem("code").getNodeValue();
+            }
+        } else {
+            int state = 1; // 1:START 0:STOP -1:ERROR
+            try {
+                XMLInputFactory2 xmlif = (XMLInputFactory2) XMLInputFactory2.newInstance();
+                xmlif.configureForConvenience();
+                XMLStreamReader2 xmlr = (XMLStreamReader2) xmlif.createXMLStreamReader(document.getStream());
+                int depth = 0;
+                while (state > 0) {
+                    int eventType = xmlr.getEventType();
+                    switch (eventType) {
+                        case XMLEvent2.START_ELEMENT:
+                            depth++;
+                            if (depth == 2) {
+                                // the element following the request decides
+                                if (xmlr.getName().getLocalPart().equals("error"))
+                                    code = xmlr.getAttributeValue(null,"code");
+                                if (!xmlr.getName().getLocalPart().equals("responseDate")
+                                        && !xmlr.getName().getLocalPart().equals("request"))
+                                    state = 0;//STOP
+                            }
+                            break;
+                        case XMLEvent2.END_ELEMENT:
+                            depth--;
+                            break;
+                    }
+                    if (state > 0) {
+                        if (xmlr.hasNext())
+                            try {
+                                xmlr.next();
+                            } catch (WstxUnexpectedCharException ex) {
+                                logger.info("Invalid char found in XML, skipping the current one and look for next one");
+                            }
+                        else
+                            state = 0;//STOP
+                    }
+                }
+            } catch (XMLStreamException ex) {
+                logger.error("problem finding error in the XML stream!",ex);
+            }
+        }
+        if (code != null)
+            logger.debug("found OAI error["+code+"]");
+
+        return code;
+    }
+
+    /**
+     * <br> Get the datestamp of the last record listed in a response <br><br>
+     *
+     * Only the datestamps in the headers of the records count, not those
+     * that might appear in the metadata itself.
+     *
+     * @param document the response to a ListRecords or ListIdentifiers
+     *                 request
+     * @return the datestamp of the last record, or null if the response does
+     *         not list any record
+     */
+    static public String getLastDatestamp (DocumentSource document){
+        // datestamp of the last header seen
+        String datestamp = null;
+
+        if (document == null) {
+            return null;
+        }
+
+        if (document.hasDocument()) {
+
+            if (xpath == null){
+                // set up XPath querying
+                XPathFactory xpf = XPathFactory.newInstance();
+                xpath = xpf.newXPath();
+            }
+
+            // headers appear in a record, or directly in the list
+            try {
+                datestamp = (String) xpath.evaluate(
+                        "(/*[local-name()='OAI-PMH']/*/*[local-name()='header']/*[local-name()='datestamp']"
+                        + " | /*[local-name()='OAI-PMH']/*/*/*[local-name()='header']/*[local-name()='datestamp'])[last()]",
+                        document.getDocument(), XPathConstants.STRING);
+            } catch (XPathExpressionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        } else {
+            try {
+                XMLInputFactory2 xmlif = (XMLInputFactory2) XMLInputFactory2.newInstance();
+                xmlif.configureForConvenience();
+                XMLStreamReader2 xmlr = (XMLStreamReader2) xmlif.createXMLStreamReader(document.getStream());
+                int depth = 0;
+                // depth of the header being read, -1 outside a header
+                int header = -1;
+                while (xmlr.hasNext()) {
+                    int eventType;
+                    try {
+                        eventType = xmlr.next();
+                    } catch (WstxUnexpectedCharException ex) {
+                        logger.info("Invalid char found in XML, skipping the current one and look for next one");
+                        continue;
+                    }
+                    switch (eventType) {
+                        case XMLEvent2.START_ELEMENT:
+                            depth++;
+                            String name = xmlr.getName().getLocalPart();
+                            if (name.equals("header") && depth <= 4) {
+                                header = depth;
+                            } else if (name.equals("datestamp") && depth == header + 1) {
+                                // reading the text moves on to the end tag
+                                datestamp = xmlr.getElementText();
+                                depth--;
+                            }
+                            break;
+                        case XMLEvent2.END_ELEMENT:
+                            if (depth == header)
+                                header = -1;
+                            depth--;
+                            break;
+                    }
+                }
+            } catch (XMLStreamException ex) {
+                logger.error("problem finding datestamp in the XML stream!",ex);
+            }
+        }
+
+        if (datestamp != null) {
+            datestamp = datestamp.trim();
+            if (datestamp.isEmpty())
+                datestamp = null;
+        }
+
+        return datestamp;
+    }
 }
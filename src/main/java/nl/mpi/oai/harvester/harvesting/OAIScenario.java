@@ -20,12 +20,17 @@ package nl.mpi.oai.harvester.harvesting;
 
 import nl.mpi.oai.harvester.Provider;
 import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.control.Main;
 import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
 import nl.mpi.oai.harvester.utils.DocumentSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -45,12 +50,55 @@ public class OAIScenario {
     //
     ActionSequence actionSequence;
 
+    // the sequences each record is passed to, in order
+    List<ActionSequence> actionSequences;
+
     //
     private static final ReadWriteLock exclusiveLock = new ReentrantReadWriteLock(true);
 
     public OAIScenario (Provider provider, ActionSequence actionSequence) {
         this.provider = provider;
         this.actionSequence = actionSequence;
+        this.actionSequences = Collections.singletonList(actionSequence);
+    }
+
+    /**
+     * Create a scenario that passes every record harvested to each of the
+     * action sequences. All sequences need to accept the prefixes that will
+     * be harvested.
+     *
+     * @param provider the provider
+     * @param actionSequences the action sequences, in order
+     */
+    public OAIScenario (Provider provider, List<ActionSequence> actionSequences) {
+        this.provider = provider;
+        this.actionSequence = actionSequences.get(0);
+        this.actionSequences = actionSequences;
+    }
+
+    /**
+     * Apply the action sequences to a record. Every sequence gets its own
+     * copy of the record, sharing the content that was harvested.
+     *
+     * @param metadata the record
+     * @return false if one of the sequences failed, true otherwise
+     */
+    private boolean runActions(Metadata metadata) {
+        if (actionSequences.size() == 1) {
+            return actionSequence.runActions(metadata);
+        }
+
+        boolean done = true;
+        for (ActionSequence sequence : actionSequences) {
+            Metadata copy = metadata.share();
+            if (!sequence.runActions(copy)) {
+                logger.error("Action sequence " + sequence + " failed for "
+                        + metadata.getId());
+                done = false;
+            }
+            copy.close();
+        }
+        return done;
     }
 
     /**
@@ -154,32 +202,36 @@ public class OAIScenario {
         /* Iterate over the list of pairs, for each pair, get the record it
            identifies.
          */
-        while(!harvesting.fullyParsed()) {
-            try {
+        try {
+            while(!harvesting.fullyParsed()) {
+                try {
 
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().lock();
-                } else {
-                    exclusiveLock.readLock().lock();
-                }
+                    if (provider.isExclusive()) {
+                        exclusiveLock.writeLock().lock();
+                    } else {
+                        exclusiveLock.readLock().lock();
+                    }
 
-                Metadata record = (Metadata) harvesting.parseResponse();
+                    Metadata record = (Metadata) harvesting.parseResponse();
 
-                if (record == null) {
-                    // something went wrong, skip the record
-                } else {
-                    // apply the action sequence to the record
-                    actionSequence.runActions(record);
-                }
-                
-                record.close();
-            } finally {
-                if (provider.isExclusive()) {
-                    exclusiveLock.writeLock().unlock();
-                } else {
-                    exclusiveLock.readLock().unlock();
+                    if (record == null) {
+                        // something went wrong, skip the record
+                    } else {
+                        // apply the action sequences to the record
+                        runActions(record);
+                        record.close();
+                    }
+                } finally {
+                    if (provider.isExclusive()) {
+                        exclusiveLock.writeLock().unlock();
+                    } else {
+                        exclusiveLock.readLock().unlock();
+                    }
                 }
             }
+        } finally {
+            // the records requested ahead are not needed anymore
+            harvesting.cancel();
         }
 
         return true;
@@ -204,7 +256,50 @@ public class OAIScenario {
 
         Integer n = 0;
 
+        /* When checkpoints are enabled, continue where a previous run left
+           off, and remember the position reached after every page.
+         */
+        CheckpointStore checkpoints = null;
+        ListHarvesting listHarvesting = null;
+        StringBuilder formats = new StringBuilder();
+        for (ActionSequence sequence : actionSequences) {
+            if (formats.length() > 0) formats.append('+');
+            formats.append(sequence.getInputFormat());
+        }
+        String format = formats.toString();
+        if (harvesting instanceof ListHarvesting && Main.config != null
+                && Main.config.getCheckpointDirectory() != null) {
+            checkpoints = new CheckpointStore(Main.config.getCheckpointDirectory());
+            listHarvesting = (ListHarvesting) harvesting;
+
+            CheckpointStore.Checkpoint checkpoint = checkpoints.load(provider, format);
+            if (checkpoint != null) {
+                if (listHarvesting.resume(checkpoint)) {
+                    logger.info("resuming harvest of " + provider.oaiUrl
+                            + " at checkpoint " + checkpoint);
+                    n = checkpoint.getPage();
+                } else {
+                    logger.info("ignoring checkpoint " + checkpoint
+                            + " for " + provider.oaiUrl);
+                }
+            }
+        }
+
+        // keep the responses, so the actions can be run on them again later
+        ResponseArchive.Run archive = null;
+        if (Main.config != null && Main.config.getArchiveDirectory() != null) {
+            archive = new ResponseArchive(Main.config.getArchiveDirectory())
+                    .start(provider, format, n == 0 && !provider.getIncremental());
+        }
+
+        boolean more;
+
         do {
+            // assume the actions on the page will fail
+            boolean processed = false;
+            // datestamp of the last record on the page
+            String last = null;
+
             try {
                 
                 if (provider.isExclusive()) {
@@ -228,10 +323,19 @@ public class OAIScenario {
                                 OAIHelper.getPrefix(records),
                                 records, this.provider, true, true);
 
+                        if (archive != null) {
+                            archive.append(n, metadata.getPrefix(), records);
+                        }
+
+                        if (checkpoints != null) {
+                            // read it before the actions replace the page
+                            last = OAIHelper.getLastDatestamp(records);
+                        }
+
                         n++;
 
-                        // apply the action sequence to the records
-                        actionSequence.runActions(metadata);
+                        // apply the action sequences to the records
+                        processed = runActions(metadata);
                         
                         // cleanup
                         metadata.close();
@@ -247,9 +351,63 @@ public class OAIScenario {
                     exclusiveLock.readLock().unlock();
                 }
             }
-        } while (harvesting.requestMore());
+
+            more = harvesting.requestMore();
+
+            if (checkpoints != null) {
+                if (!processed) {
+                    /* Keep the last checkpoint pointing to the page that
+                       failed, so a later run will process it again, even
+                       if it was the last page.
+                     */
+                    logger.warn("not advancing checkpoint for "
+                            + provider.oaiUrl + " after page " + n);
+                    checkpoints = null;
+                } else if (!more) {
+                    // the provider has been harvested completely
+                    checkpoints.clear(provider, format);
+                } else {
+                    checkpoints.save(provider, format,
+                            listHarvesting.getCheckpoint(n, last));
+                }
+            }
+        } while (more);
+
+        if (archive != null) {
+            archive.complete();
+        }
 
         return true;
     }
-}
 
+    /**
+     * <br>Apply the action sequences to the pages of an archived harvest,
+     * like they were applied to the pages harvested <br><br>
+     *
+     * @param run the archived harvest
+     * @param metadataFactory the factory for the metadata records
+     * @return false if the actions failed on one of the pages
+     */
+    public boolean replay(ResponseArchive.Run run, MetadataFactory metadataFactory) {
+
+        boolean done = true;
+
+        Iterator<ResponseArchive.Page> pages = run.pages();
+        while (pages.hasNext()) {
+            ResponseArchive.Page page = pages.next();
+            String id = provider.getName() + "-" + String.format("%07d", page.getPage());
+
+            Metadata metadata = metadataFactory.create(id, page.getPrefix(),
+                    new DocumentSource(id, new ByteArrayInputStream(page.getContent())),
+                    this.provider, true, true);
+
+            if (!runActions(metadata)) {
+                logger.warn("actions failed on archived page " + id);
+                done = false;
+            }
+            metadata.close();
+        }
+
+        return done;
+    }
+}
@@ -29,6 +29,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import java.io.IOException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
+import nl.mpi.oai.harvester.utils.Retry;
 
 /**
  * <br> Record harvesting <br><br>
@@ -106,15 +107,9 @@ public final class RecordHarvesting extends AbstractHarvesting {
                 if (i == provider.maxRetryCount) {
                     // try another record
                     return false;
-                } else {
-                    int retryDelay = provider.getRetryDelay(i-1);
-                    if (retryDelay > 0) {
-                        try {
-                            Thread.sleep(retryDelay*1000);
-                        } catch (InterruptedException e) {
-                            logger.error(e.getMessage(), e);
-                        }
-                    }
+                } else if (!Retry.backoff(provider.oaiUrl, provider.getRetryDelays(), i-1)) {
+                    // the endpoint is down
+                    return false;
                 }
             } else {
                 return true;
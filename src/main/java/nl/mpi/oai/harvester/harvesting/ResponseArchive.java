@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.harvesting;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.control.Util;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <br> Archive of raw ListRecords responses <br><br>
+ *
+ * The archive keeps every page a list based harvest receives, so the action
+ * sequences can be run on them again without contacting the provider. Every
+ * provider has its own directory. A harvest of the provider adds a run to
+ * it: a descriptor, and segments the pages are appended to. Each page is
+ * compressed separately, as a gzip member of its own, so a segment can only
+ * grow, and a crash loses at most the page being written. <br><br>
+ *
+ * When a harvest that requested the complete list finishes, the runs of
+ * earlier harvests of the same input format are removed. The runs left,
+ * oldest first, hold the latest state of the provider: a full harvest
+ * followed by incremental ones, or harvests that were interrupted.
+ */
+public class ResponseArchive {
+
+    private static final Logger logger = LogManager.getLogger(ResponseArchive.class);
+
+    // size after which a run continues in a new segment
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String RUN = ".run";
+    private static final String SEGMENT = ".gz";
+
+    // directory containing the provider directories
+    private final Path dir;
+
+    /**
+     * <br> A page of an archived harvest
+     */
+    public static class Page {
+        private final int page;
+        private final String prefix;
+        private final byte[] content;
+
+        Page(int page, String prefix, byte[] content) {
+            this.page = page;
+            this.prefix = prefix;
+            this.content = content;
+        }
+
+        /**
+         * @return the number of the page in the harvest
+         */
+        public int getPage() {
+            return page;
+        }
+
+        /**
+         * @return the metadata prefix of the records on the page
+         */
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * @return the response as received
+         */
+        public byte[] getContent() {
+            return content;
+        }
+    }
+
+    /**
+     * <br> The pages archived by a single harvest of a provider
+     */
+    public class Run {
+        private final Path dir;
+        private final String id;
+        private final Properties props;
+        private int segment = 0;
+
+        private Run(Path dir, String id, Properties props) {
+            this.dir = dir;
+            this.id = id;
+            this.props = props;
+        }
+
+        /**
+         * @return the name of the provider at the time of the harvest
+         */
+        public String getName() {
+            return props.getProperty("name");
+        }
+
+        /**
+         * @return the input formats of the action sequences the pages were
+         *         harvested for, separated by +
+         */
+        public String getFormat() {
+            return props.getProperty("format", "");
+        }
+
+        /**
+         * @return true if the harvest ran to the end of the list
+         */
+        public boolean isComplete() {
+            return Boolean.parseBoolean(props.getProperty("complete"));
+        }
+
+        /**
+         * Append a page to the run.
+         *
+         * @param page     the number of the page in the harvest
+         * @param prefix   the metadata prefix of the records on the page
+         * @param response the response
+         * @return false if the page could not be archived, true otherwise
+         */
+        public synchronized boolean append(int page, String prefix, DocumentSource response) {
+            Path file = null;
+            try {
+                byte[] content = content(response);
+                file = segment(segment);
+                if (Files.exists(file) && Files.size(file) > SEGMENT_SIZE) {
+                    file = segment(++segment);
+                }
+                try (OutputStream os = Files.newOutputStream(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                     DataOutputStream out = new DataOutputStream(new GZIPOutputStream(os, 65536))) {
+                    out.writeUTF(prefix == null ? "" : prefix);
+                    out.writeInt(page);
+                    out.writeInt(content.length);
+                    out.write(content);
+                }
+                return true;
+            } catch (IOException | TransformerException e) {
+                logger.error("could not archive page " + page + " in " + file, e);
+                return false;
+            }
+        }
+
+        /**
+         * Record that the harvest ran to the end of the list. If it
+         * requested the complete list, remove the runs it replaces.
+         */
+        public void complete() {
+            props.setProperty("complete", "true");
+            if (store(dir.resolve(id + RUN), props) && Boolean.parseBoolean(props.getProperty("full"))) {
+                for (Run run : runs(dir)) {
+                    if (run.id.compareTo(id) < 0 && run.getFormat().equals(getFormat())) {
+                        run.delete();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read the pages of the run, in the order they were archived. A
+         * segment that cannot be read completely ends the run.
+         *
+         * @return the pages
+         */
+        public Iterator<Page> pages() {
+            return new Iterator<Page>() {
+                private int n = 0;
+                private DataInputStream in = null;
+                private Page next = null;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null) {
+                        if (in == null) {
+                            Path file = segment(n++);
+                            if (!Files.exists(file))
+                                return false;
+                            try {
+                                in = new DataInputStream(new GZIPInputStream(
+                                        new BufferedInputStream(Files.newInputStream(file))));
+                            } catch (IOException e) {
+                                logger.error("could not read " + file, e);
+                                return false;
+                            }
+                        }
+                        try {
+                            String prefix = in.readUTF();
+                            int page = in.readInt();
+                            byte[] content = new byte[in.readInt()];
+                            in.readFully(content);
+                            next = new Page(page, prefix, content);
+                        } catch (EOFException e) {
+                            // end of the segment, or of a page cut off by a crash
+                            close();
+                        } catch (IOException e) {
+                            logger.error("could not read " + segment(n - 1), e);
+                            close();
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public Page next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    Page page = next;
+                    next = null;
+                    return page;
+                }
+
+                private void close() {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                    in = null;
+                }
+            };
+        }
+
+        private Path segment(int n) {
+            return dir.resolve(String.format("%s-%03d%s", id, n, SEGMENT));
+        }
+
+        private void delete() {
+            try {
+                for (int n = 0; Files.deleteIfExists(segment(n)); n++)
+                    ;
+                Files.deleteIfExists(dir.resolve(id + RUN));
+                logger.debug("removed archived run " + id + " of " + props.getProperty("url"));
+            } catch (IOException e) {
+                logger.error("could not remove archived run " + id + " in " + dir, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "run[" + id + "] format[" + getFormat() + "] complete[" + isComplete() + "]";
+        }
+    }
+
+    /**
+     * <br> Associate the archive with a directory
+     *
+     * @param dir directory to keep the provider directories in
+     */
+    public ResponseArchive(Path dir) {
+        this.dir = dir;
+    }
+
+    private Path getDirectory(Provider provider) {
+        String key = provider.oaiUrl + " " + (provider.sets == null ? "" :
+                Arrays.toString(provider.sets));
+        return dir.resolve(Util.toFileFormat(key.substring(0,
+                Math.min(key.length(), 100))) + "-" + Integer.toHexString(key.hashCode()));
+    }
+
+    /**
+     * <br> Start archiving a harvest
+     *
+     * @param provider the provider
+     * @param format   description of the input formats of the action
+     *                 sequences
+     * @param full     true if the harvest requests the complete list
+     * @return the run to append the pages to, or null if the archive cannot
+     *         be written
+     */
+    public Run start(Provider provider, String format, boolean full) {
+        Path home = getDirectory(provider);
+        // runs sort in the order they were started
+        String id = String.format("%013d", System.currentTimeMillis());
+        Properties props = new Properties();
+        props.setProperty("url", provider.oaiUrl);
+        props.setProperty("name", provider.getName());
+        props.setProperty("format", format);
+        props.setProperty("full", Boolean.toString(full));
+        props.setProperty("complete", "false");
+        try {
+            Util.ensureDirExists(home);
+            while (Files.exists(home.resolve(id + RUN))) {
+                id = String.format("%013d", Long.parseLong(id) + 1);
+            }
+        } catch (IOException e) {
+            logger.error("could not create archive " + home, e);
+            return null;
+        }
+        if (!store(home.resolve(id + RUN), props)) {
+            return null;
+        }
+        logger.debug("archiving responses of " + provider.oaiUrl + " in " + home);
+        return new Run(home, id, props);
+    }
+
+    /**
+     * <br> Get the archived runs of a provider
+     *
+     * @param provider the provider
+     * @return the runs, oldest first
+     */
+    public List<Run> runs(Provider provider) {
+        return runs(getDirectory(provider));
+    }
+
+    private List<Run> runs(Path dir) {
+        List<Run> runs = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return runs;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + RUN)) {
+            for (Path file : files) {
+                Properties props = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    props.load(in);
+                }
+                String name = file.getFileName().toString();
+                runs.add(new Run(dir, name.substring(0, name.length() - RUN.length()), props));
+            }
+        } catch (IOException e) {
+            logger.error("could not read archive " + dir, e);
+        }
+        runs.sort((a, b) -> a.id.compareTo(b.id));
+        return runs;
+    }
+
+    private static boolean store(Path file, Properties props) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                props.store(out, props.getProperty("url"));
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("could not write " + file, e);
+            return false;
+        }
+    }
+
+    // the response as received, or serialized when it has been parsed
+    private static byte[] content(DocumentSource response) throws IOException, TransformerException {
+        if (response.hasStream()) {
+            return IOUtils.toByteArray(response.getStream());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(
+                new DOMSource(response.getDocument()), new StreamResult(out));
+        return out.toByteArray();
+    }
+}
@@ -1,21 +1,14 @@
 package nl.mpi.oai.harvester.harvesting;
 
-import ORG.oclc.oai.harvester2.verb.HarvesterVerb;
-import ORG.oclc.oai.harvester2.verb.Identify;
 import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
 import java.io.IOException;
-import java.util.logging.Level;
+import java.io.InputStream;
 import nl.mpi.oai.harvester.utils.DocumentSource;
 
 /**
@@ -25,14 +18,14 @@ import nl.mpi.oai.harvester.utils.DocumentSource;
  *
  * The methods in the class establish a protocol that fits a scenario for
  * prefix fetching. Because a static endpoint can only present its content
- * in one way only, a request for prefixes results in a response that contains
- * all the data the endpoint contains. <br><br>
+ * in one way only, a request for prefixes results in fetching all the data
+ * the endpoint contains. <br><br>
  *
  * Strictly speaking, after invoking the request method in this class, the
  * request method in the StaticRecordListHarvesting class does not need to
- * be invoked. The response carrying the content will be passed to the
- * StaticProvider class object for reference by a StaticRecordListHarvesting
- * object. <br><br>
+ * be invoked. The content is indexed by the StaticProvider class object,
+ * for reference by a StaticRecordListHarvesting object. The response of
+ * this class is the ListMetadataFormats part of the content. <br><br>
  *
  * After invoking the request method, the processResponse and parseResponse
  * methods need to be invoked. Once the fullyParsed method returns false, all
@@ -78,41 +71,28 @@ public final class StaticPrefixHarvesting extends FormatHarvesting
            constructor.
          */
         StaticProvider p = (StaticProvider) provider;
-        response = p.getResponse();
 
-        if (response != null) {
-            // already fetched the static content
-            return true;
-        } else {
-            // content not yet there, try to fetch it
-            try {
-                response = new Identify(provider.getOaiUrl(), provider.getTimeout());
-            } catch (IOException
-                    | ParserConfigurationException
-                    | SAXException
-                    | TransformerException e) {
-                logger.error(e.getMessage(), e);
-                logger.info("Cannot get content from the static " +
-                        provider.getOaiUrl() + " endpoint");
-                return false;
-            }
-            // response contains static content, store it in the provider level
-            p.setResponse(response);
-
-            return true;
-        }
-    }
-    
-    @Override
-    public DocumentSource getResponse() {
+        // fetch and index the content, unless this was done already
+        InputStream formats;
         try {
-            StaticProvider p = (StaticProvider) provider;
-            HarvesterVerb response = p.getResponse();
-            return response.getDocumentSource();
-        } catch (Exception ex) {
-            logger.error(ex.getMessage(), ex);
+            formats = p.getRepository().getListMetadataFormats();
+        } catch (IOException
+                | XMLStreamException
+                | TransformerException e) {
+            logger.error(e.getMessage(), e);
+            logger.info("Cannot get content from the static " +
+                    provider.getOaiUrl() + " endpoint");
+            return false;
         }
-        return null;
+
+        if (formats == null) {
+            logger.info("No metadata formats in the content of the static " +
+                    provider.getOaiUrl() + " endpoint");
+            return false;
+        }
+
+        document = new DocumentSource(formats);
+        return true;
     }
 
     /**
@@ -122,29 +102,6 @@ public final class StaticPrefixHarvesting extends FormatHarvesting
      */
     public boolean processResponse() {
 
-        /* Provider is a StaticProvider class object, please refer to the
-           constructor.
-         */
-        StaticProvider p = (StaticProvider) provider;
-
-        try {
-            nodeList = (NodeList) provider.xpath.evaluate(
-                    "//*[local-name() = 'metadataFormat']",
-                    response.getDocument(),
-                    XPathConstants.NODESET);
-        } catch (XPathExpressionException | ParserConfigurationException | SAXException | IOException e) {
-            // could not extract metadata prefixes from the static content.
-            logger.error(e.getMessage(), e);
-            logger.info("Cannot obtain " + actions.getInputFormat() +
-                    " metadata prefixes for from endpoint " + p.oaiUrl);
-            return false;
-        }
-
-        /* Now the nodeList contains a list of prefixes. The superclass
-           methods can process this list.
-         */
-        return true;
+        return processResponse(getResponse());
     }
 }
-
-
@@ -19,32 +19,33 @@
 package nl.mpi.oai.harvester.harvesting;
 
 import java.io.IOException;
+import java.io.InputStream;
 import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.metadata.Metadata;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.utils.StaticRepository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
 import java.util.List;
-import javax.xml.parsers.ParserConfigurationException;
 import nl.mpi.oai.harvester.utils.DocumentSource;
-import org.xml.sax.SAXException;
 
 /**
  * <br> Get metadata records represented in a static content <br><br>
  *
  * The methods in the class establish a protocol that fits a scenario for
  * record listing. Because the class extends AbstractListHarvesting, and
- * implements harvesting of a static endpoint, the response of this endpoint
+ * implements harvesting of a static endpoint, the content of this endpoint
  * is already in place after retrieving the prefixes. StaticProvider class
- * objects contain the endpoint's response. This means that after invoking
- * processResponse, repeating parseResponse while fullyParsed returns all the
- * records represented in the static content.
+ * objects keep an index of the endpoint's content. This means that after
+ * invoking processResponse, repeating parseResponse while fullyParsed returns
+ * all the records represented in the static content. <br><br>
+ *
+ * The response for a prefix is the ListRecords part of the content for that
+ * prefix, and a record is read from the index by its identifier, so the
+ * content is never parsed as a whole.
  *
  * Note: since a endpoint providing static content, offers all its content
  * through one single response, the requestMore superclass method will always
@@ -62,6 +63,11 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
     private static final Logger logger = LogManager.getLogger(
             StaticRecordListHarvesting.class);
 
+    /**
+     * <br> Index of the static content
+     */
+    private final StaticRepository repository;
+
     /**
      * <br> Associate provider data and desired prefixes
      *
@@ -77,17 +83,22 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
 
         super(oaiFactory, provider, metadataFactory);
 
-        // get the response stored in the StaticProvider class object
-        response = provider.getResponse();
+        // get the index kept by the StaticProvider class object
+        try {
+            repository = provider.getRepository();
+        } catch (IOException | XMLStreamException | TransformerException e) {
+            logger.error(e.getMessage(), e);
+            throw new HarvestingException();
+        }
 
         this.prefixes = prefixes;
 
         // check the state
-        if ((response == null) || (prefixes.size() == 0)){
+        if (prefixes.size() == 0){
             throw new HarvestingException();
         }
 
-        /* Invariant: the response is in place, and the client at requests at
+        /* Invariant: the content is in place, and the client at requests at
            least one prefix. Apart from this the provider is a StaticProvider
            class object.
          */
@@ -104,21 +115,33 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
     @Override
     public boolean request() {
 
-        // the original response is there, please refer to the constructor
+        // the content is there, please refer to the constructor
         return true;
     }
 
     /**
      * <br> Get the response
      *
-     * @return the response
+     * @return the records for the current prefix
      */
     @Override
     public DocumentSource getResponse() {
+
+        // check for protocol errors
+        if (pIndex >= prefixes.size()) {
+            throw new HarvestingException();
+        }
+
         try {
             // static content is in place, please refer to the constructor
-            return response.getDocumentSource();
-        } catch (Exception ex) {
+            InputStream records = repository.getListRecords(prefixes.get(pIndex));
+            if (records == null) {
+                logger.info("No " + prefixes.get(pIndex) + " records in the content of endpoint " +
+                        provider.oaiUrl);
+                return null;
+            }
+            return new DocumentSource(records);
+        } catch (IOException ex) {
             logger.error(ex.getMessage(), ex);
         }
         return null;
@@ -137,56 +160,15 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
             throw new HarvestingException();
         }
 
-        /* No protocol error, pIndex refers to an array element create an
-           expression for selecting records by metadata prefix.
-         */
-        String expression = "/os:Repository/os:ListRecords[@metadataPrefix = '"+
-                prefixes.get(pIndex) +"']";
-
-        /* No protocol error, so the constructor establishes that the response
-           contains the static endpoint content.
+        /* No protocol error, pIndex refers to an array element. The index
+           lists the records of the prefix, add the ones not deleted to the
+           targets array.
          */
-
-        // parse the content
-        Node node;
-        try {
-            node = (Node) provider.xpath.evaluate(expression,
-                    document.getDocument(), XPathConstants.NODE);
-        } catch (XPathExpressionException e) {
-            // something went wrong, let the scenario try another provider
-            logger.error(e.getMessage(), e);
-            logger.info("Cannot create list of " + prefixes.get(pIndex) +
-                    " records for endpoint " + provider.oaiUrl);
-            return false;
-        }
-
-        // node contains subtree with records, turn the tree into a document
-        Document doc = provider.db.newDocument();
-        doc.appendChild(doc.importNode(node, true));
-        document.setDocument(doc);
-
-        // create expression for selecting the identifiers from the subtree
-        expression = "//*[starts-with(local-name(),'identifier') " +
-                "and parent::*[local-name()='header' " +
-                "and not(@status='deleted')]]/text()";
-        try{
-            nodeList = (NodeList)provider.xpath.evaluate(expression,
-                    document.getDocument(), XPathConstants.NODESET);
-        } catch (XPathExpressionException e) {
-            // something went wrong, let the scenario try another provider
-            logger.error(e.getMessage(), e);
-            logger.info ("Cannot create list of identifiers of " +
-                    prefixes.get(pIndex) +
-                    " records for endpoint " + provider.oaiUrl);
-            return false;
-        }
-
-        // found identifiers and prefixes, add them to the targets array
-
-        for (int j = 0; j < nodeList.getLength(); j++) {
-            String identifier = nodeList.item(j).getNodeValue();
-            IdPrefix pair = new IdPrefix(identifier, prefixes.get(pIndex));
-            targets.checkAndInsertSorted(pair);
+        for (StaticRepository.Entry entry : repository.getRecords(prefixes.get(pIndex))) {
+            if (!entry.isDeleted()) {
+                IdPrefix pair = new IdPrefix(entry.getIdentifier(), prefixes.get(pIndex));
+                targets.checkAndInsertSorted(pair);
+            }
         }
 
         // the prefix identifier pair list is ready
@@ -210,40 +192,24 @@ public final class StaticRecordListHarvesting extends AbstractListHarvesting
         IdPrefix pair = targets.get(tIndex);
         tIndex++;
 
-        // create expression for selecting record by prefix and identifier
-        String expression = "/os:Repository/os:ListRecords[@metadataPrefix = '"
-                + pair.prefix +
-                "']/oai:record[./oai:header/oai:identifier/text() = '"
-                + pair.identifier + "']";
-
-        // get the static content from the response
-        Document document = null;
-
-        // parse the content
-        Node node;
-
+        // read the record from the index
+        InputStream record;
         try {
-            document = response.getDocument();
-            node = (Node) provider.xpath.evaluate(expression,
-                    document, XPathConstants.NODE);
-        } catch (ParserConfigurationException | SAXException | IOException | XPathExpressionException e) {
+            record = repository.getRecord(pair.identifier, pair.prefix);
+        } catch (IOException e) {
             // something went wrong, let the scenario try another record
             logger.error(e.getMessage(), e);
+            record = null;
+        }
+
+        if (record == null) {
             logger.info("Cannot get " + pair.prefix + " record with id " +
                     pair.identifier + " from endpoint " + provider.oaiUrl);
             return null;
         }
 
-        // found the record, create a document to store it in
-
-        document = provider.db.newDocument();
-        // copy the subtree beginning with the node, make a deep copy
-        Node copy = document.importNode(node, true);
-        // add the node to the document
-        document.appendChild(copy);
-
         // create and return the the metadata
-        return new Metadata(pair.identifier, pair.prefix, document, provider,
+        return new Metadata(pair.identifier, pair.prefix, record, provider,
                 false, false);
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an action performed on a batch of records.
+ */
+@Name("nl.mpi.oai.harvester.Action")
+@Label("Action")
+@Category("OAI Harvest Manager")
+@Description("Action performed on a batch of records")
+@StackTrace(false)
+public final class ActionEvent extends Event {
+
+    @Label("Type")
+    String type;
+
+    @Label("Action")
+    String action;
+
+    @Label("Records")
+    int records;
+
+    @Label("Done")
+    @Description("False if the action failed")
+    boolean done;
+
+    /**
+     * @return a new event, started
+     */
+    public static ActionEvent start() {
+        ActionEvent event = new ActionEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event, and commit it if it is enabled.
+     *
+     * @param action  the action
+     * @param records the number of records in the batch
+     * @param done    false if the action failed
+     */
+    public void finish(Object action, int records, boolean done) {
+        end();
+        if (shouldCommit()) {
+            this.type = action.getClass().getSimpleName();
+            this.action = action.toString();
+            this.records = records;
+            this.done = done;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.jfr;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a request to an endpoint. The duration of the
+ * event is the time from sending the request until the response has been
+ * read completely.
+ */
+@Name("nl.mpi.oai.harvester.Fetch")
+@Label("Fetch")
+@Category("OAI Harvest Manager")
+@Description("Request to an endpoint")
+@StackTrace(false)
+public final class FetchEvent extends Event {
+
+    @Label("Host")
+    String host;
+
+    @Label("Verb")
+    String verb;
+
+    @Label("Status")
+    @Description("HTTP status of the response, 0 if there was none")
+    int status;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    /**
+     * @return a new event, started
+     */
+    public static FetchEvent start() {
+        FetchEvent event = new FetchEvent();
+        event.begin();
+        return event;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * End the event, and commit it if it is enabled.
+     *
+     * @param requestURL the URL of the request
+     */
+    public void finish(String requestURL) {
+        end();
+        if (shouldCommit()) {
+            try {
+                host = new URL(requestURL).getHost();
+            } catch (MalformedURLException e) {
+                host = requestURL;
+            }
+            int i = requestURL.indexOf("verb=");
+            if (i >= 0) {
+                int j = requestURL.indexOf('&', i);
+                verb = requestURL.substring(i + 5, (j < 0) ? requestURL.length() : j);
+            }
+            commit();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for parsing a response or record into a tree.
+ */
+@Name("nl.mpi.oai.harvester.Parse")
+@Label("Parse")
+@Category("OAI Harvest Manager")
+@Description("Parse of a response or record into a tree")
+@StackTrace(false)
+public final class ParseEvent extends Event {
+
+    @Label("Source")
+    @Description("The request or record parsed")
+    String source;
+
+    /**
+     * @return a new event, started
+     */
+    public static ParseEvent start() {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event, and commit it if it is enabled.
+     *
+     * @param source the request or record parsed
+     */
+    public void finish(String source) {
+        end();
+        if (shouldCommit()) {
+            this.source = source;
+            commit();
+        }
+    }
+}
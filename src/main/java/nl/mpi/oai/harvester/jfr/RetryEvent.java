@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for the wait before retrying a request. The
+ * duration of the event is the time actually waited.
+ */
+@Name("nl.mpi.oai.harvester.Retry")
+@Label("Retry")
+@Category("OAI Harvest Manager")
+@Description("Wait before retrying a request to an endpoint")
+@StackTrace(false)
+public final class RetryEvent extends Event {
+
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Attempt")
+    @Description("The number of the attempt that failed, starting at 0")
+    int attempt;
+
+    @Label("Delay")
+    @Timespan(Timespan.MILLISECONDS)
+    long delay;
+
+    @Label("Breaker")
+    @Description("State of the circuit breaker of the endpoint")
+    String breaker;
+
+    @Label("Retried")
+    @Description("False if the request was given up")
+    boolean retried;
+
+    /**
+     * @return a new event, started
+     */
+    public static RetryEvent start() {
+        RetryEvent event = new RetryEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event, and commit it if it is enabled.
+     *
+     * @param endpoint the endpoint
+     * @param attempt  the number of the attempt that failed
+     * @param delay    the delay in milliseconds
+     * @param breaker  the state of the breaker of the endpoint
+     * @param retried  false if the request was given up
+     */
+    public void finish(String endpoint, int attempt, long delay, Object breaker, boolean retried) {
+        end();
+        if (shouldCommit()) {
+            this.endpoint = endpoint;
+            this.attempt = attempt;
+            this.delay = delay;
+            this.breaker = String.valueOf(breaker);
+            this.retried = retried;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for saving a record.
+ */
+@Name("nl.mpi.oai.harvester.Save")
+@Label("Save")
+@Category("OAI Harvest Manager")
+@Description("Record saved to the file system")
+@StackTrace(false)
+public final class SaveEvent extends Event {
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Skipped")
+    @Description("True if the record was not written because it did not change")
+    boolean skipped;
+
+    /**
+     * @return a new event, started
+     */
+    public static SaveEvent start() {
+        SaveEvent event = new SaveEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event, and commit it if it is enabled.
+     *
+     * @param path    the file the record was saved in
+     * @param bytes   the size of the record, -1 if not known
+     * @param skipped true if the file was not written because the record did
+     *                not change
+     */
+    public void finish(Object path, long bytes, boolean skipped) {
+        end();
+        if (shouldCommit()) {
+            this.path = String.valueOf(path);
+            this.bytes = bytes;
+            this.skipped = skipped;
+            commit();
+        }
+    }
+}
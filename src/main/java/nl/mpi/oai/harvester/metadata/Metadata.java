@@ -254,6 +254,17 @@ public class Metadata extends Record {
         this.isList = isList;
     }
     
+    /**
+     * Create a copy of this record that shares its content, so another
+     * action sequence can process the record without it being fetched or
+     * parsed again.
+     *
+     * @return the copy
+     */
+    public Metadata share() {
+        return new Metadata(id, prefix, docSrc.share(), origin, isEnvelope, isList);
+    }
+
     /**
      * Close the underlying streams
      */
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the harvest as a whole: the counters of all
+ * providers together, the state of the workers and the pools, and the
+ * latencies of the stages.
+ */
+public interface HarvestMetricsMXBean extends ProviderMetricsMXBean {
+
+    /**
+     * @return the current values of the gauges, like the number of active
+     *         workers, by name
+     */
+    Map<String, Double> getGauges();
+
+    /**
+     * @return the mean latency in milliseconds of the stages, like fetch,
+     *         parse and the actions, by name
+     */
+    Map<String, Double> getLatencies();
+}
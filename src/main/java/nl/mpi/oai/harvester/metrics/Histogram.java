@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations, with fixed buckets. Observations only increment
+ * counters, so any number of threads can record into the same histogram
+ * without waiting for each other.
+ */
+public final class Histogram {
+
+    /** Upper bounds of the buckets, in seconds. */
+    static final double[] BOUNDS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300};
+
+    // the last bucket has no upper bound
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void observe(long nanos) {
+        double seconds = nanos / 1e9;
+        int i = 0;
+        while (i < BOUNDS.length && seconds > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the durations recorded, in seconds
+     */
+    public double getSum() {
+        return sum.sum() / 1e9;
+    }
+
+    /**
+     * @return the mean of the durations recorded, in milliseconds
+     */
+    public double getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0.0 : sum.sum() / (n * 1e6);
+    }
+
+    /**
+     * @return for every bound in {@link #BOUNDS} the number of durations
+     *         up to that bound, followed by the total number
+     */
+    long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Live metrics of the harvest. <br><br>
+ *
+ * The harvester counts requests, bytes, records and retries for every
+ * provider, and keeps histograms of the latencies of fetching, parsing and
+ * every action. Gauges report the state of the workers and the pools at
+ * the moment they are read. <br><br>
+ *
+ * All metrics can be inspected over JMX, under the nl.mpi.oai.harvester
+ * domain: the harvest as a whole, and every provider that has been
+ * harvested. If a port is configured, they are also served over HTTP in
+ * the Prometheus text format, at /metrics.
+ */
+public final class Metrics {
+
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    private static final String DOMAIN = "nl.mpi.oai.harvester";
+
+    /** The stage of sending a request and reading the response. */
+    public static final String FETCH = "fetch";
+
+    /** The stage of parsing a response or record into a tree. */
+    public static final String PARSE = "parse";
+
+    /** The wait for a resource, like an action, from a pool. */
+    public static final String POOL_WAIT = "pool_wait";
+
+    private static final Harvest harvest = new Harvest();
+
+    private static final ConcurrentHashMap<String, ProviderMetrics> providers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> stages = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> actions = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    // the provider the current thread works for
+    private static final ThreadLocal<ProviderMetrics> current = new ThreadLocal<>();
+
+    private static HttpServer server = null;
+
+    static {
+        register(harvest, DOMAIN + ":type=Harvest");
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Serve the metrics over HTTP, in the Prometheus text format, on the
+     * loopback interface.
+     *
+     * @param port the port to serve the metrics on, 0 to not serve them
+     */
+    public static void configure(int port) {
+        configure(null, port);
+    }
+
+    /**
+     * Serve the metrics over HTTP, in the Prometheus text format.
+     *
+     * @param address the address to bind to, null for the loopback
+     *                interface
+     * @param port    the port to serve the metrics on, 0 to not serve them
+     */
+    public static synchronized void configure(String address, int port) {
+        stop();
+        if (port <= 0) {
+            return;
+        }
+        try {
+            InetSocketAddress bind = (address == null)
+                    ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                    : new InetSocketAddress(InetAddress.getByName(address), port);
+            server = HttpServer.create(bind, 0);
+            server.createContext("/metrics", exchange -> {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (Writer w = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+                    write(w);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, buffer.size());
+                try (OutputStream os = exchange.getResponseBody()) {
+                    buffer.writeTo(os);
+                }
+            });
+            server.start();
+            logger.info("metrics: serving on address[" + bind.getAddress().getHostAddress() + "] port[" + port + "]");
+        } catch (IOException e) {
+            logger.error("metrics: cannot serve on address[" + address + "] port[" + port + "]: " + e.getMessage());
+            server = null;
+        }
+    }
+
+    /**
+     * Stop serving the metrics over HTTP.
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * @return true if the metrics are served over HTTP
+     */
+    public static synchronized boolean isServing() {
+        return server != null;
+    }
+
+    /**
+     * @return the counters of the harvest as a whole
+     */
+    public static ProviderMetrics total() {
+        return harvest;
+    }
+
+    /**
+     * @param name the name of a provider
+     * @return the counters of the provider
+     */
+    public static ProviderMetrics provider(String name) {
+        return providers.computeIfAbsent(name, k -> {
+            ProviderMetrics metrics = new ProviderMetrics(k, harvest);
+            register(metrics, DOMAIN + ":type=Provider,name=" + ObjectName.quote(k));
+            return metrics;
+        });
+    }
+
+    /**
+     * Attribute what the current thread does to a provider, until
+     * {@link #leave()} is called.
+     *
+     * @param name the name of the provider
+     */
+    public static void enter(String name) {
+        current.set(provider(name));
+    }
+
+    /**
+     * Attribute what the current thread does to the given counters, for
+     * example those {@link #current()} returned on the thread that handed
+     * the work over.
+     *
+     * @param metrics the counters of a provider, or those of the harvest as
+     *                a whole
+     */
+    public static void enter(ProviderMetrics metrics) {
+        if (metrics == harvest) {
+            current.remove();
+        } else {
+            current.set(metrics);
+        }
+    }
+
+    /**
+     * Stop attributing what the current thread does to a provider.
+     */
+    public static void leave() {
+        current.remove();
+    }
+
+    /**
+     * @return the counters of the provider the current thread works for, or
+     *         those of the harvest as a whole
+     */
+    public static ProviderMetrics current() {
+        ProviderMetrics metrics = current.get();
+        return (metrics == null) ? harvest : metrics;
+    }
+
+    /**
+     * Record the duration of a stage.
+     *
+     * @param stage the stage, like {@link #FETCH}
+     * @param nanos the duration in nanoseconds
+     */
+    public static void time(String stage, long nanos) {
+        stages.computeIfAbsent(stage, k -> new Histogram()).observe(nanos);
+    }
+
+    /**
+     * Record the duration of an action.
+     *
+     * @param action the action
+     * @param nanos  the duration in nanoseconds
+     */
+    public static void timeAction(String action, long nanos) {
+        actions.computeIfAbsent(action, k -> new Histogram()).observe(nanos);
+    }
+
+    /**
+     * Add a gauge, replacing any gauge with the same name.
+     *
+     * @param name  the name of the gauge, like workers_active
+     * @param gauge the current value of the gauge
+     */
+    public static void gauge(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            logger.debug("metrics: cannot register MBean[" + name + "]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param w the writer
+     * @throws IOException the metrics could not be written
+     */
+    static void write(Writer w) throws IOException {
+        Map<String, ProviderMetrics> sorted = new TreeMap<>(providers);
+
+        counter(w, "oai_requests_total", "Requests sent to the endpoints", sorted, ProviderMetrics::getRequests);
+        counter(w, "oai_response_bytes_total", "Bytes received from the endpoints", sorted, ProviderMetrics::getBytes);
+        counter(w, "oai_records_total", "Records saved", sorted, ProviderMetrics::getRecords);
+        counter(w, "oai_skipped_records_total", "Records not saved because they did not change", sorted, ProviderMetrics::getSkippedRecords);
+        counter(w, "oai_deleted_records_total", "Records flagged as deleted", sorted, ProviderMetrics::getDeletedRecords);
+        counter(w, "oai_retries_total", "Requests retried", sorted, ProviderMetrics::getRetries);
+
+        w.write("# HELP oai_records_per_second Records saved per second since the harvest started\n");
+        w.write("# TYPE oai_records_per_second gauge\n");
+        for (ProviderMetrics metrics : sorted.values()) {
+            w.write("oai_records_per_second{provider=\"" + escape(metrics.getName()) + "\"} " + metrics.getRecordsPerSecond() + "\n");
+        }
+
+        for (Map.Entry<String, Supplier<? extends Number>> gauge : new TreeMap<>(gauges).entrySet()) {
+            String name = "oai_" + gauge.getKey();
+            w.write("# TYPE " + name + " gauge\n");
+            w.write(name + " " + gauge.getValue().get().doubleValue() + "\n");
+        }
+
+        for (Map.Entry<String, Histogram> stage : new TreeMap<>(stages).entrySet()) {
+            String name = "oai_" + stage.getKey() + "_seconds";
+            w.write("# TYPE " + name + " histogram\n");
+            histogram(w, name, "", stage.getValue());
+        }
+
+        if (!actions.isEmpty()) {
+            w.write("# HELP oai_action_seconds Time taken by an action on a batch of records\n");
+            w.write("# TYPE oai_action_seconds histogram\n");
+            for (Map.Entry<String, Histogram> action : new TreeMap<>(actions).entrySet()) {
+                histogram(w, "oai_action_seconds", "action=\"" + escape(action.getKey()) + "\",", action.getValue());
+            }
+        }
+        w.flush();
+    }
+
+    private interface Count {
+        long get(ProviderMetrics metrics);
+    }
+
+    private static void counter(Writer w, String name, String help, Map<String, ProviderMetrics> providers, Count count) throws IOException {
+        w.write("# HELP " + name + " " + help + "\n");
+        w.write("# TYPE " + name + " counter\n");
+        for (ProviderMetrics metrics : providers.values()) {
+            w.write(name + "{provider=\"" + escape(metrics.getName()) + "\"} " + count.get(metrics) + "\n");
+        }
+    }
+
+    private static void histogram(Writer w, String name, String labels, Histogram histogram) throws IOException {
+        long[] counts = histogram.getCumulativeCounts();
+        for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+            w.write(name + "_bucket{" + labels + "le=\"" + Histogram.BOUNDS[i] + "\"} " + counts[i] + "\n");
+        }
+        w.write(name + "_bucket{" + labels + "le=\"+Inf\"} " + counts[counts.length - 1] + "\n");
+        String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        w.write(name + "_sum" + suffix + " " + histogram.getSum() + "\n");
+        w.write(name + "_count" + suffix + " " + histogram.getCount() + "\n");
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /* The harvest as a whole: the counters of all providers together, and
+       the gauges and histograms.
+     */
+    static class Harvest extends ProviderMetrics implements HarvestMetricsMXBean {
+
+        Harvest() {
+            super("harvest", null);
+        }
+
+        @Override
+        public Map<String, Double> getGauges() {
+            Map<String, Double> values = new TreeMap<>();
+            for (Map.Entry<String, Supplier<? extends Number>> gauge : gauges.entrySet()) {
+                values.put(gauge.getKey(), gauge.getValue().get().doubleValue());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Double> getLatencies() {
+            Map<String, Double> values = new TreeMap<>();
+            for (Map.Entry<String, Histogram> stage : stages.entrySet()) {
+                values.put(stage.getKey(), stage.getValue().getMean());
+            }
+            for (Map.Entry<String, Histogram> action : actions.entrySet()) {
+                values.put("action: " + action.getKey(), action.getValue().getMean());
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a provider. Every count is added to the counters of the
+ * harvest as a whole as well.
+ */
+public class ProviderMetrics implements ProviderMetricsMXBean {
+
+    private final String name;
+
+    // the counters of the harvest as a whole, null for those themselves
+    private final ProviderMetrics total;
+
+    private final long started = System.currentTimeMillis();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    ProviderMetrics(String name, ProviderMetrics total) {
+        this.name = name;
+        this.total = total;
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param size the number of bytes received
+     */
+    public void request(long size) {
+        requests.increment();
+        bytes.add(size);
+        if (total != null)
+            total.request(size);
+    }
+
+    /**
+     * Count a record saved.
+     */
+    public void record() {
+        records.increment();
+        if (total != null)
+            total.record();
+    }
+
+    /**
+     * Count a record not saved because it did not change.
+     */
+    public void skipped() {
+        skipped.increment();
+        if (total != null)
+            total.skipped();
+    }
+
+    /**
+     * Count a record flagged as deleted.
+     */
+    public void deleted() {
+        deleted.increment();
+        if (total != null)
+            total.deleted();
+    }
+
+    /**
+     * Count a request retried.
+     */
+    public void retry() {
+        retries.increment();
+        if (total != null)
+            total.retry();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @Override
+    public long getSkippedRecords() {
+        return skipped.sum();
+    }
+
+    @Override
+    public long getDeletedRecords() {
+        return deleted.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public double getRecordsPerSecond() {
+        long millis = System.currentTimeMillis() - started;
+        return (millis <= 0) ? 0.0 : records.sum() * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.metrics;
+
+/**
+ * Management interface of the counters of a provider, or of the harvest as
+ * a whole.
+ */
+public interface ProviderMetricsMXBean {
+
+    /**
+     * @return the name of the provider
+     */
+    String getName();
+
+    /**
+     * @return the number of requests sent
+     */
+    long getRequests();
+
+    /**
+     * @return the number of bytes received
+     */
+    long getBytes();
+
+    /**
+     * @return the number of records saved
+     */
+    long getRecords();
+
+    /**
+     * @return the number of records not saved because they did not change
+     */
+    long getSkippedRecords();
+
+    /**
+     * @return the number of records the endpoints flagged as deleted
+     */
+    long getDeletedRecords();
+
+    /**
+     * @return the number of requests retried
+     */
+    long getRetries();
+
+    /**
+     * @return the number of records saved per second since the harvest
+     *         started
+     */
+    double getRecordsPerSecond();
+}
@@ -5,21 +5,35 @@ import nl.mpi.oai.harvester.StaticProvider;
 import nl.mpi.oai.harvester.action.ActionSequence;
 import nl.mpi.oai.harvester.control.Configuration;
 import nl.mpi.oai.harvester.control.FileSynchronization;
+import nl.mpi.oai.harvester.control.LeaseRegistry;
 import nl.mpi.oai.harvester.control.Main;
+import nl.mpi.oai.harvester.control.RecordIndex;
+import nl.mpi.oai.harvester.control.Scheduler;
 import nl.mpi.oai.harvester.control.Util;
 import nl.mpi.oai.harvester.cycle.Cycle;
 import nl.mpi.oai.harvester.cycle.Endpoint;
 import nl.mpi.oai.harvester.harvesting.*;
 import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import nl.mpi.oai.harvester.utils.AdaptiveLimit;
+import nl.mpi.oai.harvester.utils.CircuitBreaker;
+import nl.mpi.oai.harvester.utils.Pacing;
+import nl.mpi.oai.harvester.utils.Retry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.ThreadContext;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class represents a single processing thread in the harvesting actions
@@ -77,6 +91,16 @@ public class OaiProtocol extends Protocol {
         // register the endpoint with the cycle, kj: get the group
         endpoint = cycle.next(provider.getOaiUrl(), "group");
 
+        // pick up the circuit breaker of the endpoint where the previous cycle left it
+        Retry.restore(provider.getOaiUrl(), endpoint.getBreakerState(),
+                endpoint.getBreakerFailures(), endpoint.getBreakerOpened().getMillis());
+
+        // and the pace of its requests
+        if (endpoint.getPacingConcurrency() > 0) {
+            Pacing.restore(provider.getOaiUrl(), endpoint.getPacingConcurrency(),
+                    endpoint.getPacingInterval(), endpoint.getPacingLatency());
+        }
+
         // get the name of the scenario the worker needs to apply
         this.scenarioName = provider.getScenario();
     }
@@ -93,6 +117,9 @@ public class OaiProtocol extends Protocol {
             // setting specific log filename
             ThreadContext.put("logFileName", Util.toFileFormat(provider.getName()).replaceAll("/", ""));
 
+            // count what this thread does for the provider
+            Metrics.enter(provider.getName());
+
             String map = config.getMapFile();
             String workDir = config.getWorkingDirectory();
             map = workDir + "/" + map;
@@ -121,7 +148,15 @@ public class OaiProtocol extends Protocol {
 
             FileSynchronization.addProviderStatistic(provider);
 
-            for (final ActionSequence actionSequence : actionSequences) {
+            // in harvest once mode, all sequences are served by a single harvest
+            List<ActionSequence> sequences = actionSequences;
+            if (config.isHarvestOnce() && !config.isDryRun()) {
+                done = harvestOnce(oaiFactory, metadataFactory);
+                logger.debug("harvest once -> done[" + done + "]");
+                sequences = Collections.emptyList();
+            }
+
+            for (final ActionSequence actionSequence : sequences) {
 
                 if (config.isDryRun()) {
                     logger.info("Dry run mode. Skipping action sequence: {{}}", actionSequence.toString());
@@ -206,8 +241,23 @@ public class OaiProtocol extends Protocol {
                 if (done) break;
             }
 
-            // report back success or failure to the cycle
-            endpoint.doneHarvesting(done);
+            // record the state of the circuit breaker
+            CircuitBreaker breaker = Retry.breaker(provider.getOaiUrl());
+            endpoint.setBreaker(breaker.getState().toString(), breaker.getFailures(),
+                    breaker.getOpened() == 0 ? null : new DateTime(breaker.getOpened(), DateTimeZone.UTC));
+
+            // and the pace the endpoint could take
+            if (Pacing.isEnabled()) {
+                AdaptiveLimit limit = Pacing.limit(provider.getOaiUrl());
+                endpoint.setPacing(limit.getLimit(), limit.getInterval(), limit.getLatency());
+            }
+
+            // report back success or failure to the cycle, unless another harvester took over
+            if (LeaseRegistry.isHeld()) {
+                endpoint.doneHarvesting(done);
+            } else {
+                logger.error("Lost the lease on " + provider + ", not updating the overview");
+            }
             if (config.isIncremental()) {
                 FileSynchronization.saveStatistics(provider);
                 endpoint.setIncrement(FileSynchronization.getProviderStatistic(provider).getHarvestedRecords());
@@ -220,15 +270,100 @@ public class OaiProtocol extends Protocol {
         } finally {
             provider.close();
 
+            // write the index of the records saved
+            RecordIndex.close(provider);
+
             ThreadContext.clearAll();
+            Metrics.leave();
 
             // tell the main log how it went
             if (t != null)
                 logger.error("Processing failed for " + provider + ": " + t.getMessage(), t);
             else
                 logger.info("Processing finished for " + provider);
+            logger.debug("cpu pool: " + Scheduler.getStatistics());
 
             logger.debug("Goodbye from OAI Harvest Manager worker!");
         }
     }
+
+    /**
+     * Harvest the prefixes needed by all the action sequences once, and pass
+     * every response to each of the sequences matching its prefix. This
+     * saves a harvest per sequence when a provider is harvested for more
+     * than one output format.
+     *
+     * @param oaiFactory      factory for OAI verbs
+     * @param metadataFactory factory for metadata records
+     * @return true if all prefixes were harvested, false otherwise
+     */
+    private boolean harvestOnce(OAIFactory oaiFactory, MetadataFactory metadataFactory) {
+
+        // for each prefix provided by the endpoint, the sequences accepting it
+        Map<String, List<ActionSequence>> fanOut = new LinkedHashMap<>();
+
+        for (ActionSequence actionSequence : actionSequences) {
+            OAIScenario scenario = new OAIScenario(provider, actionSequence);
+
+            AbstractHarvesting harvesting;
+            if (provider instanceof StaticProvider) {
+                harvesting = new StaticPrefixHarvesting(oaiFactory,
+                        (StaticProvider) provider, actionSequence);
+            } else {
+                harvesting = new FormatHarvesting(oaiFactory, provider,
+                        actionSequence);
+            }
+
+            for (String prefix : scenario.getPrefixes(harvesting)) {
+                List<ActionSequence> sequences = fanOut.computeIfAbsent(prefix,
+                        p -> new ArrayList<>());
+                if (!sequences.contains(actionSequence)) {
+                    sequences.add(actionSequence);
+                }
+            }
+        }
+        logger.debug("prefixes[" + fanOut.keySet() + "]");
+
+        if (fanOut.isEmpty()) {
+            logger.debug("no prefixes -> done");
+            return false;
+        }
+
+        boolean done = true;
+        for (Map.Entry<String, List<ActionSequence>> entry : fanOut.entrySet()) {
+            List<String> prefixes = Collections.singletonList(entry.getKey());
+            OAIScenario scenario = new OAIScenario(provider, entry.getValue());
+
+            logger.info("Harvesting prefix[" + entry.getKey() + "] once for "
+                    + entry.getValue().size() + " action sequence(s)");
+
+            AbstractHarvesting harvesting;
+            if (provider instanceof StaticProvider) {
+                harvesting = new StaticRecordListHarvesting(oaiFactory,
+                        (StaticProvider) provider, prefixes, metadataFactory);
+            } else if (scenarioName.equals("ListIdentifiers")) {
+                harvesting = new IdentifierListHarvesting(oaiFactory,
+                        provider, prefixes, metadataFactory, endpoint);
+            } else {
+                harvesting = new RecordListHarvesting(oaiFactory,
+                        provider, prefixes, metadataFactory, endpoint);
+            }
+
+            boolean harvested;
+            if (scenarioName.equals("ListIdentifiers")) {
+                harvested = scenario.listIdentifiers(harvesting);
+                logger.debug("list identifiers -> done[" + harvested + "]");
+            } else {
+                harvested = scenario.listRecords(harvesting);
+                logger.debug("list records -> done[" + harvested + "]");
+            }
+            done = done && harvested;
+        }
+
+        if (!(provider instanceof StaticProvider) && Main.config.isIncremental()) {
+            FileSynchronization.execute(provider);
+        }
+
+        return done;
+    }
 }
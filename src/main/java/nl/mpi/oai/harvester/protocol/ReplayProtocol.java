@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.protocol;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.action.ActionSequence;
+import nl.mpi.oai.harvester.control.Configuration;
+import nl.mpi.oai.harvester.control.FileSynchronization;
+import nl.mpi.oai.harvester.control.RecordIndex;
+import nl.mpi.oai.harvester.control.Util;
+import nl.mpi.oai.harvester.cycle.Cycle;
+import nl.mpi.oai.harvester.harvesting.OAIScenario;
+import nl.mpi.oai.harvester.harvesting.ResponseArchive;
+import nl.mpi.oai.harvester.metadata.MetadataFactory;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Worker that passes the archived responses of a provider through the
+ * action sequences, instead of harvesting the provider. It does not make
+ * any requests, and leaves the harvest dates in the overview alone, so
+ * the next harvest continues where the last one left off.
+ * @see ResponseArchive
+ */
+public class ReplayProtocol extends Protocol {
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private final Configuration config;
+
+    private final Provider provider;
+
+    private final List<ActionSequence> actionSequences;
+
+    /**
+     * Associate a provider with the archive of its responses
+     *
+     * @param provider OAI-PMH provider that this thread will replay
+     * @param config   the configuration
+     * @param cycle    the harvesting cycle
+     */
+    public ReplayProtocol(Provider provider, Configuration config, Cycle cycle) {
+        super(provider, config, cycle);
+
+        this.config = config;
+
+        this.provider = provider;
+
+        this.actionSequences = config.getActionSequences();
+    }
+
+    @Override
+    public void run() {
+        Throwable t = null;
+        try {
+            ResponseArchive archive = new ResponseArchive(config.getArchiveDirectory());
+            List<ResponseArchive.Run> runs = archive.runs(provider);
+            if (runs.isEmpty()) {
+                logger.info("Nothing archived for " + provider.getOaiUrl());
+                return;
+            }
+
+            // the name the records were saved under, without asking the endpoint
+            provider.setName(runs.get(runs.size() - 1).getName());
+
+            Thread.currentThread().setName(provider.getName().replaceAll("[^a-zA-Z0-9\\-\\(\\)]", " "));
+
+            // setting specific log filename
+            ThreadContext.put("logFileName", Util.toFileFormat(provider.getName()).replaceAll("/", ""));
+
+            // count what this thread does for the provider
+            Metrics.enter(provider.getName());
+
+            FileSynchronization.addProviderStatistic(provider);
+
+            MetadataFactory metadataFactory = new MetadataFactory();
+
+            for (ResponseArchive.Run run : runs) {
+                // the sequences the pages were harvested for, as configured now
+                List<String> formats = Arrays.asList(run.getFormat().split("\\+"));
+                List<ActionSequence> sequences = new ArrayList<>();
+                for (ActionSequence actionSequence : actionSequences) {
+                    if (formats.contains(actionSequence.getInputFormat().toString())) {
+                        sequences.add(actionSequence);
+                    }
+                }
+                if (sequences.isEmpty()) {
+                    logger.info("No action sequence for " + run + " of " + provider);
+                    continue;
+                }
+
+                logger.info("Replaying " + run + " of " + provider);
+                boolean done = new OAIScenario(provider, sequences).replay(run, metadataFactory);
+                logger.debug("replay -> done[" + done + "]");
+            }
+        } catch (Throwable e) {
+            t = e;
+            throw e;
+        } finally {
+            // write the index of the records saved
+            RecordIndex.close(provider);
+
+            ThreadContext.clearAll();
+            Metrics.leave();
+
+            if (t != null)
+                logger.error("Replay failed for " + provider + ": " + t.getMessage(), t);
+            else
+                logger.info("Replay finished for " + provider);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+/**
+ * Adaptive limit on the requests to a single endpoint. <br><br>
+ *
+ * The limit bounds the number of requests to the endpoint in flight at the
+ * same time, and the interval between the start of two requests. Both
+ * follow additive increase, multiplicative decrease: every response that
+ * arrives in time raises the number of requests by one per round of
+ * requests, and the request rate by a small step. A server error, a
+ * timeout or a response that takes much longer than usual halves the
+ * number of requests and doubles the interval, at most once per window.
+ * <br><br>
+ *
+ * The usual time to the first byte of a response is a moving average over
+ * the responses that arrived.
+ */
+public final class AdaptiveLimit {
+
+    // factor applied to the number of requests when backing off
+    static final double DECREASE = 0.5;
+
+    // a response taking this many times longer than usual is a spike
+    static final double TOLERANCE = 3.0;
+
+    // number of responses before latency spikes are looked for
+    static final long WARMUP = 5;
+
+    // weight of a response in the moving average of the latency
+    static final double WEIGHT = 0.1;
+
+    // time in milliseconds between two decreases
+    static final long WINDOW = 1000;
+
+    // interval in milliseconds after the first decrease, and the maximum
+    static final long MIN_INTERVAL = 250;
+    static final long MAX_INTERVAL = 60 * 1000;
+
+    // requests per second added to the rate for every response in time
+    static final double RATE_STEP = 0.1;
+
+    private final int max;
+
+    private double limit = 1;
+    private long interval = 0;
+    private double latency = 0;
+    private long samples = 0;
+
+    private int inFlight = 0;
+    private long next = 0;
+    private long decreased = -WINDOW;
+
+    /**
+     * Create a limit allowing one request at a time, at full speed.
+     *
+     * @param max the maximum number of requests in flight
+     */
+    AdaptiveLimit(int max) {
+        this.max = Math.max(max, 1);
+    }
+
+    /**
+     * Wait until another request may be sent, and reserve a slot for it.
+     *
+     * @return the time in milliseconds to wait before sending the request
+     * @throws InterruptedException the thread was interrupted while waiting
+     */
+    synchronized long acquire() throws InterruptedException {
+        while (inFlight >= permits()) {
+            wait();
+        }
+        inFlight++;
+        return reserve(System.currentTimeMillis());
+    }
+
+    /**
+     * Reserve the next start of a request.
+     *
+     * @param now the current time in milliseconds
+     * @return the time in milliseconds to wait before sending the request
+     */
+    synchronized long reserve(long now) {
+        long start = Math.max(now, next);
+        next = start + interval;
+        return start - now;
+    }
+
+    /**
+     * Record a response that arrived, and raise the limit unless it took
+     * much longer than usual.
+     *
+     * @param now     the current time in milliseconds
+     * @param latency the time in milliseconds to the first byte
+     * @return true if the limit was lowered because of a latency spike
+     */
+    synchronized boolean success(long now, long latency) {
+        done();
+        boolean spike = samples >= WARMUP && latency > TOLERANCE * this.latency;
+        this.latency = (samples == 0) ? latency : this.latency + WEIGHT * (latency - this.latency);
+        samples++;
+        if (spike) {
+            return decrease(now);
+        }
+        limit = Math.min(max, limit + 1 / limit);
+        if (interval > 0) {
+            double rate = 1000.0 / interval + RATE_STEP;
+            interval = (1000.0 / rate < 10) ? 0 : (long) (1000.0 / rate);
+        }
+        return false;
+    }
+
+    /**
+     * Record a request that failed because of the endpoint, like a server
+     * error or a timeout, and lower the limit.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the limit was lowered
+     */
+    synchronized boolean failure(long now) {
+        done();
+        return decrease(now);
+    }
+
+    /**
+     * Record a request that says nothing about the load of the endpoint,
+     * like a redirect or a client error.
+     */
+    synchronized void release() {
+        done();
+    }
+
+    private void done() {
+        inFlight = Math.max(0, inFlight - 1);
+        notifyAll();
+    }
+
+    private boolean decrease(long now) {
+        if (now - decreased < WINDOW) {
+            // the requests in flight were sent at the same rate
+            return false;
+        }
+        decreased = now;
+        limit = Math.max(1, limit * DECREASE);
+        interval = Math.min(MAX_INTERVAL, Math.max(MIN_INTERVAL, interval * 2));
+        return true;
+    }
+
+    /**
+     * Restore the limit recorded in the overview by an earlier run.
+     *
+     * @param limit    the number of requests in flight
+     * @param interval the time in milliseconds between two requests
+     * @param latency  the usual time in milliseconds to the first byte, 0 if
+     *                 not known
+     */
+    synchronized void restore(double limit, long interval, long latency) {
+        this.limit = Math.min(max, Math.max(1, limit));
+        this.interval = Math.min(MAX_INTERVAL, Math.max(0, interval));
+        this.latency = Math.max(0, latency);
+        this.samples = (latency > 0) ? WARMUP : 0;
+    }
+
+    /**
+     * @return the number of requests that may be in flight
+     */
+    public synchronized int permits() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of requests that may be in flight, with the
+     *         fraction gained towards the next one
+     */
+    public synchronized double getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the time in milliseconds between the start of two requests
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the usual time in milliseconds to the first byte, 0 if not
+     *         known
+     */
+    public synchronized long getLatency() {
+        return Math.round(latency);
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
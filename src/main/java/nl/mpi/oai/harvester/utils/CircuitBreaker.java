@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+/**
+ * Circuit breaker for a single endpoint. <br><br>
+ *
+ * The breaker is closed while the endpoint responds. After a number of
+ * consecutive failures, like server errors or connections that cannot be
+ * made, it opens: requests to the endpoint fail right away instead of
+ * putting more load on it. Once the breaker has been open for a while, it
+ * is half open and lets requests through again. If the first of these
+ * succeeds, the breaker closes; if it fails, the breaker opens again.
+ */
+public final class CircuitBreaker {
+
+    /**
+     * The states of a breaker, named as in the overview.
+     */
+    public enum State {
+        CLOSED("closed"), OPEN("open"), HALF_OPEN("half-open");
+
+        private final String name;
+
+        State(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * @param name the name of a state, as in the overview
+         * @return the state, closed if the name is not known
+         */
+        public static State of(String name) {
+            for (State state : values()) {
+                if (state.name.equals(name)) {
+                    return state;
+                }
+            }
+            return CLOSED;
+        }
+    }
+
+    private final int threshold;
+    private final long delay;
+
+    private State state = State.CLOSED;
+    private long failures = 0;
+    private long opened = 0;
+
+    /**
+     * Create a closed breaker.
+     *
+     * @param threshold the number of consecutive failures that opens the
+     *                  breaker
+     * @param delay     time in milliseconds the breaker stays open
+     */
+    CircuitBreaker(int threshold, long delay) {
+        this.threshold = threshold;
+        this.delay = delay;
+    }
+
+    /**
+     * Check if a request may be made now. An open breaker becomes half open
+     * when its delay has passed.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the request may be made
+     */
+    synchronized boolean allow(long now) {
+        if (state == State.OPEN && now - opened >= delay) {
+            state = State.HALF_OPEN;
+        }
+        return state != State.OPEN;
+    }
+
+    /**
+     * Record a request that succeeded, closing the breaker.
+     */
+    synchronized void success() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Record a request that failed.
+     *
+     * @param now the current time in milliseconds
+     * @return true if the breaker opened because of this failure
+     */
+    synchronized boolean failure(long now) {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && threshold > 0 && failures >= threshold)) {
+            state = State.OPEN;
+            opened = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Restore the state recorded in the overview by an earlier run.
+     *
+     * @param state    the state
+     * @param failures the number of consecutive failures
+     * @param opened   the time in milliseconds the breaker opened
+     */
+    synchronized void restore(State state, long failures, long opened) {
+        this.state = state;
+        this.failures = failures;
+        this.opened = opened;
+    }
+
+    /**
+     * @return the state of the breaker
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of consecutive failures
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the time in milliseconds the breaker last opened, 0 if it
+     *         never did
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return the time in milliseconds until the breaker is half open, 0 if
+     *         it is not open
+     */
+    synchronized long remaining(long now) {
+        return (state == State.OPEN) ? Math.max(0, opened + delay - now) : 0;
+    }
+}
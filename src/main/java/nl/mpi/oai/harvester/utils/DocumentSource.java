@@ -21,14 +21,21 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipInputStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import nl.mpi.oai.harvester.jfr.FetchEvent;
+import nl.mpi.oai.harvester.jfr.ParseEvent;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Document;
@@ -43,11 +50,23 @@ public class DocumentSource {
     
     private static final Logger logger = LogManager.getLogger(DocumentSource.class);
     
+    // the endpoints to sanitize the responses of, with whether to replace
+    // invalid sequences, see sanitize()
+    private static final Map<String, Boolean> sanitized = new ConcurrentHashMap<>();
+
+    // the prefix of the files responses are spooled to, see spool()
+    static final String SPOOL_PREFIX = "oai-spool-";
+    
     private String id = null;
     
     private Document doc = null;
     private InputStream str = null;
     
+    // the source this one shares its content with, see share()
+    private DocumentSource origin = null;
+    private InputStream shared = null;
+    private boolean isShared = false;
+    
     public DocumentSource(Document doc) {
         this("",doc);
     }
@@ -79,16 +98,31 @@ public class DocumentSource {
     }
     
     public Document getDocument() {
-        if (doc==null) {
+        if (doc==null && origin!=null) {
+            // parse the shared content only once
+            doc = origin.getDocument();
+            drop();
+        } else if (doc==null) {
+            ParseEvent event = ParseEvent.start();
+            long started = System.nanoTime();
             try {
                 DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
                 DocumentBuilder db = dbf.newDocumentBuilder();
-                doc = db.parse(getSource());         
-                str = null;
-                logger.debug("switched from stream to tree for DocumentSource["+id+"]",new Throwable());
+                if (isShared) {
+                    // keep the stream open for the other consumers
+                    doc = db.parse(new InputSource(CloseShieldInputStream.wrap(getStream())));
+                } else {
+                    doc = db.parse(getSource());
+                    drop();
+                }
+                if (logger.isDebugEnabled())
+                    logger.debug("switched from stream to tree for DocumentSource["+id+"]",new Throwable());
             } catch (ParserConfigurationException | SAXException | IOException ex) {
                 logger.error(ex.getMessage(),ex);
                 logger.debug("failed to switch from stream to tree for DocumentSource["+id+"]");
+            } finally {
+                Metrics.time(Metrics.PARSE, System.nanoTime() - started);
+                event.finish("DocumentSource["+id+"]");
             }
         }
         return doc;
@@ -111,21 +145,56 @@ public class DocumentSource {
     }
     
     public void setDocument(Document doc) {
-        if (str!=null)
+        if (str!=null && logger.isDebugEnabled())
                 logger.debug("switched from stream to tree for DocumentSource["+id+"]",new Throwable());
         this.doc = doc;
-        this.str = null;
+        drop();
+        this.origin = null;
     }
     
     public void setStream(InputStream str) {
-        if (doc!=null)
+        if (doc!=null && logger.isDebugEnabled())
                 logger.debug("switched from tree to stream for DocumentSource["+id+"]",new Throwable());
+        if (str!=this.str)
+            drop();
         this.str = str;
         this.doc = null;
+        this.origin = null;
     }
     
+    /**
+     * Create a source with the same content, for use by another consumer.
+     * Replacing the content of the new source leaves this one untouched, but
+     * the stream is shared and the tree is parsed at most once. The shared
+     * stream is closed by closing this source. Consumers should not use the
+     * sources at the same time.
+     * 
+     * @return the new source
+     */
+    public DocumentSource share() {
+        DocumentSource src = new DocumentSource(id, doc);
+        src.str = str;
+        src.shared = str;
+        src.origin = (doc==null ? this : null);
+        isShared = true;
+        return src;
+    }
+    
+    // let go of the stream, closing it unless other consumers still read it,
+    // so files it reads from, like spooled responses, are released
+    private void drop() {
+        if (str!=null && str!=shared && !isShared) {
+            try {
+                str.close();
+            } catch (IOException ex) {
+                logger.debug("failed to close stream for DocumentSource["+id+"]",ex);
+            }
+        }
+        str = null;
+    }
+
     public void close() {
-        if (str!=null) {
+        if (str!=null && str!=shared) {
             try {
                 str.close();
             } catch (IOException ex) {
@@ -135,132 +204,251 @@ public class DocumentSource {
         }
     }
 
+    /**
+     * Sanitize the responses of an endpoint: leave out the byte sequences
+     * that are not valid UTF-8 and the characters XML does not allow.
+     *
+     * @param baseURL the base URL of the endpoint
+     * @param replace replace invalid sequences by U+FFFD instead of dropping
+     *                them
+     * @see SanitizingInputStream
+     */
+    public static void sanitize(String baseURL, boolean replace) {
+        sanitized.put(baseURL, replace);
+    }
+
+    private static Boolean sanitizing(String requestURL) {
+        for (Map.Entry<String, Boolean> entry : sanitized.entrySet()) {
+            if (requestURL.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
     public static DocumentSource fetch(String requestURL, byte[] body, String contenttype, String accept, int timeout, Path temp) throws MalformedURLException, IOException {
         logger.debug("requestURL=" + requestURL);
         InputStream in;
+        Boolean replace = sanitizing(requestURL);
+        // the retries are kept track of for the original endpoint
+        String endpoint = requestURL;
         URL url = new URL(requestURL);
         HttpURLConnection con = null;
         int responseCode = 0;
-        do {
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestProperty("User-Agent", "OAIHarvester/2.0");
-            con.setRequestProperty("Accept-Encoding",
-                    "compress, gzip, identify");
-            if ((accept != null) && !accept.trim().equals("")) {
-                con.setRequestProperty("accept", accept);
-            }
-            if ((body != null)) {
-                if ((contenttype != null) && !contenttype.trim().equals("")) {
-                    con.setRequestProperty("content-type", contenttype);
+        int attempt = 0;
+        FetchEvent event;
+        long started;
+        long latency = 0;
+        // a slot for the request is held, see Pacing
+        boolean paced = false;
+        // hold back new requests while the heap is full
+        MemoryGovernor.await("request to " + Retry.endpoint(endpoint));
+        try {
+            do {
+                Retry.check(endpoint);
+                Pacing.acquire(endpoint);
+                paced = true;
+                event = FetchEvent.start();
+                started = System.nanoTime();
+                con = (HttpURLConnection) url.openConnection();
+                con.setRequestProperty("User-Agent", "OAIHarvester/2.0");
+                con.setRequestProperty("Accept-Encoding",
+                        "compress, gzip, identify");
+                if ((accept != null) && !accept.trim().equals("")) {
+                    con.setRequestProperty("accept", accept);
+                }
+                if ((body != null)) {
+                    if ((contenttype != null) && !contenttype.trim().equals("")) {
+                        con.setRequestProperty("content-type", contenttype);
+                    }
+                    con.setRequestMethod("POST");
+                    con.setDoOutput(true);
+                    try (OutputStream os = con.getOutputStream()) {
+                        os.write(body, 0, body.length);
+                    }
+                }
+                if (timeout > 0) {
+                    logger.debug("timeout=" + timeout);
+                    con.setConnectTimeout(timeout*1000);
+                    con.setReadTimeout(timeout*1000);
+                }
+                try {
+                    responseCode = con.getResponseCode();
+                    logger.debug("responseCode=" + responseCode);
+                } catch (FileNotFoundException e) {
+                    // assume it's a 503 response
+                    logger.info(requestURL, e);
+                    responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
+                } catch(Exception e) {
+                    logger.error("couldn't connect to '"+requestURL+"': "+e.getMessage());
+                    Retry.failure(endpoint);
+                    Pacing.failure(endpoint);
+                    paced = false;
+                    event.finish(requestURL);
+                    throw e;
                 }
-                con.setRequestMethod("POST");
-                con.setDoOutput(true);
-                try (OutputStream os = con.getOutputStream()) {
-                    os.write(body, 0, body.length);
+                latency = System.nanoTime() - started;
+                event.setStatus(responseCode);
+                if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP || responseCode == HttpURLConnection.HTTP_SEE_OTHER) {
+                    Pacing.release(endpoint);
+                    paced = false;
+                    event.finish(requestURL);
+                    requestURL = con.getHeaderField("Location");
+                    logger.debug("redirect to requestURL=" + requestURL);
+                    url = new URL(requestURL);
+                    responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
+                } else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    event.finish(requestURL);
+                    long retrySeconds = con.getHeaderFieldInt("Retry-After", -1);
+                    if (retrySeconds == -1) {
+                        long now = (new Date()).getTime();
+                        long retryDate = con.getHeaderFieldDate("Retry-After", now);
+                        retrySeconds = (retryDate - now) / 1000;
+                    }
+                    if (retrySeconds == 0) { // Apparently, it's a bad URL
+                        throw new FileNotFoundException("Bad URL["+requestURL+"]?");
+                    }
+                    logger.debug("Retry-After=" + retrySeconds);
+                    Retry.failure(endpoint);
+                    Pacing.failure(endpoint);
+                    paced = false;
+                    if (retrySeconds > 0) {
+                        Retry.retryAfter(endpoint, retrySeconds);
+                    }
+                    if (!Retry.backoff(endpoint, null, attempt++)) {
+                        throw new Retry.OpenException("endpoint unavailable for URL["+requestURL+"]");
+                    }
+                } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    Retry.failure(endpoint);
+                    Pacing.failure(endpoint);
+                    paced = false;
                 }
+            } while (responseCode == HttpURLConnection.HTTP_UNAVAILABLE);
+            try {
+                in = open(con);
+            } catch (IOException e) {
+                // no content, like for a client error
+                event.finish(requestURL);
+                throw e;
             }
-            if (timeout > 0) {
-                logger.debug("timeout=" + timeout);
-                con.setConnectTimeout(timeout*1000);
-                con.setReadTimeout(timeout*1000);
+
+            SanitizingInputStream sanitizer = null;
+            if (replace != null) {
+                sanitizer = new SanitizingInputStream(in, replace);
+                in = sanitizer;
             }
+
+            long size = 0;
             try {
-                responseCode = con.getResponseCode();
-                logger.debug("responseCode=" + responseCode);
-            } catch (FileNotFoundException e) {
-                // assume it's a 503 response
-                logger.info(requestURL, e);
-                responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
-            } catch(Exception e) {
-                logger.error("couldn't connect to '"+requestURL+"': "+e.getMessage());
+                if (temp==null && MemoryGovernor.isUnderPressure()) {
+                    // spool the response to disk instead of keeping it in memory
+                    in = spool(in, requestURL);
+                    size = in.available();
+                } else if (temp!=null) {
+                    FileOutputStream out = new FileOutputStream(temp.toFile());
+                    size = org.apache.commons.io.IOUtils.copy(in,out,1000000);
+                    out.close();
+                    logger.debug("temp["+temp+"] for URL["+requestURL+"]");
+                    in = new MarkableFileInputStream(new FileInputStream(temp.toFile()));
+                } else {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    size = org.apache.commons.io.IOUtils.copy(in, baos);
+                    logger.debug("buffered ["+size+"] bytes for URL["+requestURL+"]");
+                    in = new ByteArrayInputStream(baos.toByteArray());
+                }
+            } catch (IOException e) {
+                // the connection broke off or timed out
+                Retry.failure(endpoint);
+                Pacing.failure(endpoint);
+                paced = false;
                 throw e;
+            } finally {
+                event.setBytes(size);
+                event.finish(requestURL);
             }
-            if (responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP || responseCode == HttpURLConnection.HTTP_SEE_OTHER) {
-                requestURL = con.getHeaderField("Location");
-                logger.debug("redirect to requestURL=" + requestURL);
-                url = new URL(requestURL);
-                responseCode = HttpURLConnection.HTTP_UNAVAILABLE;
-            } else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
-                long retrySeconds = con.getHeaderFieldInt("Retry-After", -1);
-                if (retrySeconds == -1) {
-                    long now = (new Date()).getTime();
-                    long retryDate = con.getHeaderFieldDate("Retry-After", now);
-                    retrySeconds = retryDate - now;
-                }
-                if (retrySeconds == 0) { // Apparently, it's a bad URL
-                    throw new FileNotFoundException("Bad URL["+requestURL+"]?");
-                }
-                logger.debug("Retry-After=" + retrySeconds);
-                if (retrySeconds > 0) {
-                    try {
-                        Thread.sleep(retrySeconds * 1000);
-                    } catch (InterruptedException ex) {
-                        logger.error(ex);
-                    }
-                }
+            Retry.success(endpoint);
+            Pacing.success(endpoint, latency);
+            paced = false;
+            Metrics.current().request(size);
+            Metrics.time(Metrics.FETCH, System.nanoTime() - started);
+            if (sanitizer!=null && (sanitizer.getInvalidSequences()>0 || sanitizer.getIllegalCharacters()>0)) {
+                logger.info("sanitized ["+sanitizer.getInvalidSequences()+"] invalid UTF-8 sequences and ["
+                        +sanitizer.getIllegalCharacters()+"] illegal characters for URL["+requestURL+"]");
+            }
+            return new DocumentSource(in);
+        } finally {
+            if (paced) {
+                // like a client error, which says nothing about the load
+                Pacing.release(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Spool a response to a temporary file.
+     *
+     * @param in         the response
+     * @param requestURL the request, for the log
+     * @return the stream reading the file, which is removed when the stream
+     *         is closed, or right away where the platform allows it
+     */
+    static InputStream spool(InputStream in, String requestURL) throws IOException {
+        Path spool = Files.createTempFile(SPOOL_PREFIX, null);
+        long size;
+        try (OutputStream out = Files.newOutputStream(spool)) {
+            size = org.apache.commons.io.IOUtils.copy(in,out,1000000);
+        }
+        logger.debug("spooled ["+size+"] bytes for URL["+requestURL+"] to ["+spool+"]");
+        return new SpooledInputStream(spool);
+    }
+
+    private static class SpooledInputStream extends MarkableFileInputStream {
+
+        // the file, if it could not be removed while open
+        private final Path file;
+
+        SpooledInputStream(Path file) throws IOException {
+            super(new FileInputStream(file.toFile()));
+            this.file = unlink(file);
+        }
+
+        // remove the file right away, so it goes when the stream is dropped
+        // unclosed; some platforms do not allow this for an open file
+        private static Path unlink(Path file) {
+            try {
+                Files.delete(file);
+                return null;
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+                return file;
             }
-        } while (responseCode == HttpURLConnection.HTTP_UNAVAILABLE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (file != null)
+                    Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // the content of a response, decompressed
+    private static InputStream open(HttpURLConnection con) throws IOException {
         String contentEncoding = con.getHeaderField("Content-Encoding");
         logger.debug("Content-Encoding=" + contentEncoding);
         if ("compress".equals(contentEncoding)) {
             ZipInputStream zis = new ZipInputStream(con.getInputStream());
             zis.getNextEntry();
-            in = zis;
+            return zis;
         } else if ("gzip".equals(contentEncoding)) {
-            in = new GZIPInputStream(con.getInputStream());
+            return new GZIPInputStream(con.getInputStream());
         } else if ("deflate".equals(contentEncoding)) {
-            in = new InflaterInputStream(con.getInputStream());
-        } else {
-            in = con.getInputStream();
-        }
-
-        if (temp!=null) {
-            FileOutputStream out = new FileOutputStream(temp.toFile());
-            org.apache.commons.io.IOUtils.copy(in,out,1000000);
-            out.close();
-            logger.debug("temp["+temp+"] for URL["+requestURL+"]");
-            in = new MarkableFileInputStream(new FileInputStream(temp.toFile()));
-            //if (requestURL.contains("https://ssh.datastations.nl/oai")) {
-            //    in = iconv(temp, in);
-            //}
-        } else {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            int size = org.apache.commons.io.IOUtils.copy(in, baos);
-            logger.debug("buffered ["+size+"] bytes for URL["+requestURL+"]");
-            in = new ByteArrayInputStream(baos.toByteArray());
+            return new InflaterInputStream(con.getInputStream());
         }
-        return new DocumentSource(in);
-    }
-    
-    public static InputStream iconv(Path input, InputStream in) throws IOException {
-        Process p = Runtime.getRuntime().exec("iconv -f utf-8 -t utf-8 -c");
-        BufferedWriter bwo = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
-        BufferedReader bri = new BufferedReader(new InputStreamReader(p.getInputStream()));
-    
-        BufferedReader fbri = new BufferedReader(new InputStreamReader(in));
-        String line  = null;
-        while( ( line = fbri.readLine() ) != null ) {
-            bwo.append(line);
-            bwo.newLine();
-        }
-        bwo.flush();
-        bwo.close();
-        fbri.close();
-    
-        BufferedWriter fbwo = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(input.toFile())));
-        while( ( line = bri.readLine() ) != null ) {
-            fbwo.append(line);
-            fbwo.newLine();
-        }
-        bri.close();
-        fbwo.flush();
-        fbwo.close();
-        try {
-            p.waitFor();
-        } catch ( InterruptedException e ) {
-        }
-    
-        return new MarkableFileInputStream(new FileInputStream(input.toFile()));
+        return con.getInputStream();
     }
 
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Governor of the memory used by the harvest. <br><br>
+ *
+ * The governor asks the JVM to tell when the heap is still occupied above
+ * a threshold after a garbage collection. The heap is then under pressure,
+ * until a collection brings the occupation back below the threshold.
+ * While the heap is under pressure: <br><br>
+ *
+ * - workers wait before they start harvesting a provider; <br>
+ * - requests wait before they are sent; <br>
+ * - responses are spooled to disk instead of buffered in memory; <br>
+ * - saved records are read back from disk, like save actions that offload
+ * do. <br><br>
+ *
+ * Waiting is bounded, so a harvest does not stall when the memory is held
+ * by something else than the work in progress.
+ */
+public final class MemoryGovernor {
+
+    private static final Logger logger = LogManager.getLogger(MemoryGovernor.class);
+
+    // the longest time in milliseconds to wait for the pressure to go away
+    static final long MAX_WAIT = 60 * 1000;
+
+    // how often the pressure is checked while waiting, in milliseconds
+    private static final long POLL = 200;
+
+    private static volatile MemoryGovernor instance = new MemoryGovernor(0);
+
+    private final int threshold;
+
+    // the heap pools the threshold is set on
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+
+    private volatile boolean pressure = false;
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private final NotificationListener listener = this::handle;
+
+    private MemoryGovernor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Configure the governor.
+     *
+     * @param threshold the percentage of the heap that may be occupied
+     *                  after a garbage collection, 0 to not govern the
+     *                  memory
+     */
+    public static void configure(int threshold) {
+        MemoryGovernor previous = instance;
+        previous.stop();
+
+        MemoryGovernor governor = new MemoryGovernor(threshold);
+        governor.start();
+        instance = governor;
+        logger.info("memory: heap threshold[" + threshold + "%] on pools" + governor.names());
+    }
+
+    private void start() {
+        if (threshold <= 0) {
+            return;
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // only the pools of long lived objects support a usage threshold
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                pool.setCollectionUsageThreshold(limit(pool));
+                pools.add(pool);
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    private void stop() {
+        if (threshold <= 0) {
+            return;
+        }
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+            // not listening
+        }
+        for (MemoryPoolMXBean pool : pools) {
+            pool.setCollectionUsageThreshold(0);
+        }
+    }
+
+    private long limit(MemoryPoolMXBean pool) {
+        return pool.getUsage().getMax() / 100 * threshold;
+    }
+
+    private List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (MemoryPoolMXBean pool : pools) {
+            names.add(pool.getName());
+        }
+        return names;
+    }
+
+    private void handle(Notification notification, Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            if (!pressure) {
+                logger.warn("memory: heap above [" + threshold + "%] after garbage collection, slowing down the harvest");
+            }
+            pressure = true;
+        }
+    }
+
+    /**
+     * Check if the heap is under pressure. The pressure goes away when the
+     * last garbage collection left the heap below the threshold.
+     *
+     * @return true if the heap is under pressure
+     */
+    public static boolean isUnderPressure() {
+        MemoryGovernor governor = instance;
+        if (!governor.pressure) {
+            return false;
+        }
+        for (MemoryPoolMXBean pool : governor.pools) {
+            if (pool.isCollectionUsageThresholdExceeded()) {
+                return true;
+            }
+        }
+        governor.pressure = false;
+        logger.info("memory: heap below [" + governor.threshold + "%] again");
+        return false;
+    }
+
+    /**
+     * Wait while the heap is under pressure, but not longer than a minute.
+     *
+     * @param what what waits, for the log
+     */
+    public static void await(String what) {
+        if (!isUnderPressure()) {
+            return;
+        }
+        MemoryGovernor governor = instance;
+        governor.waits.incrementAndGet();
+        logger.debug("memory: " + what + " waits for the heap");
+        long until = System.currentTimeMillis() + MAX_WAIT;
+        try {
+            while (isUnderPressure() && System.currentTimeMillis() < until) {
+                Thread.sleep(POLL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (isUnderPressure()) {
+            logger.warn("memory: " + what + " continues, the heap is still above [" + governor.threshold + "%]");
+        }
+    }
+
+    /**
+     * @return the number of times a worker or a request waited for the heap
+     */
+    public static long getWaits() {
+        return instance.waits.get();
+    }
+}
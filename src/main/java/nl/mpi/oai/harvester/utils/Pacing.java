@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Pacing of the requests to the endpoints. <br><br>
+ *
+ * Every request to an endpoint asks this class for a slot first, and
+ * reports how it went. Every endpoint has an adaptive limit on the number
+ * of requests in flight and the interval between them. Fast endpoints get
+ * more requests at a higher rate, endpoints that slow down or fail get
+ * fewer. The limit is kept in the overview, so the next cycle starts at
+ * the speed the endpoint could take. <br><br>
+ *
+ * Harvesting a list is a chain of requests, so only the rate applies to
+ * it. The records in a list of identifiers are requested in parallel, up
+ * to the number of requests the limit allows.
+ *
+ * @see AdaptiveLimit
+ */
+public final class Pacing {
+
+    private static final Logger logger = LogManager.getLogger(Pacing.class);
+
+    private static volatile Pacing instance = new Pacing(4);
+
+    private final int max;
+
+    // limits by endpoint
+    private final ConcurrentHashMap<String, AdaptiveLimit> limits = new ConcurrentHashMap<>();
+
+    private Pacing(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Configure the pacing, resetting all limits.
+     *
+     * @param max the maximum number of requests in flight to an endpoint, 0
+     *            to not pace the requests at all
+     */
+    public static void configure(int max) {
+        instance = new Pacing(max);
+        logger.info("pacing: max endpoint concurrency[" + max + "]");
+    }
+
+    /**
+     * @return true if the requests are paced
+     */
+    public static boolean isEnabled() {
+        return instance.max > 0;
+    }
+
+    /**
+     * @param url the base URL of an endpoint, or a request URL
+     * @return the limit of the endpoint
+     */
+    public static AdaptiveLimit limit(String url) {
+        Pacing pacing = instance;
+        return pacing.limits.computeIfAbsent(Retry.endpoint(url), k -> new AdaptiveLimit(pacing.max));
+    }
+
+    /**
+     * Restore the limit of an endpoint from the overview, unless it has
+     * already been used in this run.
+     *
+     * @param url      the base URL of the endpoint
+     * @param limit    the number of requests in flight
+     * @param interval the time in milliseconds between two requests
+     * @param latency  the usual time in milliseconds to the first byte
+     */
+    public static void restore(String url, double limit, long interval, long latency) {
+        Pacing pacing = instance;
+        pacing.limits.computeIfAbsent(Retry.endpoint(url), k -> {
+            AdaptiveLimit adaptive = new AdaptiveLimit(pacing.max);
+            adaptive.restore(limit, interval, latency);
+            return adaptive;
+        });
+    }
+
+    /**
+     * @param url the base URL of an endpoint, or a request URL
+     * @return the number of requests to the endpoint that may be in flight
+     */
+    public static int permits(String url) {
+        return isEnabled() ? limit(url).permits() : 1;
+    }
+
+    /**
+     * Wait until a request may be sent. Every call needs to be followed by
+     * one of {@link #success}, {@link #failure} or {@link #release}, unless
+     * it was interrupted.
+     *
+     * @param url the request URL
+     * @throws InterruptedIOException the thread was interrupted while
+     *                                waiting, no request may be sent
+     */
+    public static void acquire(String url) throws InterruptedIOException {
+        if (!isEnabled()) {
+            return;
+        }
+        AdaptiveLimit limit = limit(url);
+        long wait;
+        try {
+            wait = limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for endpoint[" + Retry.endpoint(url) + "]");
+        }
+        try {
+            if (wait > 0) {
+                logger.trace("pacing endpoint[" + Retry.endpoint(url) + "] for [" + wait + "ms]");
+                Thread.sleep(wait);
+            }
+        } catch (InterruptedException e) {
+            // the request is not sent, so the slot is free again
+            limit.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for endpoint[" + Retry.endpoint(url) + "]");
+        }
+    }
+
+    /**
+     * Record that a response arrived.
+     *
+     * @param url     the request URL
+     * @param latency the time in nanoseconds to the first byte
+     */
+    public static void success(String url, long latency) {
+        if (!isEnabled()) {
+            return;
+        }
+        AdaptiveLimit limit = limit(url);
+        if (limit.success(System.currentTimeMillis(), latency / 1000000)) {
+            logger.info("pacing endpoint[" + Retry.endpoint(url) + "] slowed down by a response after ["
+                    + (latency / 1000000) + "ms], now " + describe(limit));
+        }
+    }
+
+    /**
+     * Record that a request failed because of the endpoint, like a server
+     * error or a timeout.
+     *
+     * @param url the request URL
+     */
+    public static void failure(String url) {
+        if (!isEnabled()) {
+            return;
+        }
+        AdaptiveLimit limit = limit(url);
+        if (limit.failure(System.currentTimeMillis())) {
+            logger.info("pacing endpoint[" + Retry.endpoint(url) + "] backed off, now " + describe(limit));
+        }
+    }
+
+    /**
+     * Record that a request ended without telling anything about the load
+     * of the endpoint, like a redirect or a client error.
+     *
+     * @param url the request URL
+     */
+    public static void release(String url) {
+        if (!isEnabled()) {
+            return;
+        }
+        limit(url).release();
+    }
+
+    private static String describe(AdaptiveLimit limit) {
+        return "concurrency[" + limit.permits() + "] interval[" + limit.getInterval() + "ms]";
+    }
+}
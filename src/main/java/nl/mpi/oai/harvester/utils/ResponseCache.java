@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache for OAI-PMH responses that rarely change, like the ones to the
+ * Identify and ListMetadataFormats verbs. Once a time to live has been
+ * configured, responses are kept in memory, keyed by request URL, for that
+ * time. When a directory is configured, they are also stored on disk so
+ * later runs can reuse them.
+ *
+ * Only well-formed responses that do not report an OAI-PMH error are
+ * cached. Concurrent requests for the same URL wait for a single fetch.
+ */
+public final class ResponseCache {
+
+    private static final Logger logger = LogManager.getLogger(ResponseCache.class);
+
+    private static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+
+    // the cache is disabled until it has been configured
+    private static volatile ResponseCache instance = new ResponseCache(null, 0);
+
+    private final Path dir;
+    private final long ttl;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final byte[] content;
+        final long fetched;
+
+        Entry(byte[] content, long fetched) {
+            this.content = content;
+            this.fetched = fetched;
+        }
+    }
+
+    private ResponseCache(Path dir, long ttl) {
+        this.dir = dir;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Configure the cache, dropping any responses cached so far.
+     *
+     * @param dir directory to store responses in, or null to keep them in
+     *            memory only
+     * @param ttl time to live of a response in seconds, 0 to disable caching
+     */
+    public static void configure(Path dir, long ttl) {
+        instance = new ResponseCache(dir, ttl * 1000);
+        logger.info("response cache: ttl[" + ttl + "s] dir[" + dir + "]");
+    }
+
+    /**
+     * Fetch a response, from the cache if a fresh copy is available.
+     *
+     * @param requestURL the request
+     * @param timeout    the timeout for a request to the endpoint
+     * @return the response
+     * @throws MalformedURLException the request is not a valid URL
+     * @throws IOException           the request failed
+     */
+    public static DocumentSource fetch(String requestURL, int timeout) throws MalformedURLException, IOException {
+        return instance.get(requestURL, timeout);
+    }
+
+    private DocumentSource get(String requestURL, int timeout) throws MalformedURLException, IOException {
+        if (ttl <= 0)
+            return DocumentSource.fetch(requestURL, null, null, null, timeout, null);
+
+        for (;;) {
+            Object lock = locks.computeIfAbsent(requestURL, k -> new Object());
+            synchronized (lock) {
+                // the lock is dropped once its fetch is done; a request that
+                // waited for it takes a new one
+                if (locks.get(requestURL) != lock)
+                    continue;
+                try {
+                    return lookup(requestURL, timeout);
+                } finally {
+                    locks.remove(requestURL, lock);
+                }
+            }
+        }
+    }
+
+    private DocumentSource lookup(String requestURL, int timeout) throws MalformedURLException, IOException {
+        long now = System.currentTimeMillis();
+
+        Entry entry = entries.get(requestURL);
+        if (entry == null && dir != null)
+            entry = load(requestURL);
+        if (entry != null && now - entry.fetched < ttl) {
+            logger.debug("cached response for URL[" + requestURL + "]");
+            entries.put(requestURL, entry);
+            return new DocumentSource(requestURL, new ByteArrayInputStream(entry.content));
+        }
+
+        DocumentSource response = DocumentSource.fetch(requestURL, null, null, null, timeout, null);
+        byte[] content = IOUtils.toByteArray(response.getStream());
+        if (isCacheable(content)) {
+            entry = new Entry(content, now);
+            entries.put(requestURL, entry);
+            if (dir != null)
+                store(requestURL, entry);
+        } else {
+            entries.remove(requestURL);
+            logger.debug("not caching response for URL[" + requestURL + "]");
+        }
+        return new DocumentSource(requestURL, new ByteArrayInputStream(content));
+    }
+
+    // check that the response is well-formed and does not report an error
+    private static boolean isCacheable(byte[] content) {
+        try {
+            XMLInputFactory xmlif = XMLInputFactory.newInstance();
+            xmlif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader xmlr = xmlif.createXMLStreamReader(new ByteArrayInputStream(content));
+            try {
+                while (xmlr.hasNext()) {
+                    if (xmlr.next() == XMLStreamConstants.START_ELEMENT
+                            && OAI_NS.equals(xmlr.getNamespaceURI())
+                            && xmlr.getLocalName().equals("error"))
+                        return false;
+                }
+            } finally {
+                xmlr.close();
+            }
+            return true;
+        } catch (XMLStreamException ex) {
+            return false;
+        }
+    }
+
+    private Path getFile(String requestURL) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(requestURL.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash)
+                name.append(String.format("%02x", b));
+            return dir.resolve(name.append(".xml").toString());
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Entry load(String requestURL) {
+        Path file = getFile(requestURL);
+        if (!Files.exists(file))
+            return null;
+        try {
+            return new Entry(Files.readAllBytes(file), Files.getLastModifiedTime(file).toMillis());
+        } catch (IOException ex) {
+            logger.error("failed to read cached response[" + file + "] for URL[" + requestURL + "]", ex);
+            return null;
+        }
+    }
+
+    private void store(String requestURL, Entry entry) {
+        Path file = getFile(requestURL);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(dir);
+            Files.write(temp, entry.content);
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.debug("stored response[" + file + "] for URL[" + requestURL + "]");
+        } catch (IOException ex) {
+            logger.error("failed to store response[" + file + "] for URL[" + requestURL + "]", ex);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import nl.mpi.oai.harvester.jfr.RetryEvent;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Retries of the requests to the endpoints. <br><br>
+ *
+ * All places that retry a request ask this class how long to wait. The
+ * retry delays configured for a provider are the base delays. Beyond the
+ * last one, the delay doubles with every attempt, up to a maximum. Every
+ * delay is drawn at random from its upper half, so workers that failed
+ * together do not all come back at the same moment. A delay the endpoint
+ * asked for in a Retry-After header is honoured. <br><br>
+ *
+ * The next attempt is scheduled on a timer, and the worker waits for it
+ * to become due. The worker keeps the locks it holds and the state of its
+ * harvest, like a resumption token, so it does not take on other work
+ * meanwhile; the wait can be interrupted. <br><br>
+ *
+ * Every endpoint has a circuit breaker. When it is open, requests to the
+ * endpoint fail right away and are not retried, so the worker gives up on
+ * the endpoint instead of waiting for it. The state of the breaker is kept
+ * in the overview; the next cycle retries the endpoint once the breaker is
+ * half open.
+ */
+public final class Retry {
+
+    private static final Logger logger = LogManager.getLogger(Retry.class);
+
+    private static volatile Retry instance = new Retry(5, 600 * 1000, 3600 * 1000);
+
+    // the timer on which the next attempts are scheduled
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int threshold;
+    private final long delay;
+    private final long maxDelay;
+
+    // breakers and Retry-After times by endpoint
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> retryAfter = new ConcurrentHashMap<>();
+
+    /**
+     * The exception thrown for a request to an endpoint whose breaker is
+     * open.
+     */
+    public static class OpenException extends IOException {
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private Retry(int threshold, long delay, long maxDelay) {
+        this.threshold = threshold;
+        this.delay = delay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Configure the retries, resetting all breakers.
+     *
+     * @param threshold the number of consecutive failures that opens the
+     *                  breaker of an endpoint, 0 to never open it
+     * @param delay     time in seconds a breaker stays open
+     * @param maxDelay  maximum time in seconds to wait before a retry
+     */
+    public static void configure(int threshold, long delay, long maxDelay) {
+        instance = new Retry(threshold, delay * 1000, maxDelay * 1000);
+        logger.info("retry: breaker threshold[" + threshold + "] delay[" + delay + "s] max delay[" + maxDelay + "s]");
+    }
+
+    // the endpoint a request URL is sent to
+    static String endpoint(String url) {
+        int i = url.indexOf('?');
+        return (i < 0) ? url : url.substring(0, i);
+    }
+
+    /**
+     * @param url the base URL of an endpoint, or a request URL
+     * @return the breaker of the endpoint
+     */
+    public static CircuitBreaker breaker(String url) {
+        Retry retry = instance;
+        return retry.breakers.computeIfAbsent(endpoint(url),
+                k -> new CircuitBreaker(retry.threshold, retry.delay));
+    }
+
+    /**
+     * Restore the breaker of an endpoint from the overview, unless it has
+     * already been used in this run.
+     *
+     * @param url      the base URL of the endpoint
+     * @param state    the state as recorded in the overview
+     * @param failures the number of consecutive failures
+     * @param opened   the time in milliseconds the breaker opened
+     */
+    public static void restore(String url, String state, long failures, long opened) {
+        Retry retry = instance;
+        retry.breakers.computeIfAbsent(endpoint(url), k -> {
+            CircuitBreaker breaker = new CircuitBreaker(retry.threshold, retry.delay);
+            breaker.restore(CircuitBreaker.State.of(state), failures, opened);
+            return breaker;
+        });
+    }
+
+    /**
+     * Check if a request may be sent.
+     *
+     * @param url the request URL
+     * @throws OpenException the breaker of the endpoint is open
+     */
+    public static void check(String url) throws OpenException {
+        if (!breaker(url).allow(System.currentTimeMillis())) {
+            throw new OpenException("circuit breaker for endpoint[" + endpoint(url) + "] is open");
+        }
+    }
+
+    /**
+     * Record that a request succeeded.
+     *
+     * @param url the request URL
+     */
+    public static void success(String url) {
+        breaker(url).success();
+    }
+
+    /**
+     * Record that a request failed because of the endpoint, like a server
+     * error or a connection that could not be made.
+     *
+     * @param url the request URL
+     */
+    public static void failure(String url) {
+        CircuitBreaker breaker = breaker(url);
+        if (breaker.failure(System.currentTimeMillis())) {
+            logger.warn("circuit breaker for endpoint[" + endpoint(url) + "] opened after ["
+                    + breaker.getFailures() + "] failures");
+        }
+    }
+
+    /**
+     * Record the delay an endpoint asked for in a Retry-After header.
+     *
+     * @param url     the request URL
+     * @param seconds the delay in seconds
+     */
+    public static void retryAfter(String url, long seconds) {
+        instance.retryAfter.put(endpoint(url), System.currentTimeMillis() + seconds * 1000);
+    }
+
+    /**
+     * Wait before the next attempt of a request. <br><br>
+     *
+     * No attempt should be made if the breaker of the endpoint is open, or
+     * if the endpoint asked to wait longer than the maximum delay.
+     *
+     * @param url     the base URL of the endpoint, or the request URL
+     * @param delays  the retry delays in seconds configured for the
+     *                provider, null for none
+     * @param attempt the number of the attempt that failed, starting at 0
+     * @return true if the request should be attempted again
+     */
+    public static boolean backoff(String url, int[] delays, int attempt) {
+        RetryEvent event = RetryEvent.start();
+        long wait = wait(url, delays, attempt);
+        boolean retried = wait >= 0;
+        if (wait > 0) {
+            logger.debug("retry endpoint[" + endpoint(url) + "] in [" + wait + "ms]");
+            retried = await(timer.schedule(() -> { }, wait, TimeUnit.MILLISECONDS));
+        }
+        event.finish(endpoint(url), attempt, wait, breaker(url).getState(), retried);
+        if (retried)
+            Metrics.current().retry();
+        return retried;
+    }
+
+    // wait until the next attempt is due, false if interrupted
+    private static boolean await(ScheduledFuture<?> due) {
+        try {
+            due.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            due.cancel(false);
+            return false;
+        } catch (ExecutionException e) {
+            // the timer task does nothing, so it cannot fail
+            return true;
+        }
+    }
+
+    // the time in milliseconds to wait before the next attempt, -1 for none
+    private static long wait(String url, int[] delays, int attempt) {
+        Retry retry = instance;
+        long now = System.currentTimeMillis();
+        if (!breaker(url).allow(now)) {
+            logger.info("circuit breaker for endpoint[" + endpoint(url) + "] is open, giving up");
+            return -1;
+        }
+
+        long wait = delay(delays, attempt, retry.maxDelay, ThreadLocalRandom.current());
+        Long after = retry.retryAfter.get(endpoint(url));
+        if (after != null && after - now > wait) {
+            wait = after - now;
+            if (wait > retry.maxDelay) {
+                logger.info("endpoint[" + endpoint(url) + "] asked to retry after [" + (wait / 1000) + "s], giving up");
+                return -1;
+            }
+        }
+        return Math.max(wait, 0);
+    }
+
+    /**
+     * Compute the delay before the next attempt of a request.
+     *
+     * @param delays   the retry delays in seconds, null for none
+     * @param attempt  the number of the attempt that failed, starting at 0
+     * @param maxDelay the maximum delay in milliseconds
+     * @param random   the source of the jitter
+     * @return the delay in milliseconds
+     */
+    static long delay(int[] delays, int attempt, long maxDelay, Random random) {
+        if (delays == null || delays.length == 0) {
+            return 0;
+        }
+        int last = delays.length - 1;
+        long base = delays[Math.min(attempt, last)] * 1000L;
+        if (attempt > last) {
+            // double the last delay for every attempt beyond the list
+            base <<= Math.min(attempt - last, 30);
+        }
+        base = Math.min(base, maxDelay);
+        if (base <= 0) {
+            return 0;
+        }
+        return base / 2 + (long) (random.nextDouble() * (base - base / 2));
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that passes on UTF-8 encoded XML, leaving out what an XML parser
+ * would choke on: byte sequences that are not valid UTF-8, and characters
+ * that are not allowed in XML 1.0, like most control characters. Invalid
+ * sequences are dropped, or replaced by U+FFFD if requested. <br><br>
+ *
+ * The content is checked in a single pass while it is read, so the stream
+ * can be put between the connection and the parser or the temporary file
+ * without buffering the response. The stream counts what it left out.
+ */
+public class SanitizingInputStream extends FilterInputStream {
+
+    // U+FFFD REPLACEMENT CHARACTER
+    private static final byte[] REPLACEMENT = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+    private final boolean replace;
+
+    // bytes read from the underlying stream, not checked yet
+    private final byte[] buf = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    // checked bytes that did not fit in the caller's buffer
+    private byte[] out = null;
+    private int outPos = 0;
+    private int outLen = 0;
+
+    private long invalidSequences = 0;
+    private long illegalCharacters = 0;
+
+    /**
+     * Create a stream dropping invalid sequences and illegal characters.
+     *
+     * @param in the UTF-8 encoded content
+     */
+    public SanitizingInputStream(InputStream in) {
+        this(in, false);
+    }
+
+    /**
+     * Create a stream leaving out invalid sequences and illegal characters.
+     *
+     * @param in      the UTF-8 encoded content
+     * @param replace replace invalid sequences by U+FFFD instead of dropping
+     *                them
+     */
+    public SanitizingInputStream(InputStream in, boolean replace) {
+        super(in);
+        this.replace = replace;
+    }
+
+    /**
+     * @return the number of byte sequences that were not valid UTF-8
+     */
+    public long getInvalidSequences() {
+        return invalidSequences;
+    }
+
+    /**
+     * @return the number of characters left out because XML does not allow
+     *         them
+     */
+    public long getIllegalCharacters() {
+        return illegalCharacters;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len) {
+            if (outPos < outLen) {
+                int k = Math.min(outLen - outPos, len - n);
+                System.arraycopy(out, outPos, b, off + n, k);
+                outPos += k;
+                n += k;
+                continue;
+            }
+            if (limit - pos < 4 && !eof) {
+                fill();
+            }
+            if (pos >= limit) {
+                break;
+            }
+
+            int c = buf[pos] & 0xFF;
+            if (c < 0x80) {
+                pos++;
+                if (c < 0x20 && c != 0x09 && c != 0x0A && c != 0x0D) {
+                    illegalCharacters++;
+                } else {
+                    b[off + n++] = (byte) c;
+                }
+                continue;
+            }
+
+            int size = sequence();
+            if (size < 0) {
+                invalidSequences++;
+                pos -= size;
+                if (replace) {
+                    out = REPLACEMENT;
+                    outPos = 0;
+                    outLen = REPLACEMENT.length;
+                }
+            } else if (c == 0xEF && (buf[pos + 1] & 0xFF) == 0xBF
+                    && (buf[pos + 2] & 0xFF) >= 0xBE) {
+                // U+FFFE and U+FFFF are not characters
+                illegalCharacters++;
+                pos += size;
+            } else if (len - n >= size) {
+                System.arraycopy(buf, pos, b, off + n, size);
+                pos += size;
+                n += size;
+            } else {
+                out = new byte[size];
+                System.arraycopy(buf, pos, out, 0, size);
+                outPos = 0;
+                outLen = size;
+                pos += size;
+            }
+        }
+        return (n == 0) ? -1 : n;
+    }
+
+    /* Check the multi-byte sequence at the current position. Returns its
+       length if it is valid UTF-8, otherwise minus the length of the part
+       to skip, after which the next sequence may start.
+     */
+    private int sequence() {
+        int c = buf[pos] & 0xFF;
+        int need;
+        int lo = 0x80;
+        int hi = 0xBF;
+        if (c >= 0xC2 && c <= 0xDF) {
+            need = 1;
+        } else if (c == 0xE0) {
+            need = 2;
+            lo = 0xA0;
+        } else if (c >= 0xE1 && c <= 0xEF) {
+            need = 2;
+            if (c == 0xED) {
+                // no surrogates
+                hi = 0x9F;
+            }
+        } else if (c == 0xF0) {
+            need = 3;
+            lo = 0x90;
+        } else if (c >= 0xF1 && c <= 0xF3) {
+            need = 3;
+        } else if (c == 0xF4) {
+            need = 3;
+            hi = 0x8F;
+        } else {
+            return -1;
+        }
+        for (int i = 1; i <= need; i++) {
+            if (pos + i >= limit) {
+                // truncated by the end of the stream
+                return -i;
+            }
+            int d = buf[pos + i] & 0xFF;
+            if (d < lo || d > hi) {
+                return -i;
+            }
+            lo = 0x80;
+            hi = 0xBF;
+        }
+        return need + 1;
+    }
+
+    // make sure a complete sequence is in the buffer, unless the stream ends
+    private void fill() throws IOException {
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+        while (limit < 4 && !eof) {
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0) {
+                eof = true;
+            } else {
+                limit += r;
+            }
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] b = new byte[(int) Math.min(n, buf.length)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(b, 0, (int) Math.min(n - skipped, b.length));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return outLen - outPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
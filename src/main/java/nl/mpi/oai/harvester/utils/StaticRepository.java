@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Index of the content of a static repository. The repository is scanned
+ * once, and its Identify and ListMetadataFormats parts and each of its
+ * records are copied to a spool file as self-contained XML fragments, that
+ * is: with all the namespaces in scope declared on the root of the fragment.
+ * The spool file is memory mapped, and a fragment is served by reading it
+ * from the map, so the repository never needs to fit in memory. <br><br>
+ *
+ * The records of a prefix are spooled one after the other, which allows
+ * the list of records of a prefix to be served as a single stream too.
+ */
+public final class StaticRepository implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(StaticRepository.class);
+
+    /**
+     * A fragment in the spool file
+     */
+    public static final class Entry {
+
+        private final String identifier;
+        private final boolean deleted;
+        private final long offset;
+        private final int length;
+
+        Entry(String identifier, boolean deleted, long offset, int length) {
+            this.identifier = identifier;
+            this.deleted = deleted;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the identifier of the record, null for other fragments
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * @return true if the header of the record has the deleted status
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    // the ListRecords element of a prefix, and the records it contains
+    private static final class Records {
+
+        final byte[] start;
+        final byte[] end;
+        final List<Entry> list = new ArrayList<>();
+        final Map<String, Entry> byId = new HashMap<>();
+        // false if the prefix occurs in more than one ListRecords element
+        boolean contiguous = true;
+
+        Records(byte[] start, byte[] end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // output stream keeping track of the number of bytes written
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final Path spool;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+
+    private Entry identify = null;
+    private Entry formats = null;
+    private final Map<String, Records> prefixes = new LinkedHashMap<>();
+
+    /**
+     * Scan a static repository, and spool its content.
+     *
+     * @param in    the static repository
+     * @param spool the file to spool the fragments to
+     * @throws IOException        the spool file could not be written
+     * @throws XMLStreamException the repository is not well-formed
+     */
+    public StaticRepository(InputStream in, Path spool) throws IOException, XMLStreamException {
+        this.spool = spool;
+
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(spool)))) {
+            scan(in, out);
+        }
+
+        channel = FileChannel.open(spool, StandardOpenOption.READ);
+        // a map is limited to 2GB, beyond that fragments are mapped one by one
+        map = channel.size() <= Integer.MAX_VALUE
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null;
+
+        int records = 0;
+        for (Records r : prefixes.values())
+            records += r.list.size();
+        logger.debug("spooled static repository[" + spool + "]: prefixes" + prefixes.keySet()
+                + " records[" + records + "] bytes[" + channel.size() + "]");
+    }
+
+    private void scan(InputStream in, CountingOutputStream out) throws XMLStreamException {
+        XMLInputFactory xmlif = XMLInputFactory.newInstance();
+        xmlif.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
+        XMLEventFactory xmlef = XMLEventFactory.newInstance();
+
+        XMLEventReader reader = xmlif.createXMLEventReader(in);
+        XMLEventWriter writer = xmlof.createXMLEventWriter(out, "UTF-8");
+
+        // the namespaces declared on the ancestors of the current element
+        Deque<Map<String, String>> scopes = new ArrayDeque<>();
+
+        // the prefix of the ListRecords element being scanned
+        Records records = null;
+        // the depth of the root of the fragment being copied, 0 if none
+        int fragment = 0;
+        String fragmentName = null;
+        long fragmentStart = 0;
+        // what the header of a record tells
+        boolean header = false;
+        String identifier = null;
+        boolean deleted = false;
+        StringBuilder text = null;
+
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    Map<String, String> declared = new LinkedHashMap<>();
+                    for (Iterator<?> it = element.getNamespaces(); it.hasNext(); ) {
+                        Namespace ns = (Namespace) it.next();
+                        declared.put(ns.getPrefix(), ns.getNamespaceURI());
+                    }
+                    scopes.push(declared);
+                    int depth = scopes.size();
+                    String name = element.getName().getLocalPart();
+
+                    if (fragment == 0) {
+                        if (depth == 2 && name.equals("ListRecords")) {
+                            Attribute prefix = element.getAttributeByName(new QName("metadataPrefix"));
+                            if (prefix != null) {
+                                records = prefixes.computeIfAbsent(prefix.getValue(),
+                                        p -> wrapper(xmlof, element, scopes));
+                            }
+                        } else if ((depth == 2 && (name.equals("Identify") || name.equals("ListMetadataFormats")))
+                                || (depth == 3 && records != null && name.equals("record"))) {
+                            // start a self-contained fragment
+                            writer.flush();
+                            fragment = depth;
+                            fragmentName = name;
+                            fragmentStart = out.count;
+                            identifier = null;
+                            deleted = false;
+                            event = xmlef.createStartElement(element.getName().getPrefix(),
+                                    element.getName().getNamespaceURI(), name,
+                                    element.getAttributes(), inScope(xmlef, scopes).iterator());
+                        }
+                    } else if (records != null && fragmentName.equals("record")) {
+                        if (depth == fragment + 1 && name.equals("header")) {
+                            Attribute status = element.getAttributeByName(new QName("status"));
+                            deleted = status != null && status.getValue().equals("deleted");
+                            header = true;
+                        } else if (header && depth == fragment + 2 && name.startsWith("identifier")
+                                && identifier == null) {
+                            text = new StringBuilder();
+                        }
+                    }
+                } else if (event.isCharacters() && text != null) {
+                    text.append(event.asCharacters().getData());
+                }
+
+                if (fragment > 0) {
+                    writer.add(event);
+                }
+
+                if (event.isEndElement()) {
+                    int depth = scopes.size();
+                    scopes.pop();
+
+                    if (text != null && depth == fragment + 2) {
+                        identifier = text.toString().trim();
+                        text = null;
+                    } else if (header && depth == fragment + 1) {
+                        header = false;
+                    }
+
+                    if (depth == fragment) {
+                        // the fragment is complete
+                        writer.flush();
+                        Entry entry = new Entry(identifier, deleted, fragmentStart,
+                                (int) (out.count - fragmentStart));
+                        if (fragmentName.equals("Identify")) {
+                            identify = entry;
+                        } else if (fragmentName.equals("ListMetadataFormats")) {
+                            formats = entry;
+                        } else if (identifier == null) {
+                            logger.warn("skipping record without identifier in static repository");
+                        } else {
+                            if (!records.list.isEmpty()) {
+                                Entry last = records.list.get(records.list.size() - 1);
+                                records.contiguous = records.contiguous
+                                        && last.offset + last.length == entry.offset;
+                            }
+                            records.list.add(entry);
+                            records.byId.put(identifier, entry);
+                        }
+                        fragment = 0;
+                    } else if (depth == 2) {
+                        records = null;
+                    }
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    // the namespaces in scope of the current element
+    private static List<Namespace> inScope(XMLEventFactory xmlef, Deque<Map<String, String>> scopes) {
+        Map<String, String> bindings = new LinkedHashMap<>();
+        for (Iterator<Map<String, String>> it = scopes.descendingIterator(); it.hasNext(); ) {
+            bindings.putAll(it.next());
+        }
+        List<Namespace> namespaces = new ArrayList<>();
+        for (Map.Entry<String, String> binding : bindings.entrySet()) {
+            String prefix = binding.getKey();
+            namespaces.add(prefix == null || prefix.isEmpty()
+                    ? xmlef.createNamespace(binding.getValue())
+                    : xmlef.createNamespace(prefix, binding.getValue()));
+        }
+        return namespaces;
+    }
+
+    // the start and end tag of a self-contained ListRecords element
+    private static Records wrapper(XMLOutputFactory xmlof, StartElement element,
+                                   Deque<Map<String, String>> scopes) {
+        try {
+            ByteArrayOutputStream start = new ByteArrayOutputStream();
+            XMLStreamWriter writer = xmlof.createXMLStreamWriter(start, "UTF-8");
+            QName name = element.getName();
+            writer.writeStartElement(name.getPrefix(), name.getLocalPart(), name.getNamespaceURI());
+            for (Namespace ns : inScope(XMLEventFactory.newInstance(), scopes)) {
+                if (ns.isDefaultNamespaceDeclaration())
+                    writer.writeDefaultNamespace(ns.getNamespaceURI());
+                else
+                    writer.writeNamespace(ns.getPrefix(), ns.getNamespaceURI());
+            }
+            for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+                Attribute att = (Attribute) it.next();
+                QName attName = att.getName();
+                if (attName.getNamespaceURI().isEmpty())
+                    writer.writeAttribute(attName.getLocalPart(), att.getValue());
+                else
+                    writer.writeAttribute(attName.getPrefix(), attName.getNamespaceURI(),
+                            attName.getLocalPart(), att.getValue());
+            }
+            // close the start tag
+            writer.writeCharacters("");
+            writer.flush();
+            writer.close();
+
+            String qname = name.getPrefix().isEmpty() ? name.getLocalPart()
+                    : name.getPrefix() + ":" + name.getLocalPart();
+            return new Records(start.toByteArray(),
+                    ("</" + qname + ">").getBytes(StandardCharsets.UTF_8));
+        } catch (XMLStreamException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // (a range of) fragments in the spool file
+    private ByteBuffer buffer(long offset, long length) throws IOException {
+        if (map == null)
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        ByteBuffer buffer = map.duplicate();
+        buffer.position((int) offset).limit((int) (offset + length));
+        return buffer.slice();
+    }
+
+    private InputStream read(Entry entry) throws IOException {
+        return new ByteBufferInputStream(buffer(entry.offset, entry.length));
+    }
+
+    /**
+     * @return the Identify part of the repository, or null if there is none
+     * @throws IOException the spool file could not be read
+     */
+    public InputStream getIdentify() throws IOException {
+        return identify == null ? null : read(identify);
+    }
+
+    /**
+     * @return the ListMetadataFormats part of the repository, or null if
+     *         there is none
+     * @throws IOException the spool file could not be read
+     */
+    public InputStream getListMetadataFormats() throws IOException {
+        return formats == null ? null : read(formats);
+    }
+
+    /**
+     * @param prefix metadata prefix
+     * @return the records in the repository, in order, deleted ones
+     *         included; an empty list if there are none
+     */
+    public List<Entry> getRecords(String prefix) {
+        Records records = prefixes.get(prefix);
+        return records == null ? Collections.emptyList()
+                : Collections.unmodifiableList(records.list);
+    }
+
+    /**
+     * @param identifier record identifier
+     * @param prefix     metadata prefix
+     * @return the record, or null if the repository does not contain it
+     * @throws IOException the spool file could not be read
+     */
+    public InputStream getRecord(String identifier, String prefix) throws IOException {
+        Records records = prefixes.get(prefix);
+        Entry entry = records == null ? null : records.byId.get(identifier);
+        return entry == null ? null : read(entry);
+    }
+
+    /**
+     * @param prefix metadata prefix
+     * @return the ListRecords part of the repository for the prefix, or null
+     *         if there is none
+     * @throws IOException the spool file could not be read
+     */
+    public InputStream getListRecords(String prefix) throws IOException {
+        Records records = prefixes.get(prefix);
+        if (records == null)
+            return null;
+        List<ByteBuffer> parts = new ArrayList<>();
+        parts.add(ByteBuffer.wrap(records.start));
+        if (records.list.isEmpty()) {
+            // no records
+        } else if (records.contiguous && map != null) {
+            // the records of a prefix are spooled one after the other
+            Entry first = records.list.get(0);
+            Entry last = records.list.get(records.list.size() - 1);
+            parts.add(buffer(first.offset, last.offset + last.length - first.offset));
+        } else {
+            for (Entry entry : records.list)
+                parts.add(buffer(entry.offset, entry.length));
+        }
+        parts.add(ByteBuffer.wrap(records.end));
+        return new ByteBufferInputStream(parts.toArray(new ByteBuffer[0]));
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(spool);
+        } catch (IOException ex) {
+            logger.error("failed to remove spool file[" + spool + "]", ex);
+        }
+    }
+
+    /* Input stream reading from (mapped) byte buffers. Like the streams
+       used by DocumentSource, it can be reset to its start.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer[] buffers;
+        private int current = 0;
+        private int markBuffer = 0;
+        private int markPosition = 0;
+
+        ByteBufferInputStream(ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+
+        // the buffer to read from next, null at the end of the stream
+        private ByteBuffer next() {
+            while (current < buffers.length && !buffers[current].hasRemaining())
+                current++;
+            return current < buffers.length ? buffers[current] : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = next();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            ByteBuffer buffer = next();
+            if (buffer == null)
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = next();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            markBuffer = current;
+            markPosition = current < buffers.length ? buffers[current].position() : 0;
+        }
+
+        @Override
+        public synchronized void reset() {
+            for (int i = markBuffer; i < buffers.length; i++)
+                buffers[i].position(i == markBuffer ? markPosition : 0);
+            current = markBuffer;
+        }
+    }
+}
@@ -1,33 +1,69 @@
 package nl.mpi.oai.harvester.utils;
 
+import java.util.concurrent.atomic.LongAdder;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import nl.mpi.oai.harvester.metrics.ProviderMetrics;
+
 /**
  * Basic harvest statistic class
 **/
 public class Statistic {
 
     private long harvestTime;
-    private long records = 0;
-    private long requests = 0;
+    // incremented by the actions, which may run in parallel
+    private final LongAdder records = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+
+    // the live metrics of the provider
+    private final ProviderMetrics metrics;
 
     private long harvestStartTime;
 
     public Statistic(){
+        this(null);
+    }
+
+    /**
+     * @param provider the name of the provider, whose live metrics are
+     *                 kept up to date as well
+     */
+    public Statistic(String provider){
         harvestStartTime = System.currentTimeMillis();
+        metrics = (provider == null) ? Metrics.total() : Metrics.provider(provider);
     }
 
     public void incRecordCount(){
-        records++;
+        records.increment();
+        metrics.record();
     }
 
     public void incRequestCount(){
-        requests++;
+        requests.increment();
+    }
+
+    public void incSkippedCount(){
+        skipped.increment();
+        metrics.skipped();
+    }
+
+    public void incDeletedCount(){
+        deleted.increment();
+        metrics.deleted();
     }
 
     public long getHarvestedRecords() {
-        return  records;
+        return records.sum();
     }
     public long getRequests() {
-        return requests;
+        return requests.sum();
+    }
+    public long getSkippedRecords() {
+        return skipped.sum();
+    }
+    public long getDeletedRecords() {
+        return deleted.sum();
     }
     public long getHarvestTime() {
         long harvestFinishTime = System.currentTimeMillis();
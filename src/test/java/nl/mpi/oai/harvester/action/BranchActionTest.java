@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the BranchAction class.
+ */
+public class BranchActionTest {
+
+    private static final String ORIGINAL = "<record>original</record>";
+
+    private static final String REPLACED = "<record>replaced</record>";
+
+    /**
+     * Action replacing the content of the records, remembering what it saw
+     */
+    private static class ReplaceAction implements Action {
+
+        final List<String> seen = new ArrayList<>();
+
+        @Override
+        public boolean perform(List<Record> records) {
+            for (Record record : records) {
+                Metadata metadata = (Metadata) record;
+                seen.add(content(metadata));
+                metadata.setStream(new ByteArrayInputStream(
+                        REPLACED.getBytes(StandardCharsets.UTF_8)));
+            }
+            return true;
+        }
+
+        @Override
+        public Action clone() {
+            return this;
+        }
+    }
+
+    private static String content(Metadata metadata) {
+        try {
+            return IOUtils.toString(metadata.getStream(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Test that a branch sees the content of the records, and that the
+     * sequence continues with the records as they were before the branch.
+     */
+    @Test
+    public void testBranch() {
+        ReplaceAction inBranch = new ReplaceAction();
+        ReplaceAction afterBranch = new ReplaceAction();
+
+        ActionSequence sequence = new ActionSequence(null, new Action[]{
+                new BranchAction(new Action[]{inBranch}, 1), afterBranch}, 1);
+
+        Metadata metadata = new Metadata("id", "prefix", new ByteArrayInputStream(
+                ORIGINAL.getBytes(StandardCharsets.UTF_8)), null, false, false);
+        List<Record> records = new ArrayList<>();
+        records.add(metadata);
+
+        assertTrue(sequence.runActions(records));
+
+        assertEquals(1, inBranch.seen.size());
+        assertEquals(ORIGINAL, inBranch.seen.get(0));
+        assertEquals(1, afterBranch.seen.size());
+        assertEquals(ORIGINAL, afterBranch.seen.get(0));
+        assertEquals(REPLACED, content(metadata));
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import nl.mpi.oai.harvester.control.Scheduler;
+import nl.mpi.oai.harvester.metadata.Metadata;
+import nl.mpi.oai.harvester.metadata.Record;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the StreamingAction interface.
+ */
+public class StreamingActionTest {
+
+    /**
+     * Action splitting the record "split" in two and dropping the record
+     * "drop", remembering whether the records it saw were parsed
+     */
+    private static class StreamAction implements StreamingAction {
+
+        private final Set<Capability> capabilities;
+
+        final List<Boolean> parsed = Collections.synchronizedList(new ArrayList<>());
+
+        int ended = 0;
+
+        StreamAction(Set<Capability> capabilities) {
+            this.capabilities = capabilities;
+        }
+
+        @Override
+        public Set<Capability> getCapabilities() {
+            return capabilities;
+        }
+
+        @Override
+        public boolean onRecord(Record record, Batch batch) {
+            Metadata metadata = (Metadata) record;
+            parsed.add(metadata.hasDoc());
+            if ("split".equals(metadata.getId())) {
+                batch.replace(record, Arrays.asList(metadata("split-1"), metadata("split-2")));
+            } else if ("drop".equals(metadata.getId())) {
+                batch.replace(record, Collections.emptyList());
+            }
+            return true;
+        }
+
+        @Override
+        public CompletionStage<Boolean> onEnd(Batch batch) {
+            ended = batch.size();
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public Action clone() {
+            if (capabilities.contains(Capability.THREAD_SAFE)) {
+                throw new AssertionError("a thread safe action is cloned");
+            }
+            return this;
+        }
+    }
+
+    private static Metadata metadata(String id) {
+        return new Metadata(id, "prefix", new ByteArrayInputStream(
+                ("<record>" + id + "</record>").getBytes(StandardCharsets.UTF_8)),
+                null, false, false);
+    }
+
+    private static List<Record> records(String... ids) {
+        List<Record> records = new ArrayList<>();
+        for (String id : ids) {
+            records.add(metadata(id));
+        }
+        return records;
+    }
+
+    private static List<String> ids(List<Record> records) {
+        List<String> ids = new ArrayList<>();
+        for (Record record : records) {
+            ids.add(((Metadata) record).getId());
+        }
+        return ids;
+    }
+
+    @After
+    public void tearDown() {
+        Scheduler.configure(0);
+    }
+
+    /**
+     * Test that the records are replaced in order, that a thread safe
+     * action is shared and handled in parallel, and that an action
+     * accepting streams gets the records unparsed.
+     */
+    @Test
+    public void testStream() {
+        Scheduler.configure(2);
+        StreamAction action = new StreamAction(EnumSet.of(
+                StreamingAction.Capability.THREAD_SAFE,
+                StreamingAction.Capability.ACCEPTS_STREAM));
+        ActionSequence sequence = new ActionSequence(null, new Action[]{action}, 3);
+
+        List<Record> records = records("first", "split", "drop", "last");
+        assertTrue(sequence.runActions(records));
+
+        assertEquals(Arrays.asList("first", "split-1", "split-2", "last"), ids(records));
+        assertEquals(4, action.ended);
+        assertEquals(Arrays.asList(false, false, false, false), action.parsed);
+        assertSame(action, sequence.getActions().get(0).get());
+    }
+
+    /**
+     * Test that an action without capabilities gets the records parsed,
+     * and that an I/O bound one can be performed on the pool for CPU bound
+     * work.
+     */
+    @Test
+    public void testDocument() {
+        StreamAction action = new StreamAction(EnumSet.noneOf(StreamingAction.Capability.class));
+        List<Record> records = records("first", "drop");
+        assertTrue(action.perform(records));
+        assertEquals(Arrays.asList("first"), ids(records));
+        assertEquals(Arrays.asList(true, true), action.parsed);
+
+        Scheduler.configure(1);
+        StreamAction blocking = new StreamAction(EnumSet.of(
+                StreamingAction.Capability.IO_BOUND,
+                StreamingAction.Capability.ACCEPTS_STREAM));
+        ActionSequence sequence = new ActionSequence(null, new Action[]{blocking}, 1);
+        records = records("split");
+        assertTrue(sequence.runActions(records));
+        assertEquals(Arrays.asList("split-1", "split-2"), ids(records));
+    }
+
+    /**
+     * Test that the sequence waits for a batch completing asynchronously,
+     * and leaves the records unchanged when it fails.
+     */
+    @Test
+    public void testAsync() {
+        StreamAction later = new StreamAction(EnumSet.noneOf(StreamingAction.Capability.class)) {
+            @Override
+            public CompletionStage<Boolean> onEnd(Batch batch) {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    ended = batch.size();
+                    return true;
+                });
+            }
+        };
+        List<Record> records = records("split");
+        assertTrue(later.perform(records));
+        assertEquals(2, later.ended);
+        assertEquals(2, records.size());
+
+        StreamAction failing = new StreamAction(EnumSet.noneOf(StreamingAction.Capability.class)) {
+            @Override
+            public CompletionStage<Boolean> onEnd(Batch batch) {
+                CompletableFuture<Boolean> end = new CompletableFuture<>();
+                end.completeExceptionally(new IllegalStateException("not delivered"));
+                return end;
+            }
+        };
+        records = records("split", "drop");
+        assertFalse(failing.perform(records));
+        assertEquals(Arrays.asList("split", "drop"), ids(records));
+    }
+
+    /**
+     * Test that a thread safe I/O bound action waits for its records in
+     * parallel, even on a pool of one thread.
+     */
+    @Test
+    public void testParallelBlocking() {
+        Scheduler.configure(1);
+        CountDownLatch both = new CountDownLatch(2);
+        StreamAction action = new StreamAction(EnumSet.of(
+                StreamingAction.Capability.THREAD_SAFE,
+                StreamingAction.Capability.IO_BOUND,
+                StreamingAction.Capability.ACCEPTS_STREAM)) {
+            @Override
+            public boolean onRecord(Record record, Batch batch) {
+                // every record waits for the other one
+                both.countDown();
+                try {
+                    return both.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        };
+        ActionSequence sequence = new ActionSequence(null, new Action[]{action}, 1);
+        List<Record> records = records("first", "second");
+        assertTrue(sequence.runActions(records));
+        assertEquals(2, action.ended);
+    }
+
+    /**
+     * Test that only the records of the batch can be replaced, and that a
+     * cancelled batch fails.
+     */
+    @Test
+    public void testReplaceAndCancel() {
+        StreamAction foreign = new StreamAction(EnumSet.noneOf(StreamingAction.Capability.class)) {
+            @Override
+            public boolean onRecord(Record record, Batch batch) {
+                try {
+                    batch.replace(metadata("other"), Collections.emptyList());
+                    return false;
+                } catch (IllegalArgumentException e) {
+                    return true;
+                }
+            }
+        };
+        List<Record> records = records("first");
+        assertTrue(foreign.perform(records));
+        assertEquals(Arrays.asList("first"), ids(records));
+
+        StreamAction cancelled = new StreamAction(EnumSet.noneOf(StreamingAction.Capability.class)) {
+            @Override
+            public CompletionStage<Boolean> onEnd(Batch batch) {
+                CompletableFuture<Boolean> end = new CompletableFuture<>();
+                end.cancel(false);
+                return end;
+            }
+        };
+        records = records("split");
+        assertFalse(cancelled.perform(records));
+        assertEquals(Arrays.asList("split"), ids(records));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.action;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the transform actions pooled across configurations.
+ */
+public class TransformActionTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"/\"><xsl:copy-of select=\".\"/></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    /**
+     * Test that a stylesheet edited after it was compiled is noticed, and
+     * that the pool of the old action is not reused for the new one.
+     */
+    @Test
+    public void testStale() throws Exception {
+        Path xsl = folder.getRoot().toPath().resolve("copy.xsl");
+        Files.write(xsl, Collections.singletonList(STYLESHEET), StandardCharsets.UTF_8);
+
+        TransformAction action = new TransformAction(null, xsl.toString(), null, 0);
+        assertEquals(action, new TransformAction(null, xsl.toString(), null, 0));
+        ActionSequence sequence = new ActionSequence(null, new Action[]{action}, 1);
+        assertFalse(action.isStale());
+        assertFalse(ActionSequence.isStale());
+
+        // the stylesheet is edited
+        Files.setLastModifiedTime(xsl, FileTime.fromMillis(
+                Files.getLastModifiedTime(xsl).toMillis() + 10000));
+        assertTrue(action.isStale());
+        assertTrue(ActionSequence.isStale());
+
+        TransformAction edited = new TransformAction(null, xsl.toString(), null, 0);
+        assertNotEquals(action, edited);
+        assertEquals(1, ActionSequence.dropStale());
+        assertFalse(ActionSequence.isStale());
+        ActionSequence next = new ActionSequence(null, new Action[]{edited}, 1);
+        assertNotSame(sequence.getActions().get(0), next.getActions().get(0));
+    }
+}
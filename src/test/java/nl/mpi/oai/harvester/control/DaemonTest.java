@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the daemon mode. (This is an integration test since it involves
+ * the file system and the network.)
+ */
+public class DaemonTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that cycles are triggered by the trigger file and over HTTP, and
+     * that draining stops the daemon
+     */
+    @Test(timeout = 60000)
+    public void testTriggers() throws Exception {
+        Path workdir = folder.getRoot().toPath();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Path file = workdir.resolve("config.xml");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<config>");
+            out.println("  <settings>");
+            out.println("    <workdir>" + workdir + "</workdir>");
+            out.println("    <overview-file>" + workdir.resolve("overview.xml") + "</overview-file>");
+            out.println("    <map-file>" + workdir.resolve("map.csv") + "</map-file>");
+            out.println("    <trigger-file>harvest.trigger</trigger-file>");
+            out.println("    <daemon-port>" + port + "</daemon-port>");
+            out.println("  </settings>");
+            out.println("  <directories/>");
+            out.println("  <actions/>");
+            out.println("  <providers/>");
+            out.println("</config>");
+        }
+
+        String[] args = {"daemon=true", file.toString()};
+        Main.config = Main.readConfiguration(file.toString(), args);
+        assertTrue(Main.config.isDaemon());
+        Daemon daemon = new Daemon(file.toString(), args);
+        Thread thread = new Thread(daemon::run);
+        thread.start();
+
+        // without an interval, the daemon waits for a trigger
+        Thread.sleep(1500);
+        assertEquals(0, daemon.getCycles());
+
+        Files.createFile(workdir.resolve("harvest.trigger"));
+        waitFor(daemon::getCycles, 1);
+        assertFalse(Files.exists(workdir.resolve("harvest.trigger")));
+
+        assertEquals(405, request(port, "/harvest", "GET"));
+        assertEquals(202, request(port, "/harvest", "POST"));
+        waitFor(daemon::getCycles, 2);
+
+        assertEquals(202, request(port, "/drain", "POST"));
+        thread.join();
+        assertEquals("stopped", daemon.getState());
+        assertEquals(2, daemon.getCycles());
+    }
+
+    private static int request(int port, String path, String method) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setRequestMethod(method);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void waitFor(LongSupplier value, long expected) throws InterruptedException {
+        while (value.getAsLong() < expected) {
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the registry of providers shared by harvesters. The harvesters
+ * are simulated by registries in the same JVM. (This is an integration test
+ * since it involves the file system.)
+ */
+public class LeaseRegistryTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static Provider provider(String url) throws Exception {
+        return new Provider(url, 1, new int[]{0});
+    }
+
+    /**
+     * Test that a provider is harvested by one harvester in a round
+     */
+    @Test
+    public void testClaim() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        LeaseRegistry a = new LeaseRegistry(dir, "a", 300);
+        LeaseRegistry b = new LeaseRegistry(dir, "b", 300);
+        try {
+            assertTrue(a.begin());
+            assertTrue(b.begin());
+            Provider one = provider("http://www.endpoint.org/one");
+            Provider two = provider("http://www.endpoint.org/two");
+
+            assertTrue(a.claim(one));
+            assertFalse(b.claim(one));
+            assertTrue(b.claim(two));
+            assertFalse(a.claim(two));
+            // the same provider for other sets is another provider
+            two.sets = new String[]{"a"};
+            assertTrue(a.claim(two));
+            two.sets = null;
+
+            a.release(one);
+            assertTrue(b.isFinished(one));
+            assertFalse(b.claim(one));
+            assertFalse(a.end(Arrays.asList(one, two)));
+            assertTrue(Files.exists(dir.resolve("round")));
+
+            b.release(two);
+            assertTrue(b.end(Arrays.asList(one, two)));
+            assertFalse(Files.exists(dir.resolve("round")));
+
+            // a new round harvests all providers again
+            Thread.sleep(10);
+            assertTrue(b.begin());
+            assertTrue(b.claim(one));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Test that a lease is renewed while it is held, and taken over when its
+     * harvester stopped
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        LeaseRegistry a = new LeaseRegistry(dir, "a", 1);
+        LeaseRegistry b = new LeaseRegistry(dir, "b", 1);
+        try {
+            assertTrue(a.begin());
+            assertTrue(b.begin());
+            Provider one = provider("http://www.endpoint.org/one");
+
+            assertTrue(a.claim(one));
+            Thread.sleep(2500);
+            // renewed in the background
+            assertFalse(b.claim(one));
+
+            // the harvester stops
+            a.close();
+            Thread.sleep(1500);
+            assertTrue(b.claim(one));
+            b.release(one);
+            assertTrue(a.isFinished(one));
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Test that a worker is fenced once its lease is lost
+     */
+    @Test
+    public void testFence() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        LeaseRegistry a = new LeaseRegistry(dir, "a", 1);
+        try {
+            assertTrue(a.begin());
+            Provider one = provider("http://www.endpoint.org/one");
+            AtomicBoolean before = new AtomicBoolean();
+            AtomicBoolean after = new AtomicBoolean(true);
+            a.guard(one, () -> {
+                before.set(LeaseRegistry.isHeld());
+                try {
+                    // another harvester takes the lease
+                    try (DirectoryStream<Path> leases = Files.newDirectoryStream(dir.resolve("leases"))) {
+                        for (Path lease : leases) {
+                            Files.delete(lease);
+                        }
+                    }
+                    Thread.sleep(1000);
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                after.set(LeaseRegistry.isHeld());
+            }).run();
+            assertTrue(before.get());
+            assertFalse(after.get());
+            // outside of the worker nothing is fenced
+            assertTrue(LeaseRegistry.isHeld());
+        } finally {
+            a.close();
+        }
+    }
+
+    /**
+     * Test that a registry that cannot be read does not stop the harvest
+     */
+    @Test
+    public void testUnreadable() throws Exception {
+        Path dir = folder.getRoot().toPath().resolve("missing");
+        LeaseRegistry a = new LeaseRegistry(dir, "a", 300);
+        try {
+            Provider one = provider("http://www.endpoint.org/one");
+            assertFalse(a.claim(one));
+            assertFalse(a.isFinished(one));
+            a.release(one);
+        } finally {
+            a.close();
+        }
+    }
+}
@@ -49,8 +49,6 @@ public class MainTest {
         // TODO: assert something
         final Configuration config = readConfig(BASIC_CONFIG_WITH_NDE_PROTOCOL);
         Main.runHarvesting(config);
-        // TODO: let the test wait for the threads instead of waiting for 5"
-        Thread.sleep(5000);
     }
 
     private Configuration readConfig(String name) throws Exception {
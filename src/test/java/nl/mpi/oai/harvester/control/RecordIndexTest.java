@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.Provider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the RecordIndex class. (This is an integration test since it
+ * involves the file system.)
+ */
+public class RecordIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that entries survive closing and reopening the index, and that
+     * entries from different runs are merged.
+     */
+    @Test
+    public void testPersistence() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        Provider provider = new Provider("http://www.endpoint.org/oai", 1, new int[]{0});
+        provider.setName("Test provider");
+
+        RecordIndex index = RecordIndex.get(dir, provider);
+        for (int i = 0; i < 100; i++) {
+            index.update("record" + i, RecordIndex.digest(("content" + i).getBytes()),
+                    i, Paths.get("out", "record" + i + ".xml"));
+        }
+        assertNotNull(index.lookup("record42"));
+        RecordIndex.close(provider);
+
+        index = RecordIndex.get(dir, provider);
+        for (int i = 0; i < 100; i++) {
+            RecordIndex.Entry entry = index.lookup("record" + i);
+            assertNotNull(entry);
+            assertArrayEquals(RecordIndex.digest(("content" + i).getBytes()), entry.getDigest());
+            assertEquals(i, entry.getDatestamp());
+            assertEquals(Paths.get("out", "record" + i + ".xml").toString(), entry.getPath());
+        }
+        assertNull(index.lookup("record100"));
+
+        // replace one entry and add another one
+        index.update("record7", RecordIndex.digest("changed".getBytes()), 0, Paths.get("other.xml"));
+        index.update("record100", RecordIndex.digest("new".getBytes()), 0, Paths.get("new.xml"));
+        RecordIndex.close(provider);
+
+        index = RecordIndex.get(dir, provider);
+        assertEquals("other.xml", index.lookup("record7").getPath());
+        assertEquals("new.xml", index.lookup("record100").getPath());
+        assertEquals(Paths.get("out", "record8.xml").toString(), index.lookup("record8").getPath());
+        RecordIndex.close(provider);
+    }
+}
@@ -22,6 +22,7 @@ import com.github.tomakehurst.wiremock.matching.UrlPattern;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -37,6 +38,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -68,6 +70,9 @@ public class RegistryReaderTest {
 
     @Rule
     public WireMockClassRule wireMockInstanceRule = wireMockRule;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
     
     @Before
     public void setUp() throws Exception {
@@ -136,6 +141,26 @@ public class RegistryReaderTest {
         assertEquals(entry,"\"http://clarin.dk/oaiprovider/\",\"CLARIN_DK_OAI\",\"The CLARIN, Centre at the \"\"University of Copenhagen\"\"\",\"CLARIN-DK\"");
     }
     
+    /**
+     * Test that the registry models are read from the snapshot when the
+     * registry cannot be reached.
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        Path snapshot = folder.getRoot().toPath();
+        String expResult = registry.endpointMapping("http://clarin.dk/oaiprovider/", "CLARIN DK OAI");
+
+        RegistryReader reader = new RegistryReader(new URL(registryURl), snapshot, 0);
+        assertEquals(50, reader.getEndpoints().size());
+
+        // no registry at this URL
+        reader = new RegistryReader(new URL(registryURl + "/gone"), snapshot, 0);
+        assertEquals(50, reader.getEndpoints().size());
+        assertEquals(expResult, reader.endpointMapping("http://clarin.dk/oaiprovider/", "CLARIN DK OAI"));
+        assertEquals(2, reader.getEndPointOaiPmhSetMap().get(
+                "http://www.phonetik.uni-muenchen.de/cgi-bin/BASRepository/oaipmh/oai.pl").size());
+    }
+
     private static String getResourceAsString(String resourceName) throws IOException {
         final String registryOverviewString;
         try (InputStream infoResourceStream = RegistryReaderTest.class.getResourceAsStream(resourceName)) {
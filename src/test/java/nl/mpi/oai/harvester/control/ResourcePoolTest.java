@@ -20,6 +20,10 @@ package nl.mpi.oai.harvester.control;
 
 import nl.mpi.oai.harvester.control.ResourcePool;
 import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
 import static org.junit.Assert.*;
 
 /**
@@ -42,5 +46,34 @@ public class ResourcePoolTest {
 	assertEquals(pool.getNumAvailable(), 0);
 	pool.release(r);
 	assertEquals(pool.getNumAvailable(), 1);
-    }    
+    }
+
+    /**
+     * Test that tasks waiting for a resource on the pool of the scheduler
+     * do not take away its threads: both tasks run at the same time on a
+     * pool of one thread.
+     */
+    @Test
+    public void testManagedWait() throws Exception {
+	ResourcePool<String> pool = new ResourcePool<>(new String[0]);
+	Supplier<String> task = pool::get;
+	List<Supplier<String>> tasks = Arrays.asList(task, task);
+	Scheduler.configure(1);
+	try {
+	    Thread worker = new Thread(() -> Scheduler.runAll(tasks));
+	    worker.start();
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (Scheduler.getRunning() < 2
+		    && System.currentTimeMillis() < deadline)
+		Thread.sleep(10);
+	    assertEquals(2, Scheduler.getRunning());
+	    pool.release("one");
+	    pool.release("two");
+	    worker.join(10000);
+	    assertFalse(worker.isAlive());
+	    assertEquals(0, pool.getNumAvailable());
+	} finally {
+	    Scheduler.configure(0);
+	}
+    }
 }
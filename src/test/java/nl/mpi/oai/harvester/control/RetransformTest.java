@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the re-transform of saved records. (This is an integration test
+ * since it involves the file system.)
+ */
+public class RetransformTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that small files are read, and large ones are mapped
+     */
+    @Test
+    public void testRead() throws Exception {
+        Path small = folder.getRoot().toPath().resolve("small.xml");
+        Files.write(small, "<record/>".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = Retransform.read(small);
+        assertFalse(buffer instanceof MappedByteBuffer);
+        assertEquals("<record/>", IOUtils.toString(
+                new Retransform.ByteBufferInputStream(buffer), StandardCharsets.UTF_8));
+
+        byte[] content = new byte[(int) Retransform.MAP_THRESHOLD + 1];
+        Arrays.fill(content, (byte) 'x');
+        Path large = folder.getRoot().toPath().resolve("large.xml");
+        Files.write(large, content);
+        buffer = Retransform.read(large);
+        assertTrue(buffer instanceof MappedByteBuffer);
+        assertArrayEquals(content, IOUtils.toByteArray(
+                new Retransform.ByteBufferInputStream(buffer.duplicate())));
+        // every reader starts from the beginning
+        assertArrayEquals(content, IOUtils.toByteArray(
+                new Retransform.ByteBufferInputStream(buffer.duplicate())));
+    }
+
+    /**
+     * Test that a record read back can be read more than once through its
+     * document source, like a sequence saving it twice does
+     */
+    @Test
+    public void testReadTwice() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("<record>1</record>".getBytes(StandardCharsets.UTF_8));
+        DocumentSource source = new DocumentSource("rec_1",
+                new Retransform.ByteBufferInputStream(buffer.duplicate()));
+        assertEquals("<record>1</record>", IOUtils.toString(source.getStream(), StandardCharsets.UTF_8));
+        assertEquals("<record>1</record>", IOUtils.toString(source.getStream(), StandardCharsets.UTF_8));
+
+        Retransform.ByteBufferInputStream stream = new Retransform.ByteBufferInputStream(buffer.duplicate());
+        assertTrue(stream.markSupported());
+        assertEquals('<', stream.read());
+        stream.mark(0);
+        assertEquals("record>1</record>", IOUtils.toString(stream, StandardCharsets.UTF_8));
+        stream.reset();
+        assertEquals('r', stream.read());
+    }
+
+    /**
+     * Test that the saved records are saved again by the actions following
+     * the save, and that completed directories are skipped on resume
+     */
+    @Test
+    public void testRetransform() throws Exception {
+        Path workdir = folder.getRoot().toPath();
+        Configuration config = config(workdir);
+
+        Path src = workdir.resolve("src").resolve("Endpoint");
+        for (int i = 1; i <= 5; i++) {
+            Path dir = src.resolve(String.format("%04d", (i + 1) / 2));
+            Files.createDirectories(dir);
+            Files.write(dir.resolve("rec_" + i + ".xml"),
+                    ("<record>" + i + "</record>").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // the first directory was done by an earlier, interrupted run
+        Files.write(workdir.resolve("src.retransform"), "Endpoint/0001\n".getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(new Retransform(config, "src").run());
+
+        Path out = workdir.resolve("out").resolve("Endpoint");
+        assertFalse(Files.exists(out.resolve("rec_1.xml")));
+        assertFalse(Files.exists(out.resolve("rec_2.xml")));
+        for (int i = 3; i <= 5; i++) {
+            String saved = new String(Files.readAllBytes(out.resolve("rec_" + i + ".xml")), StandardCharsets.UTF_8);
+            assertTrue(saved.contains("<record>" + i + "</record>"));
+        }
+        // a completed re-transform leaves nothing to resume
+        assertFalse(Files.exists(workdir.resolve("src.retransform")));
+
+        // a directory without actions following its save cannot be re-transformed
+        assertFalse(new Retransform(config, "out").run());
+    }
+
+    private Configuration config(Path workdir) throws Exception {
+        Path file = workdir.resolve("config.xml");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<config>");
+            out.println("  <settings>");
+            out.println("    <workdir>" + workdir + "</workdir>");
+            out.println("    <map-file>" + workdir.resolve("map.csv") + "</map-file>");
+            out.println("    <resource-pool-size>2</resource-pool-size>");
+            out.println("  </settings>");
+            out.println("  <directories>");
+            out.println("    <dir path=\"src\" id=\"src\" max-files=\"2\"/>");
+            out.println("    <dir path=\"out\" id=\"out\" max-files=\"0\"/>");
+            out.println("  </directories>");
+            out.println("  <actions>");
+            out.println("    <format match=\"prefix\" value=\"oai_dc\">");
+            out.println("      <action type=\"save\" dir=\"src\" suffix=\".xml\"/>");
+            out.println("      <action type=\"save\" dir=\"out\" suffix=\".xml\"/>");
+            out.println("    </format>");
+            out.println("  </actions>");
+            out.println("  <providers/>");
+            out.println("</config>");
+        }
+        Files.write(workdir.resolve("map.csv"), Arrays.asList(
+                "endpointUrl,directoryName,centreName,nationalProject",
+                "http://www.endpoint.org/oai,Endpoint,Endpoint,"));
+
+        Configuration config = new Configuration();
+        config.readConfig(file.toString());
+        Main.config = config;
+        return config;
+    }
+}
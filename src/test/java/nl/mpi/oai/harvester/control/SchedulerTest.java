@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+import nl.mpi.oai.harvester.metrics.Metrics;
+import org.apache.logging.log4j.ThreadContext;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the scheduler of the CPU bound stages.
+ */
+public class SchedulerTest {
+
+    @After
+    public void tearDown() {
+        Scheduler.configure(0);
+        Metrics.leave();
+        ThreadContext.clearAll();
+    }
+
+    /**
+     * Test that the results of tasks run in parallel keep their order, also
+     * when the tasks are handed over by threads of the pool itself.
+     */
+    @Test
+    public void testNestedTasks() {
+        Scheduler.configure(2);
+        long before = Scheduler.getCompleted();
+
+        List<Supplier<Integer>> outer = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int n = i;
+            outer.add(() -> {
+                List<Supplier<Integer>> inner = new ArrayList<>();
+                for (int j = 0; j < 8; j++) {
+                    final int m = j;
+                    inner.add(() -> n * 8 + m);
+                }
+                int sum = 0;
+                for (int r : Scheduler.runAll(inner)) {
+                    sum += r;
+                }
+                return Scheduler.run(() -> n) * 1000 + sum;
+            });
+        }
+        List<Integer> results = Scheduler.runAll(outer);
+
+        assertEquals(4, results.size());
+        for (int n = 0; n < 4; n++) {
+            assertEquals(n * 1000 + n * 64 + 28, (int) results.get(n));
+        }
+        // 4 outer tasks and 4 times 8 inner ones; nested run is inline
+        assertEquals(36, Scheduler.getCompleted() - before);
+        assertEquals(0, Scheduler.getQueueDepth());
+        assertEquals(0, Scheduler.getRunning());
+    }
+
+    /**
+     * Test that tasks keep the log context and the provider of the thread
+     * handing them over, and that the threads of the pool drop them after.
+     */
+    @Test
+    public void testContext() {
+        Scheduler.configure(2);
+        ThreadContext.put("logFileName", "provider");
+        Metrics.enter("provider");
+
+        List<Supplier<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(() -> ThreadContext.get("logFileName") + "|"
+                    + (Metrics.current() == Metrics.provider("provider")));
+        }
+        for (String result : Scheduler.runAll(tasks)) {
+            assertEquals("provider|true", result);
+        }
+
+        ThreadContext.clearAll();
+        Metrics.leave();
+        assertEquals("null|true", Scheduler.run(() -> ThreadContext.get("logFileName") + "|"
+                + (Metrics.current() == Metrics.total())));
+    }
+
+    /**
+     * Test that without a pool the tasks run on the calling thread.
+     */
+    @Test
+    public void testWithoutPool() {
+        Scheduler.configure(0);
+        Thread caller = Thread.currentThread();
+        assertTrue(Scheduler.run(() -> Thread.currentThread() == caller));
+    }
+
+    /**
+     * Test that without a pool the parts of a task that splits itself up
+     * stay out of the common pool.
+     */
+    @Test
+    public void testInvokeWithoutPool() {
+        Scheduler.configure(0);
+        assertEquals(Boolean.TRUE, Scheduler.invoke(new RecursiveTask<Boolean>() {
+            @Override
+            protected Boolean compute() {
+                ForkJoinTask<Boolean> part = ForkJoinTask.adapt(
+                        () -> ForkJoinTask.getPool() != ForkJoinPool.commonPool()).fork();
+                return part.join();
+            }
+        }));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015, The Max Planck Institute for
+ * Psycholinguistics.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.harvesting;
+
+import nl.mpi.oai.harvester.Provider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the checkpoint store. (This is an integration test since it
+ * involves the file system.)
+ */
+public class CheckpointStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test saving, loading and clearing a checkpoint
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        CheckpointStore store = new CheckpointStore(
+                folder.getRoot().toPath().resolve("checkpoints"));
+        Provider provider = new Provider("http://www.endpoint.org/oai", 1, new int[]{0});
+        provider.sets = new String[]{"a", "b"};
+
+        assertNull(store.load(provider, "prefix=cmdi"));
+
+        assertTrue(store.save(provider, "prefix=cmdi",
+                new CheckpointStore.Checkpoint("cmdi", "b", "token|900", 900,
+                        "2020-01-01", null, "2020-03-04T05:06:07Z")));
+
+        CheckpointStore.Checkpoint checkpoint = store.load(provider, "prefix=cmdi");
+        assertNotNull(checkpoint);
+        assertEquals("cmdi", checkpoint.prefix);
+        assertEquals("b", checkpoint.set);
+        assertEquals("token|900", checkpoint.token);
+        assertEquals(900, checkpoint.getPage());
+        assertEquals("2020-01-01", checkpoint.from);
+        assertNull(checkpoint.until);
+        assertEquals("2020-03-04T05:06:07Z", checkpoint.datestamp);
+
+        // other formats and set selections have their own checkpoints
+        assertNull(store.load(provider, "prefix=olac"));
+        provider.sets = null;
+        assertNull(store.load(provider, "prefix=cmdi"));
+        provider.sets = new String[]{"a", "b"};
+
+        // no temporary files should be left behind
+        File[] files = folder.getRoot().toPath().resolve("checkpoints").toFile().listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".checkpoint"));
+
+        store.clear(provider, "prefix=cmdi");
+        assertNull(store.load(provider, "prefix=cmdi"));
+    }
+}
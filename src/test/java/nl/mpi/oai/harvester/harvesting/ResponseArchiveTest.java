@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.harvesting;
+
+import nl.mpi.oai.harvester.Provider;
+import nl.mpi.oai.harvester.utils.DocumentSource;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the archive of raw responses. (This is an integration test since
+ * it involves the file system.)
+ */
+public class ResponseArchiveTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static DocumentSource page(int n) {
+        return new DocumentSource(new ByteArrayInputStream(
+                ("<OAI-PMH><page>" + n + "</page></OAI-PMH>").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Provider provider() throws Exception {
+        Provider provider = new Provider("http://www.endpoint.org/oai", 1, new int[]{0});
+        provider.setName("Endpoint");
+        return provider;
+    }
+
+    /**
+     * Test archiving pages and reading them back
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        ResponseArchive archive = new ResponseArchive(folder.getRoot().toPath());
+        Provider provider = provider();
+
+        ResponseArchive.Run run = archive.start(provider, "prefix=cmdi", true);
+        for (int n = 0; n < 3; n++) {
+            DocumentSource response = page(n);
+            assertTrue(run.append(n, "cmdi", response));
+            // the response can still be read by the actions
+            assertEquals("<OAI-PMH><page>" + n + "</page></OAI-PMH>",
+                    IOUtils.toString(response.getStream(), StandardCharsets.UTF_8));
+        }
+
+        List<ResponseArchive.Run> runs = archive.runs(provider);
+        assertEquals(1, runs.size());
+        assertFalse(runs.get(0).isComplete());
+        assertEquals("Endpoint", runs.get(0).getName());
+        assertEquals("prefix=cmdi", runs.get(0).getFormat());
+
+        run.complete();
+        runs = archive.runs(provider);
+        assertTrue(runs.get(0).isComplete());
+
+        Iterator<ResponseArchive.Page> pages = runs.get(0).pages();
+        for (int n = 0; n < 3; n++) {
+            assertTrue(pages.hasNext());
+            ResponseArchive.Page page = pages.next();
+            assertEquals(n, page.getPage());
+            assertEquals("cmdi", page.getPrefix());
+            assertEquals("<OAI-PMH><page>" + n + "</page></OAI-PMH>",
+                    new String(page.getContent(), StandardCharsets.UTF_8));
+        }
+        assertFalse(pages.hasNext());
+
+        // other set selections have their own archive
+        provider.sets = new String[]{"a"};
+        assertTrue(archive.runs(provider).isEmpty());
+    }
+
+    /**
+     * Test that a complete harvest replaces the earlier runs of its format
+     */
+    @Test
+    public void testReplace() throws Exception {
+
+        ResponseArchive archive = new ResponseArchive(folder.getRoot().toPath());
+        Provider provider = provider();
+
+        ResponseArchive.Run full = archive.start(provider, "prefix=cmdi", true);
+        full.append(0, "cmdi", page(0));
+        full.complete();
+        ResponseArchive.Run incremental = archive.start(provider, "prefix=cmdi", false);
+        incremental.append(0, "cmdi", page(1));
+        incremental.complete();
+        ResponseArchive.Run other = archive.start(provider, "prefix=olac", true);
+        other.append(0, "olac", page(2));
+        other.complete();
+        assertEquals(3, archive.runs(provider).size());
+
+        // an interrupted harvest replaces nothing
+        ResponseArchive.Run interrupted = archive.start(provider, "prefix=cmdi", true);
+        interrupted.append(0, "cmdi", page(3));
+        assertEquals(4, archive.runs(provider).size());
+
+        ResponseArchive.Run again = archive.start(provider, "prefix=cmdi", true);
+        again.append(0, "cmdi", page(4));
+        again.complete();
+
+        List<ResponseArchive.Run> runs = archive.runs(provider);
+        assertEquals(2, runs.size());
+        assertEquals("prefix=olac", runs.get(0).getFormat());
+        assertEquals("prefix=cmdi", runs.get(1).getFormat());
+        assertEquals("<OAI-PMH><page>4</page></OAI-PMH>",
+                new String(runs.get(1).pages().next().getContent(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that a page cut off by a crash is left out
+     */
+    @Test
+    public void testTruncated() throws Exception {
+
+        ResponseArchive archive = new ResponseArchive(folder.getRoot().toPath());
+        Provider provider = provider();
+
+        ResponseArchive.Run run = archive.start(provider, "prefix=cmdi", true);
+        run.append(0, "cmdi", page(0));
+        run.append(1, "cmdi", page(1));
+
+        File[] dirs = folder.getRoot().listFiles();
+        assertEquals(1, dirs.length);
+        File[] segments = dirs[0].listFiles((dir, name) -> name.endsWith(".gz"));
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        Iterator<ResponseArchive.Page> pages = archive.runs(provider).get(0).pages();
+        assertTrue(pages.hasNext());
+        assertEquals(0, pages.next().getPage());
+        assertFalse(pages.hasNext());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the live metrics.
+ */
+public class MetricsTest {
+
+    /**
+     * Test that the counts of a provider are added to those of the harvest
+     * as a whole.
+     */
+    @Test
+    public void testTotals() {
+        long requests = Metrics.total().getRequests();
+        long bytes = Metrics.total().getBytes();
+
+        ProviderMetrics provider = Metrics.provider("test totals");
+        provider.request(100);
+        provider.request(50);
+        provider.retry();
+
+        assertSame(provider, Metrics.provider("test totals"));
+        assertEquals(2, provider.getRequests());
+        assertEquals(150, provider.getBytes());
+        assertEquals(1, provider.getRetries());
+        assertEquals(requests + 2, Metrics.total().getRequests());
+        assertEquals(bytes + 150, Metrics.total().getBytes());
+
+        // a thread attributes its counts to the provider it entered
+        Metrics.enter("test totals");
+        try {
+            assertSame(provider, Metrics.current());
+        } finally {
+            Metrics.leave();
+        }
+        assertSame(Metrics.total(), Metrics.current());
+    }
+
+    /**
+     * Test that the buckets of a histogram are cumulative.
+     */
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        histogram.observe(500_000L);         // 0.5 ms
+        histogram.observe(20_000_000L);      // 20 ms
+        histogram.observe(400_000_000_000L); // 400 s
+
+        long[] counts = histogram.getCumulativeCounts();
+        assertEquals(1, counts[0]);
+        assertEquals(2, counts[3]);
+        assertEquals(2, counts[Histogram.BOUNDS.length - 1]);
+        assertEquals(3, counts[Histogram.BOUNDS.length]);
+        assertEquals(3, histogram.getCount());
+        assertEquals(400.0205, histogram.getSum(), 1e-9);
+    }
+
+    /**
+     * Test the Prometheus text format.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        Metrics.provider("test \"write\"").record();
+        Metrics.time("test", 2_000_000L);
+        Metrics.timeAction("strip", 1_000_000L);
+        Metrics.gauge("test_gauge", () -> 7);
+
+        StringWriter w = new StringWriter();
+        Metrics.write(w);
+        String text = w.toString();
+
+        assertTrue(text.contains("# TYPE oai_records_total counter\n"));
+        assertTrue(text.contains("oai_records_total{provider=\"test \\\"write\\\"\"} 1\n"));
+        assertTrue(text.contains("oai_test_gauge 7.0\n"));
+        assertTrue(text.contains("oai_test_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(text.contains("oai_test_seconds_count 1\n"));
+        assertTrue(text.contains("oai_action_seconds_bucket{action=\"strip\",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("oai_action_seconds_count{action=\"strip\"} 1\n"));
+    }
+
+    /**
+     * Test that the metrics are only served on the loopback interface,
+     * unless another address is configured.
+     */
+    @Test
+    public void testServe() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        InetAddress external = null;
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            for (InetAddress address : Collections.list(nif.getInetAddresses())) {
+                if (!address.isLoopbackAddress() && address instanceof Inet4Address) {
+                    external = address;
+                }
+            }
+        }
+        try {
+            Metrics.configure(port);
+            assertEquals(200, request("127.0.0.1", port));
+            if (external != null) {
+                assertEquals(-1, request(external.getHostAddress(), port));
+                Metrics.configure(external.getHostAddress(), port);
+                assertEquals(200, request(external.getHostAddress(), port));
+            }
+        } finally {
+            Metrics.stop();
+        }
+    }
+
+    // the status of a request for the metrics, -1 if the connection is refused
+    private static int request(String host, int port) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + host + ":" + port + "/metrics").openConnection();
+        try {
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
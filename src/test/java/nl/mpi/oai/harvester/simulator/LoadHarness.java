@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.simulator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.mpi.oai.harvester.control.Configuration;
+import nl.mpi.oai.harvester.control.Main;
+import nl.mpi.oai.harvester.metrics.Metrics;
+
+/**
+ * Harvests the endpoints of an {@link OaiSimulator} with
+ * {@link Main#runHarvesting} and reports the records harvested per second,
+ * the peak heap and the cycle time. <br><br>
+ *
+ * The harness writes a configuration harvesting every endpoint into the
+ * working directory, saving the responses and the records. From the
+ * command line it takes the options of the simulator, and these:
+ *
+ * <pre>
+ * workdir=DIR       working directory, a temporary one by default
+ * max-jobs=N        number of harvester threads, 32 by default
+ * timeout=S         timeout of a request in seconds, 60 by default
+ * sanitize=MODE     sanitize the responses: drop or replace
+ * scenario=NAME     ListRecords or ListIdentifiers
+ * </pre>
+ *
+ * Run it with a heap as large as in production to see whether a change
+ * makes the harvester need more memory, for instance:
+ *
+ * <pre>
+ * mvn -q test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *     -Dexec.args="-Xmx2g -cp %classpath nl.mpi.oai.harvester.simulator.LoadHarness endpoints=1000 max-jobs=64"
+ * </pre>
+ */
+public class LoadHarness {
+
+    // interval between samples of the heap
+    private static final long SAMPLE_INTERVAL = 50;
+
+    private Path workdir;
+    private int maxJobs = 32;
+    private int timeout = 60;
+    private String sanitize = null;
+    private String scenario = "ListRecords";
+
+    /**
+     * Outcome of a harvest.
+     */
+    public static class Report {
+        private final long records;
+        private final long requests;
+        private final long faults;
+        private final long nanos;
+        private final long peakHeap;
+
+        Report(long records, long requests, long faults, long nanos, long peakHeap) {
+            this.records = records;
+            this.requests = requests;
+            this.faults = faults;
+            this.nanos = nanos;
+            this.peakHeap = peakHeap;
+        }
+
+        /**
+         * @return the number of records saved
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return the number of requests the simulator served
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return the number of faults the simulator injected
+         */
+        public long getFaults() {
+            return faults;
+        }
+
+        /**
+         * @return the time the harvest took in seconds
+         */
+        public double getCycleTime() {
+            return nanos / 1e9;
+        }
+
+        /**
+         * @return the number of records saved per second
+         */
+        public double getRecordsPerSecond() {
+            return nanos == 0 ? 0 : records / getCycleTime();
+        }
+
+        /**
+         * @return the largest heap in use during the harvest in bytes
+         */
+        public long getPeakHeap() {
+            return peakHeap;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("records[%d] requests[%d] faults[%d] cycle time[%.1fs] records/s[%.1f] peak heap[%.1fMB]",
+                    records, requests, faults, getCycleTime(), getRecordsPerSecond(), peakHeap / (1024.0 * 1024.0));
+        }
+    }
+
+    /**
+     * @param workdir the working directory of the harvest
+     * @return this harness
+     */
+    public LoadHarness setWorkdir(Path workdir) {
+        this.workdir = workdir;
+        return this;
+    }
+
+    /**
+     * @param maxJobs the number of harvester threads
+     * @return this harness
+     */
+    public LoadHarness setMaxJobs(int maxJobs) {
+        this.maxJobs = maxJobs;
+        return this;
+    }
+
+    /**
+     * @param timeout the timeout of a request in seconds
+     * @return this harness
+     */
+    public LoadHarness setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param sanitize how to sanitize the responses, drop or replace, null
+     *                 to leave them as they are
+     * @return this harness
+     */
+    public LoadHarness setSanitize(String sanitize) {
+        this.sanitize = sanitize;
+        return this;
+    }
+
+    /**
+     * @param scenario the scenario, ListRecords or ListIdentifiers
+     * @return this harness
+     */
+    public LoadHarness setScenario(String scenario) {
+        this.scenario = scenario;
+        return this;
+    }
+
+    /**
+     * Harvest all endpoints of a simulator that has been started.
+     *
+     * @param simulator the simulator
+     * @return the report of the harvest
+     * @throws Exception if the configuration cannot be written or read
+     */
+    public Report run(OaiSimulator simulator) throws Exception {
+        if (workdir == null)
+            workdir = Files.createTempDirectory("harvester-load");
+        Path file = writeConfig(simulator);
+
+        Configuration config = new Configuration();
+        config.readConfig(file.toString());
+        config.applyTimeoutSetting();
+        Main.config = config;
+
+        // sample the heap, the peak of the pools does not show the heap as a whole
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        AtomicLong peak = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        long records = Metrics.total().getRecords();
+        long requests = simulator.getRequests();
+        long faults = simulator.getFaults();
+        long start = System.nanoTime();
+        try {
+            Main.runHarvesting(config);
+        } finally {
+            sampler.shutdownNow();
+        }
+        long nanos = System.nanoTime() - start;
+        peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+
+        return new Report(Metrics.total().getRecords() - records, simulator.getRequests() - requests,
+                simulator.getFaults() - faults, nanos, peak.get());
+    }
+
+    /**
+     * Write a configuration that harvests all endpoints of the simulator.
+     */
+    private Path writeConfig(OaiSimulator simulator) throws IOException {
+        Path file = workdir.resolve("config.xml");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("<config>");
+            out.println("  <settings>");
+            out.println("    <workdir>" + workdir + "</workdir>");
+            out.println("    <overview-file>" + workdir.resolve("overview.xml") + "</overview-file>");
+            out.println("    <map-file>" + workdir.resolve("map.csv") + "</map-file>");
+            out.println("    <max-retry-count>2</max-retry-count>");
+            out.println("    <retry-delay>1</retry-delay>");
+            out.println("    <max-jobs>" + maxJobs + "</max-jobs>");
+            out.println("    <resource-pool-size>" + maxJobs + "</resource-pool-size>");
+            out.println("    <timeout>" + timeout + "</timeout>");
+            out.println("    <scenario>" + scenario + "</scenario>");
+            out.println("  </settings>");
+            out.println("  <directories>");
+            out.println("    <dir path=\"oai-pmh\" id=\"oai\" max-files=\"0\"/>");
+            out.println("    <dir path=\"cmdi\" id=\"rec\" max-files=\"0\"/>");
+            out.println("  </directories>");
+            out.println("  <actions>");
+            out.println("    <format match=\"prefix\" value=\"oai_dc\">");
+            out.println("      <action type=\"save\" dir=\"oai\" suffix=\".xml\"/>");
+            out.println("      <action type=\"split\"/>");
+            // a save with history counts the records in the metrics
+            out.println("      <action type=\"save\" dir=\"rec\" suffix=\".xml\" history=\"true\"/>");
+            out.println("    </format>");
+            out.println("  </actions>");
+            out.println("  <providers>");
+            for (int i = 0; i < simulator.getEndpoints(); i++) {
+                out.println("    <provider url=\"" + simulator.getBaseURL(i) + "\" name=\"simulator-" + i + "\""
+                        + (sanitize == null ? "" : " sanitize=\"" + sanitize + "\"") + "/>");
+            }
+            out.println("  </providers>");
+            out.println("</config>");
+        }
+        return file;
+    }
+
+    /**
+     * Start a simulator and harvest it.
+     *
+     * @param args the options as name=value
+     * @throws Exception if the harvest cannot be run
+     */
+    public static void main(String[] args) throws Exception {
+        OaiSimulator simulator = new OaiSimulator();
+        LoadHarness harness = new LoadHarness();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            boolean known = option.length == 2;
+            if (known) {
+                switch (option[0]) {
+                    case "workdir":
+                        harness.setWorkdir(Paths.get(option[1]));
+                        break;
+                    case "max-jobs":
+                        harness.setMaxJobs(Integer.parseInt(option[1]));
+                        break;
+                    case "timeout":
+                        harness.setTimeout(Integer.parseInt(option[1]));
+                        break;
+                    case "sanitize":
+                        harness.setSanitize(option[1]);
+                        break;
+                    case "scenario":
+                        harness.setScenario(option[1]);
+                        break;
+                    default:
+                        known = simulator.setOption(option[0], option[1]);
+                }
+            }
+            if (!known) {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
+        try (OaiSimulator running = simulator) {
+            running.start();
+            Report report = harness.run(running);
+            System.out.println(report);
+        }
+    }
+}
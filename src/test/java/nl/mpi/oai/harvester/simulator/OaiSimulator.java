@@ -0,0 +1,620 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Local OAI-PMH server with synthetic endpoints, for testing the harvester
+ * end to end without hitting real repositories. <br><br>
+ *
+ * The simulator serves a number of endpoints, at /oai/0, /oai/1 and so on,
+ * each offering the same number of oai_dc records. It answers Identify,
+ * ListMetadataFormats, ListRecords, ListIdentifiers and GetRecord, hands
+ * out resumption tokens that can expire, delays its responses, and
+ * injects the faults real endpoints show: 503 responses with a
+ * Retry-After header, malformed UTF-8 and HTML error pages. <br><br>
+ *
+ * Set the options before calling start. The simulator can also be run from
+ * the command line, taking the options as name=value arguments:
+ *
+ * <pre>
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=nl.mpi.oai.harvester.simulator.OaiSimulator \
+ *     -Dexec.args="port=8080 endpoints=1000 records=500 latency=50 jitter=100"
+ * </pre>
+ */
+public class OaiSimulator implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(OaiSimulator.class);
+
+    private static final String OAI = "http://www.openarchives.org/OAI/2.0/";
+
+    private static final String PREFIX = "oai_dc";
+
+    private static final String DATESTAMP = "2016-01-01T00:00:00Z";
+
+    /**
+     * Distribution of the jitter added to the latency of a response.
+     */
+    public enum Distribution {
+        UNIFORM, GAUSSIAN, EXPONENTIAL;
+
+        long sample(long jitter) {
+            if (jitter <= 0)
+                return 0;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (this) {
+                case GAUSSIAN:
+                    return Math.round(Math.abs(random.nextGaussian()) * jitter);
+                case EXPONENTIAL:
+                    return Math.round(-Math.log(1 - random.nextDouble()) * jitter);
+                default:
+                    return random.nextLong(jitter + 1);
+            }
+        }
+    }
+
+    private int port = 0;
+    private int endpoints = 1;
+    private int records = 100;
+    private int pageSize = 50;
+    private int recordSize = 1024;
+    private long tokenExpiry = 0;
+    private long latency = 0;
+    private long jitter = 0;
+    private Distribution distribution = Distribution.UNIFORM;
+    private double unavailable = 0;
+    private int retryAfter = 1;
+    private double malformed = 0;
+    private double html = 0;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String padding;
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     * @return this simulator
+     */
+    public OaiSimulator setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param endpoints the number of endpoints
+     * @return this simulator
+     */
+    public OaiSimulator setEndpoints(int endpoints) {
+        this.endpoints = endpoints;
+        return this;
+    }
+
+    /**
+     * @param records the number of records of each endpoint
+     * @return this simulator
+     */
+    public OaiSimulator setRecords(int records) {
+        this.records = records;
+        return this;
+    }
+
+    /**
+     * @param pageSize the number of records in a list response
+     * @return this simulator
+     */
+    public OaiSimulator setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param recordSize the approximate size of the metadata of a record in
+     *                   bytes
+     * @return this simulator
+     */
+    public OaiSimulator setRecordSize(int recordSize) {
+        this.recordSize = recordSize;
+        return this;
+    }
+
+    /**
+     * @param tokenExpiry the seconds a resumption token stays valid, 0 for
+     *                    tokens that never expire
+     * @return this simulator
+     */
+    public OaiSimulator setTokenExpiry(long tokenExpiry) {
+        this.tokenExpiry = tokenExpiry;
+        return this;
+    }
+
+    /**
+     * @param latency      the minimum delay of a response in milliseconds
+     * @param jitter       the scale of the delay added to it in milliseconds
+     * @param distribution the distribution of the added delay
+     * @return this simulator
+     */
+    public OaiSimulator setLatency(long latency, long jitter, Distribution distribution) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.distribution = distribution;
+        return this;
+    }
+
+    /**
+     * @param rate       the fraction of requests answered by a 503 response
+     * @param retryAfter the seconds asked for in its Retry-After header
+     * @return this simulator
+     */
+    public OaiSimulator setUnavailable(double rate, int retryAfter) {
+        this.unavailable = rate;
+        this.retryAfter = retryAfter;
+        return this;
+    }
+
+    /**
+     * @param rate the fraction of record responses containing invalid UTF-8
+     * @return this simulator
+     */
+    public OaiSimulator setMalformed(double rate) {
+        this.malformed = rate;
+        return this;
+    }
+
+    /**
+     * @param rate the fraction of requests answered by an HTML error page
+     * @return this simulator
+     */
+    public OaiSimulator setHtml(double rate) {
+        this.html = rate;
+        return this;
+    }
+
+    /**
+     * Set an option by the name used on the command line.
+     *
+     * @param name  the name of the option
+     * @param value its value
+     * @return false if the option is not known
+     */
+    public boolean setOption(String name, String value) {
+        switch (name) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "endpoints":
+                endpoints = Integer.parseInt(value);
+                break;
+            case "records":
+                records = Integer.parseInt(value);
+                break;
+            case "page-size":
+                pageSize = Integer.parseInt(value);
+                break;
+            case "record-size":
+                recordSize = Integer.parseInt(value);
+                break;
+            case "token-expiry":
+                tokenExpiry = Long.parseLong(value);
+                break;
+            case "latency":
+                latency = Long.parseLong(value);
+                break;
+            case "jitter":
+                jitter = Long.parseLong(value);
+                break;
+            case "distribution":
+                distribution = Distribution.valueOf(value.toUpperCase());
+                break;
+            case "unavailable":
+                unavailable = Double.parseDouble(value);
+                break;
+            case "retry-after":
+                retryAfter = Integer.parseInt(value);
+                break;
+            case "malformed":
+                malformed = Double.parseDouble(value);
+                break;
+            case "html":
+                html = Double.parseDouble(value);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start serving the endpoints.
+     *
+     * @throws IOException if the port cannot be bound
+     */
+    public void start() throws IOException {
+        StringBuilder sb = new StringBuilder(recordSize);
+        while (sb.length() < recordSize)
+            sb.append("lorem ipsum dolor sit amet ");
+        padding = sb.substring(0, Math.max(0, recordSize));
+
+        // the responses wait for the latency, so every connection gets a thread
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "oai-simulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/oai/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Simulating " + endpoints + " endpoints at http://localhost:" + server.getAddress().getPort() + "/oai/");
+    }
+
+    /**
+     * Stop serving the endpoints.
+     */
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @param endpoint the number of the endpoint
+     * @return the base URL of the endpoint
+     */
+    public String getBaseURL(int endpoint) {
+        return "http://localhost:" + server.getAddress().getPort() + "/oai/" + endpoint;
+    }
+
+    /**
+     * @return the list of base URLs of all endpoints
+     */
+    public List<String> getBaseURLs() {
+        List<String> urls = new ArrayList<>(endpoints);
+        for (int i = 0; i < endpoints; i++)
+            urls.add(getBaseURL(i));
+        return urls;
+    }
+
+    public int getEndpoints() {
+        return endpoints;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of requests served
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of faults injected
+     */
+    public long getFaults() {
+        return faults.sum();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            long delay = latency + distribution.sample(jitter);
+            if (delay > 0)
+                Thread.sleep(delay);
+
+            String path = exchange.getRequestURI().getPath();
+            int endpoint;
+            try {
+                endpoint = Integer.parseInt(path.substring("/oai/".length()));
+            } catch (NumberFormatException e) {
+                endpoint = -1;
+            }
+            if (endpoint < 0 || endpoint >= endpoints) {
+                send(exchange, 404, "text/plain", "no endpoint at " + path);
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < unavailable) {
+                faults.increment();
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+                send(exchange, 503, "text/plain", "Service Unavailable");
+                return;
+            }
+            if (random.nextDouble() < html) {
+                // the kind of page a proxy in front of a repository returns
+                faults.increment();
+                send(exchange, 200, "text/html", "<!DOCTYPE html>\n<html><head><title>Error</title></head>"
+                        + "<body><h1>Internal Server Error</h1><p>The server encountered an internal error"
+                        + " and was unable to complete your request.</p></body></html>\n");
+                return;
+            }
+
+            Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+            String body = respond(getBaseURL(endpoint), endpoint, params);
+            byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            if (body.contains("<record>") && random.nextDouble() < malformed) {
+                faults.increment();
+                content = corrupt(content);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/xml; charset=UTF-8");
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(content);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (RuntimeException e) {
+            logger.error("Failed to answer " + exchange.getRequestURI(), e);
+            send(exchange, 500, "text/plain", e.toString());
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", type + "; charset=UTF-8");
+        exchange.sendResponseHeaders(status, content.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(content);
+        }
+    }
+
+    /**
+     * Replace the first byte of the metadata by bytes that are not valid
+     * UTF-8: a lone continuation byte and a truncated sequence.
+     */
+    private static byte[] corrupt(byte[] content) {
+        String marker = "<dc:description>";
+        String s = new String(content, StandardCharsets.UTF_8);
+        int i = s.indexOf(marker);
+        if (i < 0)
+            return content;
+        int offset = s.substring(0, i + marker.length()).getBytes(StandardCharsets.UTF_8).length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 2);
+        out.write(content, 0, offset);
+        out.write(0x80);
+        out.write(0xC3);
+        out.write(content, offset, content.length - offset);
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int i = pair.indexOf('=');
+            if (i > 0)
+                params.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"),
+                        URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Build the response to a request.
+     *
+     * @param base     the base URL of the endpoint
+     * @param endpoint the number of the endpoint
+     * @param params   the parameters of the request
+     * @return the OAI-PMH response
+     */
+    String respond(String base, int endpoint, Map<String, String> params) {
+        String verb = params.get("verb");
+        StringBuilder sb = new StringBuilder(pageSize * (recordSize + 512) + 1024);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<OAI-PMH xmlns=\"").append(OAI).append("\"")
+                .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
+                .append(" xsi:schemaLocation=\"").append(OAI).append(" ").append(OAI).append("OAI-PMH.xsd\">\n")
+                .append("<responseDate>").append(Instant.now().truncatedTo(ChronoUnit.SECONDS)).append("</responseDate>\n")
+                .append("<request");
+        for (Map.Entry<String, String> param : params.entrySet())
+            sb.append(" ").append(param.getKey()).append("=\"").append(escape(param.getValue())).append("\"");
+        sb.append(">").append(base).append("</request>\n");
+
+        if (verb == null) {
+            error(sb, "badVerb", "missing verb");
+        } else if (verb.equals("Identify")) {
+            sb.append("<Identify>")
+                    .append("<repositoryName>Simulated endpoint ").append(endpoint).append("</repositoryName>")
+                    .append("<baseURL>").append(base).append("</baseURL>")
+                    .append("<protocolVersion>2.0</protocolVersion>")
+                    .append("<adminEmail>nobody@example.org</adminEmail>")
+                    .append("<earliestDatestamp>").append(DATESTAMP).append("</earliestDatestamp>")
+                    .append("<deletedRecord>no</deletedRecord>")
+                    .append("<granularity>YYYY-MM-DDThh:mm:ssZ</granularity>")
+                    .append("</Identify>\n");
+        } else if (verb.equals("ListMetadataFormats")) {
+            sb.append("<ListMetadataFormats><metadataFormat>")
+                    .append("<metadataPrefix>").append(PREFIX).append("</metadataPrefix>")
+                    .append("<schema>http://www.openarchives.org/OAI/2.0/oai_dc.xsd</schema>")
+                    .append("<metadataNamespace>http://www.openarchives.org/OAI/2.0/oai_dc/</metadataNamespace>")
+                    .append("</metadataFormat></ListMetadataFormats>\n");
+        } else if (verb.equals("ListRecords") || verb.equals("ListIdentifiers")) {
+            list(sb, verb, endpoint, params);
+        } else if (verb.equals("GetRecord")) {
+            String id = params.get("identifier");
+            int n = index(endpoint, id);
+            if (!PREFIX.equals(params.get("metadataPrefix"))) {
+                error(sb, "cannotDisseminateFormat", "only " + PREFIX + " is supported");
+            } else if (n < 0) {
+                error(sb, "idDoesNotExist", "no record " + id);
+            } else {
+                sb.append("<GetRecord>");
+                record(sb, endpoint, n, true);
+                sb.append("</GetRecord>\n");
+            }
+        } else if (verb.equals("ListSets")) {
+            error(sb, "noSetHierarchy", "sets are not supported");
+        } else {
+            error(sb, "badVerb", "unknown verb " + verb);
+        }
+        return sb.append("</OAI-PMH>\n").toString();
+    }
+
+    private void list(StringBuilder sb, String verb, int endpoint, Map<String, String> params) {
+        String token = params.get("resumptionToken");
+        int cursor = 0;
+        if (token != null) {
+            // the token is the cursor, the time it was issued and the prefix
+            String[] parts = token.split("-", 3);
+            try {
+                cursor = Integer.parseInt(parts[0]);
+                long issued = Long.parseLong(parts[1]);
+                if (tokenExpiry > 0 && System.currentTimeMillis() - issued > tokenExpiry * 1000) {
+                    error(sb, "badResumptionToken", "token " + token + " has expired");
+                    return;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                error(sb, "badResumptionToken", "token " + token + " is not valid");
+                return;
+            }
+        } else if (!PREFIX.equals(params.get("metadataPrefix"))) {
+            error(sb, "cannotDisseminateFormat", "only " + PREFIX + " is supported");
+            return;
+        }
+        if (params.containsKey("set")) {
+            error(sb, "noSetHierarchy", "sets are not supported");
+            return;
+        }
+        if (records == 0) {
+            error(sb, "noRecordsMatch", "no records");
+            return;
+        }
+
+        boolean full = verb.equals("ListRecords");
+        sb.append("<").append(verb).append(">\n");
+        int end = Math.min(records, cursor + pageSize);
+        for (int n = cursor; n < end; n++) {
+            if (full) {
+                record(sb, endpoint, n, true);
+            } else {
+                header(sb, endpoint, n);
+            }
+        }
+        if (end < records || token != null) {
+            sb.append("<resumptionToken completeListSize=\"").append(records)
+                    .append("\" cursor=\"").append(cursor).append("\"");
+            long now = System.currentTimeMillis();
+            if (tokenExpiry > 0)
+                sb.append(" expirationDate=\"")
+                        .append(Instant.ofEpochMilli(now + tokenExpiry * 1000).truncatedTo(ChronoUnit.SECONDS))
+                        .append("\"");
+            sb.append(">");
+            // the last page has an empty token
+            if (end < records)
+                sb.append(end).append("-").append(now).append("-").append(PREFIX);
+            sb.append("</resumptionToken>\n");
+        }
+        sb.append("</").append(verb).append(">\n");
+    }
+
+    private void record(StringBuilder sb, int endpoint, int n, boolean metadata) {
+        sb.append("<record>");
+        header(sb, endpoint, n);
+        if (metadata) {
+            sb.append("<metadata><oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"")
+                    .append(" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">")
+                    .append("<dc:title>Record ").append(n).append(" of endpoint ").append(endpoint).append("</dc:title>")
+                    .append("<dc:identifier>").append(identifier(endpoint, n)).append("</dc:identifier>")
+                    .append("<dc:description>").append(padding).append("</dc:description>")
+                    .append("</oai_dc:dc></metadata>");
+        }
+        sb.append("</record>\n");
+    }
+
+    private static void header(StringBuilder sb, int endpoint, int n) {
+        sb.append("<header><identifier>").append(identifier(endpoint, n)).append("</identifier>")
+                .append("<datestamp>").append(DATESTAMP).append("</datestamp></header>");
+    }
+
+    private static String identifier(int endpoint, int n) {
+        return "oai:simulator-" + endpoint + ":" + n;
+    }
+
+    private int index(int endpoint, String id) {
+        String prefix = "oai:simulator-" + endpoint + ":";
+        if (id == null || !id.startsWith(prefix))
+            return -1;
+        try {
+            int n = Integer.parseInt(id.substring(prefix.length()));
+            return (n >= 0 && n < records) ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void error(StringBuilder sb, String code, String message) {
+        sb.append("<error code=\"").append(code).append("\">").append(escape(message)).append("</error>\n");
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Run the simulator until the process is stopped.
+     *
+     * @param args the options as name=value
+     * @throws Exception if the simulator cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        OaiSimulator simulator = new OaiSimulator().setPort(8080);
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !simulator.setOption(option[0], option[1])) {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+        simulator.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+        System.out.println("Serving " + simulator.getEndpoints() + " endpoints from "
+                + simulator.getBaseURL(0) + " to " + simulator.getBaseURL(simulator.getEndpoints() - 1));
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the synthetic OAI-PMH server, and a small harvest of it.
+ */
+public class OaiSimulatorTest {
+
+    private static final Pattern TOKEN = Pattern.compile("<resumptionToken[^>]*>([^<]*)</resumptionToken>");
+
+    @Rule
+    public TemporaryFolder workdir = new TemporaryFolder();
+
+    /**
+     * Test that a list is served in pages linked by resumption tokens.
+     */
+    @Test
+    public void testPages() throws Exception {
+        try (OaiSimulator simulator = new OaiSimulator().setEndpoints(2).setRecords(25).setPageSize(10)) {
+            simulator.start();
+
+            String url = simulator.getBaseURL(1) + "?verb=ListRecords&metadataPrefix=oai_dc";
+            int pages = 0;
+            int records = 0;
+            String token;
+            do {
+                String page = get(url);
+                pages++;
+                records += count(page, "<record>");
+                assertTrue(page.contains("oai:simulator-1:" + (records - 1)));
+                Matcher m = TOKEN.matcher(page);
+                token = m.find() ? m.group(1) : "";
+                url = simulator.getBaseURL(1) + "?verb=ListRecords&resumptionToken=" + token;
+            } while (!token.isEmpty());
+
+            assertEquals(3, pages);
+            assertEquals(25, records);
+            assertEquals(3, simulator.getRequests());
+        }
+    }
+
+    /**
+     * Test that an expired resumption token is refused.
+     */
+    @Test
+    public void testTokenExpiry() {
+        OaiSimulator simulator = new OaiSimulator().setRecords(25).setPageSize(10).setTokenExpiry(60);
+        Map<String, String> params = new HashMap<>();
+        params.put("verb", "ListRecords");
+
+        params.put("resumptionToken", "10-" + System.currentTimeMillis() + "-oai_dc");
+        assertFalse(simulator.respond("base", 0, params).contains("badResumptionToken"));
+
+        params.put("resumptionToken", "10-" + (System.currentTimeMillis() - 61000) + "-oai_dc");
+        assertTrue(simulator.respond("base", 0, params).contains("badResumptionToken"));
+
+        assertTrue(simulator.respond("base", 0, Collections.singletonMap("verb", "Harvest")).contains("badVerb"));
+    }
+
+    /**
+     * Test that the faults are injected.
+     */
+    @Test
+    public void testFaults() throws Exception {
+        try (OaiSimulator simulator = new OaiSimulator().setUnavailable(1, 7)) {
+            simulator.start();
+            HttpURLConnection con = (HttpURLConnection) new URL(simulator.getBaseURL(0) + "?verb=Identify").openConnection();
+            assertEquals(503, con.getResponseCode());
+            assertEquals("7", con.getHeaderField("Retry-After"));
+            assertEquals(1, simulator.getFaults());
+        }
+
+        try (OaiSimulator simulator = new OaiSimulator().setHtml(1)) {
+            simulator.start();
+            assertTrue(get(simulator.getBaseURL(0) + "?verb=Identify").startsWith("<!DOCTYPE html>"));
+        }
+
+        try (OaiSimulator simulator = new OaiSimulator().setMalformed(1)) {
+            simulator.start();
+            // the identify response has no records to corrupt
+            assertFalse(get(simulator.getBaseURL(0) + "?verb=Identify").contains("\uFFFD"));
+            assertTrue(get(simulator.getBaseURL(0) + "?verb=ListRecords&metadataPrefix=oai_dc").contains("\uFFFD"));
+        }
+    }
+
+    /**
+     * Test that the harness harvests all records of the simulator.
+     */
+    @Test
+    public void testHarvest() throws Exception {
+        try (OaiSimulator simulator = new OaiSimulator().setEndpoints(3).setRecords(25).setPageSize(10)) {
+            simulator.start();
+            LoadHarness.Report report = new LoadHarness()
+                    .setWorkdir(workdir.getRoot().toPath())
+                    .setMaxJobs(2)
+                    .run(simulator);
+
+            assertEquals(75, report.getRecords());
+            assertTrue(report.getPeakHeap() > 0);
+            try (Stream<Path> files = Files.walk(workdir.getRoot().toPath().resolve("cmdi"))) {
+                assertEquals(75, files.filter(p -> p.toString().endsWith(".xml")
+                        && !p.getFileName().toString().endsWith("_history.xml")).count());
+            }
+        }
+    }
+
+    private static String get(String url) throws IOException {
+        try (InputStream in = new URL(url).openStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+            n++;
+        return n;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the responses spooled to disk while the heap is under pressure.
+ */
+public class DocumentSourceTest {
+
+    private static final String RESPONSE = "<OAI-PMH><GetRecord/></OAI-PMH>";
+
+    // the number of spool files in the temporary directory
+    private static int spooled() throws IOException {
+        Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tmp, DocumentSource.SPOOL_PREFIX + "*")) {
+            for (Path file : files) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static InputStream spool() throws IOException {
+        return DocumentSource.spool(new ByteArrayInputStream(
+                RESPONSE.getBytes(StandardCharsets.UTF_8)), "http://example.org/oai?verb=GetRecord");
+    }
+
+    /**
+     * Test that no spool files are left once a spooled response has been
+     * parsed into a tree, or replaced, and that the stream is closed.
+     */
+    @Test
+    public void testSpool() throws Exception {
+        int before = spooled();
+
+        InputStream in = spool();
+        DocumentSource source = new DocumentSource("rec", in);
+        assertNotNull(source.getDocument());
+        assertFalse(source.hasStream());
+        assertEquals(before, spooled());
+        try {
+            in.read();
+            fail("the spooled stream should be closed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        in = spool();
+        source = new DocumentSource("rec", in);
+        source.setStream(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(before, spooled());
+
+        // a shared stream stays open for the other consumers
+        in = spool();
+        source = new DocumentSource("rec", in);
+        DocumentSource copy = source.share();
+        assertNotNull(copy.getDocument());
+        assertNotNull(source.getDocument());
+        in.reset();
+        assertEquals('<', in.read());
+        source.close();
+        assertEquals(before, spooled());
+    }
+}
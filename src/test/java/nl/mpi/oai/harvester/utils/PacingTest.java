@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package nl.mpi.oai.harvester.utils;
+
+import java.io.InterruptedIOException;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the pacing of the requests to the endpoints.
+ */
+public class PacingTest {
+
+    private static final String URL = "http://example.org/oai";
+
+    @After
+    public void tearDown() {
+        Pacing.configure(4);
+    }
+
+    /**
+     * Test that the number of requests goes up by one per round of requests,
+     * up to the maximum.
+     */
+    @Test
+    public void testIncrease() {
+        AdaptiveLimit limit = new AdaptiveLimit(4);
+        assertEquals(1, limit.permits());
+        assertFalse(limit.success(0, 100));
+        assertEquals(2, limit.permits());
+        limit.success(0, 100);
+        limit.success(0, 100);
+        assertEquals(2, limit.permits());
+        for (int i = 0; i < 20; i++) {
+            assertFalse(limit.success(0, 100));
+        }
+        assertEquals(4, limit.permits());
+        assertEquals(4.0, limit.getLimit(), 0.0);
+        assertEquals(0, limit.getInterval());
+        assertEquals(100, limit.getLatency());
+    }
+
+    /**
+     * Test that failures halve the number of requests and double the
+     * interval, at most once per window, and that responses in time speed
+     * the requests up again.
+     */
+    @Test
+    public void testDecrease() {
+        AdaptiveLimit limit = new AdaptiveLimit(8);
+        limit.restore(8, 0, 0);
+        assertTrue(limit.failure(10000));
+        assertEquals(4, limit.permits());
+        assertEquals(AdaptiveLimit.MIN_INTERVAL, limit.getInterval());
+
+        // the requests in flight fail together
+        assertFalse(limit.failure(10500));
+        assertEquals(4, limit.permits());
+
+        assertTrue(limit.failure(11000));
+        assertEquals(2, limit.permits());
+        assertEquals(500, limit.getInterval());
+
+        // 2 requests per second, plus a step
+        limit.success(12000, 100);
+        assertEquals(476, limit.getInterval());
+
+        // the starts of the requests are spread
+        assertEquals(0, limit.reserve(20000));
+        assertEquals(476, limit.reserve(20000));
+        assertEquals(852, limit.reserve(20100));
+    }
+
+    /**
+     * Test that a response taking much longer than usual slows the requests
+     * down.
+     */
+    @Test
+    public void testSpike() {
+        AdaptiveLimit limit = new AdaptiveLimit(4);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(limit.success(0, 100));
+        }
+        assertEquals(4, limit.permits());
+        assertFalse(limit.success(1000, 250));
+        assertTrue(limit.success(2000, 1000));
+        assertEquals(2, limit.permits());
+    }
+
+    /**
+     * Test that no more requests are in flight than the limit allows.
+     */
+    @Test
+    public void testAcquire() throws Exception {
+        AdaptiveLimit limit = new AdaptiveLimit(4);
+        assertEquals(0, limit.acquire());
+        Thread thread = new Thread(() -> {
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+        assertEquals(1, limit.getInFlight());
+
+        limit.release();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, limit.getInFlight());
+    }
+
+    /**
+     * Test that the limits are kept by endpoint, restored from the overview,
+     * and not used when pacing is off.
+     */
+    @Test
+    public void testPacing() throws Exception {
+        Pacing.configure(4);
+        Pacing.restore(URL, 10, 1000000, 50);
+        assertEquals(4, Pacing.permits(URL + "?verb=GetRecord"));
+        assertEquals(AdaptiveLimit.MAX_INTERVAL, Pacing.limit(URL).getInterval());
+        assertEquals(50, Pacing.limit(URL).getLatency());
+
+        // a limit in use is not restored
+        Pacing.restore(URL, 1, 0, 0);
+        assertEquals(4, Pacing.permits(URL));
+
+        Pacing.failure(URL + "?verb=ListRecords");
+        assertEquals(2, Pacing.permits(URL));
+
+        Pacing.configure(0);
+        assertFalse(Pacing.isEnabled());
+        assertEquals(1, Pacing.permits(URL));
+        Pacing.acquire(URL);
+        Pacing.acquire(URL);
+        assertEquals(0, Pacing.limit(URL).getInFlight());
+    }
+
+    /**
+     * Test that a request interrupted while it is paced gives up its slot.
+     */
+    @Test
+    public void testInterrupt() throws Exception {
+        String url = "http://example.org/interrupted";
+        Pacing.configure(4);
+        Pacing.restore(url, 2, AdaptiveLimit.MAX_INTERVAL, 0);
+        Pacing.acquire(url);
+        Thread thread = new Thread(() -> {
+            try {
+                Pacing.acquire(url);
+                fail("the request should wait for the interval");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+        });
+        thread.start();
+        while (Pacing.limit(url).getInFlight() < 2) {
+            Thread.sleep(10);
+        }
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, Pacing.limit(url).getInFlight());
+        Pacing.release(url);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.utils;
+
+import com.github.tomakehurst.wiremock.junit.WireMockClassRule;
+import com.google.common.base.Charsets;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ResponseCache. (Responses are served by a mock endpoint.)
+ */
+public class ResponseCacheTest {
+
+    private static final String ERROR = "<?xml version=\"1.0\"?>"
+            + "<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">"
+            + "<error code=\"badVerb\">Illegal verb</error></OAI-PMH>";
+
+    @ClassRule
+    public static WireMockClassRule wireMockRule = new WireMockClassRule(8091);
+
+    @Rule
+    public WireMockClassRule wireMockInstanceRule = wireMockRule;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private String identify;
+
+    @Before
+    public void setUp() throws Exception {
+        try (InputStream in = getClass().getResourceAsStream("/response-Identify.xml")) {
+            identify = IOUtils.toString(in, Charsets.UTF_8);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ResponseCache.configure(null, 0);
+    }
+
+    private String fetch(String request) throws Exception {
+        String url = "http://localhost:" + wireMockRule.getOptions().portNumber() + request;
+        return IOUtils.toString(ResponseCache.fetch(url, 10).getStream(), Charsets.UTF_8);
+    }
+
+    /**
+     * Test that a response is requested once, and shared afterwards.
+     */
+    @Test
+    public void testMemoryCache() throws Exception {
+        String request = "/memory?verb=Identify";
+
+        stubFor(get(urlEqualTo(request)).willReturn(aResponse()
+                .withStatus(200).withBody(identify)));
+
+        ResponseCache.configure(null, 60);
+        assertEquals(identify, fetch(request));
+        assertEquals(identify, fetch(request));
+
+        verify(1, getRequestedFor(urlEqualTo(request)));
+    }
+
+    /**
+     * Test that a later run reuses the responses stored on disk.
+     */
+    @Test
+    public void testDiskCache() throws Exception {
+        String request = "/disk?verb=Identify";
+
+        stubFor(get(urlEqualTo(request)).willReturn(aResponse()
+                .withStatus(200).withBody(identify)));
+
+        Path dir = folder.getRoot().toPath();
+        ResponseCache.configure(dir, 60);
+        assertEquals(identify, fetch(request));
+
+        // a new configuration drops the responses in memory
+        ResponseCache.configure(dir, 60);
+        assertEquals(identify, fetch(request));
+
+        verify(1, getRequestedFor(urlEqualTo(request)));
+    }
+
+    /**
+     * Test that error responses are not cached, and that caching can be
+     * disabled.
+     */
+    @Test
+    public void testNotCached() throws Exception {
+        String request = "/error?verb=Identify";
+
+        stubFor(get(urlEqualTo(request)).willReturn(aResponse()
+                .withStatus(200).withBody(ERROR)));
+
+        ResponseCache.configure(null, 60);
+        assertEquals(ERROR, fetch(request));
+        assertEquals(ERROR, fetch(request));
+        verify(2, getRequestedFor(urlEqualTo(request)));
+
+        ResponseCache.configure(null, 0);
+        fetch(request);
+        verify(3, getRequestedFor(urlEqualTo(request)));
+    }
+
+    /**
+     * Test that concurrent requests for the same URL wait for a single
+     * fetch, and that later requests still find the response.
+     */
+    @Test
+    public void testConcurrentFetch() throws Exception {
+        String request = "/concurrent?verb=Identify";
+
+        stubFor(get(urlEqualTo(request)).willReturn(aResponse()
+                .withStatus(200).withBody(identify).withFixedDelay(200)));
+
+        ResponseCache.configure(null, 60);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+                responses.add(executor.submit(() -> fetch(request)));
+            for (Future<String> response : responses)
+                assertEquals(identify, response.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(identify, fetch(request));
+
+        verify(1, getRequestedFor(urlEqualTo(request)));
+    }
+}
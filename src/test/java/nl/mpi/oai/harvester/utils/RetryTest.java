@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.utils;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the retry delays and the circuit breakers.
+ */
+public class RetryTest {
+
+    private static final String URL = "http://example.org/oai";
+
+    @After
+    public void tearDown() {
+        Retry.configure(5, 600, 3600);
+    }
+
+    /**
+     * Test that the delays are taken from the upper half of the configured
+     * ones, double beyond the last one, and do not exceed the maximum.
+     */
+    @Test
+    public void testDelay() {
+        Random random = new Random(42);
+        int[] delays = {0, 10};
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, Retry.delay(delays, 0, 3600000, random));
+
+            long d = Retry.delay(delays, 1, 3600000, random);
+            assertTrue(d >= 5000 && d <= 10000);
+
+            d = Retry.delay(delays, 3, 3600000, random);
+            assertTrue(d >= 20000 && d <= 40000);
+
+            d = Retry.delay(delays, 40, 60000, random);
+            assertTrue(d >= 30000 && d <= 60000);
+        }
+        assertEquals(0, Retry.delay(null, 3, 3600000, random));
+    }
+
+    /**
+     * Test that the breaker opens after the threshold, fails requests while
+     * it is open, and closes after a successful trial request.
+     */
+    @Test
+    public void testBreaker() throws Exception {
+        Retry.configure(2, 3600, 3600);
+        Retry.failure(URL + "?verb=Identify");
+        Retry.check(URL + "?verb=ListRecords");
+        Retry.failure(URL + "?verb=Identify");
+        assertEquals(CircuitBreaker.State.OPEN, Retry.breaker(URL).getState());
+        try {
+            Retry.check(URL + "?verb=ListRecords");
+            fail("the breaker should be open");
+        } catch (Retry.OpenException e) {
+            // expected
+        }
+        assertFalse(Retry.backoff(URL, new int[]{0}, 0));
+
+        // a breaker that has been open long enough lets a request through
+        Retry.configure(2, 0, 3600);
+        Retry.restore(URL, "open", 2, System.currentTimeMillis());
+        Retry.check(URL);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, Retry.breaker(URL).getState());
+        Retry.success(URL);
+        assertEquals(CircuitBreaker.State.CLOSED, Retry.breaker(URL).getState());
+        assertEquals(0, Retry.breaker(URL).getFailures());
+
+        // a failed trial opens the breaker right away
+        Retry.configure(2, 3600, 3600);
+        Retry.restore(URL, "half-open", 2, 0);
+        Retry.failure(URL);
+        assertEquals(CircuitBreaker.State.OPEN, Retry.breaker(URL).getState());
+    }
+
+    /**
+     * Test that backing off waits for the next attempt on the same thread,
+     * and gives up when it is interrupted.
+     */
+    @Test
+    public void testAwait() throws Exception {
+        long start = System.currentTimeMillis();
+        assertTrue(Retry.backoff(URL, new int[]{1}, 0));
+        assertTrue(System.currentTimeMillis() - start >= 500);
+
+        AtomicReference<Boolean> retried = new AtomicReference<>();
+        Thread thread = new Thread(() -> retried.set(Retry.backoff(URL, new int[]{60}, 0)));
+        thread.start();
+        Thread.sleep(100);
+        thread.interrupt();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertFalse(retried.get());
+    }
+}
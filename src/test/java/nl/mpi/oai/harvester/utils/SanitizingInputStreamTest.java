@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SanitizingInputStream.
+ */
+public class SanitizingInputStreamTest {
+
+    // <a>, a-umlaut, an invalid byte, the euro sign, NUL, a cut off sequence,
+    // an emoji, U+FFFE, a tab and </a>
+    private static final byte[] INPUT = {
+        '<', 'a', '>', 'K', (byte) 0xC3, (byte) 0xA4, (byte) 0xFF,
+        (byte) 0xE2, (byte) 0x82, (byte) 0xAC, 0x00, (byte) 0xE2, (byte) 0x82,
+        (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80, (byte) 0xEF,
+        (byte) 0xBF, (byte) 0xBE, '\t', '<', '/', 'a', '>'
+    };
+
+    private static String read(InputStream in, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[chunk];
+        int n;
+        while ((n = in.read(b, 0, chunk)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test that invalid sequences and illegal characters are dropped, also
+     * when the content is read one byte at a time.
+     */
+    @Test
+    public void testDrop() throws IOException {
+        for (int chunk : new int[]{1, 2, 3, 4096}) {
+            SanitizingInputStream in = new SanitizingInputStream(new ByteArrayInputStream(INPUT));
+            assertEquals("<a>K\u00e4\u20ac\ud83d\ude00\t</a>", read(in, chunk));
+            assertEquals(2, in.getInvalidSequences());
+            assertEquals(2, in.getIllegalCharacters());
+        }
+    }
+
+    /**
+     * Test that invalid sequences are replaced when requested.
+     */
+    @Test
+    public void testReplace() throws IOException {
+        SanitizingInputStream in = new SanitizingInputStream(new ByteArrayInputStream(INPUT), true);
+        assertEquals("<a>K\u00e4\ufffd\u20ac\ufffd\ud83d\ude00\t</a>", read(in, 1));
+        assertEquals(2, in.getInvalidSequences());
+    }
+
+    /**
+     * Test that a sequence cut off by the end of the stream is left out, and
+     * that surrogates encoded in UTF-8 are invalid.
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] input = {'x', (byte) 0xED, (byte) 0xA0, (byte) 0x80, 'y', (byte) 0xF0, (byte) 0x9F};
+        SanitizingInputStream in = new SanitizingInputStream(new ByteArrayInputStream(input));
+        assertEquals("xy", read(in, 16));
+        assertEquals(4, in.getInvalidSequences());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016, CLARIN ERIC.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ *
+ * A copy of the GNU General Public License is included in the file
+ * LICENSE-gpl-3.0.txt. If that file is missing, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.oai.harvester.utils;
+
+import java.io.InputStream;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for StaticRepository, using the static-repo.xml file in the test
+ * resources directory.
+ */
+public class StaticRepositoryTest {
+
+    private static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StaticRepository repository;
+
+    private DocumentBuilder db;
+
+    @Before
+    public void setUp() throws Exception {
+        try (InputStream in = getClass().getResourceAsStream("/static-repo.xml")) {
+            repository = new StaticRepository(in, folder.newFile().toPath());
+        }
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        db = dbf.newDocumentBuilder();
+    }
+
+    @After
+    public void tearDown() {
+        repository.close();
+    }
+
+    /**
+     * Test that the records are indexed in order, and can be parsed on their
+     * own.
+     */
+    @Test
+    public void testRecords() throws Exception {
+        List<StaticRepository.Entry> records = repository.getRecords("olac");
+        assertEquals(2, records.size());
+        assertEquals("oai:mbcarrom.linguistlist.org:370", records.get(0).getIdentifier());
+        assertEquals("oai:mbcarrom.linguistlist.org:371", records.get(1).getIdentifier());
+        assertFalse(records.get(0).isDeleted());
+
+        Document doc = db.parse(repository.getRecord("oai:mbcarrom.linguistlist.org:371", "olac"));
+        assertEquals(OAI_NS, doc.getDocumentElement().getNamespaceURI());
+        assertEquals("record", doc.getDocumentElement().getLocalName());
+
+        assertNull(repository.getRecord("garbage", "olac"));
+        assertTrue(repository.getRecords("garbage").isEmpty());
+    }
+
+    /**
+     * Test that the list of records of a prefix is well-formed, and that it
+     * can be read again after a reset.
+     */
+    @Test
+    public void testListRecords() throws Exception {
+        InputStream in = repository.getListRecords("olac");
+        Document doc = db.parse(in);
+        assertEquals("ListRecords", doc.getDocumentElement().getLocalName());
+        assertEquals("olac", doc.getDocumentElement().getAttribute("metadataPrefix"));
+        assertEquals(2, doc.getElementsByTagNameNS(OAI_NS, "record").getLength());
+
+        in.reset();
+        assertEquals(2, db.parse(in).getElementsByTagNameNS(OAI_NS, "record").getLength());
+
+        assertNull(repository.getListRecords("garbage"));
+    }
+}